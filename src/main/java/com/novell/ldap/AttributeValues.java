@@ -0,0 +1,477 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * The values of an LDAPAttribute, stored compactly.
+ *
+ * <p>The octets of all values are held end to end in one array, with an
+ * array of offsets marking where each value ends, rather than in one object
+ * per value.  The String form of each value is decoded the first time it is
+ * requested and kept until the values change.  Once a lookup is made in an
+ * attribute with many values, a hash index of the values is built and kept
+ * up to date, so that finding or removing a value takes constant time.</p>
+ *
+ * <p>A removed value is marked as removed and its octets are reclaimed
+ * when at least half the stored values are removed, which keeps the
+ * remaining values in the order they were added.  Values are identified by
+ * their position, from 0 to {@link #end}, which stays the same until the
+ * values are compacted by a removal or cleared.</p>
+ *
+ * <p>Like the list it replaces, the values are not synchronized.</p>
+ */
+/* package */
+final class AttributeValues
+{
+    // Number of values from which lookups use a hash index
+    private static final int INDEX_THRESHOLD = 32;
+
+    private byte[] octets;          // Octets of all values, end to end
+    private int[] ends;             // End of each value in octets
+    private int count = 0;          // Values stored, including removed ones
+    private int removed = 0;        // Values marked as removed
+    private int head = 0;           // No value before head is present
+    private long[] gone = null;     // Bit set of the removed values
+    private String[] strings = null;// Decoded values, null until requested
+    private int[] index = null;     // Hash table of position + 1, 0 if empty
+
+    /**
+     * Constructs an empty set of values.
+     */
+    /* package */
+    AttributeValues()
+    {
+        octets = new byte[16];
+        ends = new int[2];
+        return;
+    }
+
+    /**
+     * Constructs a copy of a set of values, without the removed values.
+     *
+     * @param values The values to copy.
+     */
+    /* package */
+    AttributeValues( AttributeValues values)
+    {
+        int length = 0;
+        for( int pos = values.first(); pos >= 0; pos = values.next( pos)) {
+            length += values.length( pos);
+        }
+        ends = new int[Math.max( values.size(), 2)];
+        octets = new byte[Math.max( length, 16)];
+        for( int pos = values.first(); pos >= 0; pos = values.next( pos)) {
+            add( values.octets, values.start( pos), values.length( pos));
+        }
+        return;
+    }
+
+    /**
+     * Returns the number of values present.
+     */
+    /* package */
+    int size()
+    {
+        return count - removed;
+    }
+
+    /**
+     * Returns one past the last position of a value, present or removed.
+     */
+    /* package */
+    int end()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the position of the first value present, or -1 if none.
+     */
+    /* package */
+    int first()
+    {
+        while( (head < count) && isRemoved( head)) {
+            head++;
+        }
+        return (head < count) ? head : -1;
+    }
+
+    /**
+     * Returns the position of the value present after a position, or -1 if
+     * none.
+     */
+    /* package */
+    int next( int pos)
+    {
+        for( pos++; pos < count; pos++) {
+            if( ! isRemoved( pos)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reserves room for more values, to avoid growing the arrays value by
+     * value when the number and total length of the values are known.
+     *
+     * @param values The number of values to be added.
+     * @param length The total length of the values to be added.
+     */
+    /* package */
+    void ensureCapacity( int values, int length)
+    {
+        if( count + values > ends.length) {
+            ends = copyOf( ends, count + values);
+        }
+        if( used() + length > octets.length) {
+            byte[] grown = new byte[used() + length];
+            System.arraycopy( octets, 0, grown, 0, used());
+            octets = grown;
+        }
+        return;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param bytes  The array holding the value, which is copied.
+     * @param offset The offset of the value in the array.
+     * @param length The length of the value.
+     */
+    /* package */
+    void add( byte[] bytes, int offset, int length)
+    {
+        int start = used();
+        if( start + length > octets.length) {
+            int size = Math.max( octets.length + (octets.length >> 1),
+                                 start + length);
+            byte[] grown = new byte[size];
+            System.arraycopy( octets, 0, grown, 0, start);
+            octets = grown;
+        }
+        if( count == ends.length) {
+            ends = copyOf( ends, count + (count >> 1) + 1);
+        }
+        System.arraycopy( bytes, offset, octets, start, length);
+        ends[count] = start + length;
+        count++;
+        if( (gone != null) && ((count + 63) >> 6) > gone.length) {
+            long[] grown = new long[Math.max( gone.length * 2,
+                                              (count + 63) >> 6)];
+            System.arraycopy( gone, 0, grown, 0, gone.length);
+            gone = grown;
+        }
+        if( strings != null) {
+            if( count > strings.length) {
+                String[] grown = new String[ends.length];
+                System.arraycopy( strings, 0, grown, 0, strings.length);
+                strings = grown;
+            }
+        }
+        if( index != null) {
+            if( count * 2 > index.length) {
+                buildIndex();
+            } else {
+                insert( count - 1);
+            }
+        }
+        return;
+    }
+
+    /**
+     * Adds a string value, encoded as UTF-8.  The string is kept as the
+     * decoded form of the value if decoded forms have been requested.
+     *
+     * @param value The string value.
+     */
+    /* package */
+    void add( String value)
+    {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes( "UTF-8");
+        } catch( UnsupportedEncodingException e) {
+            throw new RuntimeException( e.toString());
+        }
+        add( bytes, 0, bytes.length);
+        if( strings != null) {
+            strings[count - 1] = value;
+        }
+        return;
+    }
+
+    /**
+     * Returns the length of the value at a position.
+     */
+    /* package */
+    int length( int pos)
+    {
+        return ends[pos] - start( pos);
+    }
+
+    /**
+     * Returns a copy of the value at a position.
+     */
+    /* package */
+    byte[] getBytes( int pos)
+    {
+        int start = start( pos);
+        byte[] value = new byte[ends[pos] - start];
+        System.arraycopy( octets, start, value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Returns a read-only view of the value at a position, which is not
+     * copied.  The view reflects the values until they are changed.
+     */
+    /* package */
+    ByteBuffer getBuffer( int pos)
+    {
+        int start = start( pos);
+        return ByteBuffer.wrap( octets, start, ends[pos] - start).slice()
+                         .asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the value at a position decoded as UTF-8, decoding it only
+     * the first time it is requested.
+     */
+    /* package */
+    String getString( int pos)
+    {
+        String[] cache = strings;
+        if( cache == null) {
+            cache = new String[ends.length];
+            strings = cache;
+        }
+        String value = cache[pos];
+        if( value == null) {
+            try {
+                value = new String( octets, start( pos), length( pos),
+                                    "UTF-8");
+            } catch( UnsupportedEncodingException e) {
+                throw new RuntimeException( e.toString());
+            }
+            cache[pos] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the position of the first value present equal to the
+     * specified value, or -1 if there is none.
+     *
+     * @param value The value to find.
+     */
+    /* package */
+    int indexOf( byte[] value)
+    {
+        if( (index == null) && (count >= INDEX_THRESHOLD)) {
+            buildIndex();
+        }
+        if( index == null) {
+            for( int pos = first(); pos >= 0; pos = next( pos)) {
+                if( matches( pos, value)) {
+                    return pos;
+                }
+            }
+            return -1;
+        }
+        // Values are inserted by position, but probing may wrap, so take
+        // the lowest position of all the equal values
+        int found = -1;
+        int mask = index.length - 1;
+        for( int slot = hash( value, 0, value.length) & mask;
+             index[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = index[slot] - 1;
+            if( ((found < 0) || (pos < found)) && ! isRemoved( pos) &&
+                                                    matches( pos, value)) {
+                found = pos;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes the value at a position.
+     *
+     * @param pos The position of a value present.
+     */
+    /* package */
+    void remove( int pos)
+    {
+        if( gone == null) {
+            gone = new long[(ends.length + 63) >> 6];
+        }
+        gone[pos >> 6] |= 1L << pos;
+        removed++;
+        if( strings != null) {
+            strings[pos] = null;
+        }
+        if( count == removed) {
+            clear();
+        } else
+        if( (removed >= INDEX_THRESHOLD) && (removed * 2 >= count)) {
+            compact();
+        }
+        return;
+    }
+
+    /**
+     * Removes all values.
+     */
+    /* package */
+    void clear()
+    {
+        count = 0;
+        removed = 0;
+        head = 0;
+        gone = null;
+        strings = null;
+        index = null;
+        if( octets.length > 1024) {
+            octets = new byte[16];
+            ends = new int[2];
+        }
+        return;
+    }
+
+    /*
+     * Returns the number of octets used, including by removed values.
+     */
+    private int used()
+    {
+        return (count == 0) ? 0 : ends[count - 1];
+    }
+
+    /*
+     * Returns the start of the value at a position.
+     */
+    private int start( int pos)
+    {
+        return (pos == 0) ? 0 : ends[pos - 1];
+    }
+
+    private boolean isRemoved( int pos)
+    {
+        return (gone != null) && ((gone[pos >> 6] & (1L << pos)) != 0);
+    }
+
+    /*
+     * Reports whether the value at a position equals the specified value.
+     */
+    private boolean matches( int pos, byte[] value)
+    {
+        int start = start( pos);
+        if( ends[pos] - start != value.length) {
+            return false;
+        }
+        for( int i = 0; i < value.length; i++) {
+            if( octets[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Moves the values present to the front of the arrays, in order.
+     */
+    private void compact()
+    {
+        int to = 0;
+        int length = 0;
+        for( int pos = 0; pos < count; pos++) {
+            if( isRemoved( pos)) {
+                continue;
+            }
+            int start = start( pos);
+            int len = ends[pos] - start;
+            // The octets only move down, so copying in place is safe
+            System.arraycopy( octets, start, octets, length, len);
+            length += len;
+            ends[to] = length;
+            if( strings != null) {
+                strings[to] = strings[pos];
+            }
+            to++;
+        }
+        if( strings != null) {
+            for( int i = to; i < count; i++) {
+                strings[i] = null;
+            }
+        }
+        count = to;
+        removed = 0;
+        head = 0;
+        gone = null;
+        if( index != null) {
+            buildIndex();
+        }
+        return;
+    }
+
+    /*
+     * Builds the hash index of the values, with room for as many values
+     * again before it is rebuilt.
+     */
+    private void buildIndex()
+    {
+        int size = 64;
+        while( size < count * 4) {
+            size <<= 1;
+        }
+        index = new int[size];
+        for( int pos = 0; pos < count; pos++) {
+            if( ! isRemoved( pos)) {
+                insert( pos);
+            }
+        }
+        return;
+    }
+
+    private void insert( int pos)
+    {
+        int mask = index.length - 1;
+        int slot = hash( octets, start( pos), ends[pos]) & mask;
+        while( index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = pos + 1;
+        return;
+    }
+
+    private static int hash( byte[] bytes, int start, int end)
+    {
+        int h = 1;
+        for( int i = start; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int[] copyOf( int[] array, int size)
+    {
+        int[] copy = new int[size];
+        System.arraycopy( array, 0, copy, 0, Math.min( array.length, size));
+        return copy;
+    }
+}
@@ -0,0 +1,881 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import com.novell.ldap.asn1.LBERFrameReader;
+import com.novell.ldap.client.Debug;
+
+/**
+ * The non-blocking socket transport of a Connection.
+ *
+ * <p>The socket channel is read by a shared ConnectionSelector thread in
+ * place of a ReaderThread.  Data read is buffered until complete messages
+ * are available, and each complete message is handed to the Connection to
+ * be decoded and processed, exactly as a ReaderThread does.  When TLS is
+ * active, data is decrypted by an SSLEngine before it is framed.</p>
+ *
+ * <p>Writes are made by the application threads through the stream returned
+ * by {@link #getOutputStream}, which blocks while the socket's send buffer
+ * is full.  The TLS handshake and closure are also performed by the calling
+ * thread, while the transport is not being read by the selector.</p>
+ *
+ * <p>The selector thread never waits for a writer.  Handshake data the
+ * server asks for while the transport is read is written by a worker
+ * thread, reading being paused meanwhile, and the Connection is told the
+ * reader stopped by a worker thread, as shutting the connection down
+ * writes to the server.</p>
+ */
+/* package */
+final class ChannelTransport
+{
+    private final static int BUFFER_SIZE = 16 * 1024;
+    private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Connection conn;
+    private final SocketChannel channel;
+    private final ConnectionSelector selector;
+
+    /*
+     * The read side, guarded by readLock.  appIn holds decrypted data not yet
+     * framed in its first position octets, netIn holds data not yet
+     * decrypted when TLS is active.  The channel is not read while paused,
+     * when a message's bounded reply queue is full, endOfStream records an
+     * end of stream seen before the buffered messages are processed.
+     */
+    private final Object readLock = new Object();
+    private boolean reading = false;
+    private boolean paused = false;
+    private boolean endOfStream = false;
+    private boolean wrapping = false;   // handshake data being written
+    private SelectionKey key = null;
+    private ByteBuffer appIn = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer netIn = null;
+    private final Frame frame = new Frame();
+
+    /*
+     * The write side, guarded by outLock.  netOut holds encrypted data when
+     * TLS is active.
+     */
+    private final Object outLock = new Object();
+    private ByteBuffer netOut = null;
+
+    // The TLS session, null when TLS is not active
+    private volatile SSLEngine engine = null;
+
+    /*
+     * Used by a thread that must block until the channel is readable or
+     * writable, guarded by waitLock.
+     */
+    private final Object waitLock = new Object();
+    private volatile Selector waitSelector = null;
+    private volatile boolean closed = false;
+
+    private final InputStream input = new Input();
+    private final OutputStream output = new Output();
+
+    // Run when a full reply queue has space, to resume reading
+    private final Runnable resumer = new Runnable() {
+        public void run()
+        {
+            selector.resume( ChannelTransport.this);
+            return;
+        }
+    };
+
+    /**
+     * Constructs a transport over a connected socket channel.
+     *
+     * @param conn The connection that processes the messages read.<br>
+     *
+     * @param channel The connected channel, it is made non-blocking.<br>
+     *
+     * @param selector The selector that reads the channel.
+     */
+    /* package */
+    ChannelTransport(Connection conn, SocketChannel channel,
+                     ConnectionSelector selector)
+        throws IOException
+    {
+        this.conn = conn;
+        this.channel = channel;
+        this.selector = selector;
+        channel.configureBlocking(false);
+        return;
+    }
+
+    /**
+     * Returns the channel of this transport.
+     */
+    /* package */
+    final SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Returns a stream standing in for the socket's input stream.  The
+     * transport is only read by its selector, reading the stream fails.
+     */
+    /* package */
+    final InputStream getInputStream()
+    {
+        return input;
+    }
+
+    /**
+     * Returns the stream that writes to the socket.  Writes block while the
+     * socket's send buffer is full.  The stream is not buffered.
+     */
+    /* package */
+    final OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    //*************************************************************************
+    // Reading
+    //*************************************************************************
+
+    /**
+     * Starts reading the channel.  The selector registers the transport
+     * asynchronously and then processes any data already buffered.
+     */
+    /* package */
+    final void startReading()
+    {
+        synchronized( readLock) {
+            reading = true;
+            paused = false;
+            endOfStream = false;
+        }
+        selector.register(this);
+        return;
+    }
+
+    /**
+     * Stops reading the channel, without closing it.  If the transport was
+     * being read, the Connection is told the reader stopped.
+     */
+    /* package */
+    final void stopReading()
+    {
+        if( deactivate()) {
+            conn.readerStopped( this, null);
+        }
+        return;
+    }
+
+    /**
+     * Closes the channel.  If the transport was being read, the Connection
+     * is told the reader stopped because the connection closed.
+     */
+    /* package */
+    final void close()
+    {
+        boolean wasReading = deactivate();
+        closed = true;
+        try {
+            channel.close();
+        } catch( IOException ioe) {
+            // ignore problem closing channel
+        }
+        Selector ws = waitSelector;
+        if( ws != null) {
+            try {
+                // Wakes any thread blocked in await
+                ws.close();
+            } catch( IOException ioe) {
+                // ignore problem closing selector
+            }
+        }
+        if( wasReading) {
+            conn.readerStopped( this,
+                    new IOException("ChannelTransport: connection closed"));
+        }
+        return;
+    }
+
+    /*
+     * Stops reading, returns true if the transport was being read.
+     */
+    private boolean deactivate()
+    {
+        synchronized( readLock) {
+            boolean wasReading = reading;
+            reading = false;
+            paused = false;
+            endOfStream = false;
+            if( key != null) {
+                key.cancel();
+                key = null;
+            }
+            return wasReading;
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel has been registered,
+     * with a null key if the channel could not be registered.
+     */
+    /* package */
+    final void registered(SelectionKey key)
+    {
+        synchronized( readLock) {
+            if( reading && (key != null)) {
+                this.key = key;
+                return;
+            }
+            if( key != null) {
+                // Stopped before the registration completed
+                key.cancel();
+                return;
+            }
+        }
+        if( deactivate()) {
+            stopped( new IOException("ChannelTransport: connection closed"));
+        }
+        return;
+    }
+
+    /**
+     * Called by the selector thread when the channel may be read.  Reads the
+     * available data and processes each complete message.
+     */
+    /* package */
+    final void readable()
+    {
+        process( true);
+        return;
+    }
+
+    /**
+     * Called by the selector thread when reading may resume after a full
+     * reply queue paused it.  Processes the messages already buffered and
+     * reads the channel again.
+     */
+    /* package */
+    final void resumed()
+    {
+        synchronized( readLock) {
+            if( ! paused) {
+                return;
+            }
+            paused = false;
+            if( (key != null) && key.isValid()) {
+                key.interestOps( SelectionKey.OP_READ);
+            }
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.messages, conn.getConnectionName() +
+                "transport: reading resumed");
+        }
+        process( false);
+        return;
+    }
+
+    /*
+     * Processes each complete message buffered, after reading the available
+     * data if read is true.  Tells the Connection if reading stops.
+     */
+    private void process( boolean read)
+    {
+        IOException failure = null;
+        boolean stop = false;
+        synchronized( readLock) {
+            if( (! reading) || paused) {
+                return;
+            }
+            try {
+                if( read) {
+                    if( read() < 0) {
+                        endOfStream = true;
+                    }
+                } else if( engine != null) {
+                    unwrapAvailable();
+                }
+                stop = processFrames();
+                if( (! stop) && (! paused) && endOfStream) {
+                    throw new EOFException(
+                        "ChannelTransport: connection closed by server");
+                }
+            } catch( IOException ioe) {
+                failure = ioe;
+            } catch( RuntimeException re) {
+                // Don't let one connection's failure stop the selector
+                failure = new IOException(
+                        "ChannelTransport: " + re.toString());
+            }
+            if( (! stop) && (failure == null)) {
+                return;
+            }
+            reading = false;
+            if( key != null) {
+                key.cancel();
+                key = null;
+            }
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.messages, conn.getConnectionName() +
+                "transport: stopped reading" +
+                ((failure == null) ? "" : ", " + failure.toString()));
+        }
+        stopped( failure);
+        return;
+    }
+
+    /*
+     * Tells the Connection the reader stopped, from a worker thread as the
+     * Connection may write to the server and wait for its writers.
+     */
+    private void stopped( final IOException failure)
+    {
+        ConnectionSelector.execute( new Runnable() {
+            public void run()
+            {
+                conn.readerStopped( ChannelTransport.this, failure);
+                return;
+            }
+        });
+        return;
+    }
+
+    /*
+     * Reads available data from the channel into appIn, decrypting it if TLS
+     * is active.  Returns the count read, -1 at end of stream.
+     */
+    private int read()
+        throws IOException
+    {
+        int count;
+        if( engine == null) {
+            if( ! appIn.hasRemaining()) {
+                appIn = grow( appIn, appIn.capacity() * 2);
+            }
+            count = channel.read( appIn);
+        } else {
+            count = channel.read( netIn);
+            unwrapAvailable();
+        }
+        return count;
+    }
+
+    /*
+     * Hands each complete message in appIn to the Connection.  Returns true
+     * if the Connection asks the reader to stop.  Pauses reading, leaving
+     * the remaining messages buffered, if a bounded reply queue is full.
+     */
+    private boolean processFrames()
+        throws IOException
+    {
+        byte[] buf = appIn.array();
+        int end = appIn.position();
+        int start = 0;
+        boolean stop = false;
+        int length = -1;
+        while( (! stop) && (! paused) &&
+               ((length = LBERFrameReader.elementLength( buf, start, end)) >= 0) &&
+               (length <= end - start)) {
+            frame.set( buf, start, start + length);
+            start += length;
+            stop = conn.messageReceived( frame);
+            if( ! stop) {
+                Message full = conn.fullReplyQueue();
+                if( (full != null) && full.whenReplySpace( resumer)) {
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.messages, conn.getConnectionName() +
+                            "transport: reply queue full, reading paused");
+                    }
+                    pause();
+                }
+            }
+        }
+
+        // Move any partial message to the front of the buffer
+        int remaining = end - start;
+        System.arraycopy( buf, start, buf, 0, remaining);
+        appIn.position( remaining);
+        if( (! stop) && (length > appIn.capacity())) {
+            // Make room for a message larger than the buffer
+            appIn = grow( appIn, length);
+        } else if( (remaining == 0) && (appIn.capacity() > BUFFER_SIZE)) {
+            // Don't retain a buffer grown for an oversized message
+            appIn = ByteBuffer.allocate( BUFFER_SIZE);
+        }
+        return stop;
+    }
+
+    /*
+     * Stops reading the channel until resumed, the server is then held back
+     * by TCP flow control.
+     */
+    private void pause()
+    {
+        paused = true;
+        if( (key != null) && key.isValid()) {
+            key.interestOps( 0);
+        }
+        return;
+    }
+
+    //*************************************************************************
+    // TLS
+    //*************************************************************************
+
+    /**
+     * Negotiates TLS on the channel using the specified engine.  The calling
+     * thread performs the handshake, the transport must not be read by the
+     * selector at the time.
+     */
+    /* package */
+    final void startTLS(SSLEngine engine)
+        throws IOException
+    {
+        synchronized( readLock) {
+            synchronized( outLock) {
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate( packetSize);
+                netOut = ByteBuffer.allocate( packetSize);
+                appIn.clear();
+                appIn = grow( appIn,
+                        engine.getSession().getApplicationBufferSize());
+                this.engine = engine;
+                try {
+                    handshake();
+                } catch( IOException ioe) {
+                    this.engine = null;
+                    throw ioe;
+                }
+            }
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.TLS, conn.getConnectionName() +
+                "transport: TLS handshake complete, " +
+                engine.getSession().getCipherSuite());
+        }
+        return;
+    }
+
+    /**
+     * Closes the TLS session, the channel then carries clear text.  The
+     * calling thread exchanges the closure alerts, the transport must not be
+     * read by the selector at the time.
+     */
+    /* package */
+    final void stopTLS()
+        throws IOException
+    {
+        synchronized( readLock) {
+            synchronized( outLock) {
+                engine.closeOutbound();
+                while( ! engine.isOutboundDone()) {
+                    wrap( EMPTY);
+                }
+                while( ! engine.isInboundDone()) {
+                    SSLEngineResult result = unwrap();
+                    if( result.getStatus() ==
+                            SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if( readBlocking() < 0) {
+                            break;
+                        }
+                    }
+                }
+                // Anything following the closure alert is clear text
+                netIn.flip();
+                appIn = grow( appIn, appIn.position() + netIn.remaining());
+                appIn.put( netIn);
+                engine = null;
+                netIn = null;
+                netOut = null;
+            }
+        }
+        return;
+    }
+
+    /*
+     * Performs the TLS handshake with the calling thread.
+     */
+    private void handshake()
+        throws IOException
+    {
+        engine.beginHandshake();
+        for(;;) {
+            SSLEngineResult.HandshakeStatus status =
+                    engine.getHandshakeStatus();
+            if( status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap( EMPTY);
+            } else if( status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if(
+                    status == SSLEngineResult.HandshakeStatus.FINISHED ||
+                    status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                return;
+            } else {
+                SSLEngineResult result = unwrap();
+                if( result.getStatus() ==
+                        SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if( readBlocking() < 0) {
+                        throw new EOFException( "ChannelTransport: " +
+                            "connection closed during TLS handshake");
+                    }
+                } else if( result.getStatus() ==
+                        SSLEngineResult.Status.CLOSED) {
+                    throw new IOException( "ChannelTransport: " +
+                        "TLS session closed during handshake");
+                }
+            }
+        }
+    }
+
+    /*
+     * Decrypts all complete TLS records in netIn into appIn, responding to
+     * any handshake messages the server sends.
+     */
+    private void unwrapAvailable()
+        throws IOException
+    {
+        for(;;) {
+            SSLEngineResult result = unwrap();
+            if( result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException(
+                    "ChannelTransport: TLS session closed by server");
+            }
+            SSLEngineResult.HandshakeStatus status =
+                    result.getHandshakeStatus();
+            if( status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if( status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                // A writer may hold outLock while the socket is full, the
+                // selector thread must not wait for it
+                wrapLater();
+                return;
+            } else if( (result.getStatus() ==
+                            SSLEngineResult.Status.BUFFER_UNDERFLOW) ||
+                       (netIn.position() == 0) ||
+                       ((result.bytesConsumed() == 0) &&
+                        (result.bytesProduced() == 0))) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Pauses reading and writes the handshake data the engine needs with a
+     * worker thread, which resumes reading once it is written.  Called by
+     * the selector thread with readLock held.
+     */
+    private void wrapLater()
+    {
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.TLS, conn.getConnectionName() +
+                "transport: reading paused for a TLS handshake");
+        }
+        pause();
+        if( wrapping) {
+            return;
+        }
+        wrapping = true;
+        ConnectionSelector.execute( new Runnable() {
+            public void run()
+            {
+                IOException failure = null;
+                try {
+                    synchronized( outLock) {
+                        if( engine != null) {
+                            wrap( EMPTY);
+                        }
+                    }
+                } catch( IOException ioe) {
+                    failure = ioe;
+                }
+                synchronized( readLock) {
+                    wrapping = false;
+                }
+                if( failure == null) {
+                    selector.resume( ChannelTransport.this);
+                } else if( deactivate()) {
+                    conn.readerStopped( ChannelTransport.this, failure);
+                }
+                return;
+            }
+        });
+        return;
+    }
+
+    /*
+     * Decrypts one TLS record from netIn into appIn, growing the buffers as
+     * the engine requires.
+     */
+    private SSLEngineResult unwrap()
+        throws IOException
+    {
+        for(;;) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap( netIn, appIn);
+            netIn.compact();
+            if( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                appIn = grow( appIn, appIn.position() +
+                        engine.getSession().getApplicationBufferSize());
+                continue;
+            }
+            if( (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                    && (! netIn.hasRemaining())) {
+                netIn = grow( netIn, netIn.position() +
+                        engine.getSession().getPacketBufferSize());
+            }
+            if( result.getHandshakeStatus() ==
+                    SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            return result;
+        }
+    }
+
+    /*
+     * Encrypts data from src and writes the TLS records produced, called
+     * with outLock held.
+     */
+    private void wrap(ByteBuffer src)
+        throws IOException
+    {
+        for(;;) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap( src, netOut);
+            if( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate( netOut.capacity() +
+                        engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            netOut.flip();
+            writeFully( netOut);
+            if( (result.getStatus() == SSLEngineResult.Status.CLOSED) &&
+                (result.bytesProduced() == 0) && src.hasRemaining()) {
+                throw new IOException(
+                    "ChannelTransport: TLS session is closed");
+            }
+            if( result.getHandshakeStatus() ==
+                    SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            return;
+        }
+    }
+
+    /*
+     * Runs the engine's delegated tasks with the calling thread.
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while( (task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return;
+    }
+
+    //*************************************************************************
+    // Blocking operations
+    //*************************************************************************
+
+    /*
+     * Writes all of buf, blocking while the socket's send buffer is full.
+     */
+    private void writeFully(ByteBuffer buf)
+        throws IOException
+    {
+        while( buf.hasRemaining()) {
+            if( channel.write( buf) == 0) {
+                await( SelectionKey.OP_WRITE);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Reads into netIn, blocking until data is available.  Used while the
+     * selector is not reading the channel.
+     */
+    private int readBlocking()
+        throws IOException
+    {
+        int count;
+        while( (count = channel.read( netIn)) == 0) {
+            await( SelectionKey.OP_READ);
+        }
+        return count;
+    }
+
+    /*
+     * Blocks until the channel is ready for the specified operation, using
+     * a selector private to this transport.
+     */
+    private void await(int ops)
+        throws IOException
+    {
+        synchronized( waitLock) {
+            if( closed) {
+                throw new IOException("ChannelTransport: connection closed");
+            }
+            try {
+                if( waitSelector == null) {
+                    waitSelector = Selector.open();
+                }
+                SelectionKey waitKey = channel.keyFor( waitSelector);
+                if( waitKey == null) {
+                    channel.register( waitSelector, ops);
+                } else {
+                    waitKey.interestOps( ops);
+                }
+                waitSelector.select();
+                waitSelector.selectedKeys().clear();
+            } catch( ClosedSelectorException cse) {
+                throw new IOException("ChannelTransport: connection closed");
+            }
+        }
+        return;
+    }
+
+    /*
+     * Returns a buffer with at least the specified capacity holding the
+     * content of buf, buf itself if it is large enough.
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int capacity)
+    {
+        if( buf.capacity() >= capacity) {
+            return buf;
+        }
+        ByteBuffer grown = ByteBuffer.allocate( capacity);
+        buf.flip();
+        grown.put( buf);
+        return grown;
+    }
+
+    //*************************************************************************
+    // Streams
+    //*************************************************************************
+
+    /**
+     * The stream that writes to the channel, encrypting data when TLS is
+     * active.
+     */
+    private final class Output extends OutputStream
+    {
+        public final void write(int b)
+            throws IOException
+        {
+            write( new byte[] { (byte)b }, 0, 1);
+            return;
+        }
+
+        public final void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            synchronized( outLock) {
+                if( closed) {
+                    throw new IOException(
+                        "ChannelTransport: connection closed");
+                }
+                ByteBuffer src = ByteBuffer.wrap( b, off, len);
+                if( engine == null) {
+                    writeFully( src);
+                } else {
+                    while( src.hasRemaining()) {
+                        wrap( src);
+                    }
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Stands in for the socket's input stream, the selector reads the
+     * channel.
+     */
+    private final class Input extends InputStream
+    {
+        public final int read()
+            throws IOException
+        {
+            throw new IOException(
+                "ChannelTransport: the channel is read by its selector");
+        }
+    }
+
+    /**
+     * An unsynchronized stream over one message in the read buffer.
+     */
+    private static final class Frame extends InputStream
+    {
+        private byte[] buf;
+        private int pos;
+        private int limit;
+
+        private void set(byte[] buf, int pos, int limit)
+        {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+            return;
+        }
+
+        public final int read()
+        {
+            return (pos < limit) ? (buf[pos++] & 0xFF) : -1;
+        }
+
+        public final int read(byte[] b, int off, int len)
+        {
+            if( pos >= limit) {
+                return (len == 0) ? 0 : -1;
+            }
+            if( len > limit - pos) {
+                len = limit - pos;
+            }
+            System.arraycopy( buf, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        public final long skip(long n)
+        {
+            if( n <= 0) {
+                return 0;
+            }
+            if( n > limit - pos) {
+                n = limit - pos;
+            }
+            pos += (int)n;
+            return n;
+        }
+
+        public final int available()
+        {
+            return limit - pos;
+        }
+    }
+}
@@ -15,15 +15,23 @@
 
 package com.novell.ldap;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.novell.ldap.asn1.*;
 import com.novell.ldap.client.*;
@@ -44,6 +52,11 @@ import com.novell.ldap.resources.*;
  * server to the appropriate Message class. Each Message class
  * has its own message queue.
  * <p>
+ * Requests are encoded by the application's thread and queued for
+ * writing.  The first thread to find the socket idle writes every queued
+ * request with a single flush, so concurrent requests on a shared
+ * connection are coalesced rather than written one packet at a time.
+ * <p>
  * Unsolicited messages are process separately, and if the application
  * has registered a handler, a separate thread is created for that
  * application's handler to process the message.
@@ -55,25 +68,46 @@ import com.novell.ldap.resources.*;
 /*package*/
 final class Connection
 {
-	
-	static ExecutorService executor = Executors.newCachedThreadPool(); 
-
-    private Object writeSemaphore = new Object();
-    private int    writeSemaphoreOwner = 0;
+    /*
+     * The write semaphore is a lock and condition rather than a monitor, so
+     * a virtual thread waiting for it does not hold its carrier thread.
+     */
+    private final ReentrantLock writeSemaphore = new ReentrantLock();
+    private final Condition writeSemaphoreFree = writeSemaphore.newCondition();
+    private volatile int writeSemaphoreOwner = 0;
     private int    writeSemaphoreCount = 0;
 
+    /*
+     * Encoded requests waiting to be written.  Any thread may queue a
+     * request, the thread that sets writing drains the queue for all of
+     * them.  writersActive counts the threads that have passed the write
+     * semaphore check and not yet left the write path.  A new owner of the
+     * write semaphore waits for it to reach zero, so it always finds the
+     * queue drained and the socket idle.
+     */
+    private final ConcurrentLinkedQueue<PendingWrite> writeQueue =
+                                new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final AtomicInteger writersActive = new AtomicInteger(0);
+    // Buffer gathering queued requests, used only by the draining thread
+    private OutputStream writeOut = null;
+    private BufferedOutputStream writeBuffer = null;
+    private final static int WRITE_BUFFER_SIZE = 16 * 1024;
+
     // We need a message number for disconnect to grab the semaphore,
     // but may not have one, so we invent a unique one.
     private int ephemeralId = -1;
     private BindProperties bindProperties = null;
     private int bindSemaphoreId = 0; // 0 is never used by to lock a semaphore
 
-    private Thread reader = null; // New thread that reads data from the server.
-    private Thread deadReader = null; // Identity of last reader thread
+    // The active reader, a ReaderThread's Thread or a ChannelTransport
+    private Object reader = null;
+    private Object deadReader = null; // Identity of last reader
     private IOException deadReaderException = null; // Last exception of reader
+    private Message readerInfo = null; // Last message the reader replied to
 
     private LBEREncoder encoder = new LBEREncoder();
-    private LBERDecoder decoder = new LBERDecoder();
+    private LBERBufferDecoder decoder = new LBERBufferDecoder();
 
     /*
      * socket is the current socket being used.
@@ -86,6 +120,15 @@ final class Connection
 
     private InputStream in = null;
     private OutputStream out = null;
+
+    /*
+     * The selector driven transport for the socket, when the socket factory
+     * is an LDAPSelectorSocketFactory.  It reads the socket in place of a
+     * ReaderThread, in and out are its streams.
+     */
+    private ChannelTransport transport = null;
+    // The member of an LDAPServerSet connected to, null if not from a set
+    private volatile LDAPServerSet.Server server = null;
     // When set to true the client connection is up and running
     private boolean clientActive = true;
 
@@ -106,9 +149,6 @@ final class Connection
     // Place to save message information classes
     private MessageVector messages = new MessageVector(5,5);
 
-    // Connection created to follow referral
-    private ReferralInfo activeReferral = null;
-
     // Place to save unsolicited message listeners
     private java.util.Vector unsolicitedListeners = new java.util.Vector(3,3);
 
@@ -117,6 +157,18 @@ final class Connection
     // The LDAPSocketFactory used for this connection
     private LDAPSocketFactory mySocketFactory = null;
 
+    // The ThreadFactory creating reader and listener threads, when set
+    static private volatile ThreadFactory threadFactory = null;
+
+    // Creates platform threads, as the API always has
+    static private final ThreadFactory platformThreadFactory =
+        new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r);
+            }
+        };
+
     private int myTimeOut = 0;
     private String host = null;
     private int port = 0;
@@ -269,7 +321,8 @@ final class Connection
     final int acquireWriteSemaphore(int msgId)
     {
         int id = msgId;
-        synchronized( writeSemaphore) {
+        writeSemaphore.lock();
+        try {
             if( id == 0) {
                 ephemeralId = ((ephemeralId == Integer.MIN_VALUE)
                                 ? (ephemeralId = -1) : --ephemeralId);
@@ -279,23 +332,23 @@ final class Connection
                 if( writeSemaphoreOwner == 0) {
                    // we have acquired the semahpore
                    writeSemaphoreOwner = id;
+                   // Let requests already past the semaphore finish writing
+                   while( writersActive.get() != 0) {
+                       writeSemaphoreFree.awaitUninterruptibly();
+                   }
                    break;
                 } else {
                     if( writeSemaphoreOwner == id) {
                         // we already own the semahpore
                         break;
                     }
-                    try {
-                        // Keep trying for the lock
-                        writeSemaphore.wait();
-                        continue;
-                    } catch( InterruptedException ex) {
-                        // Keep trying for the lock
-                        continue;
-                    }
+                    // Keep trying for the lock
+                    writeSemaphoreFree.awaitUninterruptibly();
                 }
             }
             writeSemaphoreCount++;
+        } finally {
+            writeSemaphore.unlock();
         }
         if( Debug.LDAP_DEBUG) {
             Debug.trace( Debug.bindSemaphore, name +
@@ -320,7 +373,8 @@ final class Connection
                 "Free'd Socket Write Semaphore(" + msgId + ") count " +
                 (writeSemaphoreCount - 1));
         }
-        synchronized( writeSemaphore) {
+        writeSemaphore.lock();
+        try {
             if( writeSemaphoreOwner == 0) {
                 throw new RuntimeException("Connection.freeWriteSemaphore("
                     + msgId + "): semaphore not owned by any thread");
@@ -334,8 +388,10 @@ final class Connection
             // wake up all threads waiting.
             if( --writeSemaphoreCount == 0) {
                 writeSemaphoreOwner = 0;
-                writeSemaphore.notify();
+                writeSemaphoreFree.signalAll();
             }
+        } finally {
+            writeSemaphore.unlock();
         }
         return;
     }
@@ -346,9 +402,9 @@ final class Connection
      * Non Null = wait for the reader to start
      * Returns when the ID matches, i.e. reader stopped, or reader started.
      *
-     * @param the thread id to match
+     * @param the reader to match
      */
-    private void waitForReader( Thread thread)
+    private void waitForReader( Object thread)
         throws LDAPException
     {
         // wait for previous reader thread to terminate
@@ -386,9 +442,7 @@ final class Connection
                         ExceptionMessages.CONNECTION_READER,
                         LDAPException.CONNECT_ERROR, null, lex);
                 }
-                synchronized( this) {
-                    this.wait(5);
-                }
+                Thread.sleep(5);
             } catch ( InterruptedException ex) {
                 ;
             }
@@ -457,8 +511,15 @@ final class Connection
                             "connect(socketFactory specified)");
                     }
                     socket = mySocketFactory.createSocket(host, port);
+                    if( mySocketFactory instanceof LDAPSelectorSocketFactory) {
+                        transport = ((LDAPSelectorSocketFactory)mySocketFactory)
+                                        .createTransport( this, socket, host, port);
+                    }
                 } else {
                 	socket = new Socket(host, port);
+                	// Requests are gathered by the write queue, so Nagle's
+                	// algorithm only holds back pipelined requests
+                	socket.setTcpNoDelay(true);
                 	if(myTimeOut > 0)
                 	{
                 		socket.setSoTimeout(myTimeOut);
@@ -466,8 +527,13 @@ final class Connection
                 }
 
 
-                in = socket.getInputStream();
-                out = socket.getOutputStream();
+                if( transport != null) {
+                    in = transport.getInputStream();
+                    out = transport.getOutputStream();
+                } else {
+                    in = socket.getInputStream();
+                    out = socket.getOutputStream();
+                }
             } else {
                 if( Debug.LDAP_DEBUG) {
                     Debug.trace( Debug.messages, name +
@@ -476,6 +542,15 @@ final class Connection
             }
         }catch(IOException ioe) {
             // Unable to connect to server host:port
+            if( socket != null) {
+                try {
+                    socket.close();
+                } catch( IOException ce) {
+                    // ignore problem closing socket
+                }
+                socket = null;
+            }
+            transport = null;
             freeWriteSemaphore(semId);
             throw new LDAPException(
                   ExceptionMessages.CONNECTION_ERROR,
@@ -615,6 +690,79 @@ final class Connection
         return;
     }
 
+    /**
+     * sets the factory creating the threads of all connections
+     *
+     * @param factory the thread factory, or null for platform threads
+     */
+    /* package */
+    final static void setThreadFactory( ThreadFactory factory)
+    {
+        /* verify the 'setFactory' permision is set */
+        SecurityManager security = System.getSecurityManager();
+        if (security != null){
+            security.checkSetFactory();
+        }
+        threadFactory = factory;
+        return;
+    }
+
+    /**
+     * gets the factory creating the threads of all connections
+     *
+     * @return the thread factory set, or a factory creating platform threads
+     */
+    /* package */
+    final static ThreadFactory getThreadFactory()
+    {
+        ThreadFactory factory = threadFactory;
+        return (factory != null) ? factory : platformThreadFactory;
+    }
+
+    /**
+     * Creates a daemon thread with the current thread factory.
+     *
+     * @param r the task run by the thread
+     *
+     * @return the thread, not yet started
+     */
+    /* package */
+    final static Thread newDaemonThread( Runnable r)
+    {
+        Thread t = getThreadFactory().newThread( r);
+        if( ! t.isDaemon()) {
+            // Virtual threads are always daemon threads
+            t.setDaemon(true); // If the last thread running, allow exit.
+        }
+        return t;
+    }
+
+    /**
+     * Returns a factory creating virtual threads, if the JVM has them.
+     *
+     * <p>The factory is obtained by reflection, from Thread.ofVirtual, so
+     * the API still runs on JVMs without virtual threads.</p>
+     *
+     * @return the factory, or null if virtual threads are not supported
+     */
+    /* package */
+    final static ThreadFactory getVirtualThreadFactory()
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory)builderClass.getMethod("factory")
+                                              .invoke(builder);
+        } catch( Exception e) {
+            // Before Java 21, or disabled as a preview feature
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages,
+                    "Virtual threads not available, " + e.toString());
+            }
+            return null;
+        }
+    }
+
     /**
      * gets the socket factory used for this connection
      *
@@ -743,6 +891,12 @@ final class Connection
     /**
      * Writes an LDAPMessage to the LDAP server over a socket.
      *
+     * <p>The message is queued and written either by this thread or by
+     * another thread already writing to the socket.  If this thread writes
+     * it, an I/O error is reported here.  If another thread writes it and
+     * fails, the request is abandoned and the error is returned through the
+     * request's message queue.</p>
+     *
      * @param msg the message to write.
      */
     /* package */
@@ -758,7 +912,6 @@ final class Connection
             // Semaphore id for sasl bind operations
             id = bindSemaphoreId;
         }
-        OutputStream myOut = out;
 
         if( Debug.LDAP_DEBUG) {
             Debug.trace( Debug.messages, name + "Writing Message(" +
@@ -766,14 +919,10 @@ final class Connection
             Debug.trace( Debug.rawInput, name + "RawWrite: " +
                     msg.getASN1Object().toString());
         }
-        acquireWriteSemaphore(id);
+        PendingWrite pending = new PendingWrite( msg.getMessageID(),
+                                        encoder.encode(msg.getASN1Object()));
         try {
-            if( myOut == null) {
-                throw new IOException("Output stream not initialized");
-            }
-            byte[] ber = msg.getASN1Object().getEncoding(encoder);
-            myOut.write(ber, 0, ber.length);
-            myOut.flush();
+            write( id, pending, false);
         } catch( IOException ioe) {
             if( Debug.LDAP_DEBUG ) {
                 Debug.trace( Debug.messages, name +
@@ -803,8 +952,231 @@ final class Connection
                     new Object[] {host, new Integer(port)},
                 LDAPException.CONNECT_ERROR, null, ioe);
             }
+        }
+        return;
+    }
+
+    /**
+     * An encoded request waiting in the write queue.
+     */
+    private static final class PendingWrite
+    {
+        private final int msgId;
+        private final byte[] ber;
+        // Counted down once the request is written or has failed
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException failure = null;
+
+        private PendingWrite( int msgId, byte[] ber)
+        {
+            this.msgId = msgId;
+            this.ber = ber;
+            return;
+        }
+    }
+
+    /**
+     * Queues an encoded request and drains the write queue if no other
+     * thread is writing.  Waits while another owner holds the write
+     * semaphore, as acquiring the semaphore did previously.
+     *
+     * @param id the write semaphore id permitted to write.
+     *<br><br>
+     * @param pending the encoded request.
+     *<br><br>
+     * @param waitForWrite true to wait until the request has been written
+     * even if another thread is writing it.
+     *
+     * @exception IOException if the request could not be written.
+     */
+    private void write( int id, PendingWrite pending, boolean waitForWrite)
+        throws IOException
+    {
+        ArrayList<PendingWrite> failed = null;
+        enterWriter( id);
+        try {
+            writeQueue.add( pending);
+            while( ! writeQueue.isEmpty() && writing.compareAndSet( false, true)) {
+                try {
+                    failed = drainWriteQueue( failed);
+                } finally {
+                    writing.set( false);
+                }
+            }
         } finally {
-            freeWriteSemaphore(id);
+            exitWriter();
+        }
+
+        if( failed != null) {
+            abandonFailedWrites( failed, pending);
+        }
+        if( waitForWrite) {
+            while( pending.done.getCount() != 0) {
+                try {
+                    pending.done.await();
+                } catch( InterruptedException ex) {
+                    // Keep waiting for the writer
+                }
+            }
+        }
+        // Failures of requests written by another thread are reported
+        // through abandonFailedWrites by that thread.
+        if( (pending.failure != null) &&
+            (waitForWrite || ((failed != null) && failed.contains( pending)))) {
+            throw pending.failure;
+        }
+        return;
+    }
+
+    /*
+     * Waits until the write semaphore is free or owned by id, then counts
+     * this thread as an active writer.
+     */
+    private void enterWriter( int id)
+    {
+        for(;;) {
+            writersActive.incrementAndGet();
+            int owner = writeSemaphoreOwner;
+            if( (owner == 0) || (owner == id)) {
+                return;
+            }
+            exitWriter();
+            writeSemaphore.lock();
+            try {
+                while( (writeSemaphoreOwner != 0) &&
+                       (writeSemaphoreOwner != id)) {
+                    writeSemaphoreFree.awaitUninterruptibly();
+                }
+            } finally {
+                writeSemaphore.unlock();
+            }
+        }
+    }
+
+    /*
+     * Counts this thread out of the write path, waking a thread waiting to
+     * acquire the write semaphore when the last writer leaves.
+     */
+    private void exitWriter()
+    {
+        if( (writersActive.decrementAndGet() == 0) &&
+            (writeSemaphoreOwner != 0)) {
+            writeSemaphore.lock();
+            try {
+                writeSemaphoreFree.signalAll();
+            } finally {
+                writeSemaphore.unlock();
+            }
+        }
+        return;
+    }
+
+    /*
+     * Writes every queued request through the gathering buffer, flushing
+     * once per buffer full.  Must only be called by the thread that set
+     * writing.  Requests that could not be written are added to failed.
+     *
+     * @return the list of failed requests, or null if none failed
+     */
+    private ArrayList<PendingWrite> drainWriteQueue(
+                                        ArrayList<PendingWrite> failed)
+    {
+        ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+        IOException ioe = null;
+        OutputStream myOut = out;
+        if( myOut == null) {
+            ioe = new IOException("Output stream not initialized");
+        } else
+        if( myOut != writeOut) {
+            writeOut = myOut;
+            writeBuffer = new BufferedOutputStream( myOut, WRITE_BUFFER_SIZE);
+        }
+        int buffered = 0;
+        PendingWrite next;
+        while( (next = writeQueue.poll()) != null) {
+            batch.add( next);
+            if( ioe == null) {
+                try {
+                    writeBuffer.write( next.ber, 0, next.ber.length);
+                    buffered += next.ber.length;
+                    if( (buffered >= WRITE_BUFFER_SIZE) || writeQueue.isEmpty()) {
+                        writeBuffer.flush();
+                        buffered = 0;
+                        completeWrites( batch, null);
+                        continue;
+                    }
+                } catch( IOException ex) {
+                    ioe = ex;
+                    // Don't reuse a buffer that may hold a partial request
+                    writeOut = null;
+                }
+            }
+            if( ioe != null) {
+                if( failed == null) {
+                    failed = new ArrayList<PendingWrite>();
+                }
+                failed.addAll( batch);
+                completeWrites( batch, ioe);
+            }
+        }
+        if( ! batch.isEmpty()) {
+            // The queue emptied between the isEmpty test and poll
+            try {
+                writeBuffer.flush();
+                completeWrites( batch, null);
+            } catch( IOException ex) {
+                writeOut = null;
+                if( failed == null) {
+                    failed = new ArrayList<PendingWrite>();
+                }
+                failed.addAll( batch);
+                completeWrites( batch, ex);
+            }
+        }
+        return failed;
+    }
+
+    /*
+     * Marks the requests in batch as written, or failed, waking any thread
+     * waiting for them, and empties batch.
+     */
+    private void completeWrites( ArrayList<PendingWrite> batch, IOException ioe)
+    {
+        for( int i = 0; i < batch.size(); i++) {
+            PendingWrite pending = batch.get(i);
+            pending.failure = ioe;
+            pending.done.countDown();
+        }
+        batch.clear();
+        return;
+    }
+
+    /*
+     * Reports a failed write to the requests queued by other threads.  Each
+     * one still outstanding is abandoned with an I/O exception, which is
+     * returned to the application through the request's queue.
+     */
+    private void abandonFailedWrites( ArrayList<PendingWrite> failed,
+                                      PendingWrite own)
+    {
+        if( ! clientActive) {
+            return;
+        }
+        for( int i = 0; i < failed.size(); i++) {
+            PendingWrite pending = failed.get(i);
+            if( pending == own) {
+                continue;
+            }
+            Message info;
+            try {
+                info = messages.findMessageById( pending.msgId);
+            } catch( NoSuchFieldException ex) {
+                continue; // Not tracked, e.g. abandon or unbind
+            }
+            info.abandon( null, new InterThreadException(
+                    ExceptionMessages.IO_EXCEPTION,
+                    new Object[] {host, Integer.valueOf(port)},
+                    LDAPException.CONNECT_ERROR, pending.failure, info));
         }
         return;
     }
@@ -834,6 +1206,27 @@ final class Connection
         return false;
     }
 
+    /**
+     * Returns the member of an LDAPServerSet this connection is connected
+     * to, or null.
+     */
+    /* package */
+    final LDAPServerSet.Server getServer()
+    {
+        return server;
+    }
+
+    /**
+     * Sets the member of an LDAPServerSet this connection is connected to,
+     * its requests are then counted and timed for the set.
+     */
+    /* package */
+    final void setServer( LDAPServerSet.Server server)
+    {
+        this.server = server;
+        return;
+    }
+
     /**
      * Return whether a connection has been made
      */
@@ -854,30 +1247,19 @@ final class Connection
     final boolean isConnectionAlive()
     {
        boolean isConn=false;
-       int id;
        LDAPExtendedOperation op=null;
 
        if  ( in!= null )      {
-              isConn=true;
-
            op= new LDAPExtendedOperation("0.0.0.0",null);
            LDAPMessage msg =new LDAPExtendedRequest(op, null);
-           id = msg.getMessageID();
-           acquireWriteSemaphore(id);
-           OutputStream myOut = out;
-           try          {
-               if( myOut == null) {
-                   throw new IOException("Output stream not initialized");
-               }
-               byte[] ber = msg.getASN1Object().getEncoding(encoder);
-               myOut.write(ber, 0, ber.length);
-               myOut.flush();
-               } catch( IOException ioe) {
-                   isConn=false;
-               }
-               finally {
-                   freeWriteSemaphore(id);
-               }
+           int id = msg.getMessageID();
+           try {
+               write( id, new PendingWrite( id,
+                       encoder.encode(msg.getASN1Object())), true);
+               isConn=true;
+           } catch( IOException ioe) {
+               isConn=false;
+           }
        }
 
        return isConn;
@@ -971,7 +1353,7 @@ final class Connection
                     Debug.trace( Debug.rawInput, name + "RawWrite: " +
                             msg.getASN1Object().toString());
                 }
-                byte[] ber = msg.getASN1Object().getEncoding(encoder);
+                byte[] ber = encoder.encode(msg.getASN1Object());
                 out.write(ber, 0, ber.length);
                 out.flush();
             } catch( Exception ex) {
@@ -991,11 +1373,18 @@ final class Connection
             }
             socket = null;
         }
+        if( transport != null) {
+            // Stops the transport reading, as closing the socket stops a
+            // ReaderThread
+            transport.close();
+            transport = null;
+        }
 
         // wait until reader threads stops completely
         try {
-        	if (reader!= Thread.currentThread())
-        	     reader.join();
+        	Object r = reader;
+        	if ((r instanceof Thread) && (r != Thread.currentThread()))
+        	     ((Thread)r).join();
 
 //      	reader.join();
             reader=null;
@@ -1003,9 +1392,6 @@ final class Connection
         catch(InterruptedException iex) {
         	;
         }
-        catch(NullPointerException npe) {
-        	;
-        }
 
         freeWriteSemaphore( semId);
         return;
@@ -1104,12 +1490,16 @@ final class Connection
      */
     /* package */
     final void startReader() throws LDAPException {
+        if( transport != null) {
+            // The transport is read by a shared selector thread
+            reader = transport;
+            transport.startReading();
+            waitForReader(transport);
+            return;
+        }
+
         // Start Reader Thread
-        
-    	//Future future = executor.submit(new ReaderThread());
-    	
-    	Thread r = new Thread(new ReaderThread());
-        r.setDaemon(true); // If the last thread running, allow exit.
+        Thread r = newDaemonThread( new ReaderThread());
         r.start();
         waitForReader(r);
         return;
@@ -1161,10 +1551,16 @@ final class Connection
              */
             waitForReader(null);
             this.nonTLSBackup = this.socket;
-            this.socket = ((LDAPTLSSocketFactory)
+            if( transport != null) {
+                // TLS is layered over the same channel with an SSLEngine
+                transport.startTLS( ((LDAPSelectorSocketFactory)
+                        this.mySocketFactory).createSSLEngine( host, port));
+            } else {
+                this.socket = ((LDAPTLSSocketFactory)
                         this.mySocketFactory).createSocket( this.socket );
-            this.in = socket.getInputStream();
-            this.out = socket.getOutputStream();
+                this.in = socket.getInputStream();
+                this.out = socket.getOutputStream();
+            }
 
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.TLS, "connection.startTLS, nonTLSBackup:"+
@@ -1208,11 +1604,18 @@ final class Connection
     {
         try{
             this.stopReaderMessageID = this.STOP_READING;
-            this.socket.close();
-            waitForReader(null);
-            this.socket = this.nonTLSBackup;
-            this.in = this.socket.getInputStream();
-            this.out = this.socket.getOutputStream();
+            if( transport != null) {
+                // Close the TLS session, the channel remains open
+                transport.stopReading();
+                waitForReader(null);
+                transport.stopTLS();
+            } else {
+                this.socket.close();
+                waitForReader(null);
+                this.socket = this.nonTLSBackup;
+                this.in = this.socket.getInputStream();
+                this.out = this.socket.getOutputStream();
+            }
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.TLS, "connection.stopTLS, nonTLSBackup:"+
                         nonTLSBackup +", TLSSocket:"+socket+", input:"+ in +","
@@ -1244,23 +1647,22 @@ final class Connection
          */
         public final void run()
         {
-
-            String reason = "reader: thread stopping";
-            InterThreadException notify = null;
-            Message info = null;
             IOException ioex = null;
 
-            reader = Thread.currentThread();
+            Thread me = Thread.currentThread();
+            reader = me;
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.messages, name + "reader: thread starting: " +
-                    reader.toString());
+                    me.toString());
             }
+            /* The socket stream is read in large blocks, each complete
+             * message is then decoded from memory.  The framer is bound
+             * to the stream in use when the reader started, startTLS and
+             * stopTLS always restart the reader after changing streams.
+             */
+            LBERFrameReader framer = null;
             try {
                 for(;;) {
-                    // -------------------------------------------------------
-                    // Decode an RfcLDAPMessage directly from the socket.
-                    // -------------------------------------------------------
-                    ASN1Identifier asn1ID;
                     InputStream myIn;
                     /* get current value of in, keep value consistant
                      * though the loop, i.e. even during shutdown
@@ -1273,191 +1675,250 @@ final class Connection
                         }
                         break;
                     }
-                    asn1ID = new ASN1Identifier(myIn);
-                    int tag = asn1ID.getTag();
-                    if(asn1ID.getTag() != ASN1Sequence.TAG) {
-                        if( Debug.LDAP_DEBUG) {
-                            Debug.trace( Debug.messages, name +
-                                "reader: discarding message with tag " + tag);
-                        }
-                        continue; // loop looking for an RfcLDAPMessage identifier
+                    if( (framer == null) || (framer.getInputStream() != myIn)) {
+                        framer = new LBERFrameReader(myIn);
                     }
+                    if( messageReceived( framer.nextFrame())) {
+                        break;
+                    }
+                    // Stop reading while the application catches up,
+                    // the server is then held back by TCP flow control
+                    Message full = fullReplyQueue();
+                    if( full != null) {
+                        full.waitForReplySpace();
+                    }
+                }
+            } catch( IOException ioe) {
+                ioex = ioe;
+            } finally {
+                readerStopped( me, ioex);
+            }
+            return;
+        }
+    } // End class ReaderThread
 
-                    // Turn the message into an RfcMessage class
-                    ASN1Length asn1Len = new ASN1Length(myIn);
+    /**
+     * Decodes and processes one message read from the server.
+     *
+     * <p>Called by the active reader, either the ReaderThread or a
+     * ChannelTransport, with a stream over one complete LBER element.</p>
+     *
+     * @param frame A stream over the complete encoding of the message.
+     *
+     * @return true if the reader must stop reading.
+     */
+    /* package */
+    final boolean messageReceived( InputStream frame)
+        throws IOException
+    {
+        // ---------------------------------------------------------------
+        // Decode an RfcLDAPMessage from the frame.  The frame is copied
+        // once, as the reader reuses its buffer, and the values of the
+        // message are then views of the copy.
+        // ---------------------------------------------------------------
+        byte[] pdu = new byte[frame.available()];
+        for( int n = 0; n < pdu.length; ) {
+            int r = frame.read( pdu, n, pdu.length - n);
+            if( r < 0) {
+                throw new EOFException( "Connection: message truncated");
+            }
+            n += r;
+        }
+        InputStream in = new ByteBufferInputStream( ByteBuffer.wrap( pdu));
+        ASN1Identifier asn1ID = new ASN1Identifier(in);
+        int tag = asn1ID.getTag();
+        if(asn1ID.getTag() != ASN1Sequence.TAG) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, name +
+                    "reader: discarding message with tag " + tag);
+            }
+            return false; // loop looking for an RfcLDAPMessage identifier
+        }
 
-                    RfcLDAPMessage msg =
-                        new RfcLDAPMessage( decoder, myIn, asn1Len.getLength());
-                    if( Debug.LDAP_DEBUG) {
-                        Debug.trace( Debug.rawInput, name + "RawRead: " +
-                                msg.toString());
-                    }
+        // Turn the message into an RfcMessage class
+        ASN1Length asn1Len = new ASN1Length(in);
 
-                    // ------------------------------------------------------------
-                    // Process the decoded RfcLDAPMessage.
-                    // ------------------------------------------------------------
-                    int msgId = msg.getMessageID();
-
-                    // Find the message which requested this response.
-                    // It is possible to receive a response for a request which
-                    // has been abandoned. If abandoned, throw it away
-                    try {
-                        info = messages.findMessageById( msgId);
-                        if( Debug.LDAP_DEBUG ) {
-                            Debug.trace( Debug.messages, name +
-                                "reader: queue response to message(" + msgId + ")");
-                        }
-                        info.putReply( msg);   // queue & wake up waiting thread
-                    } catch ( NoSuchFieldException ex) {
-
-                        /*
-                         * We get the NoSuchFieldException when we could not find
-                         * a matching message id.  First check to see if this is
-                         * an unsolicited notification (msgID == 0). If it is not
-                         * we throw it away. If it is we call any unsolicited
-                         * listeners that might have been registered to listen for these
-                         * messages.
-                         */
-
-
-                        /* Note the location of this code.  We could have required
-                         * that message ID 0 be just like other message ID's but
-                         * since message ID 0 has to be treated specially we have
-                         * a separate check for message ID 0.  Also note that
-                         * this test is after the regular message list has been
-                         * checked for.  We could have always checked the list
-                         * of messages after checking if this is an unsolicited
-                         * notification but that would have inefficient as
-                         * message ID 0 is a rare event (as of this time).
-                         */
-                        if (msgId == 0) {
-
-                            if( Debug.LDAP_DEBUG ) {
-                                Debug.trace( Debug.messages, name +
-                                        "Received message id 0");
-                            }
-
-                            // Notify any listeners that might have been registered
-                            notifyAllUnsolicitedListeners(msg);
-
-                            /*
-                             * Was this a server shutdown unsolicited notification.
-                             * IF so we quit. Actually calling the return will
-                             * first transfer control to the finally clause which
-                             * will do the necessary clean up.
-                             */
-                            if (unsolSvrShutDnNotification) {
-                                notify = new InterThreadException(
-                                    ExceptionMessages.SERVER_SHUTDOWN_REQ,
-                                    new Object[] {host, new Integer(port)},
-                                    LDAPException.CONNECT_ERROR,
-                                    null, null);
-
-                                return;
-                            }
-                        } else {
-
-                            if( Debug.LDAP_DEBUG ) {
-                                Debug.trace( Debug.messages, name +
-                                    "reader: message(" + msgId +
-                                    ") not found, discarding reply");
-                            }
+        RfcLDAPMessage msg =
+            new RfcLDAPMessage( decoder, in, asn1Len.getLength());
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.rawInput, name + "RawRead: " +
+                    msg.toString());
+        }
 
-                        }
+        // ------------------------------------------------------------
+        // Process the decoded RfcLDAPMessage.
+        // ------------------------------------------------------------
+        int msgId = msg.getMessageID();
+
+        // Find the message which requested this response.
+        // It is possible to receive a response for a request which
+        // has been abandoned. If abandoned, throw it away
+        try {
+            Message info = messages.findMessageById( msgId);
+            if( Debug.LDAP_DEBUG ) {
+                Debug.trace( Debug.messages, name +
+                    "reader: queue response to message(" + msgId + ")");
+            }
+            readerInfo = info;
+            info.putReply( msg);   // queue & wake up waiting thread
+        } catch ( NoSuchFieldException ex) {
+
+            /*
+             * We get the NoSuchFieldException when we could not find
+             * a matching message id.  First check to see if this is
+             * an unsolicited notification (msgID == 0). If it is not
+             * we throw it away. If it is we call any unsolicited
+             * listeners that might have been registered to listen for these
+             * messages.
+             */
+
+
+            /* Note the location of this code.  We could have required
+             * that message ID 0 be just like other message ID's but
+             * since message ID 0 has to be treated specially we have
+             * a separate check for message ID 0.  Also note that
+             * this test is after the regular message list has been
+             * checked for.  We could have always checked the list
+             * of messages after checking if this is an unsolicited
+             * notification but that would have inefficient as
+             * message ID 0 is a rare event (as of this time).
+             */
+            if (msgId == 0) {
 
-                    }
-                    if ((stopReaderMessageID == msgId) ||
-                        (stopReaderMessageID == STOP_READING)) {
-                        // Stop the reader Thread.
-                        return;
-                    }
-                }
-            } catch( IOException ioe) {
                 if( Debug.LDAP_DEBUG ) {
                     Debug.trace( Debug.messages, name +
-                        "Connection lost waiting for results from " +
-                        host + ":" + port + ", clientActive=" +
-                        clientActive + "\n\t" + ioe.toString());
+                            "Received message id 0");
                 }
 
-                ioex = ioe;
-                if((stopReaderMessageID != STOP_READING ) && clientActive ){
-                    // Connection lost waiting for results from host:port
-                    notify = new InterThreadException(
-                        ExceptionMessages.CONNECTION_WAIT,
-                                new Object[] { host, new Integer(port)},
-                                LDAPException.CONNECT_ERROR,
-                                ioe, info);
+                // Notify any listeners that might have been registered
+                notifyAllUnsolicitedListeners(msg);
+
+                /*
+                 * Was this a server shutdown unsolicited notification.
+                 * IF so we quit, readerStopped will do the necessary
+                 * clean up.
+                 */
+                if (unsolSvrShutDnNotification) {
+                    return true;
                 }
-                // The connection is no good, don't use it any more
-                in = null;
-                out = null;
-            } finally {
+            } else {
+
                 if( Debug.LDAP_DEBUG ) {
                     Debug.trace( Debug.messages, name +
-                    "reader: connection shutdown");
+                        "reader: message(" + msgId +
+                        ") not found, discarding reply");
                 }
-                /*
-                 * There can be four states that the reader can be in at this point:
-                 *  1) We are starting TLS and will be restarting the reader
-                 *     after we have negotiated TLS.
-                 *      - Indicated by whether stopReaderMessageID does not
-                 *        equal CONTINUE_READING.
-                 *      - Don't call Shutdown.
-                 *  2) We are stoping TLS and will be restarting after TLS is
-                 *     stopped.
-                 *      - Indicated by an IOException AND stopReaderMessageID equals
-                 *        STOP_READING - in which case notify will be null.
-                 *      - Don't call Shutdown
-                 *  3) We receive a Server Shutdown notification.
-                 *      - Indicated by messageID equal to 0.
-                 *      - call Shutdown.
-                 *  4) Another error occured
-                 *      - Indicated by an IOException AND notify is not NULL
-                 *      - call Shutdown.
-                 */
-                if( (! clientActive) || (notify != null)) { //#3 & 4
-                    shutdown( reason, 0, notify );
-                } else {
-                    stopReaderMessageID = CONTINUE_READING;
-                    if( Debug.LDAP_DEBUG ) {       //#1 & #2
-                        Debug.trace( Debug.TLS,
-                            "reader: Stopping thread, retaining the connection");
-                    }
-                }
-            }
-            deadReaderException = ioex;
-            deadReader = reader;
-            reader = null;
-            if( Debug.LDAP_DEBUG ) {
-                Debug.trace( Debug.messages, name +
-                "reader: thread terminated");
+
             }
-            return;
+
         }
-    } // End class ReaderThread
+        if ((stopReaderMessageID == msgId) ||
+            (stopReaderMessageID == STOP_READING)) {
+            // Stop the reader.
+            return true;
+        }
+        return false;
+    }
 
     /**
-     * Sets the current referral active on this connection if created to
-     * follow referrals.
+     * Returns the message the last reply was queued to if its reply queue is
+     * bounded and now full, the active reader must not read until the
+     * application has taken replies from it.
+     *
+     * @return the message with a full reply queue, or null.
      */
     /* package */
-    final void setActiveReferral( ReferralInfo referral)
+    final Message fullReplyQueue()
     {
-        activeReferral = referral;
-        return;
+        Message info = readerInfo;
+        if( (info != null) && info.isReplyQueueFull()) {
+            return info;
+        }
+        return null;
     }
 
     /**
-     * Gets the current referral active on this connection if created to
-     * follow referrals.
+     * Called by the active reader when it stops reading, because the
+     * connection failed, the connection was shut down, or the reader was
+     * asked to stop.
+     *
+     * @param stopped The reader that stopped.<br>
      *
-     * @return the active referral url
+     * @param ioe The exception that stopped the reader, or null if the
+     * reader stopped because messageReceived returned true.
      */
     /* package */
-    final ReferralInfo getActiveReferral()
+    final void readerStopped( Object stopped, IOException ioe)
     {
-        return activeReferral;
+        String reason = "reader: thread stopping";
+        InterThreadException notify = null;
+        if( ioe != null) {
+            if( Debug.LDAP_DEBUG ) {
+                Debug.trace( Debug.messages, name +
+                    "Connection lost waiting for results from " +
+                    host + ":" + port + ", clientActive=" +
+                    clientActive + "\n\t" + ioe.toString());
+            }
+
+            if((stopReaderMessageID != STOP_READING ) && clientActive ){
+                // Connection lost waiting for results from host:port
+                notify = new InterThreadException(
+                    ExceptionMessages.CONNECTION_WAIT,
+                            new Object[] { host, new Integer(port)},
+                            LDAPException.CONNECT_ERROR,
+                            ioe, readerInfo);
+            }
+            // The connection is no good, don't use it any more
+            in = null;
+            out = null;
+        } else if( unsolSvrShutDnNotification) {
+            notify = new InterThreadException(
+                ExceptionMessages.SERVER_SHUTDOWN_REQ,
+                new Object[] {host, new Integer(port)},
+                LDAPException.CONNECT_ERROR,
+                null, null);
+        }
+        readerInfo = null;
+        if( Debug.LDAP_DEBUG ) {
+            Debug.trace( Debug.messages, name +
+            "reader: connection shutdown");
+        }
+        /*
+         * There can be four states that the reader can be in at this point:
+         *  1) We are starting TLS and will be restarting the reader
+         *     after we have negotiated TLS.
+         *      - Indicated by whether stopReaderMessageID does not
+         *        equal CONTINUE_READING.
+         *      - Don't call Shutdown.
+         *  2) We are stoping TLS and will be restarting after TLS is
+         *     stopped.
+         *      - Indicated by an IOException AND stopReaderMessageID equals
+         *        STOP_READING - in which case notify will be null.
+         *      - Don't call Shutdown
+         *  3) We receive a Server Shutdown notification.
+         *      - Indicated by messageID equal to 0.
+         *      - call Shutdown.
+         *  4) Another error occured
+         *      - Indicated by an IOException AND notify is not NULL
+         *      - call Shutdown.
+         */
+        if( (! clientActive) || (notify != null)) { //#3 & 4
+            shutdown( reason, 0, notify );
+        } else {
+            stopReaderMessageID = CONTINUE_READING;
+            if( Debug.LDAP_DEBUG ) {       //#1 & #2
+                Debug.trace( Debug.TLS,
+                    "reader: Stopping thread, retaining the connection");
+            }
+        }
+        deadReaderException = ioe;
+        deadReader = stopped;
+        reader = null;
+        if( Debug.LDAP_DEBUG ) {
+            Debug.trace( Debug.messages, name +
+            "reader: thread terminated");
+        }
+        return;
     }
 
     /** Add the specific object to the list of listeners that want to be
@@ -1480,7 +1941,7 @@ final class Connection
     }
 
     /** Inner class defined so that we can spawn off each unsolicited
-     *  listener as a seperate thread.  We did not want to call the
+     *  listener in a seperate thread.  We did not want to call the
      *  unsolicited listener method directly as this would have tied up our
      *  deamon listener thread in the applications unsolicited listener method.
      *  Since we do not know what the application unsolicited listener
@@ -1488,7 +1949,7 @@ final class Connection
      *  notification.  We use this class to spawn off the unsolicited
      *  notification as a separate thread
      */
-    private class UnsolicitedListenerThread extends Thread
+    private class UnsolicitedListenerThread implements Runnable
     {
         private LDAPUnsolicitedNotificationListener listenerObj;
         private LDAPExtendedResponse unsolicitedMsg;
@@ -1555,7 +2016,7 @@ final class Connection
             // the notification listener method to return.
             UnsolicitedListenerThread u =
                     new UnsolicitedListenerThread(listener, tempLDAPMessage);
-            u.start();
+            newDaemonThread( u).start();
         }
 
 
@@ -0,0 +1,193 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.novell.ldap.client.Debug;
+
+/**
+ * A selector thread that reads the sockets of many connections.
+ *
+ * <p>Each ChannelTransport registered with the selector is read by the
+ * selector thread when data arrives, and the complete messages read are
+ * processed by the Connection on the selector thread, as they would be by a
+ * ReaderThread.  Registration is asynchronous, a transport is read for the
+ * first time once the selector thread has registered it.</p>
+ *
+ * <p>A selector thread serves every connection registered with it, so it
+ * must never block.  Work that may block, such as shutting down a
+ * connection or running the application's callbacks, is handed to the
+ * worker threads shared by all selectors with {@link #execute}.</p>
+ */
+/* package */
+final class ConnectionSelector implements Runnable
+{
+    private final Selector selector;
+    private final Thread thread;
+
+    // Transports waiting to be registered by the selector thread
+    private final ConcurrentLinkedQueue<ChannelTransport> pending =
+                                new ConcurrentLinkedQueue<ChannelTransport>();
+    // Paused transports waiting to be resumed by the selector thread
+    private final ConcurrentLinkedQueue<ChannelTransport> resumed =
+                                new ConcurrentLinkedQueue<ChannelTransport>();
+
+    // Marks the selector threads
+    private static final ThreadLocal<Boolean> selecting =
+                                                new ThreadLocal<Boolean>();
+
+    // Threads running the work the selector threads must not block on
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 5, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    return Connection.newDaemonThread(r);
+                }
+            });
+
+    /**
+     * Opens a selector and starts its thread.
+     *
+     * @param name The name of the selector thread.
+     */
+    /* package */
+    ConnectionSelector(String name)
+        throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true); // If the last thread running, allow exit.
+        thread.start();
+        return;
+    }
+
+    /**
+     * Registers a transport to be read by this selector.
+     */
+    /* package */
+    final void register(ChannelTransport transport)
+    {
+        pending.add(transport);
+        selector.wakeup();
+        return;
+    }
+
+    /**
+     * Resumes reading a transport paused because a reply queue was full.
+     */
+    /* package */
+    final void resume(ChannelTransport transport)
+    {
+        resumed.add(transport);
+        selector.wakeup();
+        return;
+    }
+
+    /**
+     * Reports whether the calling thread is a selector thread, which must
+     * not block.
+     */
+    /* package */
+    static boolean isSelectorThread()
+    {
+        return selecting.get() != null;
+    }
+
+    /**
+     * Runs a task that may block on a worker thread, so that it does not
+     * hold up a selector thread.
+     *
+     * @param task The task to run.
+     */
+    /* package */
+    static void execute(Runnable task)
+    {
+        workers.execute(task);
+        return;
+    }
+
+    public final void run()
+    {
+        selecting.set(Boolean.TRUE);
+        for(;;) {
+            try {
+                selector.select();
+            } catch( IOException ioe) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.messages, thread.getName() +
+                        ": select failed " + ioe.toString());
+                }
+                continue;
+            }
+
+            ChannelTransport transport;
+            while( (transport = pending.poll()) != null) {
+                register0(transport);
+            }
+            while( (transport = resumed.poll()) != null) {
+                transport.resumed();
+            }
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while( i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+                if( key.isValid()) {
+                    ((ChannelTransport)key.attachment()).readable();
+                }
+            }
+        }
+    }
+
+    /*
+     * Registers a transport on the selector thread, then reads any data the
+     * transport has already buffered.
+     */
+    private void register0(ChannelTransport transport)
+    {
+        SelectionKey key;
+        try {
+            try {
+                key = transport.getChannel().register(
+                        selector, SelectionKey.OP_READ, transport);
+            } catch( CancelledKeyException cke) {
+                // The previous registration is cancelled but not yet
+                // removed from the selector, remove it and try again
+                selector.selectNow();
+                key = transport.getChannel().register(
+                        selector, SelectionKey.OP_READ, transport);
+            }
+        } catch( IOException ioe) {
+            // The channel is closed
+            transport.registered(null);
+            return;
+        }
+        transport.registered(key);
+        transport.readable();
+        return;
+    }
+}
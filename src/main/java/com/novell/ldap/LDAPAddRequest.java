@@ -71,6 +71,16 @@ public class LDAPAddRequest extends LDAPMessage
         return;
     }
 
+    /**
+     * Returns the dn of the entry to add to the directory
+     *
+     * @return the dn of the entry to add
+     */
+    public String getDN()
+    {
+        return getASN1Object().getRequestDN();
+    }
+
     /**
      * Constructs an LDAPEntry that represents the add request
      *
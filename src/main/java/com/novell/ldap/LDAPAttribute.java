@@ -25,12 +25,15 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.StringTokenizer;
 
 import org.xml.sax.Attributes;
@@ -65,7 +68,9 @@ public class LDAPAttribute implements java.lang.Cloneable,
     private String name;              // full attribute name
     private String baseName;          // cn of cn;lang-ja;phonetic
     private String[] subTypes = null; // lang-ja of cn;lang-ja
-    private LinkedList<ByteArray> values = null;
+    private AttributeValues values = null;
+    private LinkedList<ByteArray> list = null; // list from getAllValues
+    private int listMods;             // modCount of list when last read
 
 	/**
 	 * This constructor was added to support default Serialization
@@ -73,12 +78,19 @@ public class LDAPAttribute implements java.lang.Cloneable,
 	 */
 	public LDAPAttribute()
 	{
-		this.values = new LinkedList<ByteArray>();
+		this.values = new AttributeValues();
 	}
     
 	
 	public ByteArray getAndRemoveFirstValue() {
-		ByteArray value = this.values.pollFirst();
+		AttributeValues values = values();
+		int first = values.first();
+		if (first < 0) {
+			return null;
+		}
+		ByteArray value = new ByteArray(values.getBytes(first));
+		values.remove(first);
+		changed();
 		return value;
 	}
 	
@@ -104,10 +116,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
             System.arraycopy( attr.subTypes, 0, this.subTypes, 0,
                     this.subTypes.length );
         }
-        // OK to just copy attributes, as the app only sees a deep copy of them
         if( null != attr.values) {
-            this.values = new LinkedList<ByteArray>();
-            this.values.addAll(attr.values);
+            this.values = new AttributeValues(attr.values());
         }
         return;
     }
@@ -127,7 +137,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
         this.name = attrName;
         this.baseName = this.getBaseName( attrName );
         this.subTypes = this.getSubtypes( attrName );
-        this.values = new LinkedList<ByteArray>();
+        this.values = new AttributeValues();
         return;
     }
 
@@ -147,10 +157,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( attrBytes == null) {
             throw new IllegalArgumentException("Attribute value cannot be null");
         }
-        // Make our own copy of the byte array to prevent app from changing it
-        byte[] tmp = new byte[attrBytes.length];
-        System.arraycopy( attrBytes, 0, tmp, 0, attrBytes.length );
-        this.add( tmp);
+        // The value is copied, so the app cannot change it
+        this.add( attrBytes);
         return;
     }
 
@@ -168,11 +176,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( attrString == null) {
             throw new IllegalArgumentException("Attribute value cannot be null");
         }
-        try {
-            this.add( attrString.getBytes( "UTF-8" ) );
-        } catch( UnsupportedEncodingException e ){
-            throw new RuntimeException( e.toString());
-        }
+        values().add( attrString);
+        changed();
         return;
     }
 
@@ -192,15 +197,11 @@ public class LDAPAttribute implements java.lang.Cloneable,
             throw new IllegalArgumentException("Attribute values array cannot be null");
         }
         for( int i = 0, u = attrStrings.length; i < u; i++) {
-            try {
-                if( attrStrings[ i ] == null) {
-                    throw new IllegalArgumentException("Attribute value " +
-                    "at array index " + i + " cannot be null");
-                }
-                this.add( attrStrings[ i ].getBytes( "UTF-8" ) );
-            } catch( UnsupportedEncodingException e ){
-                throw new RuntimeException( e.toString());
+            if( attrStrings[ i ] == null) {
+                throw new IllegalArgumentException("Attribute value " +
+                "at array index " + i + " cannot be null");
             }
+            this.values.add( attrStrings[ i ]);
         }
         return;
     }
@@ -229,11 +230,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( attrString == null) {
             throw new IllegalArgumentException("Attribute value cannot be null");
         }
-        try {
-            this.add( attrString.getBytes( "UTF-8" ) );
-        } catch( UnsupportedEncodingException ue ) {
-            throw new RuntimeException( ue.toString());
-        }
+        values().add( attrString);
+        changed();
         return;
     }
 
@@ -432,18 +430,47 @@ public class LDAPAttribute implements java.lang.Cloneable,
     {
         if( null == this.values )
             return new byte[ 0 ][];
-        int size = this.values.size();
+        AttributeValues values = values();
+        int size = values.size();
         byte[][] bva = new byte[ size ][];
         // Deep copy so application cannot change values
         int i = 0;
-        for (ByteArray val : values) {
-            bva[i] = new byte[val.getValue().length];
-            System.arraycopy(val.getValue(), 0, bva[i], 0, val.getValue().length);
-            i++;
+        for( int pos = values.first(); pos >= 0; pos = values.next( pos)) {
+            bva[i++] = values.getBytes( pos);
         }
         return bva;
     }
 
+    /**
+     * Returns read-only views of the values of the attribute, without
+     * copying them.  A view reflects the values until the attribute is
+     * changed, use getByteValueArray to keep the values.
+     *
+     * @return The values as read-only buffers or an empty array if there
+     * are no values.
+     */
+    public ByteBuffer[] getByteBufferArray()
+    {
+        if( null == this.values )
+            return new ByteBuffer[ 0 ];
+        AttributeValues values = values();
+        ByteBuffer[] bba = new ByteBuffer[ values.size() ];
+        int i = 0;
+        for( int pos = values.first(); pos >= 0; pos = values.next( pos)) {
+            bba[i++] = values.getBuffer( pos);
+        }
+        return bba;
+    }
+
+    /**
+     * Returns the values, which are not copied.
+     */
+    /* package */
+    AttributeValues getValues()
+    {
+        return values();
+    }
+
     /**
      * Returns the values of the attribute as an array of strings.
      *
@@ -454,20 +481,14 @@ public class LDAPAttribute implements java.lang.Cloneable,
     {
         if( null == this.values )
             return new String[ 0 ];
+        AttributeValues values = values();
         int size = values.size();
         String[] sva = new String[ size ];
-        
+        // Each value is decoded once, and the strings kept by the attribute
         int i = 0;
-
-        for (ByteArray value : this.values) {
-            try {
-                sva[i] = new String(value.getValue(),"UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                // do nothing
-            }
-            i++;
+        for( int pos = values.first(); pos >= 0; pos = values.next( pos)) {
+            sva[i++] = values.getString( pos);
         }
-
         return sva;
     }
 
@@ -490,12 +511,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
     public String getStringValue()
     {
         String rval = null;
-        if( this.values != null) {
-            try {
-                rval = new String( this.values.getFirst().getValue(), "UTF-8" );
-            } catch( UnsupportedEncodingException use ) {
-                throw new RuntimeException( use.toString());
-            }
+        if( (this.values != null) && (values().first() >= 0)) {
+            rval = this.values.getString( this.values.first());
         }
         return rval;
     }
@@ -511,11 +528,9 @@ public class LDAPAttribute implements java.lang.Cloneable,
      public byte[] getByteValue()
      {
         byte[] bva = null;
-        if( this.values != null) {
+        if( (this.values != null) && (values().first() >= 0)) {
             // Deep copy so app can't change the value
-            byte[] firstVal = this.values.getFirst().getValue();
-            bva = new byte[firstVal.length];
-            System.arraycopy( firstVal, 0, bva, 0, bva.length );
+            bva = this.values.getBytes( this.values.first());
         }
         return bva;
      }
@@ -739,12 +754,60 @@ public class LDAPAttribute implements java.lang.Cloneable,
         if( null == attrBytes ) {
             throw new IllegalArgumentException("Attribute value cannot be null");
         }
-        
-        this.values.removeFirstOccurrence(new ByteArray(attrBytes));
-
+        AttributeValues values = values();
+        int pos = values.indexOf( attrBytes);
+        if( pos >= 0) {
+            values.remove( pos);
+            changed();
+        }
         return;
     }
 
+    /**
+     * Reports if the attribute has a string value.  The values are compared
+     * as UTF-8 octets, without applying any matching rule.
+     *
+     * @param attrString   Value of the attribute as a string.
+     *
+     * @return true if the attribute has the value; false if it doesn't.
+     *
+     * @throws IllegalArgumentException if attrString is null
+     */
+    public boolean hasValue( String attrString )
+    {
+        if( null == attrString ) {
+            throw new IllegalArgumentException("Attribute value cannot be null");
+        }
+        try {
+            return this.hasValue( attrString.getBytes( "UTF-8" ) );
+        } catch( UnsupportedEncodingException uee ) {
+            // This should NEVER happen but just in case ...
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    /**
+     * Reports if the attribute has a byte-formatted value.  The values are
+     * compared octet by octet, without applying any matching rule.
+     *
+     * <p>Once an attribute with many values is searched, it keeps an index
+     * of its values, so the time taken by hasValue and removeValue does not
+     * grow with the number of values.</p>
+     *
+     * @param attrBytes    Value of the attribute as raw bytes.
+     *
+     * @return true if the attribute has the value; false if it doesn't.
+     *
+     * @throws IllegalArgumentException if attrBytes is null
+     */
+    public boolean hasValue( byte[] attrBytes )
+    {
+        if( null == attrBytes ) {
+            throw new IllegalArgumentException("Attribute value cannot be null");
+        }
+        return (null != this.values) && (values().indexOf( attrBytes) >= 0);
+    }
+
     /**
      * Returns the number of values in the attribute.
      *
@@ -752,7 +815,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
      */
     public int size()
     {
-        return null == this.values ? 0 : this.values.size();
+        return null == this.values ? 0 : values().size();
     }
 
     /**
@@ -784,7 +847,34 @@ public class LDAPAttribute implements java.lang.Cloneable,
      */
     private void add( byte[] bytes )
     {
-        this.values.add(new ByteArray(bytes));
+        values().add(bytes, 0, bytes.length);
+        changed();
+    }
+
+    /**
+     * Adds a value held in part of an array, which is copied.  Used when
+     * decoding a search result entry to copy each value out of the response
+     * exactly once.
+     */
+    /* package */
+    void addValue( byte[] bytes, int offset, int length )
+    {
+        values().add(bytes, offset, length);
+        changed();
+        return;
+    }
+
+    /**
+     * Reserves room for values about to be added.
+     *
+     * @param count    The number of values.
+     * @param length   Their total length.
+     */
+    /* package */
+    void ensureCapacity( int count, int length )
+    {
+        values().ensureCapacity(count, length);
+        return;
     }
 
     /**
@@ -793,12 +883,10 @@ public class LDAPAttribute implements java.lang.Cloneable,
      * with a contructor.
      */
     protected void setValue(String value){
-        this.values.clear();
-        try {
-            this.values.add(new ByteArray(value.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            // do nothing
-        }
+        AttributeValues values = values();
+        values.clear();
+        values.add(value);
+        changed();
         return;
     }
 
@@ -845,7 +933,8 @@ public class LDAPAttribute implements java.lang.Cloneable,
         StringBuffer result = new StringBuffer("LDAPAttribute: ");
         try {
             result.append("{type='" + name + "'");
-            if( values != null) {
+            if( this.values != null) {
+                AttributeValues values = values();
                 result.append(", ");
                 if( values.size() == 1) {
                     result.append("value='");
@@ -854,16 +943,16 @@ public class LDAPAttribute implements java.lang.Cloneable,
                 }
 
                 boolean first = true;
-                for (ByteArray value : this.values) {
+                for (int pos = values.first(); pos >= 0; pos = values.next(pos)) {
                     if (! first) {
                         result.append("','");
                     }
 
-                    if (value.getValue().length == 0) {
+                    if (values.length(pos) == 0) {
                         continue;
                     } 
 
-                    String strVal = new String(value.getValue(),"UTF-8");
+                    String strVal = values.getString(pos);
                     if (strVal.length() == 0) {
                         // didn't decode well, must be binary
                         result.append("<binary value, length:" + strVal.length());
@@ -1140,8 +1229,7 @@ public class LDAPAttribute implements java.lang.Cloneable,
 		 }
 
 		 if( null != readObject.values) {
-			 this.values = new LinkedList<ByteArray>();
-			 this.values.addAll(readObject.values);
+			 this.values = new AttributeValues(readObject.values());
 		 }
 	
 		//Garbage collect the readObject from readDSML()..	
@@ -1154,12 +1242,140 @@ public class LDAPAttribute implements java.lang.Cloneable,
         this.subTypes = this.getSubtypes( name );
     }
 
+    /**
+     * Returns the values as a list that stays in step with the attribute:
+     * values added to or removed from the list are seen by the attribute,
+     * and values changed through the attribute are seen in the list.
+     *
+     * <p>The attribute keeps its values in one array, so once this list is
+     * handed out, every change to the list is copied to the array when the
+     * attribute is next used, and every change to the attribute is copied
+     * to the list.  The values stay in the list until setAllValues is
+     * called.</p>
+     *
+     * @deprecated Use {@link #getValueList} or {@link #getByteBufferArray}
+     * to read the values, and addValue and removeValue to change them.
+     */
+    @Deprecated
     public LinkedList<ByteArray> getAllValues() {
-        return this.values;
+        if (this.list == null) {
+            if (this.values == null) {
+                this.values = new AttributeValues();
+            }
+            this.list = new ValueList();
+            changed();
+        }
+        return this.list;
     }
 
+    /**
+     * Replaces the values with the values of a list, which is kept and
+     * returned by getAllValues.  Since only lists returned by getAllValues
+     * record their changes, a list made by the caller is read again each
+     * time the attribute is used.
+     *
+     * @deprecated Use addValue and removeValue to change the values.
+     */
+    @Deprecated
     public void setAllValues(LinkedList<ByteArray> newVals) {
-        this.values = newVals;
+        this.list = newVals;
+        this.listMods = -1;
+        values();
+        return;
+    }
+
+    /**
+     * Returns a read-only list of copies of the values, which does not
+     * change when the attribute changes.
+     *
+     * @return The values, which may be an empty list.
+     */
+    public List<ByteArray> getValueList() {
+        List<ByteArray> copies = new ArrayList<ByteArray>(size());
+        AttributeValues values = values();
+        if (values != null) {
+            for (int pos = values.first(); pos >= 0; pos = values.next(pos)) {
+                copies.add(new ByteArray(values.getBytes(pos)));
+            }
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    /*
+     * Returns the values, first copying them from the list returned by
+     * getAllValues if the list has changed.
+     */
+    private AttributeValues values() {
+        LinkedList<ByteArray> list = this.list;
+        if ((list != null) && (!(list instanceof ValueList) ||
+                               (((ValueList)list).mods() != this.listMods))) {
+            AttributeValues values = new AttributeValues();
+            for (ByteArray value : list) {
+                byte[] bytes = value.getValue();
+                values.add(bytes, 0, bytes.length);
+            }
+            this.values = values;
+            if (list instanceof ValueList) {
+                this.listMods = ((ValueList)list).mods();
+            }
+        }
+        return this.values;
+    }
+
+    /*
+     * Copies the values to the list returned by getAllValues, after the
+     * values have been changed.
+     */
+    private void changed() {
+        LinkedList<ByteArray> list = this.list;
+        if (list != null) {
+            list.clear();
+            for (int pos = this.values.first(); pos >= 0;
+                 pos = this.values.next(pos)) {
+                list.add(new ByteArray(this.values.getBytes(pos)));
+            }
+            if (list instanceof ValueList) {
+                this.listMods = ((ValueList)list).mods();
+            }
+        }
+        return;
+    }
+
+    /*
+     * The list returned by getAllValues, which counts its changes so the
+     * attribute copies the values only when the list has changed.
+     */
+    private static final class ValueList extends LinkedList<ByteArray> {
+        private static final long serialVersionUID = 1L;
+
+        private int sets = 0;   // Values replaced, which modCount omits
+
+        private int mods() {
+            return this.modCount + this.sets;
+        }
+
+        public ByteArray set(int index, ByteArray element) {
+            this.sets++;
+            return super.set(index, element);
+        }
+
+        public ListIterator<ByteArray> listIterator(int index) {
+            final ListIterator<ByteArray> it = super.listIterator(index);
+            return new ListIterator<ByteArray>() {
+                public boolean hasNext() { return it.hasNext(); }
+                public ByteArray next() { return it.next(); }
+                public boolean hasPrevious() { return it.hasPrevious(); }
+                public ByteArray previous() { return it.previous(); }
+                public int nextIndex() { return it.nextIndex(); }
+                public int previousIndex() { return it.previousIndex(); }
+                public void remove() { it.remove(); }
+                public void add(ByteArray e) { it.add(e); }
+                public void set(ByteArray e) {
+                    it.set(e);
+                    ValueList.this.sets++;
+                }
+            };
+        }
     }
 
 
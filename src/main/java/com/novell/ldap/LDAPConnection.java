@@ -21,6 +21,10 @@ import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 
 import com.novell.security.sasl.*;
 import javax.security.auth.callback.CallbackHandler;
@@ -33,6 +37,7 @@ import com.novell.ldap.client.Debug;
 import com.novell.ldap.client.ReferralInfo;
 import com.novell.ldap.rfc2251.RfcBindRequest;
 import com.novell.ldap.rfc2251.RfcBindResponse;
+import com.novell.ldap.rfc2251.RfcFilter;
 
 //import com.novell.ldap.message.*;
 import com.novell.ldap.resources.ExceptionMessages;
@@ -67,6 +72,12 @@ public class LDAPConnection implements Cloneable
 
     private Connection conn = null;
 
+    // Connections kept to follow referrals, null if not cached
+    private volatile ReferralConnectionCache referralCache = null;
+
+    // Results of synchronous searches, null if not cached
+    private volatile LDAPResultCache resultCache = null;
+
     private static Object nameLock = new Object(); // protect agentNum
     private static int lConnNum = 0;  // Debug, LDAPConnection number
     private String name;             // String name for debug
@@ -307,6 +318,12 @@ public class LDAPConnection implements Cloneable
             throw new RuntimeException("Internal error, cannot create clone");
         }
         newClone.conn = conn;   // same underlying connection
+        if( referralCache != null) {
+            // A clone keeps its own referral connections
+            newClone.referralCache = new ReferralConnectionCache(
+                                        referralCache.getMaxConnections(),
+                                        referralCache.getIdleTimeout());
+        }
         if( Debug.LDAP_DEBUG) {
             Debug.trace( Debug.apiRequests, name +
             "clone()");
@@ -648,6 +665,97 @@ public class LDAPConnection implements Cloneable
     	conn.setSocketTimeOut(timeout);
     	return;
     }
+
+    /**
+     * Keeps the connections opened to follow referrals for the referrals of
+     * later requests.
+     *
+     * <p>By default a connection is opened and bound for each referral
+     * followed, and closed when the request completes.  A search of a
+     * partitioned tree may return references to many servers, each costing
+     * a connect and a bind.  With a cache, a connection to a server bound
+     * with the credentials of the LDAPAuthHandler, or anonymously, is kept
+     * after use and shared by the requests following referrals to the
+     * server.  Connections obtained from an LDAPBindHandler are not
+     * cached.</p>
+     *
+     * <p>The cached connections are closed on disconnect, or when the
+     * cache is replaced.</p>
+     *
+     * @param maxConnections The maximum number of connections kept when
+     *                       not in use, the least recently used are closed
+     *                       first.  0 to close each connection after use,
+     *                       the default.
+     *<br><br>
+     * @param idleTimeout    The number of milliseconds a connection is kept
+     *                       after its last use, 0 for no limit.
+     *
+     * @see #getReferralConnectionCacheSize()
+     */
+    public void setReferralConnectionCache( int maxConnections,
+                                            int idleTimeout)
+    {
+        if( (maxConnections < 0) || (idleTimeout < 0)) {
+            throw new IllegalArgumentException(
+                "referral connection cache size and timeout must not be " +
+                "negative");
+        }
+        ReferralConnectionCache old = referralCache;
+        referralCache = (maxConnections == 0) ? null :
+            new ReferralConnectionCache( maxConnections, idleTimeout);
+        if( old != null) {
+            old.clear();
+        }
+        return;
+    }
+
+    /**
+     * Sets the cache of the results of synchronous searches and reads made
+     * with this connection.
+     *
+     * <p>The results of a search or read found in the cache are returned
+     * without a request to the server.  The add, modify, delete and rename
+     * requests made with this connection remove the results they change
+     * from the cache.  The cache is shared by clones of the connection, and
+     * may be set on other connections to the same directory.</p>
+     *
+     * @param cache The result cache, or null to not cache results, the
+     *              default.
+     *
+     * @see #getResultCache()
+     * @see LDAPResultCache
+     */
+    public void setResultCache( LDAPResultCache cache)
+    {
+        resultCache = cache;
+        return;
+    }
+
+    /**
+     * Returns the cache of the results of synchronous searches and reads.
+     *
+     * @return The result cache, or null if results are not cached.
+     *
+     * @see #setResultCache(LDAPResultCache)
+     */
+    public LDAPResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+    /**
+     * Returns the maximum number of connections kept to follow referrals.
+     *
+     * @return The maximum number of cached referral connections, 0 if they
+     *         are not cached.
+     *
+     * @see #setReferralConnectionCache(int, int)
+     */
+    public int getReferralConnectionCacheSize()
+    {
+        ReferralConnectionCache cache = referralCache;
+        return (cache == null) ? 0 : cache.getMaxConnections();
+    }
 	 
     /**
      * Sets the constraints that apply to all operations performed through
@@ -728,6 +836,68 @@ public class LDAPConnection implements Cloneable
         return;
     }
 
+    /**
+     * Establishes the ThreadFactory that creates the threads used
+     * internally by the API.
+     *
+     * <p>The factory creates the reader thread of each connection and the
+     * threads calling unsolicited notification listeners.  The event
+     * sources in com.novell.ldap.events generate their events in threads
+     * of their own, LDAPEventSource.EventsGenerator being a Thread.
+     * Threads already running are not affected.  Reader and listener
+     * threads are made daemon threads if the factory does not create them
+     * as such.</p>
+     *
+     * <p>On a JVM supporting virtual threads, an application holding many
+     * connections may use a thread per connection without the cost of a
+     * platform thread per connection:
+     * <pre><code>
+     *   ThreadFactory virtual = LDAPConnection.getVirtualThreadFactory();
+     *   if (virtual != null) {
+     *       LDAPConnection.setThreadFactory(virtual);
+     *   }
+     * </code></pre></p>
+     *
+     * @param factory  The factory creating the threads, or null to create
+     *                 platform threads, the default.
+     *
+     * @see #getThreadFactory()
+     * @see #getVirtualThreadFactory()
+     */
+    public static void setThreadFactory( ThreadFactory factory)
+    {
+        Connection.setThreadFactory( factory);
+        return;
+    }
+
+    /**
+     * Returns the ThreadFactory that creates the threads used internally
+     * by the API.
+     *
+     * @return The factory set by setThreadFactory, or a factory creating
+     *         platform threads if none is set.
+     *
+     * @see #setThreadFactory( ThreadFactory)
+     */
+    public static ThreadFactory getThreadFactory()
+    {
+        return Connection.getThreadFactory();
+    }
+
+    /**
+     * Returns a ThreadFactory creating virtual threads, if the JVM supports
+     * them.
+     *
+     * @return A factory creating virtual threads, or null if the JVM does
+     *         not support virtual threads.
+     *
+     * @see #setThreadFactory( ThreadFactory)
+     */
+    public static ThreadFactory getVirtualThreadFactory()
+    {
+        return Connection.getVirtualThreadFactory();
+    }
+
     /**
      * Registers an object to be notified on arrival of an unsolicited
      * message from a server.
@@ -2160,6 +2330,7 @@ public class LDAPConnection implements Cloneable
                 // This may return a different conn object
                 // Disassociate this clone with the underlying connection.
                 conn = conn.destroyClone( true);
+                conn.setServer( null);
                 conn.connect( address, specifiedPort);
                 break;
             }catch (LDAPException LE){
@@ -2353,6 +2524,10 @@ public class LDAPConnection implements Cloneable
             Debug.trace( Debug.apiRequests, name +
             (how?"disconnect()":"finalize()"));
         }
+        ReferralConnectionCache cache = referralCache;
+        if( cache != null) {
+            cache.clear();
+        }
         conn = conn.destroyClone(how);
         return;
     }
@@ -3409,12 +3584,104 @@ public class LDAPConnection implements Cloneable
                                     LDAPSearchConstraints cons)
         throws LDAPException
     {
-        LDAPSearchQueue queue =
-            search(base, scope, filter, attrs, typesOnly, null, cons);
+        return searchResults(base, scope, filter, null, attrs, typesOnly, cons);
+    }
+
+    /**
+     *
+     * Synchronously performs the search specified by the parameters, with
+     * a filter template bound to values.
+     *
+     * <p>The template is parsed and mostly encoded once, searching with it
+     * avoids parsing a string filter for each search.</p>
+     *
+     *  @param base           The base distinguished name to search from.
+     *<br><br>
+     *  @param scope          The scope of the entries to search. The following
+     *                        are the valid options:
+     *<ul>
+     *   <li>SCOPE_BASE - searches only the base DN
+     *
+     *   <li>SCOPE_ONE - searches only entries under the base DN
+     *
+     *   <li>SCOPE_SUB - searches the base DN and all entries
+     *                          within its subtree
+     *</ul><br><br>
+     *  @param filter         The template of the search filter.
+     *<br><br>
+     *  @param values         The values of the parameters of the template.
+     *<br><br>
+     *  @param attrs          The names of attributes to retrieve.
+     *<br><br>
+     *  @param typesOnly      If true, returns the names but not the values of
+     *                        the attributes found.  If false, returns the
+     *                        names and values for attributes found.
+     *<br><br>
+     *  @param cons           The constraints specific to the search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     * message and an LDAP error code.
+     *
+     * @see LDAPFilterTemplate
+     */
+    public LDAPSearchResults search(String base,
+                                    int scope,
+                                    LDAPFilterTemplate filter,
+                                    String[] values,
+                                    String[] attrs,
+                                    boolean typesOnly,
+                                    LDAPSearchConstraints cons)
+        throws LDAPException
+    {
+        return searchResults(base, scope, null, filter.bind(values),
+                             attrs, typesOnly, cons);
+    }
+
+    /*
+     * Performs a synchronous search with a string filter, or with a filter
+     * bound from a template, answering it from the result cache if set.
+     */
+    private LDAPSearchResults searchResults(String base,
+                                            int scope,
+                                            String filter,
+                                            RfcFilter bound,
+                                            String[] attrs,
+                                            boolean typesOnly,
+                                            LDAPSearchConstraints cons)
+        throws LDAPException
+    {
+        LDAPResultCache cache = resultCache;
+        String key = null;
+        long generation = 0;
+        if( cache != null) {
+            // The string of a bound filter is its string filter
+            key = LDAPResultCache.getKey( this, base, scope,
+                    (bound == null) ? filter : bound.toString(), attrs,
+                    typesOnly, (cons == null) ? defSearchCons : cons);
+            if( key != null) {
+                LDAPEntry[] entries = cache.get( key);
+                if( entries != null) {
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.apiRequests, name +
+                            "search(" + base + "), results cached");
+                    }
+                    return new LDAPSearchResults( this, entries,
+                            (cons == null) ? defSearchCons : cons);
+                }
+                generation = cache.getGeneration();
+            }
+        }
+        LDAPSearchQueue queue = (bound == null) ?
+            search(base, scope, filter, attrs, typesOnly, null, cons) :
+            sendSearch(base, scope, bound, attrs, typesOnly, null, cons);
 
         if( cons == null )
             cons = defSearchCons;
-        return new LDAPSearchResults(this, queue, cons);
+        LDAPSearchResults results = new LDAPSearchResults(this, queue, cons);
+        if( key != null) {
+            results.cacheResults( cache, key, base, scope, generation);
+        }
+        return results;
     }
 
     /**
@@ -3510,14 +3777,83 @@ public class LDAPConnection implements Cloneable
             Debug.trace( Debug.apiRequests, name +
             "search(\"" + base + "\"," + scope + ",\"" + filter + "\")");
         }
+        return sendSearch(base, scope, new RfcFilter(filter), attrs, typesOnly,
+                          queue, cons);
+    }
+
+    /**
+     * Asynchronously performs the search specified by the parameters, with
+     * a filter template bound to values.
+     *
+     *  @param base           The base distinguished name to search from.
+     *<br><br>
+     *  @param scope          The scope of the entries to search. The following
+     *                        are the valid options:
+     *<ul>
+     *   <li>SCOPE_BASE - searches only the base DN
+     *
+     *   <li>SCOPE_ONE - searches only entries under the base DN
+     *
+     *   <li>SCOPE_SUB - searches the base DN and all entries
+     *                           within its subtree
+     *</ul><br><br>
+     *  @param filter         The template of the search filter.
+     *<br><br>
+     *  @param values         The values of the parameters of the template.
+     *<br><br>
+     *  @param attrs          The names of attributes to retrieve.
+     *<br><br>
+     *  @param typesOnly      If true, returns the names but not the values of
+     *                        the attributes found.  If false, returns the
+     *                        names and values for attributes found.
+     * <br><br>
+     *  @param queue          The queue for messages returned from a server in
+     *                        response to this request. If it is null, a
+     *                        queue object is created internally.
+     *<br><br>
+     *  @param cons           The constraints specific to the search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     * message and an LDAP error code.
+     *
+     * @see LDAPFilterTemplate
+     */
+    public LDAPSearchQueue search(String base,
+                                  int scope,
+                                  LDAPFilterTemplate filter,
+                                  String[] values,
+                                  String[] attrs,
+                                  boolean typesOnly,
+                                  LDAPSearchQueue queue,
+                                  LDAPSearchConstraints cons)
+        throws LDAPException
+    {
+        return sendSearch(base, scope, filter.bind(values), attrs, typesOnly,
+                          queue, cons);
+    }
+
+    /*
+     * Sends a search request with a parsed or bound filter.
+     */
+    private LDAPSearchQueue sendSearch(String base,
+                                       int scope,
+                                       RfcFilter filter,
+                                       String[] attrs,
+                                       boolean typesOnly,
+                                       LDAPSearchQueue queue,
+                                       LDAPSearchConstraints cons)
+        throws LDAPException
+    {
         if(cons == null)
             cons = defSearchCons;
 
-        LDAPMessage msg = new LDAPSearchRequest( base, scope, filter,
+        LDAPSearchRequest msg = new LDAPSearchRequest( base, scope, filter,
                                                  attrs, cons.getDereference(),
                                                  cons.getMaxResults(),
                                                  cons.getServerTimeLimit(),
                                                  typesOnly, cons.getControls());
+        msg.setLazyEntryDecoding( cons.isLazyEntryDecoding());
+        msg.setMaxQueuedResults( cons.getMaxQueuedResults());
         MessageAgent agent;
         LDAPSearchQueue myqueue = queue;
         if(myqueue == null) {
@@ -3651,6 +3987,9 @@ public class LDAPConnection implements Cloneable
      * using sendRequest are asynchronous, automatic referral following
      * does not apply to these requests.</p>
      *
+     * <p>The entries of a search request sent with LDAPSearchConstraints
+     * are decoded and queued as set by the constraints.</p>
+     *
      * @param request The LDAP request to send to the directory server.
      * @param queue    The queue for messages returned from a server in
      *                 response to this request. If it is null, a
@@ -3699,6 +4038,19 @@ public class LDAPConnection implements Cloneable
             }
         }
 
+        if( (request instanceof LDAPSearchRequest) &&
+                (cons instanceof LDAPSearchConstraints)) {
+            LDAPSearchConstraints scons = (LDAPSearchConstraints)cons;
+            ((LDAPSearchRequest)request).setLazyEntryDecoding(
+                                                scons.isLazyEntryDecoding());
+            ((LDAPSearchRequest)request).setMaxQueuedResults(
+                                                scons.getMaxQueuedResults());
+        }
+
+        LDAPResultCache cache = resultCache;
+        if( cache != null) {
+            cache.invalidate( request);
+        }
         try {
             agent.sendMessage( conn, request, cons.getTimeLimit(), myqueue, null);
         } catch(LDAPException lex) {
@@ -3707,6 +4059,264 @@ public class LDAPConnection implements Cloneable
         return myqueue;
     }
 
+    //*************************************************************************
+    // Asynchronous operations completing futures
+    //*************************************************************************
+
+    /**
+     * Asynchronously adds an entry to the directory, returning a future for
+     * the result.
+     *
+     * <p>The future is completed with the LDAPResponse when the request
+     * succeeds, or exceptionally with an LDAPException, as thrown by
+     * LDAPResponse.chkResultCode, when it fails or cannot be sent.
+     * Cancelling the future abandons the request.  Dependent actions that are
+     * not async run on the connection's reader thread, and must not
+     * block.</p>
+     *
+     *  @param entry  LDAPEntry object specifying the distinguished name and
+     *                attributes of the new entry.
+     *<br><br>
+     *  @param cons   Constraints specific to the operation, or null to use
+     *                the default constraints.
+     *
+     * @return A future for the result of the request.
+     */
+    public CompletableFuture<LDAPResponse> addAsync(LDAPEntry entry,
+                                                   LDAPConstraints cons)
+    {
+        ResponseFuture<LDAPResponse> queue =
+                new ResponseFuture<LDAPResponse>(this, Function.identity());
+        try {
+            add(entry, queue, cons);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Asynchronously compares an attribute value with one in the directory,
+     * returning a future for the result.
+     *
+     * <p>The future is completed with true if the entry has the value,
+     * false if it does not, or exceptionally with an LDAPException when the
+     * request fails or cannot be sent.  Cancelling the future abandons the
+     * request.  Dependent actions that are not async run on the
+     * connection's reader thread, and must not block.</p>
+     *
+     *  @param dn     The distinguished name of the entry containing an
+     *                attribute to compare.
+     *<br><br>
+     *  @param attr   An attribute to compare.
+     *<br><br>
+     *  @param cons   Constraints specific to the operation, or null to use
+     *                the default constraints.
+     *
+     * @return A future for the result of the comparison.
+     */
+    public CompletableFuture<Boolean> compareAsync(String dn,
+                                                   LDAPAttribute attr,
+                                                   LDAPConstraints cons)
+    {
+        ResponseFuture<Boolean> queue = new ResponseFuture<Boolean>(this,
+                response -> Boolean.valueOf(
+                    response.getResultCode() == LDAPException.COMPARE_TRUE));
+        try {
+            compare(dn, attr, queue, cons);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Asynchronously deletes an entry from the directory, returning a future
+     * for the result.
+     *
+     * <p>The future is completed with the LDAPResponse when the request
+     * succeeds, or exceptionally with an LDAPException when it fails or
+     * cannot be sent.  Cancelling the future abandons the request.
+     * Dependent actions that are not async run on the connection's reader
+     * thread, and must not block.</p>
+     *
+     *  @param dn     The distinguished name of the entry to delete.
+     *<br><br>
+     *  @param cons   Constraints specific to the operation, or null to use
+     *                the default constraints.
+     *
+     * @return A future for the result of the request.
+     */
+    public CompletableFuture<LDAPResponse> deleteAsync(String dn,
+                                                      LDAPConstraints cons)
+    {
+        ResponseFuture<LDAPResponse> queue =
+                new ResponseFuture<LDAPResponse>(this, Function.identity());
+        try {
+            delete(dn, queue, cons);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Asynchronously performs an extended operation, returning a future for
+     * the extended response.
+     *
+     * <p>The future is completed with the LDAPExtendedResponse when the
+     * request succeeds, or exceptionally with an LDAPException when it
+     * fails or cannot be sent.  Intermediate responses are discarded.
+     * Cancelling the future abandons the request.  Dependent actions that
+     * are not async run on the connection's reader thread, and must not
+     * block.</p>
+     *
+     *  @param op     The object which contains the OID and data for the
+     *                extended operation.
+     *<br><br>
+     *  @param cons   Constraints specific to the operation, or null to use
+     *                the default constraints.
+     *
+     * @return A future for the extended response.
+     */
+    public CompletableFuture<LDAPExtendedResponse> extendedOperationAsync(
+                                                   LDAPExtendedOperation op,
+                                                   LDAPConstraints cons)
+    {
+        ResponseFuture<LDAPExtendedResponse> queue =
+                new ResponseFuture<LDAPExtendedResponse>(this,
+                    response -> (LDAPExtendedResponse)response);
+        try {
+            extendedOperation(op, cons, queue);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Asynchronously makes changes to an existing entry in the directory,
+     * returning a future for the result.
+     *
+     * <p>The future is completed with the LDAPResponse when the request
+     * succeeds, or exceptionally with an LDAPException when it fails or
+     * cannot be sent.  Cancelling the future abandons the request.
+     * Dependent actions that are not async run on the connection's reader
+     * thread, and must not block.</p>
+     *
+     *  @param dn     The distinguished name of the entry to modify.
+     *<br><br>
+     *  @param mods   The changes to be made to the entry.
+     *<br><br>
+     *  @param cons   Constraints specific to the operation, or null to use
+     *                the default constraints.
+     *
+     * @return A future for the result of the request.
+     */
+    public CompletableFuture<LDAPResponse> modifyAsync(String dn,
+                                                      LDAPModification[] mods,
+                                                      LDAPConstraints cons)
+    {
+        ResponseFuture<LDAPResponse> queue =
+                new ResponseFuture<LDAPResponse>(this, Function.identity());
+        try {
+            modify(dn, mods, queue, cons);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Asynchronously renames an existing entry in the directory, possibly
+     * repositioning it in the directory tree, returning a future for the
+     * result.
+     *
+     * <p>The future is completed with the LDAPResponse when the request
+     * succeeds, or exceptionally with an LDAPException when it fails or
+     * cannot be sent.  Cancelling the future abandons the request.
+     * Dependent actions that are not async run on the connection's reader
+     * thread, and must not block.</p>
+     *
+     *  @param dn           The current distinguished name of the entry.
+     *<br><br>
+     *  @param newRdn       The new relative distinguished name for the entry.
+     *<br><br>
+     *  @param newParentdn  The distinguished name of an existing entry which
+     *                      is to be the new parent of the entry, or null to
+     *                      leave the entry under its current parent.
+     *<br><br>
+     *  @param deleteOldRdn If true, the old name is not retained as an
+     *                      attribute value. If false, the old name is
+     *                      retained as an attribute value.
+     *<br><br>
+     *  @param cons         Constraints specific to the operation, or null to
+     *                      use the default constraints.
+     *
+     * @return A future for the result of the request.
+     */
+    public CompletableFuture<LDAPResponse> renameAsync(String dn,
+                                                      String newRdn,
+                                                      String newParentdn,
+                                                      boolean deleteOldRdn,
+                                                      LDAPConstraints cons)
+    {
+        ResponseFuture<LDAPResponse> queue =
+                new ResponseFuture<LDAPResponse>(this, Function.identity());
+        try {
+            rename(dn, newRdn, newParentdn, deleteOldRdn, queue, cons);
+        } catch( LDAPException ex) {
+            queue.failed(ex);
+        }
+        return queue.getFuture();
+    }
+
+    /**
+     * Returns a publisher of the results of a search.
+     *
+     * <p>The search is sent when a subscriber subscribes, a publisher
+     * accepts one subscriber.  Each search result entry, reference and
+     * intermediate response is published to the subscriber as it is
+     * received, up to the number of results requested by the subscriber.
+     * Results not yet requested are held by the publisher.  The subscriber
+     * is completed by a successful search result done, or receives the
+     * LDAPException of the search result done or of a local error.
+     * Cancelling the subscription abandons the search.</p>
+     *
+     * <p>The subscriber is called on the connection's reader thread, or on
+     * the thread requesting more results, and must not block.  Calls are
+     * never concurrent.  Referrals are not followed, search result
+     * references are published as LDAPSearchResultReference objects.</p>
+     *
+     *  @param base           The base distinguished name to search from.
+     *<br><br>
+     *  @param scope          The scope of the entries to search.
+     *<br><br>
+     *  @param filter         The search filter specifying the search criteria.
+     *<br><br>
+     *  @param attrs          The names of attributes to retrieve.
+     *<br><br>
+     *  @param typesOnly      If true, returns the names but not the values of
+     *                        the attributes found.  If false, returns the
+     *                        names and values for attributes found.
+     *<br><br>
+     *  @param cons           The constraints specific to the search, or null
+     *                        to use the default constraints.
+     *
+     * @return A publisher of LDAPSearchResult, LDAPSearchResultReference and
+     *         LDAPIntermediateResponse messages.
+     */
+    public Flow.Publisher<LDAPMessage> searchAsync(String base,
+                                                  int scope,
+                                                  String filter,
+                                                  String[] attrs,
+                                                  boolean typesOnly,
+                                                  LDAPSearchConstraints cons)
+    {
+        return new SearchPublisher(this, base, scope, filter, attrs,
+                                   typesOnly, cons);
+    }
+
     //*************************************************************************
     // helper methods
     //*************************************************************************
@@ -3740,6 +4350,12 @@ public class LDAPConnection implements Cloneable
             agent = queue.getMessageAgent();
         }
 
+        LDAPResultCache cache = resultCache;
+        if( cache != null) {
+            // Results the request changes may be read again before the
+            // server completes it, they are removed again by chkResultCode
+            cache.invalidate( msg);
+        }
         agent.sendMessage( conn, msg, timeout, queue, bindProps);
         return queue;
     }
@@ -3789,20 +4405,19 @@ public class LDAPConnection implements Cloneable
         int i = 0;
         // Check if we use LDAPRebind to get authentication credentials
         if( (rh == null) ||      (rh instanceof LDAPAuthHandler)) {
+            ReferralConnectionCache cache = referralCache;
             for( i = 0; i < referrals.length; i++) {
                 // dn, pw are null in the default case (anonymous bind)
                 String dn = null;
                 byte[] pw = null;
+                String key = null;
                 try {
                     if( Debug.LDAP_DEBUG) {
                         Debug.trace( Debug.referrals,   name +
                                                     "getReferralConnection: " +
                                                     "url=" + referrals[i]);
                     }
-                    rconn = new LDAPConnection( conn.getSocketFactory());
-                    rconn.setConstraints( defSearchCons);
                     LDAPUrl url = new LDAPUrl(referrals[i]);
-                    rconn.connect(url.getHost(),url.getPort());
                     if( rh != null) {
                         if( rh instanceof LDAPAuthHandler) {
                             // Get application supplied dn and pw
@@ -3813,27 +4428,41 @@ public class LDAPConnection implements Cloneable
                             pw = ap.getPassword();
                         }
                     }
-                    rconn.bind( LDAP_V3, dn, pw);
+                    if( cache != null) {
+                        key = ReferralConnectionCache.getKey(
+                                            url.getHost(), url.getPort(), dn);
+                        rconn = cache.acquire( key, pw);
+                    }
+                    if( rconn == null) {
+                        rconn = new LDAPConnection( conn.getSocketFactory());
+                        rconn.setConstraints( defSearchCons);
+                        rconn.connect(url.getHost(),url.getPort());
+                        rconn.bind( LDAP_V3, dn, pw);
+                        if( key != null) {
+                            cache.connected( key, rconn);
+                        }
+                    }
                     ex = null;
                     refInfo = new ReferralInfo(rconn, referrals, url);
-                    // Indicate this connection created to follow referral
-                    rconn.getConnection().setActiveReferral( refInfo);
                     break;
                 } catch( Throwable lex) {
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.referrals, name +
+                            "getReferralConnection, exception " +
+                            "binding for referral" + lex.toString());
+                    }
+                    if( key != null) {
+                        cache.failed( key);
+                    }
                     if( rconn != null) {
                         try {
-                            if( Debug.LDAP_DEBUG) {
-                                Debug.trace( Debug.referrals, name +
-                                    "getReferralConnection, exception " +
-                                    "binding for referral" + lex.toString());
-                            }
                             rconn.disconnect();
-                            rconn = null;
-                            ex = lex;
                         } catch( LDAPException e) {
                             ; // ignore
                         }
+                        rconn = null;
                     }
+                    ex = lex;
                 }
 
             }
@@ -3944,13 +4573,17 @@ public class LDAPConnection implements Cloneable
                                 LDAPResponse response)
                 throws LDAPException
      {
+        LDAPResultCache cache = resultCache;
+        if( cache != null) {
+            cache.invalidate( response.getRequestingMessage());
+        }
         if( (response.getResultCode() == LDAPException.REFERRAL) &&
                                     cons.getReferralFollowing()) {
             // Perform referral following and return
-            ArrayList refConn = null;
+            ArrayList<LDAPConnection> refConn = new ArrayList<LDAPConnection>();
             try {
                 chaseReferral( queue, cons, response,
-                        response.getReferrals(), 0, false, null );
+                        response.getReferrals(), 0, false, refConn );
             } finally {
                 releaseReferralConnections( refConn);
             }
@@ -4074,20 +4707,21 @@ public class LDAPConnection implements Cloneable
                 } else {
                     agent=queue.getMessageAgent();
                 }
+                // The referral is kept with the request, as the referral
+                // connection may be shared with other requests
                 agent.sendMessage( rconn.getConnection(), newMsg,
-                        defSearchCons.getTimeLimit(), queue, null);
+                        defSearchCons.getTimeLimit(), queue, null, rinfo);
             } catch(InterThreadException ex) {
                 // Error ending request to referred server
                 LDAPReferralException rex = new LDAPReferralException(
                      ExceptionMessages.REFERRAL_SEND,
                      LDAPException.CONNECT_ERROR, null, ex);
                 rex.setReferrals( initialReferrals);
-                ReferralInfo ref=rconn.getConnection().getActiveReferral();
-                rex.setFailedReferral( ref.getReferralUrl().toString());
+                rex.setFailedReferral( rinfo.getReferralUrl().toString());
                 throw rex;
             }
 
-            if( initialReferrals == null) {
+            if( origMsg.getType() != LDAPMessage.SEARCH_REQUEST) {
                 // For operation results, when all responses are complete,
                 // the stack unwinds back to the original and returns
                 // to the application.
@@ -4195,11 +4829,16 @@ public class LDAPConnection implements Cloneable
             Debug.trace( Debug.referrals, name +
                 "Release referal connections");
         }
+        ReferralConnectionCache cache = referralCache;
         // Release referral connections
         for( int i = list.size()-1; i >= 0; i--) {
             LDAPConnection rconn = null;
             try {
                 rconn = (LDAPConnection)list.remove(i);
+                if( (cache != null) && cache.release( rconn)) {
+                    // Kept by the referral connection cache
+                    continue;
+                }
                 if( Debug.LDAP_DEBUG) {
                     Debug.trace( Debug.referrals, "\t" + name +
                         "Disconnecting " +
@@ -0,0 +1,475 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import com.novell.ldap.asn1.ASN1Encoded;
+import com.novell.ldap.asn1.LBEREncoder;
+import com.novell.ldap.resources.ExceptionMessages;
+import com.novell.ldap.rfc2251.RfcFilter;
+
+/**
+ * A search filter parsed once, with parameters bound to values for each
+ * search.
+ *
+ * <p>A template is a filter string in which a <code>?</code> stands for
+ * an assertion value, or a substring of a substring filter, given when the
+ * template is bound:
+ * <pre><code>
+ *   LDAPFilterTemplate byUid =
+ *       new LDAPFilterTemplate("(&amp;(objectClass=user)(uid=?))");
+ *   ...
+ *   LDAPSearchResults results = conn.search("o=acme",
+ *       LDAPConnection.SCOPE_SUB, byUid, new String[] { uid },
+ *       attrs, false, null);
+ * </code></pre>
+ * A <code>?</code> that is part of a value is written <code>\3f</code>.
+ * Values are bound as they are, their special characters need no
+ * escaping and cannot change the structure of the filter.  A substring
+ * cannot be empty, so an empty value is only accepted by a parameter that
+ * is a whole assertion value.</p>
+ *
+ * <p>The template is parsed and encoded once when it is constructed.  The
+ * parts of the filter without parameters are kept encoded, binding only
+ * encodes the values and the lengths of the elements containing them.  A
+ * template is immutable and may be bound by any number of threads at
+ * once.</p>
+ *
+ * @see LDAPConnection#search(String, int, LDAPFilterTemplate, String[],
+ *                            String[], boolean, LDAPSearchConstraints)
+ */
+public class LDAPFilterTemplate
+{
+    private final String template;
+    private final String[] text;        // Template text around the parameters
+    private final Element root;         // Encoded filter
+    private final boolean[] substrings; // Parameters that are substrings
+
+    /*
+     * An element of the encoded filter.
+     */
+    private static final class Element
+    {
+        private byte[] encoding = null;     // Encoding, if without parameter
+        private byte[] identifier = null;   // Identifier octets otherwise
+        private Element[] elements = null;  // Elements of a structured element
+        private int parameter = -1;         // Parameter of a value element
+    }
+
+    /**
+     * Parses a filter template.
+     *
+     * @param template A string filter, with <code>?</code> in place of the
+     *                 values given when binding it.
+     *
+     * @exception LDAPException The template is not a valid filter, or a
+     *            parameter is only part of a value.
+     */
+    public LDAPFilterTemplate(String template)
+        throws LDAPException
+    {
+        this.template = template;
+        ArrayList<String> text = new ArrayList<String>();
+        StringBuffer marked = new StringBuffer( template.length() + 16);
+        int start = 0;
+        for( int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if( c == '\\') {
+                // Escaped character, not a parameter
+                i++;
+            } else
+            if( c == '?') {
+                // Parse the parameter as a value that cannot be in a filter
+                marked.append( template.substring( start, i));
+                marked.append( "\\00\\3f").append( text.size()).append( "\\00");
+                text.add( template.substring( start, i));
+                start = i + 1;
+            }
+        }
+        marked.append( template.substring( start));
+        text.add( template.substring( start));
+        this.text = text.toArray( new String[text.size()]);
+
+        byte[] ber = new LBEREncoder().encode(
+                            new RfcFilter( marked.toString()));
+        boolean[] found = new boolean[this.text.length - 1];
+        substrings = new boolean[found.length];
+        try {
+            root = compile( ber, 0, ber.length, found, substrings, false);
+        } catch( IOException ex) {
+            throw new LDAPLocalException( ExceptionMessages.ENCODING_ERROR,
+                                          LDAPException.ENCODING_ERROR, ex);
+        }
+        for( int i = 0; i < found.length; i++) {
+            if( ! found[i]) {
+                throw new LDAPLocalException(
+                    ExceptionMessages.FILTER_PARAMETER,
+                    new Object[] { template },
+                    LDAPException.FILTER_ERROR);
+            }
+        }
+        return;
+    }
+
+    /**
+     * Returns the number of parameters of the template.
+     *
+     * @return The number of values to bind.
+     */
+    public int getParameterCount()
+    {
+        return text.length - 1;
+    }
+
+    /**
+     * Returns the string filter with the values bound to the parameters,
+     * escaped as needed.
+     *
+     * @param values The values of the parameters, in the order of the
+     *               parameters in the template, or null if it has none.
+     *
+     * @return The string filter.
+     */
+    public String toString( String[] values)
+    {
+        values = checkValues( values);
+        StringBuffer filter = new StringBuffer( template.length() + 32);
+        filter.append( text[0]);
+        for( int i = 0; i < values.length; i++) {
+            escape( values[i], filter);
+            filter.append( text[i + 1]);
+        }
+        return filter.toString();
+    }
+
+    /**
+     * Returns the template string.
+     *
+     * @return The template the object was constructed with.
+     */
+    public String toString()
+    {
+        return template;
+    }
+
+    /**
+     * Binds values to the parameters and returns the filter, for use in an
+     * LDAPSearchRequest.
+     *
+     * @param values The values of the parameters, in the order of the
+     *               parameters in the template, or null if it has none.
+     *
+     * @return The filter.
+     */
+    public RfcFilter bind( String[] values)
+    {
+        values = checkValues( values);
+        byte[][] octets = new byte[values.length][];
+        try {
+            for( int i = 0; i < values.length; i++) {
+                octets[i] = values[i].getBytes( "UTF-8");
+            }
+        } catch( UnsupportedEncodingException ex) {
+            throw new RuntimeException(
+                    "Default JVM does not support UTF-8 encoding" + ex);
+        }
+        byte[] ber = new byte[length( root, octets)];
+        write( root, octets, ber, 0);
+        try {
+            return new BoundFilter( this, values,
+                                    new ASN1Encoded( ber, 0, ber.length));
+        } catch( IOException ex) {
+            // The encoding just written is complete
+            throw new RuntimeException( ex.toString());
+        }
+    }
+
+    /*
+     * Checks there is a value for each parameter, returns the values, an
+     * empty array for null.
+     */
+    private String[] checkValues( String[] values)
+    {
+        if( values == null) {
+            values = new String[0];
+        }
+        if( values.length != text.length - 1) {
+            throw new IllegalArgumentException( "Filter template \"" +
+                template + "\" needs " + (text.length - 1) + " values");
+        }
+        for( int i = 0; i < text.length - 1; i++) {
+            if( values[i] == null) {
+                throw new IllegalArgumentException(
+                    "Filter template value " + i + " is null");
+            }
+            if( substrings[i] && (values[i].length() == 0)) {
+                // Neither encoded nor written as a string filter the same
+                throw new IllegalArgumentException(
+                    "Filter template value " + i + " is an empty substring");
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Returns the element encoded at offset, with the parameters found and
+     * those that are substrings of a substrings filter.
+     */
+    private static Element compile( byte[] ber,
+                                    int offset,
+                                    int limit,
+                                    boolean[] found,
+                                    boolean[] substrings,
+                                    boolean inSubstrings)
+        throws IOException
+    {
+        int content = ASN1Encoded.contentOffset( ber, offset, limit);
+        int end = ASN1Encoded.end( ber, offset, limit);
+        Element element = new Element();
+        if( (ber[offset] & 0x20) != 0) {
+            // Structured, keep it encoded unless it holds a parameter
+            ArrayList<Element> elements = new ArrayList<Element>();
+            boolean parameters = false;
+            // substrings [4] SubstringFilter
+            inSubstrings |= ((ber[offset] & 0xFF) == 0xA4);
+            for( int i = content; i < end; i = ASN1Encoded.end( ber, i, end)) {
+                Element e = compile( ber, i, end, found, substrings,
+                                     inSubstrings);
+                parameters |= (e.encoding == null);
+                elements.add( e);
+            }
+            if( parameters) {
+                element.identifier = identifier( ber, offset);
+                element.elements = elements.toArray(
+                                            new Element[elements.size()]);
+                return element;
+            }
+        } else {
+            int parameter = parameter( ber, content, end, found.length);
+            if( parameter >= 0) {
+                found[parameter] = true;
+                substrings[parameter] = inSubstrings;
+                element.identifier = identifier( ber, offset);
+                element.parameter = parameter;
+                return element;
+            }
+        }
+        element.encoding = new byte[end - offset];
+        System.arraycopy( ber, offset, element.encoding, 0, end - offset);
+        return element;
+    }
+
+    /*
+     * Returns the parameter whose marker is the value, or -1 if the value
+     * is not a marker.
+     */
+    private static int parameter( byte[] ber, int start, int end, int count)
+    {
+        if( (end - start < 4) || (ber[start] != 0) || (ber[start + 1] != '?') ||
+                (ber[end - 1] != 0)) {
+            return -1;
+        }
+        int parameter = 0;
+        for( int i = start + 2; i < end - 1; i++) {
+            if( (ber[i] < '0') || (ber[i] > '9')) {
+                return -1;
+            }
+            parameter = parameter * 10 + (ber[i] - '0');
+        }
+        return (parameter < count) ? parameter : -1;
+    }
+
+    /*
+     * Returns the identifier octets of the element encoded at offset.
+     */
+    private static byte[] identifier( byte[] ber, int offset)
+    {
+        int i = offset;
+        if( (ber[i++] & 0x1F) == 0x1F) {
+            // multiple octet tag number
+            while( (ber[i++] & 0x80) != 0);
+        }
+        byte[] identifier = new byte[i - offset];
+        System.arraycopy( ber, offset, identifier, 0, identifier.length);
+        return identifier;
+    }
+
+    /*
+     * Returns the encoded length of an element with the values bound.
+     */
+    private static int length( Element element, byte[][] values)
+    {
+        if( element.encoding != null) {
+            return element.encoding.length;
+        }
+        int length = contentLength( element, values);
+        return element.identifier.length + lengthLength( length) + length;
+    }
+
+    private static int contentLength( Element element, byte[][] values)
+    {
+        if( element.elements == null) {
+            return values[element.parameter].length;
+        }
+        int length = 0;
+        for( int i = 0; i < element.elements.length; i++) {
+            length += length( element.elements[i], values);
+        }
+        return length;
+    }
+
+    private static int lengthLength( int length)
+    {
+        if( length < 0x80) {
+            return 1;
+        }
+        int octets = 1;
+        while( (length >>>= 8) != 0) {
+            octets++;
+        }
+        return octets + 1;
+    }
+
+    /*
+     * Writes an element with the values bound, returns the offset
+     * following it.
+     */
+    private static int write( Element element,
+                              byte[][] values,
+                              byte[] ber,
+                              int pos)
+    {
+        if( element.encoding != null) {
+            System.arraycopy( element.encoding, 0, ber, pos,
+                              element.encoding.length);
+            return pos + element.encoding.length;
+        }
+        System.arraycopy( element.identifier, 0, ber, pos,
+                          element.identifier.length);
+        pos += element.identifier.length;
+        int length = contentLength( element, values);
+        if( length < 0x80) {
+            ber[pos++] = (byte)length;
+        } else {
+            int octets = lengthLength( length) - 1;
+            ber[pos++] = (byte)(0x80 | octets);
+            for( int i = octets - 1; i >= 0; i--) {
+                ber[pos++] = (byte)(length >> (i * 8));
+            }
+        }
+        if( element.elements == null) {
+            byte[] value = values[element.parameter];
+            System.arraycopy( value, 0, ber, pos, value.length);
+            return pos + value.length;
+        }
+        for( int i = 0; i < element.elements.length; i++) {
+            pos = write( element.elements[i], values, ber, pos);
+        }
+        return pos;
+    }
+
+    /*
+     * Appends a value to a string filter, escaping the characters with a
+     * meaning in filters.
+     */
+    private static void escape( String value, StringBuffer filter)
+    {
+        for( int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch( c) {
+                case '*':
+                    filter.append( "\\2a");
+                    break;
+                case '(':
+                    filter.append( "\\28");
+                    break;
+                case ')':
+                    filter.append( "\\29");
+                    break;
+                case '\\':
+                    filter.append( "\\5c");
+                    break;
+                case '\0':
+                    filter.append( "\\00");
+                    break;
+                default:
+                    filter.append( c);
+                    break;
+            }
+        }
+        return;
+    }
+
+    /*
+     * A filter bound from a template.  It is encoded from its template, and
+     * only parsed if its components are needed.  It is serialized as the
+     * parsed filter, since the template is not serializable.
+     */
+    private static final class BoundFilter extends RfcFilter
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final LDAPFilterTemplate template;
+        private final String[] values;
+        private RfcFilter parsed = null;
+
+        private BoundFilter( LDAPFilterTemplate template,
+                             String[] values,
+                             ASN1Encoded encoding)
+        {
+            super();
+            this.template = template;
+            this.values = values.clone();
+            setChoiceValue( encoding);
+            return;
+        }
+
+        public Iterator<?> getFilterIterator()
+        {
+            return parse().getFilterIterator();
+        }
+
+        /*
+         * Returns the filter parsed, parsing it the first time.
+         */
+        private synchronized RfcFilter parse()
+        {
+            if( parsed == null) {
+                try {
+                    parsed = new RfcFilter( toString());
+                } catch( LDAPException ex) {
+                    // The template parsed with the same values escaped
+                    throw new RuntimeException( ex.toString());
+                }
+            }
+            return parsed;
+        }
+
+        private Object writeReplace()
+        {
+            return parse();
+        }
+
+        public String toString()
+        {
+            return template.toString( values);
+        }
+    }
+}
@@ -24,8 +24,6 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 
 import com.novell.ldap.client.Debug;
 import com.novell.ldap.client.RespControlVector;
@@ -375,64 +373,13 @@ public class LDAPMessage implements Externalizable
 	private final LDAPControl controlFactory(String oid,boolean critical,byte[] value)
 	{
 		RespControlVector regControls = LDAPControl.getRegisteredControls();
-		try {
-			/*
-			 * search through the registered extension list to find the
-			 * response control class
-			 */
-			Class respCtlClass = regControls.findResponseControl(oid);
-
-			// Did not find a match so return default LDAPControl
-			if ( respCtlClass == null)
-				return new LDAPControl(oid, critical, value);
-
-			if( Debug.LDAP_DEBUG) {
-				Debug.trace( Debug.controls,
-				 "For oid " + oid + ", found class " + respCtlClass.toString());
-
-			}
-
-			/* If found, get LDAPControl constructor */
-			Class[] argsClass = { String.class, boolean.class, byte[].class };
-			Object[] args = new Object[] {oid, new Boolean(critical), value};
-			Exception ex = null;
-			try {
-				Constructor ctlConstructor =
-										 respCtlClass.getConstructor(argsClass);
-
-				try {
-					/* Call the control constructor for a registered Class*/
-					Object ctl = null;
-					ctl = ctlConstructor.newInstance(args);
-					return (LDAPControl)ctl;
-				} catch (InstantiationException e) {
-					// Could not create the ResponseControl object
-					// All possible exceptions are ignored. We fall through
-					// and create a default LDAPControl object
-					ex = e;
-				} catch (IllegalAccessException e) {
-					ex = e;
-				} catch (InvocationTargetException e) {
-					ex = e;
-				}
-			} catch (NoSuchMethodException e) {
-				// bad class was specified, fall through and return a
-				// default LDAPControl object
-				ex = e;
-			}
-			if( Debug.LDAP_DEBUG) {
-				Debug.trace( Debug.controls,
-					  "Unable to create new instance of child LDAPControl");
-				Debug.trace( Debug.controls,
-				   ex.toString());
-			}
-		} catch (NoSuchFieldException e) {
-			// No match with the OID
-			// Do nothing. Fall through and construct a default LDAPControl object.
-			if( Debug.LDAP_DEBUG) {
-				Debug.trace( Debug.controls,
-					  "Oid " + oid + " not registered");
-			}
+		/*
+		 * Call the constructor bound when the response control class
+		 * was registered, if any
+		 */
+		LDAPControl ctl = regControls.newResponseControl(oid, critical, value);
+		if( ctl != null) {
+			return ctl;
 		}
 		// If we get here we did not have a registered response control
 		// for this oid.  Return a default LDAPControl object.
@@ -86,6 +86,54 @@ public abstract class LDAPMessageQueue
         return agent;
     }
 
+    /**
+     * Called when a reply to one of the queue's requests has been queued,
+     * or the request was abandoned, after any thread waiting in getResponse
+     * has been woken.
+     *
+     * <p>Called by the thread that queued the reply, usually the
+     * connection's reader.  The queues read by the application do nothing,
+     * queues that deliver their replies as they arrive override this
+     * method.</p>
+     *
+     * @param msgId the message ID of the request
+     */
+    /* package */
+    void replyQueued( int msgId)
+    {
+        return;
+    }
+
+    /**
+     * Reports whether replyQueued delivers the replies, running the
+     * application's code.
+     *
+     * @return true when the replies are delivered as they arrive
+     */
+    /* package */
+    boolean deliversReplies()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the next response queued for a request, without waiting.
+     *
+     * @param msgId the message ID of the request
+     *
+     * @return the response, or null if none is queued
+     */
+    /* package */
+    final LDAPMessage pollResponse( int msgId)
+        throws LDAPException
+    {
+        Object resp = agent.pollLDAPMessage( msgId);
+        if( resp == null) {
+            return null;
+        }
+        return toResponse( resp);
+    }
+
     /**
      * Returns the message IDs for all outstanding requests. These are requests
      * for which a response has not been received from the server or which
@@ -169,12 +217,23 @@ public abstract class LDAPMessageQueue
                 "getResponse(" + msgid + ")");
         }
         Object resp;
-        RfcLDAPMessage message;
-        LDAPMessage response;
 
         if( (resp = agent.getLDAPMessage( msgid)) == null) { // blocks
             return null; // no messages from this agent
         }
+        return toResponse( resp);
+    }
+
+    /**
+     * Converts a response returned by the message agent to the LDAPMessage
+     * returned to the application.
+     */
+    private LDAPMessage toResponse( Object resp)
+        throws LDAPException
+    {
+        RfcLDAPMessage message;
+        LDAPMessage response;
+
         // Local error occurred, contains a LocalException
         if( resp instanceof LDAPResponse) {
             return (LDAPMessage)resp;
@@ -0,0 +1,582 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.novell.ldap.client.Debug;
+import com.novell.ldap.controls.LDAPEntryChangeControl;
+import com.novell.ldap.events.LDAPEvent;
+import com.novell.ldap.events.LDAPExceptionEvent;
+import com.novell.ldap.events.PSearchEventListener;
+import com.novell.ldap.events.SearchReferralEvent;
+import com.novell.ldap.events.SearchResultEvent;
+import com.novell.ldap.rfc2251.RfcFilter;
+import com.novell.ldap.util.DN;
+
+/**
+ * Caches the results of synchronous searches and reads.
+ *
+ * <p>A cache is set on a connection with LDAPConnection.setResultCache.
+ * The entries returned by a synchronous search, or a read, are then kept
+ * for the time to live, and an identical search or read by the same bind
+ * DN on the same server is answered from the cache without a request to
+ * the server.  The application gets its own copy of each cached entry.</p>
+ *
+ * <p>Searches are identical if their base DN, scope, filter, attributes,
+ * types only flag, dereference option and maximum number of results are
+ * the same.  DNs, including the bind DN, are compared normalized and
+ * ignoring case, filters are compared normalized.  Only searches
+ * completing with success and returning no references are cached.
+ * Searches with controls, and searches on connections authenticated with
+ * SASL, are not cached.</p>
+ *
+ * <p>The cache holds at most the given number of bytes, estimated from
+ * the size of the DNs and values of the entries.  The least recently used
+ * results are removed first when it is full.</p>
+ *
+ * <p>The add, modify, delete and rename requests sent on a connection
+ * using the cache remove the results their entry may be part of: those of
+ * reads of the entry, and of searches with the entry in their scope.
+ * Changes by other clients are seen when the results expire.  For them to
+ * be seen sooner, the cache may be registered as the listener of a
+ * persistent search on the part of the directory cached:
+ * <pre><code>
+ *   LDAPResultCache cache = new LDAPResultCache(16 * 1024 * 1024, 60000);
+ *   conn.setResultCache(cache);
+ *   new PsearchEventSource().registerforEvent(watcher, "o=acme",
+ *       LDAPConnection.SCOPE_SUB, "(objectClass=*)",
+ *       new String[] { LDAPConnection.NO_ATTRS }, false, null,
+ *       EventConstant.LDAP_PSEARCH_ANY, true, cache);
+ * </code></pre>
+ * Each change notified removes the results of the entry changed, and the
+ * cache is cleared if the persistent search fails.</p>
+ *
+ * <p>A cache may be shared by several connections.  Results are kept
+ * apart by the host and port of the server the connection is connected
+ * to, so connections to different servers never share results, even if
+ * the servers hold copies of the same directory.  A change made through
+ * any connection removes the results it affects for every server.</p>
+ *
+ * @see LDAPConnection#setResultCache(LDAPResultCache)
+ */
+public class LDAPResultCache implements PSearchEventListener
+{
+    private final long maxBytes;
+    private final int ttl;
+
+    // Results by key, least recently used first
+    private final LinkedHashMap<String,Result> results =
+                            new LinkedHashMap<String,Result>( 64, 0.75f, true);
+    private long bytes = 0;
+    // Incremented by each invalidation, results of searches sent before
+    // an invalidation are not cached
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static Object nameLock = new Object(); // protect cacheNum
+    private static int cacheNum = 0;    // Debug, cache number
+    private String name = "";           // String name for debug
+
+    /*
+     * The cached entries of a search.
+     */
+    private static final class Result
+    {
+        private final String base;      // normalized base DN
+        private final int scope;
+        private final LDAPEntry[] entries;
+        private final long size;
+        private final long expires;     // System.currentTimeMillis
+
+        private Result( String base, int scope, LDAPEntry[] entries,
+                        long size, long expires)
+        {
+            this.base = base;
+            this.scope = scope;
+            this.entries = entries;
+            this.size = size;
+            this.expires = expires;
+            return;
+        }
+    }
+
+    /**
+     * Constructs a result cache.
+     *
+     * @param maxBytes The maximum size of the cached results in bytes.
+     *<br><br>
+     * @param ttl      The number of milliseconds a result is cached.
+     */
+    public LDAPResultCache( long maxBytes, int ttl)
+    {
+        if( (maxBytes <= 0) || (ttl <= 0)) {
+            throw new IllegalArgumentException(
+                "result cache size and time to live must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        if( Debug.LDAP_DEBUG) {
+            synchronized( nameLock) {
+                name = "LDAPResultCache(" + ++cacheNum + "): ";
+            }
+            Debug.trace( Debug.apiRequests, name + "Created, " +
+                maxBytes + " bytes, time to live " + ttl);
+        }
+        return;
+    }
+
+    /**
+     * Returns the maximum size of the cached results in bytes.
+     *
+     * @return The maximum size in bytes.
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of milliseconds a result is cached.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public int getTimeToLive()
+    {
+        return ttl;
+    }
+
+    /**
+     * Returns the estimated size of the cached results in bytes.
+     *
+     * @return The size of the cached results.
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of searches answered from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable searches sent to the server.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Removes the results an entry may be part of, the results of reads of
+     * the entry and of searches with the entry in their scope.
+     *
+     * <p>Called for the requests changing entries sent on a connection
+     * using the cache.  An application changing entries by other means,
+     * such as an extended operation, may call it.</p>
+     *
+     * @param dn The DN of the entry changed.  For a rename, both the old
+     * and the new DN must be given, the results of searches based at or
+     * below the old DN are removed too.
+     */
+    public void invalidate( String dn)
+    {
+        String target, parent;
+        try {
+            DN parsed = new DN( (dn == null) ? "" : dn);
+            target = parsed.toString().toLowerCase();
+            parent = parsed.getParent().toString().toLowerCase();
+        } catch( IllegalArgumentException ex) {
+            clear();
+            return;
+        }
+        synchronized( this) {
+            generation++;
+            Iterator<Result> i = results.values().iterator();
+            while( i.hasNext()) {
+                Result result = i.next();
+                if( inScope( target, parent, result.base, result.scope) ||
+                        isDescendant( result.base, target)) {
+                    i.remove();
+                    bytes -= result.size;
+                }
+            }
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests, name + "Invalidated " + dn);
+        }
+        return;
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void clear()
+    {
+        generation++;
+        results.clear();
+        bytes = 0;
+        return;
+    }
+
+    /**
+     * Removes the results of an entry changed by another client, as
+     * notified by a persistent search.
+     *
+     * @param event The persistent search result.
+     */
+    public void searchResultEvent( SearchResultEvent event)
+    {
+        LDAPEntry entry = event.getEntry();
+        LDAPControl[] controls =
+                        event.getContainedEventInformation().getControls();
+        if( controls != null) {
+            for( int i = 0; i < controls.length; i++) {
+                if( controls[i] instanceof LDAPEntryChangeControl) {
+                    String previous =
+                        ((LDAPEntryChangeControl)controls[i]).getPreviousDN();
+                    if( previous != null) {
+                        invalidate( previous);
+                    }
+                }
+            }
+        }
+        invalidate( entry.getDN());
+        return;
+    }
+
+    /**
+     * Ignored, references are not cached.
+     *
+     * @param event The persistent search reference.
+     */
+    public void searchReferalEvent( SearchReferralEvent event)
+    {
+        return;
+    }
+
+    /**
+     * Ignored, the persistent search only notifies changes.
+     *
+     * @param event The persistent search event.
+     */
+    public void ldapEventNotification( LDAPEvent event)
+    {
+        return;
+    }
+
+    /**
+     * Clears the cache when the persistent search fails, since changes are
+     * no longer notified.
+     *
+     * @param event The failure of the persistent search.
+     */
+    public void ldapExceptionNotification( LDAPExceptionEvent event)
+    {
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests, name +
+                "Persistent search failed, clearing");
+        }
+        clear();
+        return;
+    }
+
+    /**
+     * Returns the key of a search, or null if it cannot be cached.
+     */
+    /* package */
+    static String getKey( LDAPConnection conn,
+                          String base,
+                          int scope,
+                          String filter,
+                          String[] attrs,
+                          boolean typesOnly,
+                          LDAPSearchConstraints cons)
+    {
+        LDAPControl[] controls = cons.getControls();
+        if( (controls != null) && (controls.length > 0)) {
+            return null;
+        }
+        String method = conn.getAuthenticationMethod();
+        if( ! "simple".equals( method) && ! "none".equals( method)) {
+            return null;
+        }
+        StringBuffer key = new StringBuffer();
+        String host = conn.getHost();
+        if( host != null) {
+            key.append( host.toLowerCase());
+        }
+        key.append( ':');
+        key.append( conn.getPort());
+        key.append( '\0');
+        String dn = conn.getAuthenticationDN();
+        try {
+            if( dn != null) {
+                key.append( new DN( dn).toString().toLowerCase());
+            }
+            key.append( '\0');
+            key.append( normalize( base));
+            key.append( '\0');
+            key.append( new RfcFilter( filter).filterToString());
+        } catch( IllegalArgumentException ex) {
+            // Invalid DN, left to the server to report
+            return null;
+        } catch( LDAPException ex) {
+            // Invalid filter, reported by the search
+            return null;
+        }
+        key.append( '\0');
+        if( attrs != null) {
+            String[] names = new String[attrs.length];
+            for( int i = 0; i < attrs.length; i++) {
+                names[i] = attrs[i].toLowerCase();
+            }
+            Arrays.sort( names);
+            for( int i = 0; i < names.length; i++) {
+                key.append( names[i]);
+                key.append( ',');
+            }
+        }
+        key.append( '\0');
+        key.append( scope);
+        key.append( typesOnly ? 't' : 'f');
+        key.append( cons.getDereference());
+        key.append( ' ');
+        key.append( cons.getMaxResults());
+        return key.toString();
+    }
+
+    /**
+     * Returns copies of the cached entries of a search, or null if not
+     * cached or expired.
+     */
+    /* package */
+    LDAPEntry[] get( String key)
+    {
+        Result result;
+        synchronized( this) {
+            result = results.get( key);
+            if( (result != null) &&
+                    (result.expires <= System.currentTimeMillis())) {
+                results.remove( key);
+                bytes -= result.size;
+                result = null;
+            }
+            if( result == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        LDAPEntry[] entries = new LDAPEntry[result.entries.length];
+        for( int i = 0; i < entries.length; i++) {
+            entries[i] = copy( result.entries[i]);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the generation to give to put for a search about to be
+     * sent.
+     */
+    /* package */
+    synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Caches the entries of a completed search, unless results were
+     * invalidated since the search was sent.
+     *
+     * @param key        the key of the search
+     *<br><br>
+     * @param base       the base DN of the search
+     *<br><br>
+     * @param scope      the scope of the search
+     *<br><br>
+     * @param generation the generation when the search was sent
+     *<br><br>
+     * @param entries    copies of the entries returned
+     *<br><br>
+     * @param size       the estimated size of the entries
+     */
+    /* package */
+    void put( String key, String base, int scope, long generation,
+              List<LDAPEntry> entries, long size)
+    {
+        if( size > maxBytes) {
+            return;
+        }
+        Result result = new Result( normalize( base), scope,
+                    entries.toArray( new LDAPEntry[entries.size()]),
+                    size, System.currentTimeMillis() + ttl);
+        synchronized( this) {
+            if( generation != this.generation) {
+                // An entry may have changed while the search ran
+                return;
+            }
+            Result old = results.put( key, result);
+            if( old != null) {
+                bytes -= old.size;
+            }
+            bytes += size;
+            Iterator<Result> i = results.values().iterator();
+            while( (bytes > maxBytes) && i.hasNext()) {
+                Result lru = i.next();
+                i.remove();
+                bytes -= lru.size;
+            }
+        }
+        return;
+    }
+
+    /**
+     * Removes the results affected by a request sent to change entries.
+     *
+     * @param request the request, ignored if it does not change entries
+     */
+    /* package */
+    void invalidate( LDAPMessage request)
+    {
+        if( request == null) {
+            return;
+        }
+        switch( request.getType()) {
+            case LDAPMessage.ADD_REQUEST:
+                invalidate( ((LDAPAddRequest)request).getDN());
+                break;
+            case LDAPMessage.MODIFY_REQUEST:
+                invalidate( ((LDAPModifyRequest)request).getDN());
+                break;
+            case LDAPMessage.DEL_REQUEST:
+                invalidate( ((LDAPDeleteRequest)request).getDN());
+                break;
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+                LDAPModifyDNRequest rename = (LDAPModifyDNRequest)request;
+                String dn = rename.getDN();
+                invalidate( dn);
+                String parent = rename.getParentDN();
+                if( parent == null) {
+                    // Renamed in place
+                    try {
+                        parent = new DN( dn).getParent().toString();
+                    } catch( IllegalArgumentException ex) {
+                        clear();
+                        break;
+                    }
+                }
+                invalidate( (parent.length() == 0) ? rename.getNewRDN() :
+                            rename.getNewRDN() + "," + parent);
+                break;
+            default:
+                break;
+        }
+        return;
+    }
+
+    /**
+     * Returns a copy of an entry to cache or return from the cache.
+     */
+    /* package */
+    static LDAPEntry copy( LDAPEntry entry)
+    {
+        LDAPAttributeSet set = new LDAPAttributeSet();
+        Iterator<?> i = entry.getAttributeSet().iterator();
+        while( i.hasNext()) {
+            set.add( new LDAPAttribute( (LDAPAttribute)i.next()));
+        }
+        return new LDAPEntry( entry.getDN(), set);
+    }
+
+    /**
+     * Returns the estimated size in bytes of a cached entry.
+     */
+    /* package */
+    static long sizeOf( LDAPEntry entry)
+    {
+        long size = 64 + 2L * entry.getDN().length();
+        Iterator<?> i = entry.getAttributeSet().iterator();
+        while( i.hasNext()) {
+            LDAPAttribute attr = (LDAPAttribute)i.next();
+            size += 64 + 2L * attr.getName().length();
+            AttributeValues values = attr.getValues();
+            if( values == null) {
+                continue;
+            }
+            for( int pos = values.first(); pos >= 0;
+                 pos = values.next( pos)) {
+                size += 32 + values.length( pos);
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Returns a DN normalized for comparison.
+     */
+    private static String normalize( String dn)
+    {
+        if( (dn == null) || (dn.length() == 0)) {
+            return "";
+        }
+        return LDAPDN.normalize( dn).toLowerCase();
+    }
+
+    /*
+     * Returns true if the DN is the base or below it, both normalized.
+     */
+    private static boolean isDescendant( String dn, String base)
+    {
+        if( base.length() == 0) {
+            return true;
+        }
+        return dn.equals( base) ||
+               (dn.endsWith( base) &&
+                (dn.length() > base.length()) &&
+                (dn.charAt( dn.length() - base.length() - 1) == ','));
+    }
+
+    /*
+     * Returns true if a search with the base and scope could return the
+     * entry with the DN and parent DN, all normalized.
+     */
+    private static boolean inScope( String dn, String parent,
+                                    String base, int scope)
+    {
+        switch( scope) {
+            case LDAPConnection.SCOPE_BASE:
+                return dn.equals( base);
+            case LDAPConnection.SCOPE_ONE:
+                return (dn.length() > 0) && parent.equals( base);
+            default:
+                return isDescendant( dn, base);
+        }
+    }
+}
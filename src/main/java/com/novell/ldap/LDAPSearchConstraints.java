@@ -38,6 +38,9 @@ public class LDAPSearchConstraints extends LDAPConstraints {
     private int serverTimeLimit = 0;
     private int maxResults = 1000;
     private int batchSize = 1;
+    private boolean lazyEntryDecoding = false;
+    private int maxQueuedResults = 0;
+    private int maxConcurrentReferences = 1;
     private static Object nameLock = new Object(); // protect agentNum
     private static int lSConsNum = 0;  // Debug, LDAPConnection number
     private String name;             // String name for debug
@@ -129,6 +132,9 @@ public class LDAPSearchConstraints extends LDAPConstraints {
             this.dereference = scons.getDereference();
             this.maxResults = scons.getMaxResults();
             this.batchSize = scons.getBatchSize();
+            this.lazyEntryDecoding = scons.isLazyEntryDecoding();
+            this.maxQueuedResults = scons.getMaxQueuedResults();
+            this.maxConcurrentReferences = scons.getMaxConcurrentReferences();
         }
         // Get a unique connection name for debug
         if( Debug.LDAP_DEBUG) {
@@ -306,6 +312,49 @@ public class LDAPSearchConstraints extends LDAPConstraints {
         return serverTimeLimit;
     }
 
+    /**
+     * Returns the maximum number of search results received and not yet
+     * retrieved by the application, after which the connection stops
+     * reading from the server.
+     *
+     * @return The maximum number of results queued, 0 if unlimited.
+     * Default: 0
+     *
+     * @see #setMaxQueuedResults(int)
+     */
+    public int getMaxQueuedResults()
+    {
+        return maxQueuedResults;
+    }
+
+    /**
+     * Returns the maximum number of search continuation references
+     * followed at the same time.
+     *
+     * @return The maximum number of references followed concurrently.
+     * Default: 1
+     *
+     * @see #setMaxConcurrentReferences(int)
+     */
+    public int getMaxConcurrentReferences()
+    {
+        return maxConcurrentReferences;
+    }
+
+    /**
+     * Reports whether search result entries are decoded lazily.
+     *
+     * @return true if attributes of search result entries are decoded when
+     * they are first retrieved, false if each entry is decoded completely
+     * when it is retrieved.  Default: false
+     *
+     * @see #setLazyEntryDecoding(boolean)
+     */
+    public boolean isLazyEntryDecoding()
+    {
+        return lazyEntryDecoding;
+    }
+
     /**
      *  Specifies the number of results to return in a batch.
 
@@ -390,4 +439,97 @@ public class LDAPSearchConstraints extends LDAPConstraints {
         this.serverTimeLimit = seconds;
         return;
     }
+
+    /**
+     * Specifies whether search result entries are decoded lazily.
+     *
+     * <p>By default every attribute and value of an entry is decoded when
+     * the entry is retrieved from a search result.  When lazy decoding is
+     * enabled the entry keeps the encoded search response, and an attribute
+     * and its values are decoded only when the attribute is retrieved by
+     * name with <code>LDAPEntry.getAttribute</code> or
+     * <code>LDAPAttributeSet.getAttribute</code>.  Any other access to the
+     * attribute set, for example iterating over it, decodes all remaining
+     * attributes.</p>
+     *
+     * <p>This reduces the work and memory needed to read a few attributes
+     * of large entries, for example entries with many values of a group
+     * membership attribute, at the cost of retaining the encoded response
+     * until all of its attributes are decoded.</p>
+     *
+     * @param lazy true to decode the attributes of search result entries
+     * when they are first retrieved.
+     *
+     * @see #isLazyEntryDecoding()
+     */
+    public void setLazyEntryDecoding(boolean lazy)
+    {
+        this.lazyEntryDecoding = lazy;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of search results received and not yet
+     * retrieved by the application, after which the connection stops
+     * reading from the server.
+     *
+     * <p>By default the results of a search are queued as fast as the
+     * server sends them, however slowly the application retrieves them.
+     * When a limit is set and that many results are queued, the connection
+     * stops reading until the application has retrieved half of them.  The
+     * server is then held back by TCP flow control, so a search returning
+     * any number of entries can be streamed in bounded memory.  The batch
+     * size should be small for the results to be retrieved as they
+     * arrive.</p>
+     *
+     * <p>While reading is stopped no responses are received for any
+     * request on the connection, an application must not wait for another
+     * request on the same connection before retrieving the queued
+     * results.</p>
+     *
+     * @param results The maximum number of results queued, 0 for no
+     * limit.
+     *
+     * @see #getMaxQueuedResults()
+     * @see #setBatchSize(int)
+     */
+    public void setMaxQueuedResults(int results)
+    {
+        if( results < 0) {
+            throw new IllegalArgumentException(
+                "maximum queued results must not be negative");
+        }
+        this.maxQueuedResults = results;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of search continuation references followed
+     * at the same time when referrals are followed automatically.
+     *
+     * <p>By default the references returned by a search are followed one
+     * at a time as the results are retrieved, the application waits for the
+     * connect and bind to each referred server in turn.  With a limit above
+     * 1 the references are followed by other threads, created with the
+     * thread factory of LDAPConnection, while the application retrieves the
+     * results already received.  The results of all the referred searches
+     * are returned by the same LDAPSearchResults, in the order they are
+     * received.  An error following a reference is returned by
+     * LDAPSearchResults.next as an LDAPReferralException.</p>
+     *
+     * @param references The maximum number of references followed
+     * concurrently, 1 to follow them in turn.
+     *
+     * @see #getMaxConcurrentReferences()
+     * @see LDAPConnection#setReferralConnectionCache(int, int)
+     */
+    public void setMaxConcurrentReferences(int references)
+    {
+        if( references < 1) {
+            throw new IllegalArgumentException(
+                "maximum concurrent references must be at least 1");
+        }
+        this.maxConcurrentReferences = references;
+        return;
+    }
 }
@@ -113,6 +113,11 @@ public class LDAPSearchRequest extends LDAPMessage {
      * Note: A FINAL SUBSTRING is represented as "*<value>".
      */
     public final static int FINAL = 2;
+
+    // Set when the entries returned for this request are decoded lazily
+    private boolean lazyEntryDecoding = false;
+    // Results queued before the reader stops reading, 0 if unlimited
+    private int maxQueuedResults = 0;
     
 	/**
 	 * This constructor was added to support default Serialization
@@ -353,6 +358,52 @@ public class LDAPSearchRequest extends LDAPMessage {
                 ).get(5)).booleanValue();
     }
 
+    /**
+     * Specifies whether the entries returned for this request are decoded
+     * lazily.
+     *
+     * @see LDAPSearchConstraints#setLazyEntryDecoding(boolean)
+     */
+    /* package */
+    void setLazyEntryDecoding(boolean lazy)
+    {
+        lazyEntryDecoding = lazy;
+        return;
+    }
+
+    /**
+     * Reports whether the entries returned for this request are decoded
+     * lazily.
+     */
+    /* package */
+    boolean isLazyEntryDecoding()
+    {
+        return lazyEntryDecoding;
+    }
+
+    /**
+     * Sets the number of results queued for this request after which the
+     * connection stops reading.
+     *
+     * @see LDAPSearchConstraints#setMaxQueuedResults(int)
+     */
+    /* package */
+    void setMaxQueuedResults(int results)
+    {
+        maxQueuedResults = results;
+        return;
+    }
+
+    /**
+     * Returns the number of results queued for this request after which the
+     * connection stops reading, 0 if unlimited.
+     */
+    /* package */
+    int getMaxQueuedResults()
+    {
+        return maxQueuedResults;
+    }
+
     /**
      * Retrieves an array of attribute names to request for in a search.
      * @return Attribute names to be searched
@@ -438,7 +489,8 @@ public class LDAPSearchRequest extends LDAPMessage {
 	   throws IOException, ClassNotFoundException {
 //		Check if it is the correct message type
 	  if(!(readObject instanceof LDAPSearchRequest))
-	  	throw new ClassNotFoundException("Error occured while deserializing " +	  		"LDAPSearchRequest object");
+	  	throw new ClassNotFoundException("Error occured while deserializing " +
+	  		"LDAPSearchRequest object");
 	  try{
 		   LDAPSearchRequest tmpObject = (LDAPSearchRequest)readObject;	
 		   String base = tmpObject.getDN();
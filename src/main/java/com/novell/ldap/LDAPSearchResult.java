@@ -18,6 +18,7 @@ package com.novell.ldap;
 import java.io.IOException;
 import java.util.Iterator;
 
+import com.novell.ldap.asn1.ASN1Encoded;
 import com.novell.ldap.asn1.ASN1Object;
 import com.novell.ldap.asn1.ASN1OctetString;
 import com.novell.ldap.asn1.ASN1Sequence;
@@ -130,32 +131,52 @@ public class LDAPSearchResult extends LDAPMessage
     public LDAPEntry getEntry()
     {
         if( entry == null) {
-            LDAPAttributeSet attrs = new LDAPAttributeSet();
-
-            ASN1Sequence attrList =
-                ((RfcSearchResultEntry)message.getResponse()).getAttributes();
-
-            ASN1Object[] seqArray = attrList.toArray();
-            for(int i = 0; i < seqArray.length; i++) {
-                ASN1Sequence seq = (ASN1Sequence)seqArray[i];
-                LDAPAttribute attr =
-                    new LDAPAttribute(((ASN1OctetString)seq.get(0)).stringValue());
-
-                ASN1Set set = (ASN1Set)seq.get(1);
-                Object[] setArray = set.toArray();
-                for(int j = 0; j < setArray.length; j++) {
-                    attr.addValue(((ASN1OctetString)setArray[j]).byteValue());
+            RfcSearchResultEntry response =
+                (RfcSearchResultEntry)message.getResponse();
+            LDAPAttributeSet attrs;
+            ASN1Encoded encoded = response.getEncodedAttributes();
+            if( encoded == null) {
+                attrs = new LDAPAttributeSet();
+                ASN1Sequence attrList = response.getAttributes();
+
+                ASN1Object[] seqArray = attrList.toArray();
+                for(int i = 0; i < seqArray.length; i++) {
+                    ASN1Sequence seq = (ASN1Sequence)seqArray[i];
+                    LDAPAttribute attr = new LDAPAttribute(
+                            ((ASN1OctetString)seq.get(0)).stringValue());
+
+                    ASN1Set set = (ASN1Set)seq.get(1);
+                    Object[] setArray = set.toArray();
+                    for(int j = 0; j < setArray.length; j++) {
+                        attr.addValue(
+                                ((ASN1OctetString)setArray[j]).byteValue());
+                    }
+                    attrs.add(attr);
                 }
-                attrs.add(attr);
+            } else if( isLazyEntryDecoding()) {
+                attrs = new LazyAttributeSet(encoded);
+            } else {
+                // Decode straight from the response, with no ASN.1 objects
+                attrs = new LDAPAttributeSet();
+                LazyAttributeSet.decodeAttributes(encoded, attrs);
             }
 
             entry = new LDAPEntry(
-                ((RfcSearchResultEntry)message.getResponse()).getObjectName().stringValue(),
-                attrs);
+                response.getObjectName().stringValue(), attrs);
         }            
         return entry;
     }
 
+    /*
+     * Returns true if the search request asked for lazily decoded entries.
+     */
+    private boolean isLazyEntryDecoding()
+    {
+        LDAPMessage request = message.getRequestingMessage();
+        return (request instanceof LDAPSearchRequest) &&
+               ((LDAPSearchRequest)request).isLazyEntryDecoding();
+    }
+
     /**
      * Return a String representation of this object.
      *
@@ -28,6 +28,10 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -53,7 +57,7 @@ public class LDAPSearchResults
 implements Externalizable
 {
 
-    private Vector entries;             // Search entries
+    private Vector<Object> entries;     // Search entries
     private int entryCount;             // # Search entries in vector
     private int entryIndex;             // Current position in vector
     private Vector references;          // Search Result References
@@ -68,7 +72,18 @@ implements Externalizable
     private String name;                // used for debug
     private LDAPConnection conn;        // LDAPConnection which started search
     private LDAPSearchConstraints cons; // LDAPSearchConstraints for search
-    private ArrayList referralConn = null;// Referral Connections
+    private ArrayList<LDAPConnection> referralConn = null;// Referral Connections
+    private ThreadPoolExecutor chasers = null; // Follow references concurrently
+    private int chasing = 0;            // References being followed
+    private Vector<LDAPException> chaseErrors = null; // Errors following references
+    private final Object chaseLock = new Object(); // protect the above three
+    private LDAPResultCache cache = null; // Caches the results if not null
+    private String cacheKey;            // Key of the search in the cache
+    private String cacheBase;           // Base DN of the search
+    private int cacheScope;             // Scope of the search
+    private long cacheGeneration;       // Cache generation when sent
+    private ArrayList<LDAPEntry> cacheEntries;     // Copies of the entries received
+    private long cacheSize;             // Estimated size of the entries
     
     /**
 	 * This constructor was added to support default Serialization
@@ -101,7 +116,7 @@ implements Externalizable
         this.cons = cons;
         int batchSize = cons.getBatchSize();
         int vectorIncr = (batchSize == 0) ? 64 : 0;
-        entries = new Vector( (batchSize == 0) ? 64 : batchSize, vectorIncr );
+        entries = new Vector<Object>( (batchSize == 0) ? 64 : batchSize, vectorIncr );
         entryCount = 0;
         entryIndex = 0;
 
@@ -124,6 +139,101 @@ implements Externalizable
         return;
     }
 
+    /**
+     * Constructs a completed search result of entries from a result cache.
+     *
+     * @param  conn The LDAPConnection which initiated the search
+     *<br><br>
+     * @param entries The entries of the search.
+     *<br><br>
+     * @param cons The LDAPSearchConstraints associated with this search
+     */
+    /* package */
+    LDAPSearchResults(  LDAPConnection conn,
+                        LDAPEntry[] entries,
+                        LDAPSearchConstraints cons)
+    {
+        this.conn = conn;
+        this.cons = cons;
+        this.entries = new Vector<Object>( entries.length);
+        for( int i = 0; i < entries.length; i++) {
+            this.entries.addElement( entries[i]);
+        }
+        entryCount = entries.length;
+        entryIndex = 0;
+        references = new Vector<Object>( 0);
+        referenceCount = 0;
+        referenceIndex = 0;
+        batchSize = Integer.MAX_VALUE;
+        completed = true;
+        if( Debug.LDAP_DEBUG ) {
+            synchronized(nameLock) {
+                name = "LDAPSearchResults(" + ++resultsNum + "): ";
+            }
+            Debug.trace( Debug.messages, name +
+                            " Object created from cache, " + entryCount +
+                            " entries");
+        }
+        return;
+    }
+
+    /**
+     * Caches the results of the search when it completes with success.
+     *
+     * @param cache      The cache.
+     *<br><br>
+     * @param key        The key of the search.
+     *<br><br>
+     * @param base       The base DN of the search.
+     *<br><br>
+     * @param scope      The scope of the search.
+     *<br><br>
+     * @param generation The generation of the cache when the search was
+     *                   sent.
+     */
+    /* package */
+    void cacheResults( LDAPResultCache cache,
+                       String key,
+                       String base,
+                       int scope,
+                       long generation)
+    {
+        this.cache = cache;
+        this.cacheKey = key;
+        this.cacheBase = base;
+        this.cacheScope = scope;
+        this.cacheGeneration = generation;
+        this.cacheEntries = new ArrayList<LDAPEntry>();
+        this.cacheSize = 0;
+        return;
+    }
+
+    /*
+     * Keeps a copy of an entry for the cache, stops caching if the results
+     * will not fit.
+     */
+    private void cacheEntry( LDAPEntry entry)
+    {
+        cacheSize += LDAPResultCache.sizeOf( entry);
+        if( cacheSize > cache.getMaxBytes()) {
+            stopCaching();
+            return;
+        }
+        cacheEntries.add( LDAPResultCache.copy( entry));
+        return;
+    }
+
+    /*
+     * Stops caching the results, when the search returns anything but
+     * entries.
+     */
+    private void stopCaching()
+    {
+        cache = null;
+        cacheEntries = null;
+        return;
+    }
+
     /**
      * Returns a count of the items in the search result.
      *
@@ -141,7 +251,8 @@ implements Externalizable
      */
     public int getCount()
     {
-        int qCount = queue.getMessageAgent().getCount();
+        // Results from the result cache have no queue, only entries left
+        int qCount = (queue == null) ? 0 : queue.getMessageAgent().getCount();
         return entryCount - entryIndex + referenceCount - referenceIndex + qCount;
     }
 
@@ -335,6 +446,7 @@ implements Externalizable
         // <=batchSize so that we can pick up the result-done message
         for(int i=0; i<batchSize; ) {
             try {
+                takeChaseErrors();
                 if((msg = queue.getResponse()) != null) {
                     // Only save controls if there are some
                     LDAPControl[] ctls = msg.getControls();
@@ -350,6 +462,9 @@ implements Externalizable
 
                     if(msg instanceof LDAPSearchResult) { // Search Entry
                         Object entry = ((LDAPSearchResult)msg).getEntry();
+                        if( cache != null) {
+                            cacheEntry( (LDAPEntry)entry);
+                        }
                         entries.addElement( entry );
                         i++;
                         entryCount++;
@@ -372,10 +487,14 @@ implements Externalizable
                             }
                         }
 
+                        // Referred servers may return other results
+                        stopCaching();
                         if( cons.getReferralFollowing() ) {
-                           referralConn = conn.chaseReferral(
-                                    queue, cons, msg, refs,
-                                    0, true, referralConn);
+                            if( cons.getMaxConcurrentReferences() > 1) {
+                                chaseConcurrently( msg, refs);
+                            } else {
+                                chaseReferral( msg, refs, true);
+                            }
                         } else {
                             references.addElement( refs );
                             referenceCount++;
@@ -399,6 +518,9 @@ implements Externalizable
                                 ", result " + resultCode);
                         }
 
+                        if( resultCode != LDAPException.SUCCESS) {
+                            stopCaching();
+                        }
                         if( (resultCode == LDAPException.REFERRAL) &&
                                         cons.getReferralFollowing() ) {
                             // Following referrals
@@ -406,10 +528,7 @@ implements Externalizable
                                 Debug.trace( Debug.messages, name +
                                     "following referrals");
                             }
-                            referralConn = conn.chaseReferral(
-                                        queue, cons, resp,
-                                        resp.getReferrals(), 0,
-                                        false, referralConn);
+                            chaseReferral( resp, resp.getReferrals(), false);
                         } else
                         if(resultCode != LDAPException.SUCCESS) {
                             // Results in an exception when message read
@@ -428,13 +547,24 @@ implements Externalizable
                         // We are done only when we have read all messages
                         // including those received from following referrals
                         int[] msgIDs = queue.getMessageIDs();
+                        if( (msgIDs.length == 0) && awaitChasers()) {
+                            // References followed meanwhile may have sent
+                            // their searches
+                            msgIDs = queue.getMessageIDs();
+                        }
                         if( msgIDs.length == 0) {
                             if( Debug.LDAP_DEBUG ) {
                                 Debug.trace( Debug.messages, name +
                                     "Search completed, all responses processed");
                             }
+                            stopChasers();
                             // Release referral exceptions
                             conn.releaseReferralConnections( referralConn);
+                            if( cache != null) {
+                                cache.put( cacheKey, cacheBase, cacheScope,
+                                    cacheGeneration, cacheEntries, cacheSize);
+                                stopCaching();
+                            }
                             return true; // search completed
                         } else {
                             if( Debug.LDAP_DEBUG ) {
@@ -454,6 +584,7 @@ implements Externalizable
                     // we have no responses, no message IDs and no exceptions
                     LDAPException e = new LDAPException( null,
                                 LDAPException.LDAP_TIMEOUT,(String)null);
+                    stopCaching();
                     entries.addElement(e );
                     break;
                 }
@@ -463,6 +594,7 @@ implements Externalizable
                        "Caught exception, add to entry queue: " + e.toString());
                 }
                 // Hand exception off to user
+                stopCaching();
                 entries.addElement( e);
             }
             continue;
@@ -470,6 +602,149 @@ implements Externalizable
         return false; // search not completed
     }
 
+    /*
+     * Follows a referral or search reference, keeping the connections
+     * used to release them when the search completes.
+     */
+    private void chaseReferral( LDAPMessage msg,
+                                String[] refs,
+                                boolean searchReference)
+        throws LDAPException
+    {
+        ArrayList<LDAPConnection> list =
+                new ArrayList<LDAPConnection>( cons.getHopLimit());
+        try {
+            conn.chaseReferral( queue, cons, msg, refs,
+                                0, searchReference, list);
+        } finally {
+            synchronized( chaseLock) {
+                if( referralConn == null) {
+                    referralConn = list;
+                } else {
+                    referralConn.addAll( list);
+                }
+            }
+        }
+        return;
+    }
+
+    /*
+     * Follows a search reference on another thread.  The referred search
+     * is sent on the search queue, its results are read with the others.
+     * An error is returned by next.
+     */
+    private void chaseConcurrently( final LDAPMessage msg,
+                                    final String[] refs)
+    {
+        ThreadPoolExecutor executor;
+        synchronized( chaseLock) {
+            if( chasers == null) {
+                int threads = cons.getMaxConcurrentReferences();
+                chasers = new ThreadPoolExecutor( threads, threads,
+                            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                                public Thread newThread( Runnable r)
+                                {
+                                    return Connection.newDaemonThread( r);
+                                }
+                            });
+                chasers.allowCoreThreadTimeOut( true);
+            }
+            executor = chasers;
+            chasing++;
+        }
+        if( Debug.LDAP_DEBUG ) {
+            Debug.trace( Debug.messages, name +
+                "following reference concurrently, " + refs[0]);
+        }
+        executor.execute( new Runnable() {
+            public void run()
+            {
+                LDAPException error = null;
+                try {
+                    chaseReferral( msg, refs, true);
+                } catch( LDAPException ex) {
+                    error = ex;
+                } catch( RuntimeException ex) {
+                    error = new LDAPLocalException( ex.toString(),
+                                    LDAPException.LOCAL_ERROR, ex);
+                }
+                synchronized( chaseLock) {
+                    if( error != null) {
+                        if( chaseErrors == null) {
+                            chaseErrors = new Vector<LDAPException>();
+                        }
+                        chaseErrors.addElement( error);
+                    }
+                    chasing--;
+                    chaseLock.notifyAll();
+                }
+                return;
+            }
+        });
+        return;
+    }
+
+    /*
+     * Waits for the references being followed concurrently.
+     *
+     * @return true if any reference was being followed.
+     */
+    private boolean awaitChasers()
+    {
+        boolean waited = false;
+        boolean interrupted = false;
+        synchronized( chaseLock) {
+            while( chasing > 0) {
+                waited = true;
+                try {
+                    chaseLock.wait();
+                } catch( InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if( interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if( waited) {
+            takeChaseErrors();
+        }
+        return waited;
+    }
+
+    /*
+     * Moves the errors following references concurrently to the results.
+     */
+    private void takeChaseErrors()
+    {
+        synchronized( chaseLock) {
+            if( (chaseErrors != null) && ! chaseErrors.isEmpty()) {
+                stopCaching();
+                for( int i = 0; i < chaseErrors.size(); i++) {
+                    entries.addElement( chaseErrors.elementAt(i));
+                    entryCount++;
+                }
+                chaseErrors.setSize(0);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Ends the threads following references, once all have been followed.
+     */
+    private void stopChasers()
+    {
+        synchronized( chaseLock) {
+            if( chasers != null) {
+                chasers.shutdown();
+                chasers = null;
+            }
+        }
+        return;
+    }
+
     /**
      * Cancels the search request and clears the message and enumeration.
      */
@@ -478,9 +753,17 @@ implements Externalizable
         if( Debug.LDAP_DEBUG ) {
             Debug.trace( Debug.messages, name + "abandon: Entry");
         }
-        // first, remove message ID and timer and any responses in the queue
-        queue.getMessageAgent().abandonAll();
+        // Results from the result cache have no request to abandon
+        if( queue != null) {
+            // References being followed send their searches on the queue
+            awaitChasers();
+            stopChasers();
+            // first, remove message ID and timer and any responses in the queue
+            queue.getMessageAgent().abandonAll();
+            conn.releaseReferralConnections( referralConn);
 
+            stopCaching();
+        }
         // next, clear out enumeration
         resetVectors();
         completed = true;
@@ -759,7 +1042,7 @@ implements Externalizable
 		/*
 		 * Temporary structures
 		 */
-		Vector ldapEntries = new Vector();
+		Vector<Object> ldapEntries = new Vector<Object>();
 		ArrayList controlList = new ArrayList();
 		
 		Enumeration it = readList.elements();
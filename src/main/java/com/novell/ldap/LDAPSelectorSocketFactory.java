@@ -0,0 +1,246 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Represents a socket factory whose connections are read by a small number
+ * of shared selector threads instead of a thread per connection.
+ *
+ * <p>An LDAPConnection using this factory does not start a reader thread.
+ * Its socket is a non-blocking channel that is registered with one of the
+ * selector threads shared by all such connections in the JVM, which reads
+ * and processes the responses of every connection it serves.  This reduces
+ * the number of threads needed by applications holding many connections,
+ * for example connection pools and referral connections.  The behavior of
+ * LDAPConnection and of the response queues is otherwise unchanged.</p>
+ *
+ * <p>TLS is provided by an SSLEngine, either from the time the connection
+ * is made or when LDAPConnection.startTLS is called.  The socket timeout of
+ * LDAPConnection(int) does not apply to connections made by this
+ * factory.</p>
+ *
+ * @see LDAPConnection#LDAPConnection(LDAPSocketFactory)
+ * @see LDAPConnection#setSocketFactory
+ */
+public class LDAPSelectorSocketFactory implements LDAPTLSSocketFactory
+{
+    /*
+     * The selector threads shared by all factories, created when the first
+     * connection is made.
+     */
+    private static ConnectionSelector[] selectors = null;
+    private static final AtomicInteger nextSelector = new AtomicInteger(0);
+
+    private final SSLContext context;
+    private final boolean secure;
+
+    /**
+     * Constructs a factory for clear text connections, using the default
+     * SSLContext if TLS is started with LDAPConnection.startTLS.
+     */
+    public LDAPSelectorSocketFactory()
+    {
+        this( null, false);
+        return;
+    }
+
+    /**
+     * Constructs a factory for clear text connections, using the specified
+     * SSLContext if TLS is started with LDAPConnection.startTLS.
+     *
+     * @param context The SSLContext that creates the TLS engines.
+     */
+    public LDAPSelectorSocketFactory(SSLContext context)
+    {
+        this( context, false);
+        return;
+    }
+
+    /**
+     * Constructs a factory using the specified SSLContext.
+     *
+     * @param context The SSLContext that creates the TLS engines, or null to
+     * use the default SSLContext.<br>
+     *
+     * @param secure If true, TLS is negotiated as soon as a connection is
+     * made, as for an ldaps server.  If false, connections are made in clear
+     * text and TLS may later be started with LDAPConnection.startTLS.
+     */
+    public LDAPSelectorSocketFactory(SSLContext context, boolean secure)
+    {
+        this.context = context;
+        this.secure = secure;
+        return;
+    }
+
+    /**
+     * Returns a socket, backed by a socket channel, connected to the
+     * specified host and port.
+     *
+     * <p>If the factory is secure, TLS is negotiated by the LDAPConnection
+     * after the connection is made, not by this method.</p>
+     *
+     * @param host The host name or a dotted string representing the IP
+     * address of the LDAP server.<br>
+     *
+     * @param port The port number of the LDAP server.
+     *
+     * @exception IOException The socket to the specified host and port
+     *                        could not be created.
+     *
+     * @exception UnknownHostException The specified host could not be found.
+     */
+    public Socket createSocket(String host, int port)
+        throws IOException, UnknownHostException
+    {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if( address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        return SocketChannel.open( address).socket();
+    }
+
+    /**
+     * Returns a TLS socket layered over the specified socket.
+     *
+     * <p>LDAPConnection does not call this method for connections made by
+     * this factory, it negotiates TLS on the connection's channel.  This
+     * method is provided for other users of an LDAPTLSSocketFactory.</p>
+     *
+     * @param socket The socket on which TLS is to be negotiated.
+     *
+     * @return The socket with TLS negotiated.
+     */
+    public Socket createSocket(Socket socket)
+        throws IOException, UnknownHostException
+    {
+        SSLSocket tls = (SSLSocket)getContext().getSocketFactory().createSocket(
+                socket,
+                socket.getInetAddress().getHostName(),
+                socket.getPort(),
+                false); // close the TLS socket without closing socket
+        tls.startHandshake();
+        return tls;
+    }
+
+    /**
+     * Returns whether TLS is negotiated as soon as a connection is made.
+     *
+     * @return true if the connections made are secure.
+     */
+    public boolean isSecure()
+    {
+        return secure;
+    }
+
+    /**
+     * Creates the TLS engine for a connection.
+     *
+     * <p>The default implementation creates a client mode engine from the
+     * factory's SSLContext.  A subclass may override this method to
+     * configure the engine, for example to enable endpoint identification
+     * with SSLParameters.setEndpointIdentificationAlgorithm.</p>
+     *
+     * @param host The host name of the LDAP server.<br>
+     *
+     * @param port The port number of the LDAP server.
+     *
+     * @return an SSLEngine in client mode.
+     */
+    protected SSLEngine createSSLEngine(String host, int port)
+        throws IOException
+    {
+        SSLEngine engine = getContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Creates the transport that reads and writes a socket made by this
+     * factory, negotiating TLS if the factory is secure.
+     */
+    /* package */
+    final ChannelTransport createTransport(Connection conn, Socket socket,
+                                           String host, int port)
+        throws IOException
+    {
+        SocketChannel channel = socket.getChannel();
+        if( channel == null) {
+            throw new IOException("LDAPSelectorSocketFactory: the socket " +
+                    "was not created from a socket channel");
+        }
+        ChannelTransport transport =
+                new ChannelTransport(conn, channel, getSelector());
+        if( secure) {
+            transport.startTLS( createSSLEngine(host, port));
+        }
+        return transport;
+    }
+
+    /*
+     * Returns the SSLContext of this factory.
+     */
+    private SSLContext getContext()
+        throws IOException
+    {
+        if( context != null) {
+            return context;
+        }
+        try {
+            return SSLContext.getDefault();
+        } catch( NoSuchAlgorithmException nsae) {
+            throw new IOException("LDAPSelectorSocketFactory: no default " +
+                    "SSLContext, " + nsae.toString());
+        }
+    }
+
+    /*
+     * Returns the next shared selector, creating the selectors when first
+     * called.  The number of selectors is half the number of processors, at
+     * least one and at most four.
+     */
+    private static ConnectionSelector getSelector()
+        throws IOException
+    {
+        ConnectionSelector[] s;
+        synchronized( LDAPSelectorSocketFactory.class) {
+            if( selectors == null) {
+                int count = Runtime.getRuntime().availableProcessors() / 2;
+                count = Math.max( 1, Math.min( 4, count));
+                ConnectionSelector[] created = new ConnectionSelector[count];
+                for( int i = 0; i < count; i++) {
+                    created[i] = new ConnectionSelector(
+                            "LDAP Selector " + (i + 1));
+                }
+                selectors = created;
+            }
+            s = selectors;
+        }
+        return s[(nextSelector.getAndIncrement() & Integer.MAX_VALUE) %
+                 s.length];
+    }
+}
@@ -0,0 +1,569 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.novell.ldap.client.Debug;
+import com.novell.ldap.resources.ExceptionMessages;
+
+/**
+ * A group of replicated LDAP servers that connections are spread over.
+ *
+ * <p>The servers are specified as for {@link LDAPConnection#connect(String,
+ * int)}, a space-delimited list of host names with optional ports.  Each
+ * time a connection is made by {@link #connect(LDAPConnection)} the servers
+ * are tried in the order chosen by the strategy of the set, see
+ * {@link #getPreferredServers()}:</p>
+ *
+ * <ul>
+ *   <li>{@link #ROUND_ROBIN} - each server first in turn.</li>
+ *   <li>{@link #FEWEST_OPERATIONS} - the server with the fewest operations
+ *   outstanding first.</li>
+ *   <li>{@link #LATENCY_WEIGHTED} - a server chosen at random, weighted by
+ *   the inverse of its average response time, first.</li>
+ *   <li>{@link #FAILOVER} - the servers in the order listed.</li>
+ * </ul>
+ *
+ * <p>The operations outstanding and the response times are measured on the
+ * connections made by the set.  A server that cannot be connected to is
+ * marked unavailable and tried only after the available servers.  While a
+ * server is unavailable a background thread probes it by connecting to it
+ * at the interval set by {@link #setProbeInterval(long)}, and marks it
+ * available again once the connection succeeds.</p>
+ *
+ * <p>A ConnectionPool constructed with a server set spreads its connections
+ * over the servers of the set in the same way.</p>
+ *
+ * @see com.novell.ldap.connectionpool.ConnectionPool
+ */
+public class LDAPServerSet
+{
+    /**
+     * Each server is tried first in turn.
+     *
+     * <p>ROUND_ROBIN = 0</p>
+     */
+    public static final int ROUND_ROBIN = 0;
+
+    /**
+     * The server with the fewest operations outstanding on the connections
+     * of the set is tried first.
+     *
+     * <p>FEWEST_OPERATIONS = 1</p>
+     */
+    public static final int FEWEST_OPERATIONS = 1;
+
+    /**
+     * A server chosen at random, each weighted by the inverse of its average
+     * response time, is tried first, then the others from the fastest.
+     * Servers not yet measured are tried first.
+     *
+     * <p>LATENCY_WEIGHTED = 2</p>
+     */
+    public static final int LATENCY_WEIGHTED = 2;
+
+    /**
+     * The servers are tried in the order listed, the first available
+     * server gets all new connections.
+     *
+     * <p>FAILOVER = 3</p>
+     */
+    public static final int FAILOVER = 3;
+
+    private final Server[] servers;
+    private final int strategy;
+    private final LDAPSocketFactory factory;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private volatile long probeInterval = 10 * 1000;
+    private Thread prober = null;   // guarded by this
+    private boolean closed = false; // guarded by this
+
+    /**
+     * Constructs a server set.
+     *
+     * @param hosts     A space-delimited list of host names, each followed
+     *                  by an optional colon and port number, as for
+     *                  LDAPConnection.connect.
+     *<br><br>
+     * @param port      The port of the hosts with no port specified.
+     *<br><br>
+     * @param strategy  The strategy choosing the server of each connection,
+     *                  ROUND_ROBIN, FEWEST_OPERATIONS, LATENCY_WEIGHTED or
+     *                  FAILOVER.
+     *<br><br>
+     * @param factory   The socket factory used to probe unavailable servers,
+     *                  that of the connections made, or null.
+     */
+    public LDAPServerSet( String hosts,
+                          int port,
+                          int strategy,
+                          LDAPSocketFactory factory)
+    {
+        if( (strategy < ROUND_ROBIN) || (strategy > FAILOVER)) {
+            throw new IllegalArgumentException(
+                "Invalid server set strategy " + strategy);
+        }
+        ArrayList<Server> list = new ArrayList<Server>();
+        StringTokenizer hostList = new StringTokenizer(hosts," ");
+        while( hostList.hasMoreTokens()) {
+            String address = hostList.nextToken();
+            int specifiedPort = port;
+            int bracketIndex = address.indexOf(']');
+            int colonIndex;
+            if( bracketIndex == -1) {
+                colonIndex = address.indexOf((int)':');  //IPv4
+            } else {
+                colonIndex = address.indexOf((int)':', bracketIndex); //IPv6
+            }
+            if( (colonIndex != -1) && (colonIndex+1 != address.length())) {
+                try {
+                    specifiedPort = Integer.parseInt(
+                                address.substring(colonIndex+1));
+                    address = address.substring(0, colonIndex);
+                } catch( NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                                ExceptionMessages.INVALID_ADDRESS);
+                }
+            }
+            list.add( new Server( list.size(), address, specifiedPort));
+        }
+        if( list.isEmpty()) {
+            throw new IllegalArgumentException("No hosts specified");
+        }
+        this.servers = list.toArray( new Server[list.size()]);
+        this.strategy = strategy;
+        this.factory = factory;
+        return;
+    }
+
+    /**
+     * Returns the strategy choosing the server of each connection.
+     */
+    public int getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * Returns the socket factory of the connections made.
+     */
+    public LDAPSocketFactory getSocketFactory()
+    {
+        return factory;
+    }
+
+    /**
+     * Returns the number of servers in the set.
+     */
+    public int getServerCount()
+    {
+        return servers.length;
+    }
+
+    /**
+     * Returns the host name of a server.
+     *
+     * @param index The index of the server, in the order listed.
+     */
+    public String getHost( int index)
+    {
+        return servers[index].host;
+    }
+
+    /**
+     * Returns the port of a server.
+     *
+     * @param index The index of the server, in the order listed.
+     */
+    public int getPort( int index)
+    {
+        return servers[index].port;
+    }
+
+    /**
+     * Returns true if a server is available, false if it could not be
+     * connected to and has not been reached since.
+     *
+     * @param index The index of the server, in the order listed.
+     */
+    public boolean isAvailable( int index)
+    {
+        return servers[index].available;
+    }
+
+    /**
+     * Returns the number of operations outstanding on the connections of the
+     * set to a server.
+     *
+     * @param index The index of the server, in the order listed.
+     */
+    public int getOutstandingOperations( int index)
+    {
+        return servers[index].outstanding.get();
+    }
+
+    /**
+     * Returns the average response time of a server, in nanoseconds, or 0
+     * if no response has been received from it.  Recent responses weigh
+     * more in the average.
+     *
+     * @param index The index of the server, in the order listed.
+     */
+    public long getResponseTime( int index)
+    {
+        return servers[index].responseTime;
+    }
+
+    /**
+     * Sets the interval at which unavailable servers are probed.
+     *
+     * @param interval The interval in milliseconds, the default is 10
+     * seconds.
+     */
+    public void setProbeInterval( long interval)
+    {
+        if( interval <= 0) {
+            throw new IllegalArgumentException(
+                "Invalid probe interval " + interval);
+        }
+        probeInterval = interval;
+        return;
+    }
+
+    /**
+     * Returns the interval at which unavailable servers are probed, in
+     * milliseconds.
+     */
+    public long getProbeInterval()
+    {
+        return probeInterval;
+    }
+
+    /**
+     * Returns the index of the server an LDAPConnection was connected to by
+     * this set, or -1 if it was not connected by this set.
+     *
+     * @param ldapConnection The connection.
+     */
+    public int getServerIndex( LDAPConnection ldapConnection)
+    {
+        Server server = ldapConnection.getConnection().getServer();
+        if( (server == null) || (server.set != this)) {
+            return -1;
+        }
+        return server.index;
+    }
+
+    /**
+     * Returns the indexes of the servers in the order the strategy of the set
+     * prefers them now.  The available servers come first.
+     */
+    public int[] getPreferredServers()
+    {
+        int n = servers.length;
+        int[] order = new int[n];
+        if( n == 1) {
+            return order;
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        for( int i = 0; i < n; i++) {
+            order[i] = (strategy == FAILOVER) ? i : (start + i) % n;
+        }
+        switch( strategy) {
+            case FEWEST_OPERATIONS:
+                // Stable, so servers equally loaded are taken in turn
+                for( int i = 1; i < n; i++) {
+                    int s = order[i];
+                    int load = servers[s].outstanding.get();
+                    int j = i - 1;
+                    while( (j >= 0) &&
+                           (servers[order[j]].outstanding.get() > load)) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = s;
+                }
+                break;
+            case LATENCY_WEIGHTED:
+                weigh( order);
+                break;
+            default:
+                break;
+        }
+        // Unavailable servers last, keeping the order of each group
+        int[] result = new int[n];
+        int k = 0;
+        for( int i = 0; i < n; i++) {
+            if( servers[order[i]].available) {
+                result[k++] = order[i];
+            }
+        }
+        for( int i = 0; i < n; i++) {
+            if( ! servers[order[i]].available) {
+                result[k++] = order[i];
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Orders the servers from the fastest, then moves a server chosen at
+     * random, weighted by the inverse of its response time, to the front.
+     */
+    private void weigh( int[] order)
+    {
+        int n = order.length;
+        long[] times = new long[n];
+        for( int i = 0; i < n; i++) {
+            times[i] = servers[order[i]].responseTime;
+        }
+        for( int i = 1; i < n; i++) {
+            int s = order[i];
+            long t = times[i];
+            int j = i - 1;
+            while( (j >= 0) && (times[j] > t)) {
+                order[j + 1] = order[j];
+                times[j + 1] = times[j];
+                j--;
+            }
+            order[j + 1] = s;
+            times[j + 1] = t;
+        }
+        if( times[0] == 0) {
+            // Not measured yet
+            return;
+        }
+        double total = 0;
+        double[] weights = new double[n];
+        for( int i = 0; i < n; i++) {
+            weights[i] = 1.0 / times[i];
+            total += weights[i];
+        }
+        double r = ThreadLocalRandom.current().nextDouble() * total;
+        int chosen = n - 1;
+        for( int i = 0; i < n; i++) {
+            r -= weights[i];
+            if( r < 0) {
+                chosen = i;
+                break;
+            }
+        }
+        int s = order[chosen];
+        System.arraycopy( order, 0, order, 1, chosen);
+        order[0] = s;
+        return;
+    }
+
+    /**
+     * Connects an LDAPConnection to a server of the set.  The servers are
+     * tried in the order returned by getPreferredServers until a connection
+     * succeeds.  A server that cannot be connected to is marked unavailable.
+     *
+     * @param ldapConnection The connection, it should use the socket factory
+     *                       of the set.
+     *
+     * @return The index of the server connected to.
+     *
+     * @exception LDAPException The exception of the last server tried if no
+     * server could be connected to.
+     */
+    public int connect( LDAPConnection ldapConnection)
+        throws LDAPException
+    {
+        int[] order = getPreferredServers();
+        LDAPException failure = null;
+        for( int i = 0; i < order.length; i++) {
+            Server server = servers[order[i]];
+            try {
+                ldapConnection.connect( server.host, server.port);
+            } catch( LDAPException e) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.connections, "LDAPServerSet: " +
+                        server + " unavailable, " + e.toString());
+                }
+                failure = e;
+                unavailable( server);
+                continue;
+            }
+            server.available = true;
+            ldapConnection.getConnection().setServer( server);
+            return server.index;
+        }
+        throw failure;
+    }
+
+    /**
+     * Stops probing unavailable servers.  Connections made by the set are
+     * not affected.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if( prober != null) {
+            prober.interrupt();
+        }
+        return;
+    }
+
+    /*
+     * Marks a server unavailable and starts probing it.
+     */
+    private synchronized void unavailable( Server server)
+    {
+        server.available = false;
+        if( (prober == null) && ! closed) {
+            prober = LDAPConnection.getThreadFactory().newThread(
+                new Runnable() {
+                    public void run()
+                    {
+                        probe();
+                        return;
+                    }
+                });
+            if( ! prober.isDaemon()) {
+                prober.setDaemon(true);
+            }
+            prober.start();
+        }
+        return;
+    }
+
+    /*
+     * Run by the prober thread, connects to the unavailable servers at each
+     * interval until none is left.
+     */
+    private void probe()
+    {
+        try {
+            for(;;) {
+                Thread.sleep( probeInterval);
+                boolean down = false;
+                for( int i = 0; i < servers.length; i++) {
+                    Server server = servers[i];
+                    if( server.available) {
+                        continue;
+                    }
+                    LDAPConnection probe = new LDAPConnection( factory);
+                    try {
+                        probe.connect( server.host, server.port);
+                        server.available = true;
+                        if( Debug.LDAP_DEBUG) {
+                            Debug.trace( Debug.connections, "LDAPServerSet: " +
+                                server + " available again");
+                        }
+                    } catch( LDAPException e) {
+                        down = true;
+                    } finally {
+                        try {
+                            probe.disconnect();
+                        } catch( LDAPException e) {
+                            // ignore problem closing the probe
+                        }
+                    }
+                }
+                synchronized( this) {
+                    if( closed || ! (down || anyUnavailable())) {
+                        prober = null;
+                        return;
+                    }
+                }
+            }
+        } catch( InterruptedException e) {
+            synchronized( this) {
+                prober = null;
+            }
+        }
+        return;
+    }
+
+    /*
+     * Returns true if a server is marked unavailable.
+     */
+    private boolean anyUnavailable()
+    {
+        for( int i = 0; i < servers.length; i++) {
+            if( ! servers[i].available) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A server of the set, counting and timing the requests sent to it on
+     * the connections of the set.
+     */
+    /* package */
+    final class Server
+    {
+        private final LDAPServerSet set = LDAPServerSet.this;
+        private final int index;
+        private final String host;
+        private final int port;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        // Moving average of the response times, updated by reader threads
+        // without locking, a lost update only loses one sample
+        private volatile long responseTime = 0;
+        private volatile boolean available = true;
+
+        private Server( int index, String host, int port)
+        {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+            return;
+        }
+
+        /**
+         * Counts a request sent.
+         */
+        /* package */
+        void requestSent()
+        {
+            outstanding.incrementAndGet();
+            return;
+        }
+
+        /**
+         * Counts a request done, with its response time in nanoseconds, or
+         * -1 if no result was received.
+         */
+        /* package */
+        void requestDone( long nanos)
+        {
+            outstanding.decrementAndGet();
+            if( nanos >= 0) {
+                long average = responseTime;
+                if( average == 0) {
+                    responseTime = Math.max( nanos, 1);
+                } else {
+                    responseTime = Math.max( average + (nanos - average) / 8, 1);
+                }
+            }
+            return;
+        }
+
+        public String toString()
+        {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999 - 2002 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.novell.ldap.asn1.ASN1Encoded;
+
+/**
+ * An attribute set that decodes its attributes from the encoded attribute
+ * list of a search result entry as they are requested.
+ *
+ * <p>When the set is created only the attribute names are decoded, and the
+ * position of each attribute in the encoding is recorded.  An attribute and
+ * its values are decoded the first time the attribute is retrieved with
+ * <code>getAttribute</code>.  Any other operation on the set, for example
+ * iterating over it, first decodes all remaining attributes, after which the
+ * set behaves exactly as an LDAPAttributeSet.</p>
+ *
+ * <p>Since retrieving an attribute may add it to the set, the set is read
+ * while holding its lock, so that threads sharing a search result can
+ * read it as they could read an LDAPAttributeSet.</p>
+ *
+ * <p>The encoded attribute list must have been checked to be well formed
+ * by RfcSearchResultEntry.</p>
+ *
+ * @see LDAPSearchConstraints#setLazyEntryDecoding
+ */
+/* package */
+class LazyAttributeSet extends LDAPAttributeSet
+{
+    private static final long serialVersionUID = 1L;
+
+    private byte[] buffer;
+    private int limit;
+
+    /*
+     * Maps the upper case name of each attribute not yet decoded to the
+     * offset of its encoding.  Set to null once every attribute is decoded.
+     */
+    private HashMap<String,Integer> index;
+
+    /**
+     * Constructs an attribute set over an encoded attribute list.
+     *
+     * @param attributes The encoded PartialAttributeList of a search result
+     * entry.
+     */
+    /* package */
+    LazyAttributeSet(ASN1Encoded attributes)
+    {
+        super();
+        HashMap<String,Integer> index = new HashMap<String,Integer>();
+        byte[] buf = attributes.getBuffer();
+        int limit = attributes.getEnd();
+        try {
+            for( int attr = attributes.getContentOffset(); attr < limit; ) {
+                int attrEnd = ASN1Encoded.end(buf, attr, limit);
+                String key = decodeName(buf, attr, attrEnd).toUpperCase();
+                if( ! index.containsKey(key)) {
+                    // As in LDAPAttributeSet.add, the first attribute wins
+                    index.put(key, Integer.valueOf(attr));
+                }
+                attr = attrEnd;
+            }
+        } catch( IOException ioe) {
+            throw new RuntimeException("Internal error, cannot index " +
+                    "attribute list: " + ioe.toString());
+        }
+        this.buffer = buf;
+        this.limit = limit;
+        this.index = index.isEmpty() ? null : index;
+        return;
+    }
+
+    /**
+     * Decodes every attribute of an encoded attribute list into an
+     * attribute set, without creating any intermediate ASN.1 objects.
+     *
+     * @param attributes The encoded PartialAttributeList of a search result
+     * entry.<br>
+     *
+     * @param set The attribute set the decoded attributes are added to.
+     */
+    /* package */
+    static void decodeAttributes(ASN1Encoded attributes, LDAPAttributeSet set)
+    {
+        byte[] buf = attributes.getBuffer();
+        int limit = attributes.getEnd();
+        try {
+            for( int attr = attributes.getContentOffset(); attr < limit;
+                 attr = ASN1Encoded.end(buf, attr, limit)) {
+                set.add( decodeAttribute(buf, attr, limit));
+            }
+        } catch( IOException ioe) {
+            throw new RuntimeException("Internal error, cannot decode " +
+                    "attribute list: " + ioe.toString());
+        }
+        return;
+    }
+
+    /*
+     * Returns the AttributeDescription of the PartialAttribute at attr.
+     */
+    private static String decodeName(byte[] buf, int attr, int limit)
+            throws IOException
+    {
+        int type = ASN1Encoded.contentOffset(buf, attr, limit);
+        int start = ASN1Encoded.contentOffset(buf, type, limit);
+        int end = ASN1Encoded.end(buf, type, limit);
+        try {
+            return new String(buf, start, end - start, "UTF8");
+        } catch( UnsupportedEncodingException uee) {
+            throw new RuntimeException( uee.toString());
+        }
+    }
+
+    /*
+     * Decodes the PartialAttribute at attr.  Each value is copied out of the
+     * encoding exactly once, into the array holding the attribute's values,
+     * which is first sized to hold them all.
+     */
+    private static LDAPAttribute decodeAttribute(byte[] buf, int attr,
+                                                 int limit)
+            throws IOException
+    {
+        int attrEnd = ASN1Encoded.end(buf, attr, limit);
+        LDAPAttribute attribute =
+                new LDAPAttribute(decodeName(buf, attr, attrEnd));
+        int type = ASN1Encoded.contentOffset(buf, attr, attrEnd);
+        int vals = ASN1Encoded.end(buf, type, attrEnd);
+        int first = ASN1Encoded.contentOffset(buf, vals, attrEnd);
+        int count = 0;
+        int length = 0;
+        for( int val = first; val < attrEnd; ) {
+            int end = ASN1Encoded.end(buf, val, attrEnd);
+            length += end - ASN1Encoded.contentOffset(buf, val, attrEnd);
+            count++;
+            val = end;
+        }
+        attribute.ensureCapacity(count, length);
+        for( int val = first; val < attrEnd; ) {
+            int start = ASN1Encoded.contentOffset(buf, val, attrEnd);
+            int end = ASN1Encoded.end(buf, val, attrEnd);
+            attribute.addValue(buf, start, end - start);
+            val = end;
+        }
+        return attribute;
+    }
+
+    /*
+     * Decodes the attribute with the specified upper case name, if it has
+     * not yet been decoded.
+     */
+    private synchronized void load(String key)
+    {
+        if( index != null) {
+            Integer attr = index.remove(key);
+            if( attr != null) {
+                try {
+                    super.add( decodeAttribute(buffer, attr.intValue(), limit));
+                } catch( IOException ioe) {
+                    throw new RuntimeException("Internal error, cannot " +
+                            "decode attribute: " + ioe.toString());
+                }
+            }
+            if( index.isEmpty()) {
+                release();
+            }
+        }
+        return;
+    }
+
+    /*
+     * Decodes all attributes not yet decoded.
+     */
+    private synchronized void materialize()
+    {
+        if( index != null) {
+            try {
+                Iterator<Integer> i = index.values().iterator();
+                while( i.hasNext()) {
+                    super.add( decodeAttribute(buffer, i.next().intValue(),
+                                               limit));
+                }
+            } catch( IOException ioe) {
+                throw new RuntimeException("Internal error, cannot " +
+                        "decode attribute: " + ioe.toString());
+            }
+            release();
+        }
+        return;
+    }
+
+    /*
+     * Drops the reference to the encoding once it is no longer needed.
+     */
+    private void release()
+    {
+        index = null;
+        buffer = null;
+        return;
+    }
+
+    public synchronized LDAPAttribute getAttribute(String attrName)
+    {
+        load( attrName.toUpperCase());
+        return super.getAttribute(attrName);
+    }
+
+    public LDAPAttribute getAttribute(String attrName, String lang)
+    {
+        return getAttribute(attrName + ";" + lang);
+    }
+
+    public synchronized Set<?> keySet()
+    {
+        materialize();
+        return super.keySet();
+    }
+
+    public synchronized Iterator<?> iterator()
+    {
+        materialize();
+        return super.iterator();
+    }
+
+    public synchronized int size()
+    {
+        materialize();
+        return super.size();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        materialize();
+        return super.isEmpty();
+    }
+
+    public synchronized boolean contains(Object attr)
+    {
+        materialize();
+        return super.contains(attr);
+    }
+
+    public synchronized boolean add(Object attr)
+    {
+        materialize();
+        return super.add(attr);
+    }
+
+    public synchronized boolean remove(Object object)
+    {
+        materialize();
+        return super.remove(object);
+    }
+
+    public void clear()
+    {
+        // Also called from the LDAPAttributeSet constructor
+        synchronized( this) {
+            release();
+        }
+        super.clear();
+        return;
+    }
+
+    /*
+     * Serializes as a plain LDAPAttributeSet.
+     */
+    private Object writeReplace()
+    {
+        LDAPAttributeSet set = new LDAPAttributeSet();
+        set.addAll(this);
+        return set;
+    }
+}
@@ -15,6 +15,14 @@
 
 package com.novell.ldap;
 
+import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.novell.ldap.client.*;
 import com.novell.ldap.rfc2251.*;
 
@@ -29,15 +37,49 @@ class Message
     private MessageAgent agent;          // MessageAgent handling this request
     private LDAPMessageQueue queue;      // Application message queue
     private int mslimit;                 // client time limit in milliseconds
-    private Thread timer = null;         // Timeout thread
-    // Note: MessageVector is synchronized
-    private MessageVector replies = new MessageVector(5,5); // place to store replies
+    private ScheduledFuture<?> timer = null; // Scheduled client timeout
+    // Note: Vector is synchronized
+    private Vector<Object> replies = new Vector<Object>(5,5); // place to store replies
+    // Threads waiting for a reply to this message wait on replied, which
+    // unlike a monitor does not hold the carrier of a virtual thread
+    private final ReentrantLock replyLock = new ReentrantLock();
+    private final Condition replied = replyLock.newCondition();
+    /*
+     * When replyLimit replies are queued the connection stops reading until
+     * the application has taken half of them.  The reader waits on
+     * replySpace, or registers a spaceListener to be run, guarded by
+     * replyLock.  A replyLimit of 0 means the queue is not bounded.
+     */
+    private int replyLimit = 0;
+    private final Condition replySpace = replyLock.newCondition();
+    private Runnable spaceListener = null;
     private int msgId;                   // message ID of this request
     private boolean acceptReplies = true;// false if no longer accepting replies
     private boolean waitForReply = true;   // true if wait for reply
     private boolean complete = false;    // true LDAPResult received
     private String name;                 // String name used for Debug
     private BindProperties bindprops;    // Bind properties if a bind request
+    private ReferralInfo referral;       // Referral followed by this request
+    private LDAPServerSet.Server server = null; // Server set member counting
+    private long sentAt;                 // System.nanoTime() when sent
+
+    /*
+     * One timer thread serves the client time limits of all messages in the
+     * JVM.  Cancelled timeouts are removed from the queue immediately, so
+     * the queue only holds the requests actually outstanding.
+     */
+    private static final ScheduledThreadPoolExecutor timers;
+    static {
+        timers = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "LDAP Message Timer");
+                t.setDaemon(true); // If this is the last thread running, allow exit.
+                return t;
+            }
+        });
+        timers.setRemoveOnCancelPolicy(true);
+    }
 
     /**
      * Constructs a Message class encapsulating information about this message.
@@ -51,6 +93,10 @@ class Message
      * @param agent     the MessageAgent handling this message.
      *<br><br>
      * @param queue     the application LDAPMessageQueue for this message
+     *<br><br>
+     * @param referral  the referral this message follows, or null.  A
+     *                  connection following referrals may be shared by
+     *                  several requests, so the referral is kept here.
      */
     /* package */
     Message(
@@ -59,7 +105,8 @@ class Message
                         Connection       conn,
                         MessageAgent     agent,
                         LDAPMessageQueue queue,
-                        BindProperties   bindprops)
+                        BindProperties   bindprops,
+                        ReferralInfo     referral)
     {
         this.msg = msg;
         this.conn = conn;
@@ -68,6 +115,10 @@ class Message
         this.mslimit = mslimit;
         this.msgId = msg.getMessageID();
         this.bindprops = bindprops;
+        this.referral = referral;
+        if( msg instanceof LDAPSearchRequest) {
+            this.replyLimit = ((LDAPSearchRequest)msg).getMaxQueuedResults();
+        }
 
         if( Debug.LDAP_DEBUG) {
             name = "Message(" + this.msgId + "): ";
@@ -98,10 +149,27 @@ class Message
             Debug.trace( Debug.messages, name + "Sending request to " +
                 conn.getConnectionName());
         }
-        conn.writeMessage( this );
-        // Start the timer thread
+        switch( msg.getType())
+        {
+            case LDAPMessage.ABANDON_REQUEST:
+            case LDAPMessage.UNBIND_REQUEST:
+                // No response is expected
+                break;
+            default:
+                // Counted before it is written, the result may be read
+                // before write returns
+                requestSent( conn.getServer());
+                break;
+        }
+        try {
+            conn.writeMessage( this );
+        } catch( LDAPException ex) {
+            requestDone( false);
+            throw ex;
+        }
+        // Start the timer
         if( mslimit != 0 ) {
-            // Don't start the timer thread for abandon or Unbind
+            // Don't start the timer for abandon or Unbind
             switch( msg.getType())
             {
                 case LDAPMessage.ABANDON_REQUEST:
@@ -109,10 +177,13 @@ class Message
                     mslimit = 0;
                     break;
                 default:
-                    // start the timer thread
-                    timer = new Timeout( mslimit, this);
-                    timer.setDaemon(true); // If this is the last thread running, allow exit.
-                    timer.start();
+                    // schedule the timeout
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.messages, name +
+                           "client timer started, " + mslimit + " milliseconds");
+                    }
+                    timer = timers.schedule( new Timeout( this),
+                                             mslimit, TimeUnit.MILLISECONDS);
                     break;
             }
         }
@@ -166,6 +237,7 @@ class Message
     void refuseReplies()
     {
         acceptReplies = false;
+        replyTaken();
         return;
     }
 
@@ -179,15 +251,34 @@ class Message
         return;
     }
 
+    /**
+     * Runs a task on the timer thread after a delay, for other client side
+     * timers.  The task must not block.
+     *
+     * @param task the task to run
+     *<br><br>
+     * @param ms   the delay in milliseconds
+     *
+     * @return the future to cancel the task with
+     */
+    /* package */
+    static ScheduledFuture<?> schedule( Runnable task, long ms)
+    {
+        return timers.schedule( task, ms, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * stops the timeout timer from running
      */
     /* package */
     void stopTimer()
     {
-        // If timer thread started, stop it
-        if( timer != null) {
-            timer.interrupt();
+        // If timer started, cancel it
+        ScheduledFuture<?> t = timer;
+        if( t != null) {
+            if( t.cancel(false) && Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, name + "timer stopped");
+            }
         }
         return;
     }
@@ -202,11 +293,32 @@ class Message
                 agent.getAgentName());
         }
         // Notify any thread waiting for this message id
-        synchronized( replies) {
-            replies.notify();
+        replyLock.lock();
+        try {
+            replied.signal();
+        } finally {
+            replyLock.unlock();
         }
         // Notify a thread waiting for any message id
         agent.sleepersAwake(false);
+        // Deliver the reply if the queue is not read by the application
+        final LDAPMessageQueue q = queue;
+        if( q != null) {
+            if( q.deliversReplies() && ConnectionSelector.isSelectorThread()) {
+                // The application's callbacks may block, keep them off the
+                // selector thread serving other connections
+                final int id = msgId;
+                ConnectionSelector.execute( new Runnable() {
+                    public void run()
+                    {
+                        q.replyQueued( id);
+                        return;
+                    }
+                });
+            } else {
+                q.replyQueued( msgId);
+            }
+        }
         return;
     }
 
@@ -308,6 +420,7 @@ class Message
                     " in queue), message complete stopping timer, status " + res);
             }
             stopTimer();
+            requestDone( true);
             // Accept no more results for this message
             // Leave on connection queue so we can abandon if necessary
             acceptReplies = false;
@@ -354,6 +467,126 @@ class Message
         return;
     }
 
+    /*
+     * Counts the request as outstanding on a server set member.
+     */
+    private synchronized void requestSent( LDAPServerSet.Server server)
+    {
+        if( server != null) {
+            this.server = server;
+            sentAt = System.nanoTime();
+            server.requestSent();
+        }
+        return;
+    }
+
+    /*
+     * Counts the request as no longer outstanding on its server set member,
+     * with its response time if a result was received.  Called when the
+     * result is received and when the request is abandoned, only the first
+     * call counts.
+     */
+    private synchronized void requestDone( boolean responded)
+    {
+        if( server != null) {
+            server.requestDone( responded ? System.nanoTime() - sentAt : -1);
+            server = null;
+        }
+        return;
+    }
+
+    /**
+     * Returns true if the reply queue is bounded and full, the connection
+     * must stop reading until there is space again.
+     */
+    /* package */
+    boolean isReplyQueueFull()
+    {
+        return (replyLimit > 0) && acceptReplies &&
+               (replies.size() >= replyLimit);
+    }
+
+    /*
+     * Returns true if reading may resume, the application has taken half of
+     * the replies queued or the message accepts no more replies.
+     */
+    private boolean hasReplySpace()
+    {
+        return (! acceptReplies) || (replies.size() <= replyLimit / 2);
+    }
+
+    /**
+     * Waits until reading may resume after the reply queue was found full.
+     */
+    /* package */
+    void waitForReplySpace()
+    {
+        replyLock.lock();
+        try {
+            while( ! hasReplySpace()) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.messages, name +
+                        "Reply queue full, reader waiting");
+                }
+                replySpace.awaitUninterruptibly();
+            }
+        } finally {
+            replyLock.unlock();
+        }
+        return;
+    }
+
+    /**
+     * Registers a listener run once reading may resume after the reply queue
+     * was found full.
+     *
+     * @param listener run by the thread that makes space in the queue.
+     *
+     * @return false if reading may already resume, the listener is not
+     * registered.
+     */
+    /* package */
+    boolean whenReplySpace( Runnable listener)
+    {
+        replyLock.lock();
+        try {
+            if( hasReplySpace()) {
+                return false;
+            }
+            spaceListener = listener;
+            return true;
+        } finally {
+            replyLock.unlock();
+        }
+    }
+
+    /*
+     * Called after a reply is taken from a bounded queue, or the message
+     * stops accepting replies, to let a stopped reader resume.
+     */
+    private void replyTaken()
+    {
+        if( replyLimit == 0) {
+            return;
+        }
+        Runnable listener;
+        replyLock.lock();
+        try {
+            if( ! hasReplySpace()) {
+                return;
+            }
+            replySpace.signalAll();
+            listener = spaceListener;
+            spaceListener = null;
+        } finally {
+            replyLock.unlock();
+        }
+        if( listener != null) {
+            listener.run();
+        }
+        return;
+    }
+
     /**
      * Gets the next reply from the reply queue or waits until one is there
      *
@@ -368,11 +601,20 @@ class Message
         if( replies == null) {
             return null;
         }
-        // sync on message so don't confuse with timer thread
-        synchronized( replies ) {
+        // lock message so don't confuse with timer thread
+        replyLock.lock();
+        try {
             Object msg = null;
             while( waitForReply ) {
-                if( replies.isEmpty()) {
+                synchronized( replies) {
+                    // Test and remove must be atomic
+                    if( ! replies.isEmpty()) {
+                        msg = replies.remove(0);
+                    }
+                }
+                if( msg != null) {
+                    replyTaken();
+                } else {
                     if( Debug.LDAP_DEBUG) {
                         Debug.trace( Debug.messages, name +
                             "No replies queued, waitForReply=" + waitForReply);
@@ -382,7 +624,7 @@ class Message
                             Debug.trace( Debug.messages, name +
                                 "Wait for a reply");
                         }
-                        replies.wait();
+                        replied.await();
                     } catch(InterruptedException ir) {
                         ; // do nothing
                     }
@@ -391,8 +633,6 @@ class Message
                     } else {
                         break;
                     }
-                } else {
-                    msg = replies.remove(0); // Atomic get and remove
                 }
                 if( (complete || ! acceptReplies) && replies.isEmpty()) {
                     // Remove msg from connection queue when last reply read
@@ -412,6 +652,8 @@ class Message
                 return msg;
             }
             return null;
+        } finally {
+            replyLock.unlock();
         }
     }
 
@@ -438,6 +680,7 @@ class Message
                 }
                 msg = replies.remove(0); // Atomic get and remove
             }
+            replyTaken();
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.messages, name +
                         "Got reply from queue(" +
@@ -476,7 +719,9 @@ class Message
         }
         acceptReplies = false;  // don't listen to anyone
         waitForReply = false;   // don't let sleeping threads lie
+        replyTaken();           // don't keep the reader waiting
         if( ! complete) {
+            requestDone( false);
             try {
                 // If a bind, release bind semaphore & wake up waiting threads
                 // Must do before writing abandon message, otherwise deadlock
@@ -515,14 +760,13 @@ class Message
         }
         // Get rid of all replies queued
         if( informUserEx != null) {
-            replies.addElement( new LDAPResponse( informUserEx,
-                        conn.getActiveReferral()));
+            replies.addElement( new LDAPResponse( informUserEx, referral));
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.messages, name +
                         "Queued exception as LDAPResponse (" + replies.size() +
                         " in queue):" +
                         " following referral=" +
-                        (conn.getActiveReferral() != null) + "\n\texception: " +
+                        (referral != null) + "\n\texception: " +
                         informUserEx.getLDAPErrorMessage());
             }
             stopTimer();
@@ -566,6 +810,7 @@ class Message
                     replies.remove(0);
                 }
             }
+            replyTaken();
         } catch ( Throwable ex ) {
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.messages, name +
@@ -608,49 +853,41 @@ class Message
     }
 
     /**
-     * Timer class to provide timing for messages.  Only called
-     * if time to wait is non zero.
+     * Timeout task run by the shared timer when a message's time limit
+     * expires.  Future input is stopped at once, and the request is timed
+     * out by a worker thread shared with the connection selectors:
+     * abandoning it writes to the connection, which may wait for the
+     * connection's writer, and must not hold up the timer serving every
+     * connection.  Only scheduled if time to wait is non zero.
      */
-    private final class Timeout extends Thread
+    private static final class Timeout implements Runnable
     {
-        private int timeToWait = 0;
         private Message message;
+        private boolean expired = false;    // true once run by the timer
 
         /* package */
-        Timeout( int interval, Message msg)
+        Timeout( Message msg)
         {
-            super();
-            timeToWait = interval;
             message = msg;
             return;
         }
 
-        /**
-         * The timeout thread.  If it wakes from the sleep, future input
-         * is stopped and the request is timed out.
-        */
         public final void run()
         {
-            try {
+            if( expired) {
                 if( Debug.LDAP_DEBUG) {
                     Debug.trace( Debug.messages, message.name +
-                       "client timer started, " + timeToWait + " milliseconds");
-                }
-                sleep(timeToWait);
-                message.acceptReplies = false;
-                if( Debug.LDAP_DEBUG) {
-                    Debug.trace( Debug.messages, message.name + "client timed out");
+                                                        "client timed out");
                 }
                 // Note: Abandon clears the bind semaphore after failed bind.
                 message.abandon( null,
-                            new InterThreadException("Client request timed out",
-                            null, LDAPException.LDAP_TIMEOUT, null, message));
-            } catch ( InterruptedException ie ) {
-                if( Debug.LDAP_DEBUG) {
-                    Debug.trace( Debug.messages, message.name + "timer stopped");
-                }
-                // the timer was stopped, do nothing
+                        new InterThreadException("Client request timed out",
+                        null, LDAPException.LDAP_TIMEOUT, null, message));
+                return;
             }
+            expired = true;
+            message.acceptReplies = false;
+            ConnectionSelector.execute( this);
             return;
         }
     }
@@ -15,6 +15,9 @@
 
 package com.novell.ldap;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.novell.ldap.client.*;
 
 /* package */
@@ -22,6 +25,13 @@ class MessageAgent
 {
     private MessageVector messages = new MessageVector(5,5);
     private int indexLastRead =0;
+    /*
+     * Threads waiting for a response to any of the agent's messages wait on
+     * arrived rather than on the messages monitor, so a waiting virtual
+     * thread does not hold its carrier thread.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition arrived = waitLock.newCondition();
     private static Object nameLock = new Object(); // protect agentNum
     private static int agentNum = 0; // Debug, agent number
     private String name;             // String name for debug
@@ -68,18 +78,21 @@ class MessageAgent
                     messages.size());
             }
         }
-        synchronized(messages) {
+        waitLock.lock();
+        try {
             if( Debug.LDAP_DEBUG) {
                 Debug.trace( Debug.messages, name +
                     "Messages in queue");
                 debugDisplayMessages();
             }
             if( msgs.length > 1) {
-                messages.notifyAll();  // wake all threads waiting for messages
+                arrived.signalAll();  // wake all threads waiting for messages
             } else
             if( msgs.length == 1) {
-                messages.notify();    // only wake one thread
+                arrived.signal();    // only wake one thread
             }
+        } finally {
+            waitLock.unlock();
         }
         return;
     }
@@ -92,11 +105,14 @@ class MessageAgent
      /* package */
      final void sleepersAwake(boolean all)
      {
-        synchronized(messages) {
+        waitLock.lock();
+        try {
             if( all)
-                messages.notifyAll();
+                arrived.signalAll();
             else
-                messages.notify();
+                arrived.signal();
+        } finally {
+            waitLock.unlock();
         }
         return;
      }
@@ -140,6 +156,23 @@ class MessageAgent
         }
     }
 
+    /**
+     * Returns true if the request with msgId is handled by this agent, that
+     * is it is outstanding or has replies not yet retrieved.
+     *
+     * @param msgId the message id of the request
+     */
+    /* package */
+    final boolean hasMessage( int msgId)
+    {
+        try {
+            messages.findMessageById( msgId);
+            return true;
+        } catch( NoSuchFieldException ex ) {
+            return false;
+        }
+    }
+
     /**
      * Abandon the request associated with MsgId
      *
@@ -272,11 +305,34 @@ class MessageAgent
                             LDAPMessageQueue queue,
                             BindProperties   bindProps)
             throws LDAPException
+    {
+        sendMessage( conn, msg, timeOut, queue, bindProps, null);
+        return;
+    }
+
+    /**
+     * Send a request following a referral to the server.
+     *
+     * @param referral the referral followed by the request, reported if
+     * the request fails.
+     *
+     * @see #sendMessage(Connection, LDAPMessage, int, LDAPMessageQueue,
+     *                   BindProperties)
+     */
+    /* package */
+    final void sendMessage(
+                            Connection       conn,
+                            LDAPMessage      msg,
+                            int              timeOut,
+                            LDAPMessageQueue queue,
+                            BindProperties   bindProps,
+                            ReferralInfo     referral)
+            throws LDAPException
     {
         // creating a messageInfo causes the message to be sent
         // and a timer to be started if needed.
         Message message = new Message( msg, timeOut, conn,
-                                    this, queue, bindProps);
+                                    this, queue, bindProps, referral);
         messages.addElement( message);
         if( Debug.LDAP_DEBUG) {
             Debug.trace( Debug.messages, name +
@@ -287,6 +343,38 @@ class MessageAgent
         return;
     }
 
+    /**
+     * Returns a response queued for a message without waiting, including a
+     * local error queued when the message was abandoned.  The message is
+     * removed when its last response is returned.
+     *
+     * @param msgId the message id of the request
+     *
+     * @return the response, or null if none is queued
+     */
+    /* package */
+    final Object pollLDAPMessage( int msgId)
+    {
+        Message info;
+        try {
+            info = messages.findMessageById( msgId);
+        } catch( NoSuchFieldException ex ) { // no such message id
+            return null;
+        }
+        Object rfcMsg = info.getReply();
+        if( ! info.acceptsReplies() && ! info.hasReplies()) {
+            // Message complete and no more replies, remove from id list
+            messages.removeElement( info);
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, name +
+                    "pollLDAPMessage: Return Last Message(" +
+                    info.getMessageID() + ")");
+            }
+            info.abandon(null, null);      // Get rid of resources
+        }
+        return rfcMsg;
+    }
+
     /**
      * Returns a response queued, or waits if none queued
      *
@@ -335,60 +423,63 @@ class MessageAgent
             }
         } else {
             // A msgId was NOT specified, any message will do
-            synchronized( messages ) {
+            waitLock.lock();
+            try {
                 while( true) {
-                    if( Debug.LDAP_DEBUG) {
-                        Debug.trace( Debug.messages, name +
-                            "getLDAPMessage: Look for any reply, " +
-                            messages.size() + " messages active");
-                    }
-                    int next = indexLastRead + 1;
-                    Message info;
-                    for( int i = 0; i < messages.size(); i++) {
-                       if( next >= messages.size() ) {
-                           next = 0;
-                       }
-                       info = (Message)messages.elementAt(next);
-                       indexLastRead = next++;
-                       rfcMsg = info.getReply();
-                       // Check this request is complete
-                       if( ! info.acceptsReplies() && ! info.hasReplies()) {
-                          // Message complete & no more replies, remove from id list
-                          if( Debug.LDAP_DEBUG) {
-                             Debug.trace( Debug.messages, name +
-                                 "getLDAPMessage: cleanup Message(" +
-                                 info.getMessageID() + ")");
-                          }
-                          messages.removeElement( info); // remove from list
-                          info.abandon(null, null); // Get rid of resources
-                          // Start loop at next message that is now moved
-                          // to the current position in the Vector.
-                          i -= 1;
-                       }
-                       if( rfcMsg != null) {
-                          // We got a reply
-                          if( Debug.LDAP_DEBUG) {
-                             Debug.trace( Debug.messages, name +
-                                 "getLDAPMessage: Return response to Message(" +
+                    synchronized( messages ) {
+                        if( Debug.LDAP_DEBUG) {
+                            Debug.trace( Debug.messages, name +
+                                "getLDAPMessage: Look for any reply, " +
+                                messages.size() + " messages active");
+                        }
+                        int next = indexLastRead + 1;
+                        Message info;
+                        for( int i = 0; i < messages.size(); i++) {
+                           if( next >= messages.size() ) {
+                               next = 0;
+                           }
+                           info = (Message)messages.elementAt(next);
+                           indexLastRead = next++;
+                           rfcMsg = info.getReply();
+                           // Check this request is complete
+                           if( ! info.acceptsReplies() && ! info.hasReplies()) {
+                              // Message complete & no more replies, remove from id list
+                              if( Debug.LDAP_DEBUG) {
+                                 Debug.trace( Debug.messages, name +
+                                     "getLDAPMessage: cleanup Message(" +
+                                     info.getMessageID() + ")");
+                              }
+                              messages.removeElement( info); // remove from list
+                              info.abandon(null, null); // Get rid of resources
+                              // Start loop at next message that is now moved
+                              // to the current position in the Vector.
+                              i -= 1;
+                           }
+                           if( rfcMsg != null) {
+                              // We got a reply
+                              if( Debug.LDAP_DEBUG) {
+                                 Debug.trace( Debug.messages, name +
+                                     "getLDAPMessage: Return response to Message(" +
+                                     info.getMessageID() + ")");
+                                 debugDisplayMessages();
+                              }
+                              return rfcMsg;
+                           } else {
+                              // We found no reply here
+                              if( Debug.LDAP_DEBUG) {
+                                 Debug.trace( Debug.messages, name +
+                                 "getLDAPMessage: no messages queued for Message(" +
                                  info.getMessageID() + ")");
-                             debugDisplayMessages();
-                          }
-                          return rfcMsg;
-                       } else {
-                          // We found no reply here
-                          if( Debug.LDAP_DEBUG) {
-                             Debug.trace( Debug.messages, name +
-                             "getLDAPMessage: no messages queued for Message(" +
-                             info.getMessageID() + ")");
-                          }
-                       }
-                    } // end for loop */
+                              }
+                           }
+                        } // end for loop */
 
-                    // Messages can be removed in this loop, we we must
-                    // check if any messages left for this agent
-                    if( messages.size() == 0) {
-                        return null;
-                    }
+                        // Messages can be removed in this loop, we we must
+                        // check if any messages left for this agent
+                        if( messages.size() == 0) {
+                            return null;
+                        }
+                    } /* end synchronized */
 
                     // No data, wait for something to come in.
                     try {
@@ -396,7 +487,7 @@ class MessageAgent
                            Debug.trace( Debug.messages, name +
                            "getLDAPMessage: waiting for incoming messages");
                         }
-                        messages.wait();
+                        arrived.await();
                         if( Debug.LDAP_DEBUG) {
                            Debug.trace( Debug.messages, name +
                            "getLDAPMessage: wake up from wait");
@@ -408,7 +499,9 @@ class MessageAgent
                         }
                     }
                 } /* end while */
-            } /* end synchronized */
+            } finally {
+                waitLock.unlock();
+            }
         }
     }
 
@@ -15,15 +15,31 @@
 
 package com.novell.ldap;
 
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
 import com.novell.ldap.client.*;
 
 /**
  * The <code>MessageVector</code> class implements additional semantics
  * to Vector needed for handling messages.
+ *
+ * <p>Message objects held in the vector are also indexed by message ID,
+ * so {@link #findMessageById} is a constant time lookup that does not
+ * take the vector's monitor.  All methods that modify the vector keep the
+ * index up to date.</p>
  */
 /* package */
-class MessageVector extends java.util.Vector
+class MessageVector extends java.util.Vector<Object>
 {
+    private static final long serialVersionUID = 1L;
+
+    // Message ID to Message for every Message element in the vector
+    private final ConcurrentHashMap<Integer,Message> index =
+                                    new ConcurrentHashMap<Integer,Message>();
+
     /* package */
     MessageVector( int cap, int incr)
     {
@@ -43,19 +59,14 @@ class MessageVector extends java.util.Vector
      * value for the MsgId field can be found.
      */
     /* package */
-    final synchronized Message findMessageById( int msgId)
+    final Message findMessageById( int msgId)
                 throws NoSuchFieldException
     {
-        Message msg = null;
-        for( int i = 0; i < elementCount; i++) {
-            if( (msg = (Message)elementData[i]) == null) {
-                throw new NoSuchFieldException();
-            }
-            if( msg.getMessageID() == msgId) {
-                return msg;
-            }
+        Message msg = index.get( Integer.valueOf(msgId));
+        if( msg == null) {
+            throw new NoSuchFieldException();
         }
-        throw new NoSuchFieldException();
+        return msg;
     }
 
     /** Returns an array containing all of the elements in this MessageVector.
@@ -73,6 +84,173 @@ class MessageVector extends java.util.Vector
             elementData[i] = null;
         }
         elementCount = 0;
+        index.clear();
         return results;
     }
+
+    /*
+     * Index maintenance.  Only Message objects are indexed, the vector is
+     * also used to hold replies.
+     */
+    private void indexAdd( Object obj)
+    {
+        if( obj instanceof Message) {
+            Message msg = (Message)obj;
+            index.put( Integer.valueOf(msg.getMessageID()), msg);
+        }
+        return;
+    }
+
+    private void indexRemove( Object obj)
+    {
+        if( obj instanceof Message) {
+            Message msg = (Message)obj;
+            index.remove( Integer.valueOf(msg.getMessageID()), msg);
+        }
+        return;
+    }
+
+    private void reindex()
+    {
+        index.clear();
+        for( int i = 0; i < elementCount; i++) {
+            indexAdd( elementData[i]);
+        }
+        return;
+    }
+
+    public synchronized void addElement( Object obj)
+    {
+        super.addElement( obj);
+        indexAdd( obj);
+        return;
+    }
+
+    public synchronized boolean add( Object obj)
+    {
+        super.addElement( obj);
+        indexAdd( obj);
+        return true;
+    }
+
+    public synchronized void insertElementAt( Object obj, int i)
+    {
+        super.insertElementAt( obj, i);
+        indexAdd( obj);
+        return;
+    }
+
+    public void add( int i, Object obj)
+    {
+        insertElementAt( obj, i);
+        return;
+    }
+
+    public synchronized void setElementAt( Object obj, int i)
+    {
+        Object old = elementAt( i);
+        super.setElementAt( obj, i);
+        indexRemove( old);
+        indexAdd( obj);
+        return;
+    }
+
+    public synchronized Object set( int i, Object obj)
+    {
+        Object old = super.set( i, obj);
+        indexRemove( old);
+        indexAdd( obj);
+        return old;
+    }
+
+    public synchronized boolean removeElement( Object obj)
+    {
+        boolean removed = super.removeElement( obj);
+        if( removed) {
+            indexRemove( obj);
+        }
+        return removed;
+    }
+
+    public boolean remove( Object obj)
+    {
+        return removeElement( obj);
+    }
+
+    public synchronized void removeElementAt( int i)
+    {
+        Object old = elementAt( i);
+        super.removeElementAt( i);
+        indexRemove( old);
+        return;
+    }
+
+    public synchronized Object remove( int i)
+    {
+        Object old = super.remove( i);
+        indexRemove( old);
+        return old;
+    }
+
+    public synchronized void removeAllElements()
+    {
+        super.removeAllElements();
+        index.clear();
+        return;
+    }
+
+    public void clear()
+    {
+        removeAllElements();
+        return;
+    }
+
+    public synchronized boolean addAll( Collection<? extends Object> c)
+    {
+        boolean changed = super.addAll( c);
+        reindex();
+        return changed;
+    }
+
+    public synchronized boolean addAll( int i, Collection<? extends Object> c)
+    {
+        boolean changed = super.addAll( i, c);
+        reindex();
+        return changed;
+    }
+
+    public synchronized boolean removeAll( Collection<?> c)
+    {
+        boolean changed = super.removeAll( c);
+        reindex();
+        return changed;
+    }
+
+    public synchronized boolean retainAll( Collection<?> c)
+    {
+        boolean changed = super.retainAll( c);
+        reindex();
+        return changed;
+    }
+
+    public synchronized boolean removeIf( Predicate<? super Object> filter)
+    {
+        boolean changed = super.removeIf( filter);
+        reindex();
+        return changed;
+    }
+
+    public synchronized void replaceAll( UnaryOperator<Object> operator)
+    {
+        super.replaceAll( operator);
+        reindex();
+        return;
+    }
+
+    protected synchronized void removeRange( int from, int to)
+    {
+        super.removeRange( from, to);
+        reindex();
+        return;
+    }
 }
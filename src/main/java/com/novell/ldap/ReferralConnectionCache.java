@@ -0,0 +1,400 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import com.novell.ldap.client.Debug;
+
+/**
+ * Keeps the connections opened to follow referrals, so the referrals of
+ * later requests to the same server are followed without connecting and
+ * binding again.
+ *
+ * <p>Connections are keyed by host, port and bind DN, a connection found
+ * for the key is only used if it was bound with the same password.  LDAP
+ * requests are multiplexed on a connection, so a cached connection is used
+ * by any number of requests at once.  While one thread connects to a
+ * server, the other threads following a referral to the same server wait
+ * for the connection instead of opening their own.</p>
+ *
+ * <p>A connection is kept after its last use for the idle timeout, and at
+ * most maxConnections connections are kept, the least recently used are
+ * closed first.  Connections in use are never closed.</p>
+ */
+/* package */
+final class ReferralConnectionCache
+{
+    private final int maxConnections;
+    private final int idleTimeout;
+
+    // Entries by key, least recently used first
+    private final LinkedHashMap<String,Entry> entries =
+                        new LinkedHashMap<String,Entry>( 16, 0.75f, true);
+    // The entries of the connections in use, by connection
+    private final IdentityHashMap<LDAPConnection,Entry> leased =
+                        new IdentityHashMap<LDAPConnection,Entry>();
+    // Scheduled removal of idle connections, null if none is scheduled
+    private ScheduledFuture<?> sweep = null;
+
+    private static Object nameLock = new Object(); // protect cacheNum
+    private static int cacheNum = 0;    // Debug, cache number
+    private String name = "";           // String name for debug
+
+    /*
+     * A cached connection, or a connection being opened.
+     */
+    private static final class Entry
+    {
+        private final String key;
+        private final byte[] password;
+        private LDAPConnection conn = null; // null while connecting
+        private int users = 0;              // requests using the connection
+        private long idleSince = 0;         // time of the last release
+        private boolean retired = false;    // removed from the cache
+
+        private Entry( String key, byte[] password)
+        {
+            this.key = key;
+            // The caller may reuse its array, keep the password it bound with
+            this.password = (password == null) ? null : password.clone();
+            return;
+        }
+    }
+
+    /**
+     * Constructs a cache of referral connections.
+     *
+     * @param maxConnections the maximum number of connections kept
+     *<br><br>
+     * @param idleTimeout    the milliseconds a connection is kept after its
+     *                       last use, 0 to keep it until the cache is full
+     */
+    /* package */
+    ReferralConnectionCache( int maxConnections, int idleTimeout)
+    {
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        if( Debug.LDAP_DEBUG) {
+            synchronized( nameLock) {
+                name = "ReferralConnectionCache(" + ++cacheNum + "): ";
+            }
+            Debug.trace( Debug.referrals, name + "Created, " +
+                maxConnections + " connections, idle timeout " + idleTimeout);
+        }
+        return;
+    }
+
+    /**
+     * Returns the maximum number of connections kept.
+     */
+    /* package */
+    int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the milliseconds a connection is kept after its last use.
+     */
+    /* package */
+    int getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns the key of the connections to a server bound as a DN.
+     *
+     * @param host the host of the referral URL
+     *<br><br>
+     * @param port the port of the referral URL
+     *<br><br>
+     * @param dn   the bind DN, null for an anonymous bind
+     */
+    /* package */
+    static String getKey( String host, int port, String dn)
+    {
+        return host.toLowerCase() + ":" + port + " " + ((dn == null) ? "" : dn);
+    }
+
+    /**
+     * Returns the cached connection for a key, bound with the password.
+     *
+     * <p>If no connection is cached for the key null is returned, the
+     * caller must open the connection and call connected, or call failed if
+     * it could not.  If another thread is opening the connection, waits
+     * for it.</p>
+     *
+     * @param key      the key from getKey
+     *<br><br>
+     * @param password the bind password, null for an anonymous bind
+     *
+     * @return the connection, or null if the caller must open it
+     */
+    /* package */
+    LDAPConnection acquire( String key, byte[] password)
+    {
+        ArrayList<LDAPConnection> stale = new ArrayList<LDAPConnection>();
+        LDAPConnection conn = null;
+        boolean interrupted = false;
+        synchronized( this) {
+            while( true) {
+                Entry entry = entries.get( key);
+                if( entry == null) {
+                    entry = new Entry( key, password);
+                    entry.users = 1;
+                    entries.put( key, entry);
+                    break;
+                }
+                if( entry.conn == null) {
+                    // Another thread is opening the connection
+                    try {
+                        wait();
+                    } catch( InterruptedException ex) {
+                        interrupted = true;
+                    }
+                    continue;
+                }
+                if( ! Arrays.equals( entry.password, password) ||
+                        ! entry.conn.isConnected()) {
+                    // Credentials changed or connection lost, replace it
+                    retire( entry, stale);
+                    continue;
+                }
+                entry.users++;
+                leased.put( entry.conn, entry);
+                conn = entry.conn;
+                break;
+            }
+        }
+        if( interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        disconnect( stale);
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.referrals, name + ((conn == null) ?
+                "Not cached, " : "Using cached connection, ") + key);
+        }
+        return conn;
+    }
+
+    /**
+     * Caches the connection opened after acquire returned null.
+     *
+     * @param key  the key given to acquire
+     *<br><br>
+     * @param conn the connected and bound connection
+     */
+    /* package */
+    synchronized void connected( String key, LDAPConnection conn)
+    {
+        Entry entry = entries.get( key);
+        if( (entry != null) && (entry.conn == null)) {
+            entry.conn = conn;
+            leased.put( conn, entry);
+            notifyAll();
+        }
+        // else the cache was cleared, the connection is closed on release
+        return;
+    }
+
+    /**
+     * Removes the key after the connection could not be opened, another
+     * thread waiting for the connection tries in turn.
+     *
+     * @param key the key given to acquire
+     */
+    /* package */
+    synchronized void failed( String key)
+    {
+        Entry entry = entries.get( key);
+        if( (entry != null) && (entry.conn == null)) {
+            entries.remove( key);
+            notifyAll();
+        }
+        return;
+    }
+
+    /**
+     * Releases a connection after following a referral, the connection is
+     * kept or closed.
+     *
+     * @param conn the connection
+     *
+     * @return false if the connection is not from this cache, the caller
+     *         must close it.
+     */
+    /* package */
+    boolean release( LDAPConnection conn)
+    {
+        ArrayList<LDAPConnection> stale = new ArrayList<LDAPConnection>();
+        synchronized( this) {
+            Entry entry = leased.get( conn);
+            if( entry == null) {
+                return false;
+            }
+            if( --entry.users > 0) {
+                return true;
+            }
+            leased.remove( conn);
+            if( entry.retired) {
+                stale.add( conn);
+            } else {
+                entry.idleSince = System.currentTimeMillis();
+                evict( entry.idleSince, stale);
+            }
+        }
+        disconnect( stale);
+        return true;
+    }
+
+    /**
+     * Closes the connections not in use, the connections in use are closed
+     * when they are released.
+     */
+    /* package */
+    void clear()
+    {
+        ArrayList<LDAPConnection> stale = new ArrayList<LDAPConnection>();
+        synchronized( this) {
+            if( sweep != null) {
+                sweep.cancel( false);
+                sweep = null;
+            }
+            Iterator<Entry> i = entries.values().iterator();
+            while( i.hasNext()) {
+                Entry entry = i.next();
+                entry.retired = true;
+                if( (entry.users == 0) && (entry.conn != null)) {
+                    stale.add( entry.conn);
+                }
+            }
+            entries.clear();
+            // Threads waiting for a connection being opened open their own
+            notifyAll();
+        }
+        disconnect( stale);
+        return;
+    }
+
+    /*
+     * Removes an entry from the cache, its connection is closed now if not
+     * in use, else when released.  Called with the lock held.
+     */
+    private void retire( Entry entry, ArrayList<LDAPConnection> stale)
+    {
+        entries.remove( entry.key);
+        entry.retired = true;
+        if( entry.users == 0) {
+            stale.add( entry.conn);
+        }
+        return;
+    }
+
+    /*
+     * Removes the connections idle too long, and the least recently used
+     * idle connections while more than the maximum are cached.  Schedules
+     * the next removal for the connections left idle.  Called with the
+     * lock held.
+     */
+    private void evict( long now, ArrayList<LDAPConnection> stale)
+    {
+        int excess = entries.size() - maxConnections;
+        long next = Long.MAX_VALUE;
+        Iterator<Entry> i = entries.values().iterator();
+        while( i.hasNext()) {
+            Entry entry = i.next();
+            if( (entry.users > 0) || (entry.conn == null)) {
+                continue;
+            }
+            if( (excess > 0) ||
+                    ((idleTimeout > 0) &&
+                     (now - entry.idleSince >= idleTimeout))) {
+                i.remove();
+                entry.retired = true;
+                stale.add( entry.conn);
+                excess--;
+            } else
+            if( idleTimeout > 0) {
+                next = Math.min( next, entry.idleSince + idleTimeout);
+            }
+        }
+        if( (next != Long.MAX_VALUE) && (sweep == null)) {
+            sweep = Message.schedule( new Runnable() {
+                public void run()
+                {
+                    sweep();
+                    return;
+                }
+            }, Math.max( next - now, 1));
+        }
+        return;
+    }
+
+    /*
+     * Removes the connections that have been idle too long, run by the
+     * timer thread.
+     */
+    private void sweep()
+    {
+        final ArrayList<LDAPConnection> stale =
+                                        new ArrayList<LDAPConnection>();
+        synchronized( this) {
+            sweep = null;
+            evict( System.currentTimeMillis(), stale);
+        }
+        if( ! stale.isEmpty()) {
+            // Unbinding writes to the server, keep the timer thread free
+            Connection.newDaemonThread( new Runnable() {
+                public void run()
+                {
+                    disconnect( stale);
+                    return;
+                }
+            }).start();
+        }
+        return;
+    }
+
+    /*
+     * Closes connections removed from the cache.
+     */
+    private void disconnect( ArrayList<LDAPConnection> stale)
+    {
+        for( int i = 0; i < stale.size(); i++) {
+            LDAPConnection conn = stale.get(i);
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.referrals, name +
+                    "Disconnecting " + conn.getConnectionName());
+            }
+            try {
+                conn.disconnect();
+            } catch( LDAPException ex) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.referrals, name +
+                        "Disconnect failed for " + conn.getConnectionName());
+                }
+            }
+        }
+        return;
+    }
+}
@@ -0,0 +1,162 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.novell.ldap.client.Debug;
+
+/**
+ * A response queue that completes a CompletableFuture with the result of
+ * its request, instead of being read by the application.
+ *
+ * <p>The future is completed by the thread that queues the result, usually
+ * the connection's reader, so no thread waits for the response.  A result
+ * code other than success, compare true or compare false, and any local
+ * error, completes the future exceptionally with the LDAPException that
+ * LDAPResponse.chkResultCode throws.  Intermediate responses are
+ * discarded.</p>
+ *
+ * <p>Cancelling the future abandons the request.  If the request is
+ * abandoned by other means the future is cancelled.</p>
+ */
+/* package */
+final class ResponseFuture<T> extends LDAPResponseQueue
+{
+    private final LDAPConnection conn;
+    private final Function<LDAPResponse, ? extends T> result;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+    // Serializes the delivery of replies queued by different threads
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+
+    /**
+     * Constructs a queue for one request.
+     *
+     * @param conn   the connection the request is sent on.
+     *<br><br>
+     * @param result computes the value of the future from the result.
+     */
+    /* package */
+    ResponseFuture( LDAPConnection conn,
+                    Function<LDAPResponse, ? extends T> result)
+    {
+        super( new MessageAgent());
+        this.conn = conn;
+        this.result = result;
+        future.whenComplete( (value, failure) -> {
+            if( future.isCancelled()) {
+                abandon();
+            }
+        });
+        return;
+    }
+
+    /**
+     * Returns the future completed with the result of the request.
+     */
+    /* package */
+    CompletableFuture<T> getFuture()
+    {
+        return future;
+    }
+
+    /**
+     * Completes the future exceptionally, when the request could not be
+     * sent.
+     */
+    /* package */
+    void failed( LDAPException ex)
+    {
+        future.completeExceptionally( ex);
+        return;
+    }
+
+    /* package */
+    boolean deliversReplies()
+    {
+        return true;
+    }
+
+    /* package */
+    void replyQueued( int msgId)
+    {
+        if( dispatchLock.isHeldByCurrentThread()) {
+            // Called again as the last reply is removed, the replies are
+            // delivered by the caller
+            return;
+        }
+        dispatchLock.lock();
+        try {
+            LDAPMessage response;
+            while( (response = pollResponse( msgId)) != null) {
+                if( response.getType() == LDAPMessage.INTERMEDIATE_RESPONSE) {
+                    continue;
+                }
+                complete( (LDAPResponse)response);
+            }
+            if( ! future.isDone() && ! agent.hasMessage( msgId)) {
+                // Abandoned without a result
+                future.cancel( false);
+            }
+        } catch( LDAPException ex) {
+            future.completeExceptionally( ex);
+        } finally {
+            dispatchLock.unlock();
+        }
+        return;
+    }
+
+    /*
+     * Completes the future with the result of the request.
+     */
+    private void complete( LDAPResponse response)
+    {
+        try {
+            response.chkResultCode();
+        } catch( LDAPException ex) {
+            future.completeExceptionally( ex);
+            return;
+        }
+        T value;
+        try {
+            value = result.apply( response);
+        } catch( RuntimeException ex) {
+            future.completeExceptionally( ex);
+            return;
+        }
+        future.complete( value);
+        return;
+    }
+
+    /*
+     * Abandons the request when the future is cancelled.
+     */
+    private void abandon()
+    {
+        try {
+            conn.abandon( this);
+        } catch( LDAPException ex) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, getDebugName() +
+                    "abandon of cancelled request failed: " + ex.toString());
+            }
+        }
+        return;
+    }
+}
@@ -0,0 +1,312 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.novell.ldap.client.Debug;
+
+/**
+ * A search queue that publishes the results of its search to a
+ * Flow.Subscriber, instead of being read by the application.
+ *
+ * <p>The search is sent when the publisher is subscribed to, a publisher
+ * accepts one subscriber.  Search result entries, references and
+ * intermediate responses are published as they are received, as many as the
+ * subscriber has requested.  Results received before they are requested
+ * stay in the message's reply queue, which is bounded by
+ * LDAPSearchConstraints.setMaxQueuedResults if set, so a slow subscriber
+ * stops the connection from reading instead of filling the heap.  The
+ * search result done completes the
+ * subscription, or fails it with the LDAPException of
+ * LDAPResponse.chkResultCode if the result code is not success.</p>
+ *
+ * <p>The subscriber is called by the thread that receives the results,
+ * usually the connection's reader, or by the thread requesting more
+ * results.  Calls are never concurrent.  Cancelling the subscription
+ * abandons the search.</p>
+ */
+/* package */
+final class SearchPublisher extends LDAPSearchQueue
+    implements Flow.Publisher<LDAPMessage>, Flow.Subscription
+{
+    private final LDAPConnection conn;
+    private final String base;
+    private final int scope;
+    private final String filter;
+    private final String[] attrs;
+    private final boolean typesOnly;
+    private final LDAPSearchConstraints cons;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+    private volatile Flow.Subscriber<? super LDAPMessage> subscriber = null;
+
+    // The message ID of the search, 0 until known
+    private volatile int msgId = 0;
+    // The next result taken from the reply queue, used by publish only
+    private LDAPMessage next = null;
+    // Results requested and not yet published, Long.MAX_VALUE if unbounded
+    private final AtomicLong requested = new AtomicLong(0);
+    // Set when publishing ends, by completion, failure or cancellation
+    private volatile boolean done = false;
+    private volatile Throwable failure = null;
+    // Counts the calls to publish, only one thread publishes at a time
+    private final AtomicInteger publishers = new AtomicInteger(0);
+
+    /**
+     * Constructs a publisher for a search, the search is sent when the
+     * publisher is subscribed to.
+     */
+    /* package */
+    SearchPublisher( LDAPConnection conn,
+                     String base,
+                     int scope,
+                     String filter,
+                     String[] attrs,
+                     boolean typesOnly,
+                     LDAPSearchConstraints cons)
+    {
+        super( new MessageAgent());
+        this.conn = conn;
+        this.base = base;
+        this.scope = scope;
+        this.filter = filter;
+        this.attrs = attrs;
+        this.typesOnly = typesOnly;
+        this.cons = cons;
+        return;
+    }
+
+    public void subscribe( Flow.Subscriber<? super LDAPMessage> s)
+    {
+        if( s == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if( ! subscribed.compareAndSet( false, true)) {
+            s.onSubscribe( new Flow.Subscription() {
+                public void request( long n) {
+                    return;
+                }
+                public void cancel() {
+                    return;
+                }
+            });
+            s.onError( new IllegalStateException(
+                "LDAP search publisher accepts only one subscriber"));
+            return;
+        }
+        subscriber = s;
+        s.onSubscribe( this);
+        if( done) {
+            // Cancelled by onSubscribe
+            return;
+        }
+        try {
+            conn.search( base, scope, filter, attrs, typesOnly, this, cons);
+        } catch( LDAPException ex) {
+            fail( ex);
+            return;
+        }
+        if( msgId == 0) {
+            int[] ids = getMessageIDs();
+            if( ids.length > 0) {
+                msgId = ids[0];
+            }
+        }
+        publish();
+        return;
+    }
+
+    public void request( long n)
+    {
+        if( n <= 0) {
+            fail( new IllegalArgumentException(
+                "non-positive subscription request: " + n));
+            return;
+        }
+        long current, next;
+        do {
+            current = requested.get();
+            if( current == Long.MAX_VALUE) {
+                break;
+            }
+            next = current + n;
+            if( next < 0) {
+                next = Long.MAX_VALUE;
+            }
+        } while( ! requested.compareAndSet( current, next));
+        publish();
+        return;
+    }
+
+    public void cancel()
+    {
+        if( ! done) {
+            done = true;
+            abandon();
+        }
+        return;
+    }
+
+    /* package */
+    boolean deliversReplies()
+    {
+        return true;
+    }
+
+    /* package */
+    void replyQueued( int msgId)
+    {
+        this.msgId = msgId;
+        publish();
+        return;
+    }
+
+    /*
+     * Takes the next result from the reply queue, returns null if none is
+     * queued.  Fails the subscription if the search was abandoned without
+     * a result.
+     */
+    private LDAPMessage take()
+    {
+        int id = msgId;
+        if( id == 0) {
+            // Not sent yet
+            return null;
+        }
+        LDAPMessage response;
+        try {
+            response = pollResponse( id);
+        } catch( LDAPException ex) {
+            fail( ex);
+            return null;
+        }
+        if( (response == null) && ! agent.hasMessage( id)) {
+            // Abandoned without a result
+            fail( new CancellationException("LDAP search abandoned"));
+        }
+        return response;
+    }
+
+    /*
+     * Returns true if the message is the search result done, or a local
+     * error reported as a response.
+     */
+    private static boolean isResult( LDAPMessage m)
+    {
+        return (m instanceof LDAPResponse) &&
+               (m.getType() != LDAPMessage.INTERMEDIATE_RESPONSE);
+    }
+
+    /*
+     * Ends publishing with an error, abandoning the search.
+     */
+    private void fail( Throwable t)
+    {
+        if( failure == null) {
+            failure = t;
+        }
+        publish();
+        return;
+    }
+
+    /*
+     * Publishes the results requested and any completion or failure.  Only
+     * one thread publishes at a time, a thread calling while another
+     * publishes leaves its work to that thread.  A result is only taken
+     * from the reply queue ahead of demand to see if it ends the search.
+     */
+    private void publish()
+    {
+        if( publishers.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while( ! done) {
+                Throwable t = failure;
+                if( t != null) {
+                    done = true;
+                    next = null;
+                    abandon();
+                    subscriber.onError( t);
+                    break;
+                }
+                if( next == null) {
+                    next = take();
+                    if( next == null) {
+                        // Check for a failure found by take
+                        if( failure == null) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+                if( isResult( next)) {
+                    done = true;
+                    try {
+                        ((LDAPResponse)next).chkResultCode();
+                    } catch( LDAPException ex) {
+                        subscriber.onError( ex);
+                        break;
+                    }
+                    subscriber.onComplete();
+                    break;
+                }
+                long r = requested.get();
+                if( r == 0) {
+                    break;
+                }
+                if( r != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                LDAPMessage result = next;
+                next = null;
+                try {
+                    subscriber.onNext( result);
+                } catch( RuntimeException ex) {
+                    // A failing subscriber is cancelled
+                    if( Debug.LDAP_DEBUG) {
+                        Debug.trace( Debug.messages, getDebugName() +
+                            "subscriber failed: " + ex.toString());
+                    }
+                    cancel();
+                }
+            }
+        } while( (missed = publishers.addAndGet( -missed)) != 0);
+        return;
+    }
+
+    /*
+     * Abandons the search if it is still outstanding.
+     */
+    private void abandon()
+    {
+        try {
+            conn.abandon( this);
+        } catch( LDAPException ex) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, getDebugName() +
+                    "abandon of cancelled search failed: " + ex.toString());
+            }
+        }
+        return;
+    }
+}
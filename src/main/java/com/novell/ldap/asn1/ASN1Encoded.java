@@ -0,0 +1,260 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.asn1;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An ASN.1 element kept in its LBER encoded form.
+ *
+ * <p>An ASN1Encoded is a view of one complete element, its identifier,
+ * length and content octets, within a byte array.  No copy of the array is
+ * made.  The element is decoded only when {@link #decode} is called, and
+ * encodes to exactly the octets it was created from, whichever encoder is
+ * used.</p>
+ *
+ * <p>The static {@link #contentOffset} and {@link #end} methods locate an
+ * element in an array without decoding it or allocating any objects, which
+ * allows the components of a structured element to be walked in place.</p>
+ */
+public class ASN1Encoded extends ASN1Object
+{
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] buffer;
+    private final int offset;
+    private final int contentOffset;
+    private final int end;
+
+    /**
+     * Constructs a view of the encoded element at the start of the
+     * specified region of an array.
+     *
+     * @param buffer The array containing the encoded element.<br>
+     *
+     * @param offset The offset of the identifier octets.<br>
+     *
+     * @param limit The offset following the last octet the element may
+     * occupy.
+     *
+     * @exception EOFException if the element does not fit in the region.
+     */
+    public ASN1Encoded(byte[] buffer, int offset, int limit)
+        throws IOException
+    {
+        super(null);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.contentOffset = contentOffset(buffer, offset, limit);
+        this.end = end(buffer, offset, limit);
+        ASN1Identifier id = new ASN1Identifier(
+                new ByteArrayInputStream(buffer, offset, limit - offset));
+        setIdentifier(id);
+        return;
+    }
+
+    /**
+     * Returns a view of the encoded element at the specified offset.
+     *
+     * @param buffer The array containing the encoded element.<br>
+     *
+     * @param offset The offset of the identifier octets.<br>
+     *
+     * @param limit The offset following the last octet the element may
+     * occupy.
+     *
+     * @exception EOFException if the element does not fit in the region.
+     */
+    public static ASN1Encoded parse(byte[] buffer, int offset, int limit)
+        throws IOException
+    {
+        return new ASN1Encoded(buffer, offset, limit);
+    }
+
+    /**
+     * Returns the offset of the first content octet of the encoded element
+     * at the specified offset, without decoding the element.
+     *
+     * @param buffer The array containing the encoded element.<br>
+     *
+     * @param offset The offset of the identifier octets.<br>
+     *
+     * @param limit The offset following the last octet the element may
+     * occupy.
+     *
+     * @exception EOFException if the identifier and length octets do not
+     * fit in the region.
+     */
+    public static int contentOffset(byte[] buffer, int offset, int limit)
+        throws IOException
+    {
+        int i = lengthOffset(buffer, offset, limit);
+        int r = buffer[i++] & 0xFF;
+        if( r == 0x80) {
+            throw new IOException(
+                "ASN1Encoded: indefinite length encoding not supported");
+        }
+        if( r > 0x80) {
+            i += r & 0x7F;
+            if( i > limit) {
+                throw new EOFException("ASN1Encoded: length exceeds region");
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Returns the offset following the last content octet of the encoded
+     * element at the specified offset, without decoding the element.
+     *
+     * @param buffer The array containing the encoded element.<br>
+     *
+     * @param offset The offset of the identifier octets.<br>
+     *
+     * @param limit The offset following the last octet the element may
+     * occupy.
+     *
+     * @exception EOFException if the element does not fit in the region.
+     */
+    public static int end(byte[] buffer, int offset, int limit)
+        throws IOException
+    {
+        int start = contentOffset(buffer, offset, limit);
+        int i = lengthOffset(buffer, offset, limit);
+        int r = buffer[i++] & 0xFF;
+        long length = r;
+        if( r > 0x80) {
+            int n = r & 0x7F;
+            if( n > 4) {
+                throw new IOException(
+                    "ASN1Encoded: length field of " + n + " octets too large");
+            }
+            length = 0;
+            for( ; n > 0; n--) {
+                length = (length << 8) | (buffer[i++] & 0xFF);
+            }
+        }
+        if( length > limit - start) {
+            throw new EOFException("ASN1Encoded: element exceeds region");
+        }
+        return start + (int)length;
+    }
+
+    /*
+     * Returns the offset of the first length octet, skipping the identifier
+     * octets of the element at offset.
+     */
+    private static int lengthOffset(byte[] buffer, int offset, int limit)
+        throws EOFException
+    {
+        int i = offset;
+        if( i < limit && (buffer[i++] & 0x1F) == 0x1F) {
+            // multiple octet tag number
+            while( i < limit && (buffer[i++] & 0x80) != 0);
+        }
+        if( i >= limit) {
+            throw new EOFException("ASN1Encoded: identifier exceeds region");
+        }
+        return i;
+    }
+
+    /**
+     * Writes the encoded octets of this element.
+     */
+    public final void encode(ASN1Encoder enc, OutputStream out)
+        throws IOException
+    {
+        out.write(buffer, offset, end - offset);
+        return;
+    }
+
+    /**
+     * Decodes this element.  An LBERBufferDecoder decodes the OCTET STRING
+     * values as views of the array.
+     *
+     * @param dec The decoder to use.
+     *
+     * @return the decoded element.
+     */
+    public final ASN1Object decode(ASN1Decoder dec)
+        throws IOException
+    {
+        return dec.decode(new ByteBufferInputStream(
+                ByteBuffer.wrap(buffer, offset, end - offset)));
+    }
+
+    /**
+     * Returns the array containing this element.
+     */
+    public final byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns the offset of the first identifier octet in the array.
+     */
+    public final int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the first content octet in the array.
+     */
+    public final int getContentOffset()
+    {
+        return contentOffset;
+    }
+
+    /**
+     * Returns the number of content octets.
+     */
+    public final int getContentLength()
+    {
+        return end - contentOffset;
+    }
+
+    /**
+     * Returns the offset following the last content octet in the array.
+     */
+    public final int getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Returns a copy of the content octets.
+     */
+    public final byte[] getContent()
+    {
+        byte[] content = new byte[end - contentOffset];
+        System.arraycopy(buffer, contentOffset, content, 0, content.length);
+        return content;
+    }
+
+    /**
+     * Return a String representation of this ASN1Object.
+     */
+    public String toString()
+    {
+        return super.toString() + "ENCODED: " + (end - offset) + " octets";
+    }
+}
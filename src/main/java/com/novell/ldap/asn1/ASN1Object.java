@@ -74,6 +74,10 @@ public abstract class ASN1Object implements Serializable {
      * in the child ASN1 classses.
      */
     public final byte[] getEncoding(ASN1Encoder enc) {
+        if(enc instanceof LBEREncoder) {
+            // Encodes directly into an array of the exact size
+            return ((LBEREncoder)enc).encode(this);
+        }
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
             encode(enc, out);
@@ -17,16 +17,28 @@ package com.novell.ldap.asn1;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * This class encapsulates the OCTET STRING type.
+ *
+ * <p>The value may be a view of a region of a larger array or buffer, such
+ * as the encoded message an LBERBufferDecoder decoded it from.  A copy of
+ * the octets is only made when {@link #byteValue} is called, and the string
+ * value is only decoded once.</p>
  */
 public class ASN1OctetString extends ASN1Object
 {
 
-    private byte[] content;
+    private byte[] content;                 // Array holding the value
+    private int offset;                     // Offset of the value in content
+    private int length;
+    private transient ByteBuffer direct;    // Direct buffer holding the value
+    private transient volatile byte[] copy; // Copy of a value in a region
+    private transient volatile String string; // Decoded string value
 
     /**
      * ASN.1 OCTET STRING tag definition.
@@ -54,6 +66,25 @@ public class ASN1OctetString extends ASN1Object
     {
         super(ID);
         this.content = content;
+        this.length = (content == null) ? 0 : content.length;
+        return;
+    }
+
+    /**
+     * Call this constructor to construct an ASN1OctetString
+     * object which is a view of the remaining octets of a buffer.
+     *
+     * <p>The octets are not copied, and must not be modified while
+     * this object is in use.  The position of the buffer is not
+     * changed.</p>
+     *
+     * @param content A heap or direct buffer whose position and limit
+     * bound the value.
+     */
+    public ASN1OctetString(ByteBuffer content)
+    {
+        super(ID);
+        setView(content);
         return;
     }
 
@@ -74,6 +105,7 @@ public class ASN1OctetString extends ASN1Object
         } catch(UnsupportedEncodingException uee) {
             throw new RuntimeException( uee.toString());
         }
+        this.length = this.content.length;
         return;
     }
 
@@ -88,15 +120,66 @@ public class ASN1OctetString extends ASN1Object
      *
      * @param in A byte stream that contains the encoded ASN.1
      *
+     * <p>A decoder may return the value as a ByteBuffer view of the
+     * stream's data, which is then kept without being copied.</p>
      */
     public ASN1OctetString(ASN1Decoder dec, InputStream in, int len)
             throws IOException
     {
         super(ID);
-        content = (len>0) ? (byte[])dec.decodeOctetString(in, len) : new byte[0];
+        if( (dec instanceof LBERBufferDecoder) &&
+            (in instanceof ByteBufferInputStream)) {
+            // Keep a view of the stream's buffer, without a ByteBuffer
+            // for each value when the buffer has an array
+            ByteBuffer buffer = ((ByteBufferInputStream)in).getBuffer();
+            if( buffer.hasArray() && len <= buffer.remaining()) {
+                content = buffer.array();
+                offset = buffer.arrayOffset() + buffer.position();
+                length = len;
+                buffer.position(buffer.position() + len);
+                return;
+            }
+        }
+        Object value = (len>0) ? dec.decodeOctetString(in, len) : new byte[0];
+        if( value instanceof ByteBuffer) {
+            setView((ByteBuffer)value);
+        } else {
+            content = (byte[])value;
+            length = content.length;
+        }
         return;
     }
 
+    /*
+     * Keeps the remaining octets of a buffer as the value.
+     */
+    private void setView(ByteBuffer view)
+    {
+        length = view.remaining();
+        if( view.hasArray()) {
+            content = view.array();
+            offset = view.arrayOffset() + view.position();
+        } else {
+            direct = view.slice();
+        }
+        return;
+    }
+
+
+    /*
+     * Serializes a value held in a direct buffer as a byte array.
+     */
+    private void writeObject(ObjectOutputStream out)
+            throws IOException
+    {
+        if( direct != null) {
+            content = byteValue();
+            offset = 0;
+            direct = null;
+        }
+        out.defaultWriteObject();
+        return;
+    }
 
     /* ASN1Object implementation
      */
@@ -123,23 +206,84 @@ public class ASN1OctetString extends ASN1Object
 
     /**
      * Returns the content of this ASN1OctetString as a byte array.
+     *
+     * <p>If the value is a view of part of a larger array or of a direct
+     * buffer, its octets are copied on the first call.</p>
      */
     public final byte[] byteValue()
     {
-        return content;
+        if( direct == null &&
+            (content == null || (offset == 0 && length == content.length))) {
+            return content;
+        }
+        byte[] c = copy;
+        if( c == null) {
+            c = new byte[length];
+            copyTo(c, 0);
+            copy = c;
+        }
+        return c;
+    }
+
+    /**
+     * Returns the number of octets in the content of this ASN1OctetString.
+     */
+    public final int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Copies the content of this ASN1OctetString into an array.
+     *
+     * @param dest The array to copy the content into.<br>
+     *
+     * @param destOffset The offset in dest of the first octet.
+     */
+    public final void copyTo(byte[] dest, int destOffset)
+    {
+        if( direct != null) {
+            direct.duplicate().get(dest, destOffset, length);
+        } else {
+            System.arraycopy(content, offset, dest, destOffset, length);
+        }
+        return;
     }
 
+    /**
+     * Returns the content of this ASN1OctetString as a buffer, without
+     * copying it.
+     *
+     * <p>The buffer shares the octets of this object, which must not be
+     * modified.  Its position and limit bound the content.</p>
+     */
+    public final ByteBuffer byteBufferValue()
+    {
+        if( direct != null) {
+            return direct.duplicate();
+        }
+        return ByteBuffer.wrap(content, offset, length);
+    }
 
     /**
      * Returns the content of this ASN1OctetString as a String.
+     *
+     * <p>The UTF-8 content is decoded on the first call only.</p>
      */
     public final String stringValue()
     {
-        String s = null;
-        try {
-            s = new String(content, "UTF8");
-        } catch(UnsupportedEncodingException uee) {
-            throw new RuntimeException( uee.toString());
+        String s = string;
+        if( s == null) {
+            try {
+                if( direct != null) {
+                    s = new String(byteValue(), "UTF8");
+                } else {
+                    s = new String(content, offset, length, "UTF8");
+                }
+            } catch(UnsupportedEncodingException uee) {
+                throw new RuntimeException( uee.toString());
+            }
+            string = s;
         }
         return s;
     }
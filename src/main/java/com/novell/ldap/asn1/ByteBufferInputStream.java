@@ -0,0 +1,121 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.asn1;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An unsynchronized stream over the remaining octets of a ByteBuffer.
+ *
+ * <p>Reading advances the position of the buffer.  Besides the InputStream
+ * methods, {@link #slice} returns the next octets as a view of the buffer,
+ * which LBERBufferDecoder uses to decode OCTET STRING values without
+ * copying them.</p>
+ *
+ * @see LBERBufferDecoder
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructs a stream over the octets between the position and the
+     * limit of a buffer, which may be a heap or a direct buffer.
+     *
+     * @param buffer The buffer to read.
+     */
+    public ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        return;
+    }
+
+    /**
+     * Returns the buffer read by this stream.
+     */
+    public final ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns a view of the next octets of the buffer and skips them.
+     *
+     * <p>The view shares the octets of the buffer, which must not be
+     * modified while the view is in use.</p>
+     *
+     * @param length The number of octets.
+     *
+     * @return a buffer whose position and limit bound the octets.
+     *
+     * @exception EOFException if fewer octets remain.
+     */
+    public final ByteBuffer slice(int length)
+        throws EOFException
+    {
+        if( length > buffer.remaining()) {
+            throw new EOFException("ByteBufferInputStream: slice of " +
+                length + " octets exceeds buffer");
+        }
+        int pos = buffer.position();
+        ByteBuffer view;
+        if( buffer.hasArray()) {
+            view = ByteBuffer.wrap(buffer.array(), buffer.arrayOffset() + pos,
+                                   length);
+        } else {
+            view = buffer.duplicate();
+            view.limit(pos + length);
+        }
+        buffer.position(pos + length);
+        return view;
+    }
+
+    public final int read()
+    {
+        return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    public final int read(byte[] b, int off, int len)
+    {
+        if( ! buffer.hasRemaining()) {
+            return (len == 0) ? 0 : -1;
+        }
+        if( len > buffer.remaining()) {
+            len = buffer.remaining();
+        }
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    public final long skip(long n)
+    {
+        if( n <= 0) {
+            return 0;
+        }
+        if( n > buffer.remaining()) {
+            n = buffer.remaining();
+        }
+        buffer.position(buffer.position() + (int)n);
+        return n;
+    }
+
+    public final int available()
+    {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,103 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.asn1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An LBER decoder which decodes from a ByteBuffer without copying the
+ * OCTET STRING values.
+ *
+ * <p>When reading from a {@link ByteBufferInputStream}, each OCTET STRING,
+ * including the content of an implicitly tagged element, is a view of the
+ * buffer rather than a copy of its octets.  The byte array of a value is
+ * only copied, and its String only decoded, when the application asks for
+ * it.  The buffer, which may be a heap or a direct buffer, must therefore
+ * not be modified while any object decoded from it is in use.</p>
+ *
+ * <p>Decoding from any other InputStream copies the values as
+ * LBERDecoder does.</p>
+ */
+public class LBERBufferDecoder extends LBERDecoder
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Decodes the LBER encoded element at the position of a buffer, and
+     * advances the position past it.
+     *
+     * @param buffer A heap or direct buffer holding the encoded element.
+     *
+     * @return the decoded element.
+     *
+     * @exception IOException if the element is not complete or cannot be
+     * decoded.
+     */
+    public ASN1Object decode(ByteBuffer buffer)
+        throws IOException
+    {
+        return decode(new ByteBufferInputStream(buffer));
+    }
+
+    /**
+     * Decodes an LBER encoded value from a byte array.  The decoded OCTET
+     * STRING values are views of the array.
+     */
+    public ASN1Object decode(byte[] value)
+    {
+        try {
+            return decode(ByteBuffer.wrap(value));
+        } catch(IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an OctetString, returning a ByteBuffer view of the value
+     * when reading from a ByteBufferInputStream, or else a byte array.
+     */
+    public Object decodeOctetString(InputStream in, int len)
+        throws IOException
+    {
+        if( in instanceof ByteBufferInputStream) {
+            return ((ByteBufferInputStream)in).slice(len);
+        }
+        return super.decodeOctetString(in, len);
+    }
+
+    /**
+     * Decodes a CharacterString, without an intermediate copy when reading
+     * from a ByteBufferInputStream over a heap buffer.
+     */
+    public Object decodeCharacterString(InputStream in, int len)
+        throws IOException
+    {
+        if( in instanceof ByteBufferInputStream) {
+            ByteBuffer view = ((ByteBufferInputStream)in).slice(len);
+            if( view.hasArray()) {
+                return new String(view.array(),
+                                  view.arrayOffset() + view.position(), len,
+                                  "UTF8");
+            }
+            byte[] octets = new byte[len];
+            view.get(octets);
+            return new String(octets, "UTF8");
+        }
+        return super.decodeCharacterString(in, len);
+    }
+}
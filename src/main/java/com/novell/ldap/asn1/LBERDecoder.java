@@ -211,7 +211,7 @@ public class LBERDecoder implements ASN1Decoder
    /**
     * Decode an OctetString directly from a stream.
     */
-   public final Object decodeOctetString(InputStream in, int len)
+   public Object decodeOctetString(InputStream in, int len)
       throws IOException
    {
       byte[] octets = new byte[len];
@@ -219,6 +219,8 @@ public class LBERDecoder implements ASN1Decoder
     
       while( totalLen < len) {  // Make sure we have read all the data
          int inLen = in.read(octets, totalLen, len - totalLen);
+         if(inLen < 0)
+            throw new EOFException("LBER: OCTET STRING: decode error: EOF");
          totalLen += inLen;
       }
 
@@ -228,17 +230,18 @@ public class LBERDecoder implements ASN1Decoder
    /**
     * Decode a CharacterString directly from a stream.
     */
-   public final Object decodeCharacterString(InputStream in, int len)
+   public Object decodeCharacterString(InputStream in, int len)
       throws IOException
    {
       byte[] octets = new byte[len];
+      int totalLen = 0;
 
-      for(int i=0; i<len; i++) {
-			int ret = in.read(); // blocks
-         if(ret == -1)
+      while( totalLen < len) {  // Read in as few calls as the stream allows
+         int inLen = in.read(octets, totalLen, len - totalLen); // blocks
+         if(inLen < 0)
             throw new EOFException(
                "LBER: CHARACTER STRING: decode error: EOF");
-         octets[i] = (byte)ret;
+         totalLen += inLen;
       }
 
       return new String(octets, "UTF8");
@@ -52,6 +52,10 @@ import java.io.ByteArrayOutputStream;
  * <p>[11] ITU-T Rec. X.690, "Specification of ASN.1 encoding rules: Basic,
  * Canonical, and Distinguished Encoding Rules", 1994.
  *
+ * <p>Structured and explicitly tagged types are encoded by
+ * {@link #encode(ASN1Object)}, which computes the content length of every
+ * nested element in one pass and then writes each element once into a
+ * single array of the exact encoded size.
  */
 public class LBEREncoder implements ASN1Encoder {
 
@@ -174,22 +178,7 @@ public class LBEREncoder implements ASN1Encoder {
    public final void encode(ASN1Structured c, OutputStream out)
       throws IOException
    {
-      encode(c.getIdentifier(), out);
-
-      ASN1Object[] value = c.toArray();
-
-      ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-      /* Cycle through each element encoding each element */
-      for( int i=0; i < value.length; i++) {
-         (value[i]).encode(this, output);
-      }
-
-      /* Encode the length */
-      encodeLength(output.size(), out);
-
-      /* Add each encoded element into the output stream */
-      out.write(output.toByteArray());
+      out.write(encode(c));
       return;
    }
 
@@ -200,14 +189,7 @@ public class LBEREncoder implements ASN1Encoder {
       throws IOException
    {
       if(t.isExplicit()) {
-         encode(t.getIdentifier(), out);
-
-         /* determine the encoded length of the base type. */
-         ByteArrayOutputStream encodedContent = new ByteArrayOutputStream();
-         t.taggedValue().encode(this, encodedContent);
-
-         encodeLength(encodedContent.size(), out);
-         out.write(encodedContent.toByteArray());
+         out.write(encode(t));
       }
       else {
          t.taggedValue().encode(this, out);
@@ -242,6 +224,275 @@ public class LBEREncoder implements ASN1Encoder {
       return;
    }
 
+   /* Single pass encoder
+    */
+
+   /**
+    * Encode an ASN1Object into a byte array of exactly the encoded size.
+    *
+    * <p>The content lengths of all structured and explicitly tagged
+    * elements are computed bottom-up first, then every identifier, length
+    * and content is written once, directly into the result.  Unlike
+    * encoding to a stream, nested elements are not encoded into temporary
+    * buffers and copied into their parent.
+    *
+    * @param obj The ASN1Object to encode.
+    *
+    * @return the LBER encoding of obj.
+    */
+   public final byte[] encode(ASN1Object obj)
+   {
+      Lengths lengths = new Lengths();
+      int size = measure(obj, lengths);
+      byte[] ber = new byte[size];
+      lengths.next = 0;
+      int pos = write(obj, lengths, ber, 0);
+      if(pos != size) {
+         throw new RuntimeException("LBEREncoder: encoded " + pos +
+               " octets, expected " + size);
+      }
+      return ber;
+   }
+
+   /*
+    * Content lengths of structured and explicitly tagged elements, in the
+    * order the elements are visited.
+    */
+   private static final class Lengths
+   {
+      private int[] values = new int[16];
+      private int next = 0;
+
+      /* Reserve a slot for an element whose length is not yet known */
+      private int reserve()
+      {
+         if(next == values.length) {
+            int[] grown = new int[next * 2];
+            System.arraycopy(values, 0, grown, 0, next);
+            values = grown;
+         }
+         return next++;
+      }
+   }
+
+   /*
+    * Returns the total encoded length of obj, recording the content length
+    * of each structured and explicitly tagged element.
+    */
+   private int measure(ASN1Object obj, Lengths lengths)
+   {
+      if(obj instanceof ASN1Choice) {
+         return measure(((ASN1Choice)obj).choiceValue(), lengths);
+      }
+      if(obj instanceof ASN1Structured) {
+         ASN1Structured c = (ASN1Structured)obj;
+         int slot = lengths.reserve();
+         int len = 0;
+         for(int i = 0; i < c.size(); i++) {
+            len += measure(c.get(i), lengths);
+         }
+         lengths.values[slot] = len;
+         return identifierLength(c.getIdentifier()) + lengthLength(len) + len;
+      }
+      if(obj instanceof ASN1Tagged) {
+         ASN1Tagged t = (ASN1Tagged)obj;
+         if(!t.isExplicit()) {
+            return measure(t.taggedValue(), lengths);
+         }
+         int slot = lengths.reserve();
+         int len = measure(t.taggedValue(), lengths);
+         lengths.values[slot] = len;
+         return identifierLength(t.getIdentifier()) + lengthLength(len) + len;
+      }
+      if(obj instanceof ASN1OctetString) {
+         int len = ((ASN1OctetString)obj).getLength();
+         return identifierLength(obj.getIdentifier()) + lengthLength(len) + len;
+      }
+      if(obj instanceof ASN1Numeric) {
+         return identifierLength(obj.getIdentifier()) + 1 +
+               numericLength(((ASN1Numeric)obj).longValue());
+      }
+      if(obj instanceof ASN1Boolean || obj instanceof ASN1Null) {
+         int len = (obj instanceof ASN1Boolean) ? 1 : 0;
+         return identifierLength(obj.getIdentifier()) + 1 + len;
+      }
+      if(obj instanceof ASN1Encoded) {
+         ASN1Encoded e = (ASN1Encoded)obj;
+         return e.getEnd() - e.getOffset();
+      }
+      // Unknown type, it can only be encoded through its own encode method
+      int slot = lengths.reserve();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+         obj.encode(this, out);
+      }
+      catch(IOException e) {
+         throw new RuntimeException(
+            "IOException while encoding to byte array: " + e.toString());
+      }
+      lengths.values[slot] = out.size();
+      return out.size();
+   }
+
+   /*
+    * Writes obj into ber at pos, using the lengths recorded by measure.
+    * Returns the position following the encoding.
+    */
+   private int write(ASN1Object obj, Lengths lengths, byte[] ber, int pos)
+   {
+      if(obj instanceof ASN1Choice) {
+         return write(((ASN1Choice)obj).choiceValue(), lengths, ber, pos);
+      }
+      if(obj instanceof ASN1Structured) {
+         ASN1Structured c = (ASN1Structured)obj;
+         int len = lengths.values[lengths.next++];
+         pos = writeIdentifier(c.getIdentifier(), ber, pos);
+         pos = writeLength(len, ber, pos);
+         for(int i = 0; i < c.size(); i++) {
+            pos = write(c.get(i), lengths, ber, pos);
+         }
+         return pos;
+      }
+      if(obj instanceof ASN1Tagged) {
+         ASN1Tagged t = (ASN1Tagged)obj;
+         if(!t.isExplicit()) {
+            return write(t.taggedValue(), lengths, ber, pos);
+         }
+         int len = lengths.values[lengths.next++];
+         pos = writeIdentifier(t.getIdentifier(), ber, pos);
+         pos = writeLength(len, ber, pos);
+         return write(t.taggedValue(), lengths, ber, pos);
+      }
+      if(obj instanceof ASN1OctetString) {
+         ASN1OctetString os = (ASN1OctetString)obj;
+         pos = writeIdentifier(obj.getIdentifier(), ber, pos);
+         pos = writeLength(os.getLength(), ber, pos);
+         os.copyTo(ber, pos);
+         return pos + os.getLength();
+      }
+      if(obj instanceof ASN1Numeric) {
+         long value = ((ASN1Numeric)obj).longValue();
+         int len = numericLength(value);
+         pos = writeIdentifier(obj.getIdentifier(), ber, pos);
+         ber[pos++] = (byte)len;
+         for(int i = len - 1; i >= 0; i--) {
+            ber[pos++] = (byte)(value >> (i * 8));
+         }
+         return pos;
+      }
+      if(obj instanceof ASN1Boolean) {
+         pos = writeIdentifier(obj.getIdentifier(), ber, pos);
+         ber[pos++] = 0x01;
+         ber[pos++] = ((ASN1Boolean)obj).booleanValue() ? (byte)0xff : 0x00;
+         return pos;
+      }
+      if(obj instanceof ASN1Null) {
+         pos = writeIdentifier(obj.getIdentifier(), ber, pos);
+         ber[pos++] = 0x00;
+         return pos;
+      }
+      if(obj instanceof ASN1Encoded) {
+         ASN1Encoded e = (ASN1Encoded)obj;
+         int len = e.getEnd() - e.getOffset();
+         System.arraycopy(e.getBuffer(), e.getOffset(), ber, pos, len);
+         return pos + len;
+      }
+      // Unknown type, encoded through its own encode method
+      int len = lengths.values[lengths.next++];
+      ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+      try {
+         obj.encode(this, out);
+      }
+      catch(IOException e) {
+         throw new RuntimeException(
+            "IOException while encoding to byte array: " + e.toString());
+      }
+      byte[] encoded = out.toByteArray();
+      System.arraycopy(encoded, 0, ber, pos, encoded.length);
+      return pos + encoded.length;
+   }
+
+   /*
+    * Returns the number of content octets in the two's complement encoding
+    * of value using the fewest number of octets possible.
+    */
+   private static int numericLength(long value)
+   {
+      int len = 1;
+      while(len < 8) {
+         long shifted = value >> (len * 8 - 1);
+         if(shifted == 0 || shifted == -1) {
+            break;
+         }
+         len++;
+      }
+      return len;
+   }
+
+   /*
+    * Returns the number of octets in the encoding of the identifier.
+    */
+   private static int identifierLength(ASN1Identifier id)
+   {
+      int t = id.getTag();
+      if(t < 30) {
+         return 1;
+      }
+      int n = 1;
+      for(; t != 0; t >>= 7) {
+         n++;
+      }
+      return n;
+   }
+
+   /*
+    * Returns the number of octets in the encoding of the length.
+    */
+   private static int lengthLength(int length)
+   {
+      if(length < 0x80) {
+         return 1;
+      }
+      int n = 1;
+      for(; length != 0; length >>= 8) {
+         n++;
+      }
+      return n;
+   }
+
+   private static int writeIdentifier(ASN1Identifier id, byte[] ber, int pos)
+   {
+      int c = id.getASN1Class();
+      int t = id.getTag();
+      byte ccf = (byte) ((c << 6) | (id.getConstructed() ? 0x20 : 0));
+
+      if(t < 30) {
+         ber[pos++] = (byte)(ccf | t);
+         return pos;
+      }
+      ber[pos++] = (byte)(ccf | 0x1F);
+      int n = identifierLength(id) - 1;
+      for(int i = n - 1; i > 0; i--) {
+         ber[pos++] = (byte)(((t >> (i * 7)) & 0x7F) | 0x80);
+      }
+      ber[pos++] = (byte)(t & 0x7F);
+      return pos;
+   }
+
+   private static int writeLength(int length, byte[] ber, int pos)
+   {
+      if(length < 0x80) {
+         ber[pos++] = (byte)length;
+         return pos;
+      }
+      int n = lengthLength(length) - 1;
+      ber[pos++] = (byte)(0x80 | n);
+      for(int i = n - 1; i >= 0; i--) {
+         ber[pos++] = (byte)(length >> (i * 8));
+      }
+      return pos;
+   }
+
    /* Private helper methods
     */
 
@@ -0,0 +1,275 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.asn1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream of LBER encoded elements into complete frames.
+ *
+ * <p>Data is read from the underlying stream in large blocks into a
+ * reusable buffer.  The identifier and length octets at the front of the
+ * buffer are examined to find where the next complete element ends, and
+ * the element is handed to the decoder as an in-memory slice of the
+ * buffer.  This replaces the one read per octet that results from
+ * decoding directly from an unbuffered socket stream.</p>
+ *
+ * <p>The stream returned by {@link #nextFrame} is reused and is only valid
+ * until the next call to <code>nextFrame</code>.  The LBER decoder copies
+ * all content it retains, so a decoded ASN1Object remains valid after the
+ * frame is released.</p>
+ *
+ * <p>This class is not thread safe, it is intended to be owned by a
+ * single reader.</p>
+ */
+public class LBERFrameReader
+{
+    /**
+     * The default size of the read buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private final int bufferSize;
+
+    // Valid unconsumed data is held in buffer[start] to buffer[end-1]
+    private int start = 0;
+    private int end = 0;
+
+    private final Frame frame = new Frame();
+
+    /**
+     * Constructs a frame reader with the default buffer size.
+     *
+     * @param in The stream containing LBER encoded elements.
+     */
+    public LBERFrameReader(InputStream in)
+    {
+        this(in, DEFAULT_BUFFER_SIZE);
+        return;
+    }
+
+    /**
+     * Constructs a frame reader.
+     *
+     * @param in The stream containing LBER encoded elements.<br>
+     *
+     * @param bufferSize The size of the blocks read from the stream.  The
+     * buffer temporarily grows to hold any element larger than this size.
+     */
+    public LBERFrameReader(InputStream in, int bufferSize)
+    {
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.buffer = new byte[bufferSize];
+        return;
+    }
+
+    /**
+     * Returns the stream this frame reader reads from.
+     */
+    public final InputStream getInputStream()
+    {
+        return in;
+    }
+
+    /**
+     * Reads the next complete element from the stream.
+     *
+     * <p>The returned stream is positioned at the first identifier octet of
+     * the element and returns end of stream after the last content octet.
+     * Any data left unread in the previous frame is discarded.</p>
+     *
+     * @return a stream over the complete encoding of the next element.
+     *
+     * @exception EOFException if the stream ends before a complete element
+     * is read.
+     *
+     * @exception IOException if the stream fails, or the element uses the
+     * indefinite length form, which is not permitted by LBER.
+     */
+    public final InputStream nextFrame()
+        throws IOException
+    {
+        // Release the previous frame
+        start = frame.limit;
+        if( start == end) {
+            start = end = 0;
+            if( buffer.length > bufferSize) {
+                // Don't retain a buffer grown for an oversized element
+                buffer = new byte[bufferSize];
+            }
+        }
+        frame.set( start, start);
+
+        int total;
+        while( (total = elementLength( buffer, start, end)) < 0) {
+            fill( end + 1);
+        }
+        while( (end - start) < total) {
+            fill( start + total);
+        }
+
+        frame.set( start, start + total);
+        return frame;
+    }
+
+    /**
+     * Returns the total length of the LBER encoded element at the start of
+     * a region of an array, by examining its identifier and length octets.
+     *
+     * @param buffer The array holding the encoded data.<br>
+     *
+     * @param start The offset of the first identifier octet.<br>
+     *
+     * @param end The offset following the last valid octet in the array.
+     *
+     * @return the number of identifier, length and content octets in the
+     * element, which may be more than are held in the region, or -1 if the
+     * identifier and length octets are not yet complete.
+     *
+     * @exception IOException if the element uses the indefinite length form,
+     * or its length cannot be represented.
+     */
+    public static int elementLength( byte[] buffer, int start, int end)
+        throws IOException
+    {
+        int i = start;
+        if( i >= end) {
+            return -1;
+        }
+        if( (buffer[i++] & 0x1F) == 0x1F) {
+            // multiple octet tag number
+            do {
+                if( i >= end) {
+                    return -1;
+                }
+            } while( (buffer[i++] & 0x80) != 0);
+        }
+        if( i >= end) {
+            return -1;
+        }
+        int r = buffer[i++] & 0xFF;
+        long length;
+        if( r == 0x80) {
+            throw new IOException(
+                "LBERFrameReader: indefinite length encoding not supported");
+        } else if( r < 0x80) {
+            length = r;
+        } else {
+            int n = r & 0x7F;
+            if( n > 4) {
+                throw new IOException(
+                    "LBERFrameReader: length field of " + n +
+                    " octets too large");
+            }
+            if( i + n > end) {
+                return -1;
+            }
+            length = 0;
+            for( ; n > 0; n--) {
+                length = (length << 8) | (buffer[i++] & 0xFF);
+            }
+        }
+        long total = (i - start) + length;
+        if( total > Integer.MAX_VALUE) {
+            throw new IOException(
+                "LBERFrameReader: element length " + total + " too large");
+        }
+        return (int)total;
+    }
+
+    /*
+     * Reads at least one block from the stream, making room for the buffer
+     * to hold everything up to the specified absolute position.
+     */
+    private void fill( int needed)
+        throws IOException
+    {
+        if( needed > buffer.length) {
+            int len = end - start;
+            int required = needed - start;
+            byte[] target = buffer;
+            if( required > buffer.length) {
+                target = new byte[Math.max( required, bufferSize)];
+            }
+            System.arraycopy( buffer, start, target, 0, len);
+            buffer = target;
+            start = 0;
+            end = len;
+        }
+        int count = in.read( buffer, end, buffer.length - end);
+        if( count < 0) {
+            throw new EOFException( "LBERFrameReader: EOF reading element");
+        }
+        end += count;
+        return;
+    }
+
+    /**
+     * An unsynchronized stream over a region of the frame reader's buffer.
+     */
+    private final class Frame extends InputStream
+    {
+        private int pos;
+        private int limit;
+
+        private void set( int pos, int limit)
+        {
+            this.pos = pos;
+            this.limit = limit;
+            return;
+        }
+
+        public final int read()
+        {
+            return (pos < limit) ? (buffer[pos++] & 0xFF) : -1;
+        }
+
+        public final int read(byte[] b, int off, int len)
+        {
+            if( pos >= limit) {
+                return (len == 0) ? 0 : -1;
+            }
+            if( len > limit - pos) {
+                len = limit - pos;
+            }
+            System.arraycopy( buffer, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        public final long skip(long n)
+        {
+            if( n <= 0) {
+                return 0;
+            }
+            if( n > limit - pos) {
+                n = limit - pos;
+            }
+            pos += (int)n;
+            return n;
+        }
+
+        public final int available()
+        {
+            return limit - pos;
+        }
+    }
+}
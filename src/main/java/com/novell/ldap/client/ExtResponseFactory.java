@@ -21,9 +21,6 @@ import com.novell.ldap.resources.*;
 import java.io.IOException;
 import com.novell.ldap.client.Debug;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Constructor;
-
 /**
  *
  *  Takes an LDAPExtendedResponse and returns an object
@@ -62,54 +59,10 @@ public class ExtResponseFactory {
 
         RespExtensionSet regExtResponses = 
                                 LDAPExtendedResponse.getRegisteredResponses();
-        try{
-            Class extRespClass = regExtResponses.findResponseExtension(inOID);            
-            if ( extRespClass == null ){
-                return tempResponse;
-            }
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                 "For oid " + inOID + ", found class " + extRespClass.toString());
-            }    
-            
-            Class[] argsClass = { RfcLDAPMessage.class };
-            Object[] args = { inResponse };
-            Exception ex;
-            try{
-                Constructor extConstructor = 
-                                     extRespClass.getConstructor(argsClass);
-                try{
-                    Object resp = null;
-                    resp = extConstructor.newInstance(args);
-                    return (LDAPExtendedResponse) resp;
-                }catch(InstantiationException e) {
-                    // Could not create the ResponseControl object
-                    // All possible exceptions are ignored. We fall through
-                    // and create a default LDAPControl object
-                    ex = e;
-                } catch (IllegalAccessException e) {
-                    ex = e;
-                } catch (InvocationTargetException e) {
-                    ex = e;
-                }
-            } catch (NoSuchMethodException e) {
-                // bad class was specified, fall through and return a
-                // default  LDAPExtendedResponse object
-                ex = e;
-            }
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                "Unable to create new instance of child LDAPExtendedResponse");
-                Debug.trace( Debug.messages,
-                   ex.toString());
-            }
-        } catch (NoSuchFieldException e) {
-            // No match with the OID
-            // Do nothing. Fall through and construct a default LDAPControl object.
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                      "Oid " + inOID + " not registered");
-            }
+        // Call the constructor bound when the class was registered, if any
+        Object resp = regExtResponses.newResponse(inOID, inResponse);
+        if( resp != null) {
+            return (LDAPExtendedResponse) resp;
         }
         // If we get here we did not have a registered extendedresponse
         // for this oid.  Return a default LDAPExtendedResponse object.
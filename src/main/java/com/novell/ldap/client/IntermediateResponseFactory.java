@@ -14,9 +14,6 @@
  ******************************************************************************/
 package com.novell.ldap.client;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-
 import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPIntermediateResponse;
 import com.novell.ldap.rfc2251.RfcLDAPMessage;
@@ -59,54 +56,10 @@ public class IntermediateResponseFactory {
 
         RespExtensionSet regExtResponses = 
                                 LDAPIntermediateResponse.getRegisteredResponses();
-        try{
-            Class extRespClass = regExtResponses.findResponseExtension(inOID);            
-            if ( extRespClass == null ){
-                return tempResponse;
-            }
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                 "For oid " + inOID + ", found class " + extRespClass.toString());
-            }    
-            
-            Class[] argsClass = { RfcLDAPMessage.class };
-            Object[] args = { inResponse };
-            Exception ex;
-            try{
-                Constructor extConstructor = 
-                                     extRespClass.getConstructor(argsClass);
-                try{
-                    Object resp = null;
-                    resp = extConstructor.newInstance(args);
-                    return (LDAPIntermediateResponse) resp;
-                }catch(InstantiationException e) {
-                    // Could not create the ResponseControl object
-                    // All possible exceptions are ignored. We fall through
-                    // and create a default LDAPControl object
-                    ex = e;
-                } catch (IllegalAccessException e) {
-                    ex = e;
-                } catch (InvocationTargetException e) {
-                    ex = e;
-                }
-            } catch (NoSuchMethodException e) {
-                // bad class was specified, fall through and return a
-                // default  LDAPIntermediateResponse object
-                ex = e;
-            }
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                "Unable to create new instance of child LDAPIntermediateResponse");
-                Debug.trace( Debug.messages,
-                   ex.toString());
-            }
-        } catch (NoSuchFieldException e) {
-            // No match with the OID
-            // Do nothing. Fall through and construct a default LDAPControl object.
-            if( Debug.LDAP_DEBUG) {
-                Debug.trace( Debug.messages,
-                      "Oid " + inOID + " not registered");
-            }
+        // Call the constructor bound when the class was registered, if any
+        Object resp = regExtResponses.newResponse(inOID, inResponse);
+        if( resp != null) {
+            return (LDAPIntermediateResponse) resp;
         }
         // If we get here we did not have a registered extendedresponse
         // for this oid.  Return a default LDAPIntermediateResponse object.
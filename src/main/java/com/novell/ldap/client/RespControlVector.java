@@ -12,18 +12,44 @@
  * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
  * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
  ***************************************************************************/
-
 package com.novell.ldap.client;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+
+import com.novell.ldap.LDAPControl;
 import com.novell.ldap.client.Debug;
 
 /**
  * The <code>MessageVector</code> class implements extends the
  * existing Vector class so that it can be used to maintain a
  * list of currently registered control responses.
+ *
+ * <p>Lookups do not lock.  The registered controls are also indexed
+ * by OID in a map that is copied and replaced on each registration,
+ * and the constructor of each control class is bound once, when it is
+ * registered, rather than looked up by reflection for each control
+ * received.</p>
  */
-public class RespControlVector extends java.util.Vector
+public class RespControlVector extends java.util.Vector<Object>
 {
+    private static final long serialVersionUID = 1L;
+
+    /* Type of the constructor of a response control */
+    private static final MethodType CONSTRUCTOR_TYPE =
+            MethodType.methodType(void.class,
+                                  String.class, boolean.class, byte[].class);
+
+    /* Type the bound constructors are adapted to */
+    private static final MethodType FACTORY_TYPE =
+            CONSTRUCTOR_TYPE.changeReturnType(LDAPControl.class);
+
+    /* Registered controls by OID; replaced, never modified, once published */
+    private volatile HashMap<String,RegisteredControl> index =
+            new HashMap<String,RegisteredControl>();
+
     public RespControlVector( int cap, int incr)
     {
         super( cap, incr);
@@ -33,17 +59,38 @@ public class RespControlVector extends java.util.Vector
     /** Inner class defined to create a temporary object to encapsulate
      * all registration information about a response control.  This class
      * cannot be used outside this class */
-    private class RegisteredControl
+    private static class RegisteredControl
     {
         public String myOID;
         public Class myClass;
+        /* Constructor of myClass, or null if it cannot be called */
+        public MethodHandle myFactory;
 
         public RegisteredControl(String oid, Class controlClass)
         {
             myOID = oid;
             myClass = controlClass;
+            try {
+                myFactory = MethodHandles.publicLookup()
+                        .findConstructor(controlClass, CONSTRUCTOR_TYPE)
+                        .asType(FACTORY_TYPE);
+            } catch (NoSuchMethodException e) {
+                // bad class was specified, controls with this OID
+                // are returned as LDAPControl objects
+                traceUnusable( oid, e);
+            } catch (IllegalAccessException e) {
+                traceUnusable( oid, e);
+            }
         }
 
+        private static void traceUnusable( String oid, Exception e)
+        {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.controls, "Registered control class for "
+                        + oid + " cannot be instantiated: " + e.toString());
+            }
+            return;
+        }
     }
 
     /* Adds a control to the current list of registered response controls.
@@ -56,42 +103,79 @@ public class RespControlVector extends java.util.Vector
                     + " for class " + controlClass.toString());
         }
 
-        addElement(new RegisteredControl(oid, controlClass));
+        RegisteredControl ctl = new RegisteredControl(oid, controlClass);
+        addElement(ctl);
+
+        /* As with the list, the first registration for an OID is found */
+        if( ! index.containsKey(oid)) {
+            HashMap<String,RegisteredControl> copy =
+                    new HashMap<String,RegisteredControl>(index);
+            copy.put(oid, ctl);
+            index = copy;
+        }
+        return;
     }
 
     /* Searches the list of registered controls for a mathcing control.  We
      * search using the OID string.  If a match is found we return the
      * Class name that was provided to us on registration.
      */
-    public final synchronized Class findResponseControl(String searchOID)
+    public final Class<?> findResponseControl(String searchOID)
                 throws NoSuchFieldException
     {
-        RegisteredControl ctl = null;
-
-        /* loop through the contents of the vector */
-        for( int i = 0; i < elementCount; i++) {
-
-            /* Get next registered control */
-            if( (ctl = (RegisteredControl)elementData[i]) == null) {
-                throw new NoSuchFieldException();
+        RegisteredControl ctl = index.get(searchOID);
+        if( ctl == null) {
+            /* The requested control does not have a registered response class */
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.controls, "Returned control did not match any registered control. Treating as ordinary LDAPControl.");
             }
+            return null;
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.controls, "Returned control matched a registered control");
+        }
+        return ctl.myClass;
+    }
 
-            /* Does the stored OID match with whate we are looking for */
-            if(ctl.myOID.compareTo(searchOID) == 0) {
-
-                if( Debug.LDAP_DEBUG) {
-                    Debug.trace( Debug.controls, "Returned control matched a registered control");
-                }
-
-                /* Return the class name if we have match */
-                return ctl.myClass;
+    /**
+     * Instantiates the class registered for the OID of a response control.
+     *
+     * @param oid      The OID of the control.
+     * @param critical The criticality of the control.
+     * @param value    The value of the control.
+     *
+     * @return the new control, or null if no class is registered for the
+     * OID or the registered class could not be instantiated.
+     */
+    public final LDAPControl newResponseControl(String oid,
+                                                boolean critical,
+                                                byte[] value)
+    {
+        RegisteredControl ctl = index.get(oid);
+        if( ctl == null || ctl.myFactory == null) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.controls,
+                      "Oid " + oid + " not registered or not instantiable");
             }
+            return null;
         }
-        /* The requested control does not have a registered response class */
-		if( Debug.LDAP_DEBUG) {
-			Debug.trace( Debug.controls, "Returned control did not match any registered control. Treating as ordinary LDAPControl.");
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.controls,
+             "For oid " + oid + ", found class " + ctl.myClass.toString());
+        }
+        try {
+            return (LDAPControl)ctl.myFactory.invokeExact(oid, critical, value);
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Throwable e) {
+            // Could not create the response control.  The caller falls
+            // back to a default LDAPControl object
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.controls,
+                      "Unable to create new instance of child LDAPControl");
+                Debug.trace( Debug.controls, e.toString());
+            }
+            return null;
         }
-        return null;
     }
-
  }
@@ -16,6 +16,10 @@
 package com.novell.ldap.client;
 
 import com.novell.ldap.client.Debug;
+import com.novell.ldap.rfc2251.RfcLDAPMessage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -23,17 +27,32 @@ import java.util.Iterator;
  * This  class  extends the AbstractSet and Implements the Set
  * so that it can be used to maintain a list of currently
  * registered extended responses.
+ *
+ * <p>Lookups do not lock.  The maps are copied and replaced on each
+ * registration, and the constructor of each response class is bound
+ * once, when it is registered.</p>
  */
 public class RespExtensionSet extends java.util.AbstractSet
         implements java.util.Set
 {
+    /* Type of the constructor of a response class */
+    private static final MethodType CONSTRUCTOR_TYPE =
+            MethodType.methodType(void.class, RfcLDAPMessage.class);
+
+    /* Type the bound constructors are adapted to */
+    private static final MethodType FACTORY_TYPE =
+            CONSTRUCTOR_TYPE.changeReturnType(Object.class);
 
-    private HashMap map;
+    /* Registered classes and their constructors by OID; replaced, never
+     * modified, once published */
+    private volatile HashMap<String,Class<?>> map;
+    private volatile HashMap<String,MethodHandle> factories;
     
     public RespExtensionSet()
     {
         super();
-        map = new HashMap();        
+        map = new HashMap<String,Class<?>>();
+        factories = new HashMap<String,MethodHandle>();
         return;
     }
 
@@ -50,9 +69,36 @@ public class RespExtensionSet extends java.util.AbstractSet
 
        
         if( !this.map.containsKey(oid)){
-            this.map.put(oid, (Class)extClass);
+            try {
+                MethodHandle factory = MethodHandles.publicLookup()
+                        .findConstructor(extClass, CONSTRUCTOR_TYPE)
+                        .asType(FACTORY_TYPE);
+                HashMap<String,MethodHandle> copy =
+                        new HashMap<String,MethodHandle>(this.factories);
+                copy.put(oid, factory);
+                this.factories = copy;
+            } catch (NoSuchMethodException e) {
+                // bad class was specified, responses with this OID
+                // are returned as default response objects
+                traceUnusable(oid, e);
+            } catch (IllegalAccessException e) {
+                traceUnusable(oid, e);
+            }
+            HashMap<String,Class<?>> copy =
+                    new HashMap<String,Class<?>>(this.map);
+            copy.put(oid, extClass);
+            this.map = copy;
             }
-        
+        return;
+    }
+
+    private static void traceUnusable(String oid, Exception e)
+    {
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.messages, "Registered response class for "
+                    + oid + " cannot be instantiated: " + e.toString());
+        }
+        return;
     }
 
 
@@ -79,13 +125,13 @@ public class RespExtensionSet extends java.util.AbstractSet
      * search using the OID string.  If a match is found we return the
      * Class name that was provided to us on registration.
      */
-    public final synchronized Class findResponseExtension(String searchOID)
+    public final Class<?> findResponseExtension(String searchOID)
                 throws NoSuchFieldException
     {
-    
-        if( this.map.containsKey(searchOID))
+        Class<?> extClass = this.map.get(searchOID);
+        if( extClass != null)
         {
-              return (Class)this.map.get(searchOID);
+              return extClass;
         }
         /* The requested extension does not have a registered response class */
 		if( Debug.LDAP_DEBUG) {
@@ -94,4 +140,40 @@ public class RespExtensionSet extends java.util.AbstractSet
         return null;
     }
 
+    /**
+     * Instantiates the class registered for the OID of a response.
+     *
+     * @param oid      The OID of the response.
+     * @param message  The message to pass to the constructor.
+     *
+     * @return the new response, or null if no class is registered for the
+     * OID or the registered class could not be instantiated.
+     */
+    public final Object newResponse(String oid, RfcLDAPMessage message)
+    {
+        MethodHandle factory = (oid == null) ? null :
+                                    this.factories.get(oid);
+        if( factory == null) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages,
+                      "Oid " + oid + " not registered or not instantiable");
+            }
+            return null;
+        }
+        try {
+            return (Object)factory.invokeExact(message);
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Throwable e) {
+            // Could not create the response object.  The caller falls
+            // back to a default response object
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages,
+                "Unable to create new instance of registered response class");
+                Debug.trace( Debug.messages, e.toString());
+            }
+            return null;
+        }
+    }
+
  }
@@ -14,6 +14,8 @@
  ******************************************************************************/
 package com.novell.ldap.connectionpool;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPConstraints;
 import com.novell.ldap.LDAPResponseQueue;
@@ -39,6 +41,15 @@ import com.novell.ldap.resources.ExceptionMessages;
     // This flag allows bind to be called from the package but not outside
     // of the package.
     private boolean allowPoolBind = false;
+
+    // State used by ConnectionPool.  leased is set while the connection is
+    // checked out, credentials are those of the last successful bind and
+    // idleSince is when the connection was last made available.
+    private final AtomicBoolean leased = new AtomicBoolean(false);
+    private ConnectionPool pool = null;
+    private Credentials credentials = null;
+    private int serverIndex = 0;
+    private volatile long idleSince = 0;
     
     /**
      * Establish an LDAPConnection supplying an appropriate socket factory.
@@ -83,6 +94,96 @@ import com.novell.ldap.resources.ExceptionMessages;
         return inUse;
     }
     
+    /**
+     * Marks the connection checked out of a ConnectionPool.
+     *
+     * @return false if it was already checked out.
+     */
+    boolean lease()
+    {
+        return leased.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the connection no longer checked out of a ConnectionPool.
+     *
+     * @return false if it was not checked out.
+     */
+    boolean unlease()
+    {
+        return leased.compareAndSet(true, false);
+    }
+
+    /**
+     * Returns the ConnectionPool that created this connection, or null.
+     */
+    ConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Sets the ConnectionPool that created this connection.
+     */
+    void setPool(ConnectionPool pool)
+    {
+        this.pool = pool;
+        return;
+    }
+
+    /**
+     * Returns the credentials the connection is bound with, or null if it
+     * is not bound.
+     */
+    Credentials getCredentials()
+    {
+        return credentials;
+    }
+
+    /**
+     * Sets the credentials the connection is bound with.
+     */
+    void setCredentials(Credentials credentials)
+    {
+        this.credentials = credentials;
+        return;
+    }
+
+    /**
+     * Returns the index in the pool's server set of the server connected to.
+     */
+    int getServerIndex()
+    {
+        return serverIndex;
+    }
+
+    /**
+     * Sets the index in the pool's server set of the server connected to.
+     */
+    void setServerIndex(int serverIndex)
+    {
+        this.serverIndex = serverIndex;
+        return;
+    }
+
+    /**
+     * Returns the time in milliseconds the connection was last made
+     * available.
+     */
+    long getIdleSince()
+    {
+        return idleSince;
+    }
+
+    /**
+     * Sets the time in milliseconds the connection was made available.
+     */
+    void setIdleSince(long idleSince)
+    {
+        this.idleSince = idleSince;
+        return;
+    }
+
     /**
      * Call the super clone so that this will clone properly.
      *
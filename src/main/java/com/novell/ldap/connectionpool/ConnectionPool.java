@@ -0,0 +1,998 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 2003 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.novell.ldap.connectionpool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPLocalException;
+import com.novell.ldap.LDAPServerSet;
+import com.novell.ldap.LDAPSocketFactory;
+import com.novell.ldap.LDAPTLSSocketFactory;
+import com.novell.ldap.client.Debug;
+import com.novell.ldap.resources.ExceptionMessages;
+
+/**
+ * Manages connections to an LDAP Server for many concurrent threads.
+ *
+ * <p><code>ConnectionPool</code> manages up to <code>maxConns</code>
+ * physical connections to a single LDAP server, each checked out by one
+ * thread at a time.  It replaces {@link PoolManager}, with the same
+ * {@link #getBoundConnection(String, byte[]) getBoundConnection} and
+ * {@link #makeConnectionAvailable(LDAPConnection) makeConnectionAvailable}
+ * methods.</p>
+ *
+ * <p>Available connections are kept by the DN and password (DN/PW) they are
+ * bound with, in a hash table, so a connection already bound with the DN/PW
+ * requested is found without a search and without locking.  If there is
+ * none, a new connection is opened and bound if the pool has fewer than
+ * <code>maxConns</code> connections, otherwise an available connection
+ * bound with another DN/PW is bound again.  If no connection is available
+ * the thread waits until the acquire timeout set by
+ * {@link #setAcquireTimeout(long)} expires.  Threads waiting are served in
+ * the order they arrived, except that a connection made available is handed
+ * to a thread close to the head of the queue waiting for the same DN/PW,
+ * saving a bind.  The first thread waiting is passed over no more than
+ * <code>maxConns</code> times.</p>
+ *
+ * <p>Connections are opened when they are first needed.  A background
+ * thread keeps at least <code>minConns</code> connections open, closes
+ * connections available for longer than the idle timeout, and checks the
+ * available connections with
+ * {@link com.novell.ldap.LDAPConnection#isConnectionAlive()}, closing those
+ * that fail.  The pool must be closed with {@link #close()} when no longer
+ * needed.</p>
+ *
+ * <p>A pool constructed with an {@link com.novell.ldap.LDAPServerSet}
+ * spreads its connections over the servers of the set.  New connections
+ * are opened to the server preferred by the strategy of the set, and of the
+ * connections available the one to the most preferred server is checked
+ * out, so that a slow or unavailable server does not hold up every
+ * thread.</p>
+ */
+public class ConnectionPool
+{
+    /** Handed to a waiting thread to let it open a new connection. */
+    private static final Object GROW = new Object();
+    /** Credentials of connections that are not bound. */
+    private static final Credentials ANONYMOUS = new Credentials(null, null);
+
+    private final LDAPServerSet servers;
+    private final boolean ownServers;
+    private final int minConns;
+    private final int maxConns;
+
+    /**
+     * The available connections by DN/PW, a list of lists indexed by
+     * server, each most recently used first.
+     */
+    private final ConcurrentHashMap<Credentials,List<ConcurrentLinkedDeque<Connection>>> available =
+            new ConcurrentHashMap<Credentials,List<ConcurrentLinkedDeque<Connection>>>();
+    /** Threads waiting for a connection, in arrival order. */
+    private final ConcurrentLinkedQueue<Waiter> waiters =
+            new ConcurrentLinkedQueue<Waiter>();
+    /** The number of connections open or being opened. */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private volatile long acquireTimeout = 0;
+    private volatile long idleTimeout = 10 * 60 * 1000;
+    private volatile long checkInterval = 30 * 1000;
+    private volatile boolean closed = false;
+    private final Thread maintainer;
+
+    /**
+     * Initialize the connection pool.  No connection is opened by the
+     * constructor.
+     *
+     * @param host - Host name associated with this connection pool
+     * (see {@link com.novell.ldap.LDAPConnection#connect(String, int) LDAPConnection.connect()}).
+     * @param port - Port number for the host associated with this connection
+     *   pool.
+     * @param minConns - Minimum number of physical connections kept open.
+     * @param maxConns - Maximum number of physical connections allowed for
+     *             this host.
+     * @param factory - A socket factory used to set an encrypted connection,
+     *           or null if none.  If the factory is an instance of
+     * {@link com.novell.ldap.LDAPTLSSocketFactory} then a startTLS is
+     * performed after the connection to the server is established.
+     */
+    public ConnectionPool(String host,
+                          int port,
+                          int minConns,
+                          int maxConns,
+                          LDAPSocketFactory factory)
+    {
+        // A list of hosts is tried in order, as by LDAPConnection.connect
+        this(new LDAPServerSet(host, port, LDAPServerSet.FAILOVER, factory),
+             true, minConns, maxConns);
+        return;
+    }
+
+    /**
+     * Initialize a connection pool spreading its connections over a set of
+     * servers.  No connection is opened by the constructor.
+     *
+     * @param servers - The servers, and the socket factory used.  If the
+     * factory is an instance of {@link com.novell.ldap.LDAPTLSSocketFactory}
+     * then a startTLS is performed after the connection to a server is
+     * established.
+     * @param minConns - Minimum number of physical connections kept open.
+     * @param maxConns - Maximum number of physical connections allowed for
+     *             all the servers.
+     */
+    public ConnectionPool(LDAPServerSet servers,
+                          int minConns,
+                          int maxConns)
+    {
+        this(servers, false, minConns, maxConns);
+        return;
+    }
+
+    private ConnectionPool(LDAPServerSet servers,
+                           boolean ownServers,
+                           int minConns,
+                           int maxConns)
+    {
+        if((maxConns < 1) || (minConns < 0) || (minConns > maxConns))
+        {
+            throw new IllegalArgumentException(
+                "Invalid pool size, min " + minConns + ", max " + maxConns);
+        }
+        this.servers = servers;
+        this.ownServers = ownServers;
+        this.minConns = minConns;
+        this.maxConns = maxConns;
+        maintainer = LDAPConnection.getThreadFactory().newThread(
+            new Runnable() {
+                public void run()
+                {
+                    maintain();
+                    return;
+                }
+            });
+        if(!maintainer.isDaemon())
+        {
+            maintainer.setDaemon(true);
+        }
+        maintainer.start();
+        return;
+    }
+
+    /**
+     * Sets the time a thread waits for a connection before
+     * getBoundConnection fails with LDAPException.LDAP_TIMEOUT.
+     *
+     * @param timeout The time in milliseconds, 0 to wait forever, the
+     * default.
+     */
+    public void setAcquireTimeout(long timeout)
+    {
+        acquireTimeout = timeout;
+        return;
+    }
+
+    /**
+     * Returns the time a thread waits for a connection, in milliseconds.
+     */
+    public long getAcquireTimeout()
+    {
+        return acquireTimeout;
+    }
+
+    /**
+     * Sets the time a connection may stay available before it is closed,
+     * while there are more than <code>minConns</code> connections.
+     *
+     * @param timeout The time in milliseconds, 0 to never close idle
+     * connections.  The default is 10 minutes.
+     */
+    public void setIdleTimeout(long timeout)
+    {
+        idleTimeout = timeout;
+        return;
+    }
+
+    /**
+     * Returns the time a connection may stay available, in milliseconds.
+     */
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the interval at which the background thread checks the available
+     * connections, closes idle connections and opens connections up to
+     * <code>minConns</code>.
+     *
+     * @param interval The interval in milliseconds, the default is 30
+     * seconds.
+     */
+    public void setHealthCheckInterval(long interval)
+    {
+        if(interval <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Invalid health check interval " + interval);
+        }
+        checkInterval = interval;
+        return;
+    }
+
+    /**
+     * Returns the interval of the background checks, in milliseconds.
+     */
+    public long getHealthCheckInterval()
+    {
+        return checkInterval;
+    }
+
+    /**
+     * Returns the number of physical connections open or being opened.
+     */
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of connections available.
+     */
+    public int getAvailableCount()
+    {
+        int count = 0;
+        Iterator<List<ConcurrentLinkedDeque<Connection>>> i = available.values().iterator();
+        while(i.hasNext())
+        {
+            List<ConcurrentLinkedDeque<Connection>> lists = i.next();
+            for (int j = 0; j < lists.size(); j++)
+            {
+                count += lists.get(j).size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get a bound connection.
+     * <p>This returns a bound (bind) connection for the desired DN and
+     * password, waiting no longer than the acquire timeout.</p>
+     * @param DN  Authentication DN used for bind and key.
+     * @param PW  Authentication password used for bind and key.
+     * @throws LDAPException if an LDAPConnection could not be opened or
+     * bound, LDAPException.LDAP_TIMEOUT if none was available in time.
+     */
+    public LDAPConnection getBoundConnection(String DN, byte[] PW)
+            throws LDAPException, InterruptedException
+    {
+        return getBoundConnection(DN, PW, acquireTimeout);
+    }
+
+    /**
+     * Get a bound connection, waiting no longer than the specified time.
+     * @param DN  Authentication DN used for bind and key.
+     * @param PW  Authentication password used for bind and key.
+     * @param timeout The time in milliseconds to wait for a connection,
+     * 0 to wait forever.
+     * @throws LDAPException if an LDAPConnection could not be opened or
+     * bound, LDAPException.LDAP_TIMEOUT if none was available in time.
+     */
+    public LDAPConnection getBoundConnection(String DN, byte[] PW, long timeout)
+            throws LDAPException, InterruptedException
+    {
+        Credentials credentials = new Credentials(DN, PW);
+        long deadline = 0;
+        if(timeout > 0)
+        {
+            deadline = System.nanoTime() +
+                       TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+        for(;;)
+        {
+            if(closed)
+            {
+                throw new LDAPLocalException(ExceptionMessages.POOL_CLOSED,
+                        LDAPException.OTHER);
+            }
+            Object taken = null;
+            if(waiters.isEmpty())
+            {
+                // Don't overtake waiting threads
+                taken = take(credentials);
+            }
+            if(null == taken)
+            {
+                taken = await(credentials, deadline, timeout);
+            }
+            Connection conn = prepare(taken, credentials);
+            if(null != conn)
+            {
+                conn.lease();
+                return conn;
+            }
+            // The connection had been closed, try again
+        }
+    }
+
+    /**
+     * Make this connection available.
+     * @param conn LDAPConnection to be made available, it must have been
+     * returned by getBoundConnection of this pool.
+     */
+    public void makeConnectionAvailable(LDAPConnection conn)
+    {
+        if(!(conn instanceof Connection) ||
+           (((Connection)conn).getPool() != this))
+        {
+            throw new IllegalArgumentException(
+                "Connection does not belong to this pool");
+        }
+        Connection pooled = (Connection)conn;
+        if(!pooled.unlease())
+        {
+            throw new IllegalStateException("Connection already available");
+        }
+        if(closed || !pooled.isConnected())
+        {
+            discard(pooled);
+            return;
+        }
+        release(pooled);
+        return;
+    }
+
+    /**
+     * Closes the pool.  Available connections are disconnected, connections
+     * in use are disconnected when they are made available, and threads
+     * waiting for a connection fail.  A server set passed to the
+     * constructor is not closed.
+     */
+    public void close()
+    {
+        closed = true;
+        maintainer.interrupt();
+        if(ownServers)
+        {
+            servers.close();
+        }
+        Iterator<Waiter> w = waiters.iterator();
+        while(w.hasNext())
+        {
+            LockSupport.unpark(w.next().thread);
+        }
+        Iterator<List<ConcurrentLinkedDeque<Connection>>> i = available.values().iterator();
+        while(i.hasNext())
+        {
+            List<ConcurrentLinkedDeque<Connection>> lists = i.next();
+            for (int j = 0; j < lists.size(); j++)
+            {
+                Connection conn;
+                while((conn = lists.get(j).pollFirst()) != null)
+                {
+                    discard(conn);
+                }
+            }
+        }
+        return;
+    }
+
+    //*************************************************************************
+    // Checkout
+    //*************************************************************************
+
+    /*
+     * Takes a connection for the credentials without waiting.  Returns an
+     * available connection bound with the credentials, GROW if a new
+     * connection may be opened, an available connection bound with other
+     * credentials, or null if there is none.
+     */
+    private Object take(Credentials credentials)
+    {
+        List<ConcurrentLinkedDeque<Connection>> lists = available.get(credentials);
+        if(null != lists)
+        {
+            Object conn;
+            if(lists.size() == 1)
+            {
+                conn = lists.get(0).pollFirst();
+            }
+            else
+            {
+                conn = null;
+                int[] order = servers.getPreferredServers();
+                for (int i = 0; (i < order.length) && (null == conn); i++)
+                {
+                    conn = lists.get(order[i]).pollFirst();
+                }
+            }
+            if(null != conn)
+            {
+                return conn;
+            }
+        }
+        if(reserve())
+        {
+            return GROW;
+        }
+        // Rebind the least recently used connection of other credentials
+        Iterator<List<ConcurrentLinkedDeque<Connection>>> i = available.values().iterator();
+        while(i.hasNext())
+        {
+            lists = i.next();
+            for (int j = 0; j < lists.size(); j++)
+            {
+                Object conn = lists.get(j).pollLast();
+                if(null != conn)
+                {
+                    return conn;
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Counts a new connection if the pool is not full.
+     */
+    private boolean reserve()
+    {
+        for(;;)
+        {
+            int current = size.get();
+            if(current >= maxConns)
+            {
+                return false;
+            }
+            if(size.compareAndSet(current, current + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Waits for a connection to be handed over, see handOver.
+     */
+    private Object await(Credentials credentials, long deadline, long timeout)
+            throws LDAPException, InterruptedException
+    {
+        Waiter waiter = new Waiter(credentials);
+        waiters.add(waiter);
+        // A connection made available before we were queued was not handed
+        // over, serve the queue with it
+        dispatch();
+        boolean interrupted = false;
+        try
+        {
+            for(;;)
+            {
+                Object taken = waiter.slot.get();
+                if(null != taken)
+                {
+                    return taken;
+                }
+                long remaining = 0;
+                if(deadline != 0)
+                {
+                    remaining = deadline - System.nanoTime();
+                }
+                if(closed || interrupted || (remaining < 0))
+                {
+                    if(waiter.cancel())
+                    {
+                        waiters.remove(waiter);
+                        if(interrupted)
+                        {
+                            interrupted = false;
+                            throw new InterruptedException();
+                        }
+                        if(closed)
+                        {
+                            throw new LDAPLocalException(
+                                ExceptionMessages.POOL_CLOSED,
+                                LDAPException.OTHER);
+                        }
+                        throw new LDAPLocalException(
+                            ExceptionMessages.POOL_TIMEOUT,
+                            new Object[] { Long.valueOf(timeout) },
+                            LDAPException.LDAP_TIMEOUT);
+                    }
+                    // Handed over as we gave up
+                    continue;
+                }
+                if(deadline == 0)
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if(Thread.interrupted())
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            if(interrupted)
+            {
+                // Keep the interrupt for the caller
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Hands connections taken for the waiting threads, first in first out,
+     * until no connection can be taken.
+     */
+    private void dispatch()
+    {
+        Waiter waiter;
+        while((waiter = waiters.peek()) != null)
+        {
+            Object taken = take(waiter.credentials);
+            if(null == taken)
+            {
+                return;
+            }
+            Credentials credentials = null;
+            if(taken != GROW)
+            {
+                credentials = ((Connection)taken).getCredentials();
+            }
+            if(!handOver(taken, credentials))
+            {
+                // The waiters gave up
+                if(taken == GROW)
+                {
+                    size.decrementAndGet();
+                }
+                else
+                {
+                    makeIdle((Connection)taken);
+                }
+            }
+        }
+        return;
+    }
+
+    /*
+     * Hands a connection, or GROW, to a waiting thread.  The first thread
+     * waiting is served, unless a thread close behind it waits for a
+     * connection bound with the same credentials, which is then served
+     * instead to save a bind.  The first thread is passed over no more than
+     * maxConns times.  Returns false if no thread is waiting.
+     */
+    private boolean handOver(Object taken, Credentials credentials)
+    {
+        for(;;)
+        {
+            Waiter head = waiters.peek();
+            if(null == head)
+            {
+                return false;
+            }
+            Waiter chosen = head;
+            if((null != credentials) && (head.passedOver < maxConns) &&
+               !credentials.equals(head.credentials))
+            {
+                Iterator<Waiter> i = waiters.iterator();
+                for (int n = 0; (n < maxConns) && i.hasNext(); n++)
+                {
+                    Waiter waiter = i.next();
+                    if(credentials.equals(waiter.credentials) &&
+                       waiter.isWaiting())
+                    {
+                        chosen = waiter;
+                        break;
+                    }
+                }
+            }
+            boolean handed = chosen.offer(taken);
+            // Handed over or given up, it waits no more
+            waiters.remove(chosen);
+            if(handed)
+            {
+                if(chosen != head)
+                {
+                    head.passedOver++;
+                }
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Makes a connection taken ready for use with the credentials, opening
+     * or binding it as needed.  Returns null if the connection had been
+     * closed and was discarded.
+     */
+    private Connection prepare(Object taken, Credentials credentials)
+            throws LDAPException
+    {
+        Connection conn;
+        if(taken == GROW)
+        {
+            try
+            {
+                conn = open();
+            }
+            catch(LDAPException e)
+            {
+                size.decrementAndGet();
+                dispatch();
+                throw e;
+            }
+        }
+        else
+        {
+            conn = (Connection)taken;
+            if(!conn.isConnected())
+            {
+                discard(conn);
+                return null;
+            }
+        }
+        if(!credentials.equals(conn.getCredentials()))
+        {
+            bind(conn, credentials);
+        }
+        return conn;
+    }
+
+    /*
+     * Opens a new connection, not bound.
+     */
+    private Connection open()
+            throws LDAPException
+    {
+        LDAPSocketFactory factory = servers.getSocketFactory();
+        Connection conn = new Connection(factory);
+        conn.setPool(this);
+        try
+        {
+            conn.setServerIndex(servers.connect(conn));
+            if(factory instanceof LDAPTLSSocketFactory)
+            {
+                conn.startTLS();
+            }
+        }
+        catch(LDAPException e)
+        {
+            try
+            {
+                conn.disconnect();
+            }
+            catch(LDAPException de)
+            {
+                // ignore problem closing a failed connection
+            }
+            throw e;
+        }
+        if(Debug.LDAP_DEBUG)
+        {
+            Debug.trace(Debug.connections, "ConnectionPool: opened " +
+                conn.toString() + ", " + size.get() + " connections");
+        }
+        conn.setCredentials(ANONYMOUS);
+        return conn;
+    }
+
+    /*
+     * Binds a connection with the credentials.  If the bind fails, the
+     * connection is made available unbound, or discarded if it failed.
+     */
+    private void bind(Connection conn, Credentials credentials)
+            throws LDAPException
+    {
+        try
+        {
+            conn.poolBind(LDAPConnection.LDAP_V3,
+                          credentials.getDN(), credentials.getPW());
+            conn.setCredentials(credentials);
+        }
+        catch(LDAPException e)
+        {
+            if(conn.isConnected())
+            {
+                // A failed bind leaves the connection anonymous
+                conn.setCredentials(ANONYMOUS);
+                release(conn);
+            }
+            else
+            {
+                discard(conn);
+            }
+            throw e;
+        }
+        return;
+    }
+
+    //*************************************************************************
+    // Checkin
+    //*************************************************************************
+
+    /*
+     * Hands a connection to the first waiting thread, or makes it available.
+     */
+    private void release(Connection conn)
+    {
+        if(handOver(conn, conn.getCredentials()))
+        {
+            return;
+        }
+        makeIdle(conn);
+        // A thread queued as we made it available must not be left waiting
+        if(!waiters.isEmpty())
+        {
+            dispatch();
+        }
+        return;
+    }
+
+    /*
+     * Adds a connection to the available connections of its credentials and
+     * server.
+     */
+    private void makeIdle(Connection conn)
+    {
+        Credentials credentials = conn.getCredentials();
+        List<ConcurrentLinkedDeque<Connection>> lists = available.get(credentials);
+        if(null == lists)
+        {
+            int count = servers.getServerCount();
+            lists = new ArrayList<ConcurrentLinkedDeque<Connection>>(count);
+            for (int i = 0; i < count; i++)
+            {
+                lists.add(new ConcurrentLinkedDeque<Connection>());
+            }
+            List<ConcurrentLinkedDeque<Connection>> existing = available.putIfAbsent(credentials, lists);
+            if(null != existing)
+            {
+                lists = existing;
+            }
+        }
+        ConcurrentLinkedDeque<Connection> connections = lists.get(conn.getServerIndex());
+        conn.setIdleSince(System.currentTimeMillis());
+        connections.offerFirst(conn);
+        if(available.get(credentials) != lists)
+        {
+            // The list was removed as empty by maintain, it may no longer
+            // see the connection
+            if(connections.removeFirstOccurrence(conn))
+            {
+                makeIdle(conn);
+            }
+        }
+        else if(closed)
+        {
+            // Closed as it was made available
+            if(connections.removeFirstOccurrence(conn))
+            {
+                discard(conn);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Closes a connection and removes it from the pool.
+     */
+    private void discard(Connection conn)
+    {
+        size.decrementAndGet();
+        if(Debug.LDAP_DEBUG)
+        {
+            Debug.trace(Debug.connections, "ConnectionPool: closing " +
+                conn.toString() + ", " + size.get() + " connections");
+        }
+        try
+        {
+            conn.disconnect();
+        }
+        catch(LDAPException e)
+        {
+            // ignore problem closing connection
+        }
+        if(!closed && !waiters.isEmpty())
+        {
+            // A waiting thread may open a connection
+            dispatch();
+        }
+        return;
+    }
+
+    //*************************************************************************
+    // Background checks
+    //*************************************************************************
+
+    /*
+     * Run by the background thread until the pool is closed.
+     */
+    private void maintain()
+    {
+        while(!closed)
+        {
+            try
+            {
+                check();
+                Thread.sleep(checkInterval);
+            }
+            catch(InterruptedException e)
+            {
+                // closed
+            }
+            catch(RuntimeException e)
+            {
+                if(Debug.LDAP_DEBUG)
+                {
+                    Debug.trace(Debug.connections,
+                        "ConnectionPool: check failed " + e.toString());
+                }
+            }
+        }
+        return;
+    }
+
+    /*
+     * Closes connections that failed or have been idle for too long, then
+     * opens connections up to minConns.  Each available connection is taken
+     * out of its list while it is checked, so no thread uses it meanwhile.
+     */
+    private void check()
+    {
+        long now = System.currentTimeMillis();
+        long idle = idleTimeout;
+        Iterator<Map.Entry<Credentials,List<ConcurrentLinkedDeque<Connection>>>> entries =
+                available.entrySet().iterator();
+        while(entries.hasNext() && !closed)
+        {
+            Map.Entry<Credentials,List<ConcurrentLinkedDeque<Connection>>> entry = entries.next();
+            List<ConcurrentLinkedDeque<Connection>> lists = entry.getValue();
+            boolean empty = true;
+            for (int j = 0; j < lists.size(); j++)
+            {
+                ConcurrentLinkedDeque<Connection> connections = lists.get(j);
+                // Least recently used first
+                Iterator<Connection> i = connections.descendingIterator();
+                while(i.hasNext())
+                {
+                    Connection conn = i.next();
+                    if(!connections.removeLastOccurrence(conn))
+                    {
+                        // Checked out meanwhile
+                        continue;
+                    }
+                    if((idle > 0) && (now - conn.getIdleSince() > idle) &&
+                       (size.get() > minConns))
+                    {
+                        discard(conn);
+                    }
+                    else if(!conn.isConnectionAlive())
+                    {
+                        discard(conn);
+                    }
+                    else if(!handOver(conn, conn.getCredentials()))
+                    {
+                        // Back in its place, keeping its idle time
+                        connections.offerLast(conn);
+                        // As release, a thread queued meanwhile must not
+                        // be left waiting
+                        if(!waiters.isEmpty())
+                        {
+                            dispatch();
+                        }
+                    }
+                }
+                empty &= connections.isEmpty();
+            }
+            if(empty && available.remove(entry.getKey(), lists))
+            {
+                // Connections made available as it was removed
+                for (int j = 0; j < lists.size(); j++)
+                {
+                    Connection conn;
+                    while((conn = lists.get(j).pollFirst()) != null)
+                    {
+                        release(conn);
+                    }
+                }
+            }
+        }
+        while(!closed && (size.get() < minConns) && reserve())
+        {
+            Connection conn;
+            try
+            {
+                conn = open();
+            }
+            catch(LDAPException e)
+            {
+                size.decrementAndGet();
+                if(Debug.LDAP_DEBUG)
+                {
+                    Debug.trace(Debug.connections,
+                        "ConnectionPool: open failed " + e.toString());
+                }
+                break;
+            }
+            release(conn);
+        }
+        return;
+    }
+
+    /**
+     * A thread waiting for a connection.  The slot is set once, with the
+     * connection or GROW handed over, or with the waiter itself when the
+     * thread gives up.
+     */
+    private static final class Waiter
+    {
+        final Credentials credentials;
+        final Thread thread = Thread.currentThread();
+        final AtomicReference<Object> slot = new AtomicReference<Object>(null);
+        // Times a later thread was served first, updated loosely
+        volatile int passedOver = 0;
+
+        Waiter(Credentials credentials)
+        {
+            this.credentials = credentials;
+            return;
+        }
+
+        /*
+         * Hands over a connection, returns false if the thread gave up.
+         */
+        boolean offer(Object taken)
+        {
+            if(slot.compareAndSet(null, taken))
+            {
+                LockSupport.unpark(thread);
+                return true;
+            }
+            return false;
+        }
+
+        /*
+         * Returns true if nothing was handed over and the thread waits.
+         */
+        boolean isWaiting()
+        {
+            return slot.get() == null;
+        }
+
+        /*
+         * Gives up waiting, returns false if a connection was handed over.
+         */
+        boolean cancel()
+        {
+            return slot.compareAndSet(null, this);
+        }
+    }
+}
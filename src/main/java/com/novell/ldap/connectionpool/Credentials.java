@@ -0,0 +1,107 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 2003 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+package com.novell.ldap.connectionpool;
+
+import java.util.Arrays;
+
+/**
+ * The DN and password a pooled connection is bound with.
+ *
+ * <p>Used as a hash key to find the connections bound with the same
+ * credentials.  As in SharedConnections, DNs are compared ignoring case and
+ * null equals null.  The hash code is computed once.</p>
+ *
+ * @see ConnectionPool
+ */
+/* package */
+final class Credentials
+{
+    private final String DN;
+    private final byte[] PW;
+    private final int hash;
+
+    /**
+     * Constructs the credentials, the password is copied.
+     *
+     * @param DN the bind DN, or null.
+     *
+     * @param PW the bind password, or null.
+     */
+    Credentials(String DN, byte[] PW)
+    {
+        this.DN = DN;
+        this.PW = (PW == null) ? null : PW.clone();
+        int h = 0;
+        if(null != DN)
+        {
+            // Fold case the way equalsIgnoreCase compares
+            for (int i = 0; i < DN.length(); i++)
+            {
+                h = (h * 31) + Character.toLowerCase(
+                        Character.toUpperCase(DN.charAt(i)));
+            }
+        }
+        this.hash = (h * 31) + Arrays.hashCode(PW);
+        return;
+    }
+
+    /**
+     * Returns the bind DN.
+     */
+    String getDN()
+    {
+        return DN;
+    }
+
+    /**
+     * Returns the bind password.
+     */
+    byte[] getPW()
+    {
+        return PW;
+    }
+
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public boolean equals(Object o)
+    {
+        if(this == o)
+        {
+            return true;
+        }
+        if(!(o instanceof Credentials))
+        {
+            return false;
+        }
+        Credentials other = (Credentials)o;
+        if(hash != other.hash)
+        {
+            return false;
+        }
+        if(null == DN)
+        {
+            if(null != other.DN)
+                return false;
+        }
+        else if(!DN.equalsIgnoreCase(other.DN))
+        {
+            return false;
+        }
+        return Arrays.equals(PW, other.PW);
+    }
+}
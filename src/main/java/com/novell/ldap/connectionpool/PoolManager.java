@@ -42,7 +42,12 @@ import com.novell.ldap.LDAPTLSSocketFactory;
  * Once an LDAPConnection object is no longer needed the 
  * {@link #makeConnectionAvailable(LDAPConnection) makeConnectionAvailable}
  * function must be called to make the LDAPConnection available to other threads.</p>
+ *
+ * @deprecated Replaced by {@link ConnectionPool}, which does not lock to
+ * find a bound connection, opens connections as needed and fails waiting
+ * threads after a timeout.
  */
+@Deprecated
 public class PoolManager
 {
     /** Contains all of the sharedConns that are in use */
@@ -0,0 +1,648 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ***************************************************************************/
+
+package com.novell.ldap.controls;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+
+import com.novell.ldap.LDAPAuthHandler;
+import com.novell.ldap.LDAPAuthProvider;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPLocalException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.client.Debug;
+
+/**
+ * Returns the entries of a search one page at a time with the Simple Paged
+ * Results control (RFC 2696), through a single enumeration over all the
+ * pages.
+ *
+ * <p>The cookie of each page is sent with the request for the next page.
+ * The next page is requested as soon as the result of the previous page is
+ * received, while its entries are being read by the application, and
+ * no later page is requested until no more than one page of entries is
+ * waiting to be read.</p>
+ *
+ * <p>The page size starts at the size given and then follows the rate the
+ * entries are returned at, so that a page takes about the target page time
+ * to be returned, without changing by more than a factor of two from one
+ * page to the next.  A server that returns fewer entries than requested
+ * lowers the maximum page size to the number it returned.</p>
+ *
+ * <p>When an authentication handler is set, a search that fails because the
+ * connection is lost is resumed: the connection is reconnected, bound with
+ * the DN and password of the handler, and the page being returned is
+ * requested again with its cookie, skipping the entries already received.
+ * Otherwise, or when the server rejects the cookie on the new connection,
+ * the error is thrown once the entries already received are read.
+ * {@link #getCookie} and {@link #getPageOffset} can then be saved to resume
+ * the search later with {@link #setCookie}.</p>
+ *
+ * <p>Search continuation references are skipped.  A PagedSearch is used by
+ * one thread at a time.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   PagedSearch search = new PagedSearch(conn, "o=Acme",
+ *       LDAPConnection.SCOPE_SUB, "(objectClass=inetOrgPerson)",
+ *       new String[] {"uid", "mail"}, false);
+ *   search.setReconnect(handler, 3, 1000);
+ *   while( search.hasMore()) {
+ *       LDAPEntry entry = search.next();
+ *       ...
+ *   }
+ * </code></pre></p>
+ *
+ * @see LDAPPagedResultsControl
+ * @see LDAPPagedResultsResponse
+ */
+public class PagedSearch
+{
+    private final LDAPConnection conn;
+    private final String base;
+    private final int scope;
+    private final String filter;
+    private final String[] attrs;
+    private final boolean typesOnly;
+    private LDAPSearchConstraints cons;
+    private int pageSize = 500;
+    private int minPageSize = 50;
+    private int maxPageSize = 10000;
+    private long targetPageTime = 1000;
+    private LDAPAuthHandler authHandler = null;
+    private int maxRetries = 0;
+    private long retryDelay = 1000;
+
+    // State of the search
+    private final ArrayDeque<LDAPEntry> entries =
+                        new ArrayDeque<LDAPEntry>();    // Entries not read
+    private final ArrayDeque<Page> pages =
+                        new ArrayDeque<Page>();         // Pages of entries
+                                                        // not read
+    private LDAPSearchQueue queue = null;
+    private Page inflight = null;       // Page being returned
+    private boolean more = true;        // Another page is to be requested
+    private byte[] nextCookie = null;   // Cookie of the next page
+    private int nextOffset = 0;         // Entries of the next page to skip
+    private int retries = 0;            // Retries since a page was returned
+    private LDAPException failure = null; // Error ending the search
+    private long pageCount = 0;
+    private long entryCount = 0;
+
+    /*
+     * A page requested from the server.
+     */
+    private static final class Page
+    {
+        private final byte[] cookie;    // Cookie sent for the page
+        private final int size;         // Page size requested
+        private int skip;               // Entries returned before a retry
+        private int received = 0;       // Entries received since sent
+        private int unread = 0;         // Entries waiting to be read
+        private int read;               // Entries skipped or read
+        private boolean done = false;   // Result received
+        private boolean retried = false;
+        private long sent;              // Time sent, in nanoseconds
+
+        private Page( byte[] cookie, int size, int skip)
+        {
+            this.cookie = cookie;
+            this.size = size;
+            this.skip = skip;
+            this.read = skip;
+            return;
+        }
+    }
+
+    /**
+     * Constructs a paged search.  No request is sent until the first call
+     * to hasMore or next.
+     *
+     * @param conn      The connected and bound connection.
+     *<br><br>
+     * @param base      The base distinguished name to search from.
+     *<br><br>
+     * @param scope     The scope of the entries to search: SCOPE_BASE,
+     *                  SCOPE_ONE or SCOPE_SUB.
+     *<br><br>
+     * @param filter    The search filter.
+     *<br><br>
+     * @param attrs     The names of attributes to retrieve, or null for
+     *                  all user attributes.
+     *<br><br>
+     * @param typesOnly If true, returns the names but not the values of
+     *                  the attributes found.
+     */
+    public PagedSearch( LDAPConnection conn,
+                        String base,
+                        int scope,
+                        String filter,
+                        String[] attrs,
+                        boolean typesOnly)
+    {
+        this.conn = conn;
+        this.base = base;
+        this.scope = scope;
+        this.filter = filter;
+        this.attrs = attrs;
+        this.typesOnly = typesOnly;
+        // The size limit would apply to all the pages together
+        this.cons = (LDAPSearchConstraints)conn.getSearchConstraints().clone();
+        this.cons.setMaxResults( 0);
+        return;
+    }
+
+    /**
+     * Sets the constraints of the page requests.  The paged results control
+     * is added to the controls of the constraints.  Default: the search
+     * constraints of the connection, without a size limit.
+     *
+     * @param cons The search constraints.
+     */
+    public void setConstraints( LDAPSearchConstraints cons)
+    {
+        this.cons = (LDAPSearchConstraints)cons.clone();
+        return;
+    }
+
+    /**
+     * Sets the size of the first page.  Default: 500
+     *
+     * @param size The number of entries requested in the first page.
+     */
+    public void setPageSize( int size)
+    {
+        if( size < 1) {
+            throw new IllegalArgumentException(
+                "Paged search page size must be at least 1");
+        }
+        this.pageSize = size;
+        return;
+    }
+
+    /**
+     * Sets the range of the page sizes.  Default: 50 to 10000
+     *
+     * @param min The smallest page size requested.
+     *<br><br>
+     * @param max The largest page size requested.
+     */
+    public void setPageSizeRange( int min, int max)
+    {
+        if( min < 1 || max < min) {
+            throw new IllegalArgumentException(
+                "Paged search page size range " + min + " to " + max +
+                " is not valid");
+        }
+        this.minPageSize = min;
+        this.maxPageSize = max;
+        return;
+    }
+
+    /**
+     * Sets the time each page should take to be returned.  The page size is
+     * not changed if the time is zero.  Default: 1000
+     *
+     * @param millis The target time in milliseconds.
+     */
+    public void setTargetPageTime( long millis)
+    {
+        this.targetPageTime = millis;
+        return;
+    }
+
+    /**
+     * Resumes the search after a connection is lost.
+     *
+     * @param handler  Returns the DN and password to bind with once
+     *                 reconnected, or null not to reconnect.
+     *<br><br>
+     * @param retries  The number of times to reconnect before a page is
+     *                 returned.
+     *<br><br>
+     * @param delay    The time to wait before reconnecting, in
+     *                 milliseconds, multiplied by the number of the retry.
+     */
+    public void setReconnect( LDAPAuthHandler handler, int retries, long delay)
+    {
+        this.authHandler = handler;
+        this.maxRetries = retries;
+        this.retryDelay = delay;
+        return;
+    }
+
+    /**
+     * Sets the cookie to resume a search from, with the number of entries
+     * of its page already read.  The search must have the same base, scope,
+     * filter and attributes, and must not have been started.
+     *
+     * @param cookie The cookie returned by getCookie.
+     *<br><br>
+     * @param offset The offset returned by getPageOffset.
+     */
+    public void setCookie( byte[] cookie, int offset)
+    {
+        if( queue != null) {
+            throw new IllegalStateException(
+                "Paged search cookie set after the search started");
+        }
+        this.nextCookie = cookie;
+        this.nextOffset = offset;
+        return;
+    }
+
+    /**
+     * Returns the cookie of the page of the next entry returned by next, to
+     * resume the search from.
+     *
+     * @return The cookie, or null for the first page or once the search is
+     *         complete.
+     */
+    public byte[] getCookie()
+    {
+        Page page = firstPage();
+        if( page != null) {
+            return page.cookie;
+        }
+        return more ? nextCookie : null;
+    }
+
+    /**
+     * Returns the number of entries of the page of the next entry returned
+     * by next that were already returned.
+     *
+     * @return The offset of the next entry in its page.
+     */
+    public int getPageOffset()
+    {
+        Page page = firstPage();
+        if( page != null) {
+            return page.read;
+        }
+        return more ? nextOffset : 0;
+    }
+
+    /**
+     * Returns the size of the next page requested.
+     *
+     * @return The page size.
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Returns the number of pages returned by the server.
+     *
+     * @return The page count.
+     */
+    public long getPageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * Returns the number of entries returned by next.
+     *
+     * @return The entry count.
+     */
+    public long getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Reports if there are more entries, waiting for the next page if
+     * needed.
+     *
+     * @return true if next will return an entry.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public boolean hasMore()
+        throws LDAPException
+    {
+        if( failure == null) {
+            try {
+                while( entries.isEmpty() && ((inflight != null) || more)) {
+                    if( inflight == null) {
+                        sendPage();
+                    }
+                    receive( true);
+                }
+                if( ! entries.isEmpty()) {
+                    // Take what has arrived, and request the next page early
+                    receive( false);
+                }
+            } catch( LDAPException e) {
+                // Thrown once the entries received are read
+                inflight = null;
+                failure = e;
+            }
+        }
+        if( ! entries.isEmpty()) {
+            return true;
+        }
+        if( failure != null) {
+            throw failure;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next entry.
+     *
+     * @return The next entry of the search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public LDAPEntry next()
+        throws LDAPException
+    {
+        if( ! hasMore()) {
+            throw new NoSuchElementException(
+                "PagedSearch.next() no more results");
+        }
+        Page page = firstPage();
+        page.unread--;
+        page.read++;
+        entryCount++;
+        return entries.removeFirst();
+    }
+
+    /**
+     * Abandons the search.  The server is asked to release the state of the
+     * search.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public void abandon()
+        throws LDAPException
+    {
+        entries.clear();
+        pages.clear();
+        if( inflight != null) {
+            inflight = null;
+            more = false;
+            conn.abandon( queue);
+            return;
+        }
+        if( more && nextCookie != null) {
+            more = false;
+            // A page size of zero releases the cookie
+            LDAPSearchConstraints pageCons = constraints(
+                    new LDAPPagedResultsControl( 0, nextCookie, true));
+            LDAPSearchQueue q = conn.search( base, scope, filter, attrs,
+                                             typesOnly, null, pageCons);
+            LDAPMessage msg;
+            while( ((msg = q.getResponse()) != null) &&
+                                ! (msg instanceof LDAPResponse)) {
+                continue;
+            }
+        }
+        more = false;
+        return;
+    }
+
+    /*
+     * Returns the page of the next entry read, dropping the pages read.
+     */
+    private Page firstPage()
+    {
+        Page page;
+        while( ((page = pages.peekFirst()) != null) &&
+                                        page.done && (page.unread == 0)) {
+            pages.removeFirst();
+        }
+        return page;
+    }
+
+    /*
+     * Returns the constraints of a page request.
+     */
+    private LDAPSearchConstraints constraints( LDAPPagedResultsControl ctl)
+    {
+        LDAPSearchConstraints pageCons = (LDAPSearchConstraints)cons.clone();
+        LDAPControl[] ctls = cons.getControls();
+        if( ctls == null) {
+            pageCons.setControls( ctl);
+        } else {
+            LDAPControl[] all = new LDAPControl[ctls.length + 1];
+            System.arraycopy( ctls, 0, all, 0, ctls.length);
+            all[ctls.length] = ctl;
+            pageCons.setControls( all);
+        }
+        return pageCons;
+    }
+
+    /*
+     * Requests the next page.
+     */
+    private void sendPage()
+        throws LDAPException
+    {
+        Page page = new Page( nextCookie, pageSize, nextOffset);
+        nextCookie = null;
+        nextOffset = 0;
+        pages.addLast( page);
+        send( page);
+        return;
+    }
+
+    /*
+     * Sends the request for a page, reconnecting if the connection is lost.
+     */
+    private void send( Page page)
+        throws LDAPException
+    {
+        LDAPSearchConstraints pageCons = constraints(
+                new LDAPPagedResultsControl( page.size, page.cookie, true));
+        for(;;) {
+            try {
+                page.sent = System.nanoTime();
+                queue = conn.search( base, scope, filter, attrs, typesOnly,
+                                     null, pageCons);
+                inflight = page;
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.messages, "PagedSearch: requested " +
+                        page.size + " entries, skipping " + page.skip);
+                }
+                return;
+            } catch( LDAPException e) {
+                reconnect( e);
+            }
+        }
+    }
+
+    /*
+     * Processes the responses to the page being returned, waiting for an
+     * entry or the result if block is true.  Requests the next page if
+     * the result was received and at most a page of entries is unread.
+     */
+    private void receive( boolean block)
+        throws LDAPException
+    {
+        while( (inflight != null) && (block || queue.isResponseReceived())) {
+            Page page = inflight;
+            LDAPMessage msg;
+            try {
+                msg = queue.getResponse();
+            } catch( LDAPException e) {
+                retry( page, e);
+                continue;
+            }
+            if( msg == null) {
+                retry( page, new LDAPLocalException(
+                    "PagedSearch: page request not outstanding",
+                    LDAPException.CONNECT_ERROR));
+                continue;
+            }
+            if( msg instanceof LDAPSearchResult) {
+                if( ++page.received > page.skip) {
+                    entries.addLast( ((LDAPSearchResult)msg).getEntry());
+                    page.unread++;
+                    block = false;
+                }
+            } else
+            if( msg instanceof LDAPResponse) {
+                LDAPResponse resp = (LDAPResponse)msg;
+                try {
+                    resp.chkResultCode();
+                } catch( LDAPException e) {
+                    retry( page, e);
+                    continue;
+                }
+                pageReturned( page, resp.getControls());
+                block = false;
+            }
+        }
+        if( (inflight == null) && more && (nextCookie != null) &&
+                                            (entries.size() <= pageSize)) {
+            sendPage();
+        }
+        return;
+    }
+
+    /*
+     * Records the result of a page and the cookie of the next page, and
+     * sizes the next page.
+     */
+    private void pageReturned( Page page, LDAPControl[] controls)
+    {
+        inflight = null;
+        page.done = true;
+        pageCount++;
+        retries = 0;
+
+        byte[] cookie = null;
+        for( int i = 0; (controls != null) && (i < controls.length); i++) {
+            if( controls[i] instanceof LDAPPagedResultsResponse) {
+                cookie = ((LDAPPagedResultsResponse)controls[i]).getCookie();
+            }
+        }
+        more = (cookie != null);
+        nextCookie = cookie;
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.messages, "PagedSearch: page of " +
+                page.received + " entries returned" +
+                (more ? "" : ", search complete"));
+        }
+        if( ! more || page.retried) {
+            return;
+        }
+
+        // The server returns no more than its own maximum page size
+        if( (page.received < page.size) && (page.received >= minPageSize)) {
+            maxPageSize = page.received;
+        }
+        if( targetPageTime > 0) {
+            long elapsed = Math.max( System.nanoTime() - page.sent, 1);
+            long size = (long)page.received * targetPageTime * 1000000L /
+                                                                    elapsed;
+            size = Math.max( size, page.size / 2);
+            size = Math.min( size, (long)page.size * 2);
+            pageSize = (int)size;
+        }
+        pageSize = Math.max( minPageSize, Math.min( pageSize, maxPageSize));
+        return;
+    }
+
+    /*
+     * Requests a page again once reconnected, skipping the entries already
+     * received.
+     */
+    private void retry( Page page, LDAPException e)
+        throws LDAPException
+    {
+        inflight = null;
+        reconnect( e);
+        page.skip = page.received;
+        page.received = 0;
+        page.retried = true;
+        send( page);
+        return;
+    }
+
+    /*
+     * Reconnects and binds again after the connection is lost, or throws
+     * the error if it cannot be recovered from.
+     */
+    private void reconnect( LDAPException e)
+        throws LDAPException
+    {
+        for(;;) {
+            int resultCode = e.getResultCode();
+            if( (authHandler == null) || (retries >= maxRetries) ||
+                    ((resultCode != LDAPException.CONNECT_ERROR) &&
+                     (resultCode != LDAPException.SERVER_DOWN))) {
+                throw e;
+            }
+            retries++;
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, "PagedSearch: reconnecting, " +
+                    "retry " + retries + " after " + e.toString());
+            }
+            try {
+                Thread.sleep( retryDelay * retries);
+            } catch( InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            String host = conn.getHost();
+            int port = conn.getPort();
+            try {
+                LDAPAuthProvider auth = authHandler.getAuthProvider( host, port);
+                conn.connect( host, port);
+                conn.bind( LDAPConnection.LDAP_V3, auth.getDN(),
+                           auth.getPassword());
+                return;
+            } catch( LDAPException ce) {
+                e = ce;
+            }
+        }
+    }
+}
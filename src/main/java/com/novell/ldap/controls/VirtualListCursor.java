@@ -0,0 +1,574 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ***************************************************************************/
+
+package com.novell.ldap.controls;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.client.Debug;
+
+/**
+ * Reads the entries of a sorted search by their position in the list, with
+ * the Server Side Sort and Virtual List View controls.
+ *
+ * <p>Each VLV search returns a window of the list.  The entries returned
+ * are kept in a cache of the most recently used entries, and only the
+ * entries missing from the cache are requested: the missing entries of a
+ * range that are less than a window apart are requested in one search, and
+ * the searches for a range are sent before any is waited for.  After each
+ * access, the next window in the direction the list is scrolled is
+ * requested in the background.</p>
+ *
+ * <p>The size of the list is the content count returned by the server.
+ * When the content count changes, the list has changed on the server and
+ * the cached entries are dropped.  The context ID returned by the server
+ * is sent with each request.</p>
+ *
+ * <p>Positions start at 0.  Search continuation references are skipped.  A
+ * VirtualListCursor is used by one thread at a time.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   VirtualListCursor users = new VirtualListCursor(conn, "o=Acme",
+ *       LDAPConnection.SCOPE_SUB, "(objectClass=inetOrgPerson)",
+ *       new String[] {"cn", "mail"}, false,
+ *       new LDAPSortKey[] { new LDAPSortKey("cn") });
+ *   int size = users.size();
+ *   LDAPEntry[] visible = users.range(firstRow, firstRow + rows);
+ * </code></pre></p>
+ *
+ * @see LDAPVirtualListControl
+ * @see LDAPSortControl
+ */
+public class VirtualListCursor
+{
+    private final LDAPConnection conn;
+    private final String base;
+    private final int scope;
+    private final String filter;
+    private final String[] attrs;
+    private final boolean typesOnly;
+    private final LDAPSortControl sort;
+    private LDAPSearchConstraints cons;
+    private int windowSize = 100;
+    private int cacheSize = 10000;
+    private boolean prefetch = true;
+
+    // State of the list
+    private final Cache cache = new Cache();
+    private int contentCount = -1;      // Size of the list, -1 if unknown
+    private String context = null;      // Context ID returned by the server
+    private int generation = 0;         // Changed when the list changes
+    private int lastFrom = 0;           // Start of the last range read
+    private Fetch pending = null;       // Window read ahead
+    private long searchCount = 0;
+
+    /*
+     * Entries of the list by position, least recently used first.
+     */
+    private final class Cache extends LinkedHashMap<Integer,LDAPEntry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Cache()
+        {
+            super( 256, 0.75f, true);
+            return;
+        }
+
+        protected boolean removeEldestEntry(
+                                    Map.Entry<Integer,LDAPEntry> eldest)
+        {
+            return size() > cacheSize;
+        }
+    }
+
+    /*
+     * A window requested from the server.
+     */
+    private static final class Fetch
+    {
+        private final int start;        // Position of the first entry
+        private final int count;        // Entries requested
+        private LDAPSearchQueue queue;
+        private final ArrayList<LDAPEntry> entries =
+                                            new ArrayList<LDAPEntry>();
+        private int first;              // Position returned by the server
+        private boolean done = false;
+
+        private Fetch( int start, int count)
+        {
+            this.start = start;
+            this.count = count;
+            return;
+        }
+
+        private boolean contains( int index)
+        {
+            return (index >= start) && (index < start + count);
+        }
+    }
+
+    /**
+     * Constructs a cursor over the entries of a search sorted by the keys.
+     * No request is sent until the list is first read.
+     *
+     * @param conn      The connected and bound connection.
+     *<br><br>
+     * @param base      The base distinguished name to search from.
+     *<br><br>
+     * @param scope     The scope of the entries to search: SCOPE_BASE,
+     *                  SCOPE_ONE or SCOPE_SUB.
+     *<br><br>
+     * @param filter    The search filter.
+     *<br><br>
+     * @param attrs     The names of attributes to retrieve, or null for
+     *                  all user attributes.
+     *<br><br>
+     * @param typesOnly If true, returns the names but not the values of
+     *                  the attributes found.
+     *<br><br>
+     * @param keys      The keys the list is sorted by.
+     */
+    public VirtualListCursor( LDAPConnection conn,
+                              String base,
+                              int scope,
+                              String filter,
+                              String[] attrs,
+                              boolean typesOnly,
+                              LDAPSortKey[] keys)
+    {
+        this.conn = conn;
+        this.base = base;
+        this.scope = scope;
+        this.filter = filter;
+        this.attrs = attrs;
+        this.typesOnly = typesOnly;
+        this.sort = new LDAPSortControl( keys, true);
+        this.cons = conn.getSearchConstraints();
+        return;
+    }
+
+    /**
+     * Sets the constraints of the searches.  The sort and virtual list
+     * view controls are added to the controls of the constraints.  Default:
+     * the search constraints of the connection.
+     *
+     * @param cons The search constraints.
+     */
+    public void setConstraints( LDAPSearchConstraints cons)
+    {
+        this.cons = (LDAPSearchConstraints)cons.clone();
+        return;
+    }
+
+    /**
+     * Sets the number of entries requested at least by each search.
+     * Default: 100
+     *
+     * @param size The window size.
+     */
+    public void setWindowSize( int size)
+    {
+        if( size < 1) {
+            throw new IllegalArgumentException(
+                "Virtual list window size must be at least 1");
+        }
+        this.windowSize = size;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of entries cached.  Default: 10000
+     *
+     * @param entries The cache size.
+     */
+    public void setCacheSize( int entries)
+    {
+        this.cacheSize = entries;
+        return;
+    }
+
+    /**
+     * Sets whether the next window in the direction the list is scrolled is
+     * requested in the background.  Default: true
+     *
+     * @param prefetch true to read ahead.
+     */
+    public void setPrefetch( boolean prefetch)
+    {
+        this.prefetch = prefetch;
+        return;
+    }
+
+    /**
+     * Returns the size of the list, reading the first window if the size is
+     * not known.
+     *
+     * @return The content count returned by the server.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public int size()
+        throws LDAPException
+    {
+        if( contentCount < 0) {
+            range( 0, 1);
+        }
+        return contentCount;
+    }
+
+    /**
+     * Returns the entry at a position of the list.
+     *
+     * @param index The position of the entry, starting at 0.
+     *
+     * @return The entry, or null if the list has fewer entries.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public LDAPEntry get( int index)
+        throws LDAPException
+    {
+        LDAPEntry[] entries = range( index, index + 1);
+        return (entries.length == 0) ? null : entries[0];
+    }
+
+    /**
+     * Returns the entries between two positions of the list.
+     *
+     * @param from The position of the first entry, starting at 0.
+     *<br><br>
+     * @param to   The position after the last entry.
+     *
+     * @return The entries, fewer than requested if the list ends before
+     *         <code>to</code>.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public LDAPEntry[] range( int from, int to)
+        throws LDAPException
+    {
+        if( (from < 0) || (to < from)) {
+            throw new IndexOutOfBoundsException(
+                "Virtual list range " + from + " to " + to);
+        }
+        boolean forward = (from >= lastFrom);
+        lastFrom = from;
+        LDAPEntry[] entries;
+        // Read again, once, if the list changes while the range is read
+        int gen = generation;
+        entries = read( from, to, forward);
+        if( gen != generation) {
+            entries = read( from, to, forward);
+        }
+
+        if( prefetch && (contentCount >= 0) && (pending == null)) {
+            readAhead( forward ? from + entries.length : from, forward);
+        }
+        return entries;
+    }
+
+    /**
+     * Drops the cached entries and the size of the list, to read the
+     * changes made to the list since it was read.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public void refresh()
+        throws LDAPException
+    {
+        close();
+        cache.clear();
+        contentCount = -1;
+        generation++;
+        return;
+    }
+
+    /**
+     * Abandons the window being read ahead, if any.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public void close()
+        throws LDAPException
+    {
+        if( pending != null) {
+            Fetch fetch = pending;
+            pending = null;
+            if( ! fetch.done) {
+                conn.abandon( fetch.queue);
+            }
+        }
+        return;
+    }
+
+    /**
+     * Returns the number of VLV searches sent.
+     *
+     * @return The search count.
+     */
+    public long getSearchCount()
+    {
+        return searchCount;
+    }
+
+    /*
+     * Reads the entries of a range from the cache and the server.
+     */
+    private LDAPEntry[] read( int from, int to, boolean forward)
+        throws LDAPException
+    {
+        // Take the window read ahead if it has arrived
+        if( pending != null) {
+            try {
+                receive( pending, false);
+            } catch( LDAPException e) {
+                // Read again when needed
+                pending = null;
+            }
+            if( (pending != null) && pending.done) {
+                pending = null;
+            }
+        }
+        if( (contentCount >= 0) && (to > contentCount)) {
+            to = Math.max( from, contentCount);
+        }
+        LDAPEntry[] entries = new LDAPEntry[to - from];
+        boolean[] missing = new boolean[to - from];
+        int found = 0;
+        for( int i = from; i < to; i++) {
+            entries[i - from] = cache.get( Integer.valueOf( i));
+            if( entries[i - from] != null) {
+                found++;
+            } else {
+                missing[i - from] = ! ((pending != null) && pending.contains(i));
+            }
+        }
+        if( found == entries.length) {
+            return entries;
+        }
+
+        // Request the missing entries less than a window apart together
+        ArrayList<Fetch> fetches = new ArrayList<Fetch>();
+        int i = from;
+        while( i < to) {
+            if( ! missing[i - from]) {
+                i++;
+                continue;
+            }
+            int last = i;
+            for( int j = i + 1; (j < to) && (j - last <= windowSize); j++) {
+                if( missing[j - from]) {
+                    last = j;
+                }
+            }
+            int start = i;
+            int end = last + 1;
+            if( end - start < windowSize) {
+                if( forward) {
+                    end = start + windowSize;
+                } else {
+                    start = Math.max( 0, end - windowSize);
+                }
+            }
+            if( (contentCount >= 0) && (end > contentCount)) {
+                end = Math.max( start + 1, contentCount);
+            }
+            fetches.add( send( start, end - start));
+            i = last + 1;
+        }
+        if( pending != null) {
+            fetches.add( pending);
+            pending = null;
+        }
+        for( int f = 0; f < fetches.size(); f++) {
+            receive( fetches.get(f), true);
+        }
+
+        // Fill the entries, ending the range where the list ends, or where
+        // an entry was not returned
+        int length = 0;
+        for( i = from; i < to; i++) {
+            if( entries[i - from] == null) {
+                entries[i - from] = cache.get( Integer.valueOf( i));
+            }
+            if( entries[i - from] == null) {
+                // Evicted, the range is larger than the cache
+                entries[i - from] = fetched( fetches, i);
+            }
+            if( entries[i - from] == null) {
+                break;
+            }
+            length++;
+        }
+        if( length < entries.length) {
+            LDAPEntry[] list = new LDAPEntry[length];
+            System.arraycopy( entries, 0, list, 0, length);
+            entries = list;
+        }
+        return entries;
+    }
+
+    /*
+     * Returns the entry at a position from the windows just read.
+     */
+    private static LDAPEntry fetched( ArrayList<Fetch> fetches, int index)
+    {
+        for( int f = 0; f < fetches.size(); f++) {
+            Fetch fetch = fetches.get(f);
+            int i = index - fetch.first;
+            if( (i >= 0) && (i < fetch.entries.size())) {
+                return fetch.entries.get(i);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Requests the window after or before a position in the background,
+     * from the first entry in that direction that is not cached.
+     */
+    private void readAhead( int index, boolean forward)
+        throws LDAPException
+    {
+        int step = forward ? 1 : -1;
+        int limit = forward ? Math.min( index + windowSize, contentCount) :
+                              Math.max( index - windowSize, 0) - 1;
+        int i = forward ? index : index - 1;
+        while( (i != limit) && cache.containsKey( Integer.valueOf( i))) {
+            i += step;
+        }
+        if( i == limit) {
+            return;
+        }
+        int start = forward ? i : Math.max( 0, i - windowSize + 1);
+        int end = forward ? Math.min( i + windowSize, contentCount) : i + 1;
+        pending = send( start, end - start);
+        return;
+    }
+
+    /*
+     * Sends the VLV search for a window.
+     */
+    private Fetch send( int start, int count)
+        throws LDAPException
+    {
+        Fetch fetch = new Fetch( start, count);
+        LDAPVirtualListControl vlv = new LDAPVirtualListControl(
+                start + 1, 0, count - 1, Math.max( contentCount, 0), context);
+        LDAPSearchConstraints searchCons =
+                                    (LDAPSearchConstraints)cons.clone();
+        LDAPControl[] ctls = cons.getControls();
+        int n = (ctls == null) ? 0 : ctls.length;
+        LDAPControl[] all = new LDAPControl[n + 2];
+        if( n > 0) {
+            System.arraycopy( ctls, 0, all, 0, n);
+        }
+        all[n] = sort;
+        all[n + 1] = vlv;
+        searchCons.setControls( all);
+        fetch.queue = conn.search( base, scope, filter, attrs, typesOnly,
+                                   null, searchCons);
+        searchCount++;
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.messages, "VirtualListCursor: requested " +
+                count + " entries at " + start);
+        }
+        return fetch;
+    }
+
+    /*
+     * Processes the responses to a window, waiting for the result if block
+     * is true.
+     */
+    private void receive( Fetch fetch, boolean block)
+        throws LDAPException
+    {
+        while( ! fetch.done && (block || fetch.queue.isResponseReceived())) {
+            LDAPMessage msg = fetch.queue.getResponse();
+            if( msg instanceof LDAPSearchResult) {
+                fetch.entries.add( ((LDAPSearchResult)msg).getEntry());
+            } else
+            if( msg instanceof LDAPResponse) {
+                fetch.done = true;
+                LDAPResponse resp = (LDAPResponse)msg;
+                resp.chkResultCode();
+                windowReturned( fetch, resp.getControls());
+            } else
+            if( msg == null) {
+                fetch.done = true;
+            }
+        }
+        return;
+    }
+
+    /*
+     * Caches the entries of a window at the position returned by the
+     * server.
+     */
+    private void windowReturned( Fetch fetch, LDAPControl[] controls)
+        throws LDAPException
+    {
+        LDAPVirtualListResponse vlv = null;
+        for( int i = 0; (controls != null) && (i < controls.length); i++) {
+            if( controls[i] instanceof LDAPVirtualListResponse) {
+                vlv = (LDAPVirtualListResponse)controls[i];
+            }
+        }
+        if( vlv == null) {
+            throw new LDAPException(
+                "Virtual list view response control not returned",
+                LDAPException.UNAVAILABLE_CRITICAL_EXTENSION, null);
+        }
+        if( vlv.getResultCode() != LDAPException.SUCCESS) {
+            throw new LDAPException(
+                LDAPException.resultCodeToString( vlv.getResultCode()),
+                vlv.getResultCode(), null);
+        }
+        context = vlv.getContext();
+        if( (contentCount >= 0) && (vlv.getContentCount() != contentCount)) {
+            // The list has changed, positions in the cache may be wrong
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.messages, "VirtualListCursor: size " +
+                    contentCount + " changed to " + vlv.getContentCount());
+            }
+            cache.clear();
+            generation++;
+        }
+        contentCount = vlv.getContentCount();
+        fetch.first = vlv.getFirstPosition() - 1;
+        for( int i = 0; i < fetch.entries.size(); i++) {
+            cache.put( Integer.valueOf( fetch.first + i), fetch.entries.get(i));
+        }
+        return;
+    }
+}
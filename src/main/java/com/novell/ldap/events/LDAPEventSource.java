@@ -38,7 +38,7 @@ import com.novell.ldap.client.Debug;
 public abstract class LDAPEventSource {
     /**
      * Local Constant for time to sleep between two calls to checking the
-     * queue.
+     * queue.  No longer used, events are delivered as they are received.
      */
     private long sleepTime = 1000L;
 
@@ -171,7 +171,11 @@ public abstract class LDAPEventSource {
      * to check the ldap message queue for response.
      *
      * @return time in milliseconds
+     *
+     * @deprecated The message queue is no longer polled, each event is
+     * delivered as soon as its response is received.
      */
+    @Deprecated
     public long getSleepTime() {
         return sleepTime;
     }
@@ -185,7 +189,11 @@ public abstract class LDAPEventSource {
      * (Default).</b>
      *
      * @param l Sleep Time in MilliSeconds.
+     *
+     * @deprecated The message queue is no longer polled, each event is
+     * delivered as soon as its response is received.
      */
+    @Deprecated
     public void setSleepTime(final long l) {
         if (l <= 0) {
             throw new IllegalArgumentException("Sleep Time must be a non-zero positive number");
@@ -257,35 +265,30 @@ public abstract class LDAPEventSource {
          * Waits for the Messages on the Queue and notifies the Listener
          * of the same.
          *
+         * <p>The thread blocks in getResponse, and is woken by the
+         * connection's reader as each response is queued, so events are
+         * delivered without delay and no processing is done while no events
+         * occur.  The thread ends when the request is abandoned by
+         * stopEventGeneration, or completes.</p>
+         *
          * @see java.lang.Runnable#run()
          */
         public final void run() {
             while (isrunning) {
                 try {
-                    LDAPMessage response = null;
-
-                    while ((isrunning)
-                        && (!searchqueue.isResponseReceived(messageid))) {
-                        try {
-                            sleep(sleepTime);
-                        } catch (InterruptedException e) {
-                            ///CLOVER:OFF
-                            // ignore exception, just log it
-                            if (Debug.LDAP_DEBUG) {
-                                Debug.trace(
-                                    Debug.EventsCalls,
-                                    "Interrupt Exception"
-                                        + e.getMessage());
-                            }
-                            ///CLOVER:ON
+                    LDAPMessage response = searchqueue.getResponse(messageid);
+
+                    if (response == null) {
+                        // Abandoned or completed, no more responses
+                        if (Debug.LDAP_DEBUG) {
+                            Debug.trace(
+                                Debug.EventsCalls,
+                                "No more responses, ending EventGeneration");
                         }
+                        break;
                     }
 
                     if (isrunning) {
-                        response = searchqueue.getResponse(messageid);
-                    }
-
-                    if (response != null) {
                         processmessage(response);
                     }
                 } catch (LDAPException e) {
@@ -0,0 +1,568 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.extensions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.novell.ldap.*;
+import com.novell.ldap.client.Debug;
+import com.novell.ldap.util.BulkExecutor;
+import com.novell.ldap.util.BulkResultListener;
+import com.novell.ldap.util.LDAPReader;
+
+/**
+ * Loads the entries and changes read from an LDIF or DSML reader with the
+ * LDAP Bulk Update/Replication Protocol (LBURP).
+ *
+ * <p>The loader starts the LBURP session with a LburpStartRequest, packs the
+ * requests read into LburpOperationRequests numbered in sequence, and ends
+ * the session with a LburpEndRequest.  A batch is sent when it holds the
+ * transaction size returned by the server, the maximum batch size or the
+ * maximum batch bytes, and up to <code>window</code> batches are
+ * outstanding at once.  The failures returned in each
+ * LburpOperationResponse are traced back to the records of the input.</p>
+ *
+ * <p>The counts and entries per second may be read by another thread
+ * while the load runs, to report progress.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   LburpLoader loader = new LburpLoader(conn);
+ *   loader.setWindow(8);
+ *   loader.load(new LDIFReader(new FileInputStream("users.ldif")));
+ *   System.out.println(loader.getRequestCount() + " entries, " +
+ *       loader.getFailedCount() + " failed, " +
+ *       loader.getEntriesPerSecond() + " entries/s");
+ * </code></pre></p>
+ */
+public class LburpLoader {
+
+    private final LDAPConnection conn;
+    private String protocol = LburpConstants.LBURPIncUpdateOID;
+    private int window = 4;
+    private int maxBatchSize = 1000;
+    private int maxBatchBytes = 256 * 1024;
+    private LDAPConstraints cons = null;
+    private BulkResultListener listener = null;
+    private int maxFailures = 1000;
+
+    // State of the current load
+    private LDAPMessageQueue queue;     // Queue of the outstanding batches
+    private HashMap<Integer,Batch> pending; // Outstanding batches by ID
+    private int sequence;               // Sequence number of the last batch
+    private volatile long records;
+    private volatile long failed;
+    private volatile long completed;    // Records with a result
+    private volatile long started;      // Start time of the load
+    private volatile long ended;        // End time of the load, 0 if running
+    private ArrayList<BulkExecutor.Failure> failures =
+                                    new ArrayList<BulkExecutor.Failure>();
+
+    /*
+     * A batch of requests sent in one LburpOperationRequest.
+     */
+    private static final class Batch
+    {
+        private final ArrayList<LDAPMessage> requests =
+                                            new ArrayList<LDAPMessage>();
+        private final ArrayList<Long> records = new ArrayList<Long>();
+        private int bytes = 0;
+        private int sequence;
+    }
+
+    /**
+     * Constructs a loader sending the requests on a connection.
+     *
+     * @param conn The connected connection, bound with the rights to
+     *             update the entries.
+     */
+    public LburpLoader(LDAPConnection conn)
+    {
+        this.conn = conn;
+        return;
+    }
+
+    /**
+     * Sets the LBURP update protocol.  Default:
+     * LburpConstants.LBURPIncUpdateOID
+     *
+     * @param protocol LburpConstants.LBURPIncUpdateOID or
+     *                 LburpConstants.LBURPFullUpdateOID.
+     */
+    public void setUpdateProtocol(String protocol)
+    {
+        this.protocol = protocol;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of batches outstanding.  Default: 4
+     *
+     * @param window The maximum number of LburpOperationRequests sent
+     *               before their response is received.
+     */
+    public void setWindow(int window)
+    {
+        if( window < 1) {
+            throw new IllegalArgumentException(
+                "LBURP loader window must be at least 1");
+        }
+        this.window = window;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of requests in a batch.  A smaller transaction
+     * size returned by the server is used instead.  Default: 1000
+     *
+     * @param size The maximum number of requests in a batch.
+     */
+    public void setMaxBatchSize(int size)
+    {
+        if( size < 1) {
+            throw new IllegalArgumentException(
+                "LBURP loader batch size must be at least 1");
+        }
+        this.maxBatchSize = size;
+        return;
+    }
+
+    /**
+     * Sets the size of the requests, in bytes, above which a batch is sent.
+     * A batch of large entries is sent before the maximum batch size is
+     * reached.  Default: 262144
+     *
+     * @param bytes The approximate maximum size of a batch.
+     */
+    public void setMaxBatchBytes(int bytes)
+    {
+        this.maxBatchBytes = bytes;
+        return;
+    }
+
+    /**
+     * Sets the constraints of the LBURP requests, such as their time limit.
+     *
+     * @param cons The constraints, or null for the constraints of the
+     *             connection.
+     */
+    public void setConstraints(LDAPConstraints cons)
+    {
+        this.cons = cons;
+        return;
+    }
+
+    /**
+     * Sets the listener given the result of each record.  The response
+     * given is the LburpOperationResponse of the record's batch.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public void setListener(BulkResultListener listener)
+    {
+        this.listener = listener;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of failures kept, failures beyond it are only
+     * counted.  Default: 1000
+     *
+     * @param max The maximum number of failures returned by getFailures.
+     */
+    public void setMaxFailures(int max)
+    {
+        this.maxFailures = max;
+        return;
+    }
+
+    /**
+     * Returns the number of records read from the input.
+     *
+     * @return The number of records.
+     */
+    public long getRequestCount()
+    {
+        return records;
+    }
+
+    /**
+     * Returns the number of records whose result was received.
+     *
+     * @return The number of records completed.
+     */
+    public long getCompletedCount()
+    {
+        return completed;
+    }
+
+    /**
+     * Returns the number of records that failed.
+     *
+     * @return The number of records that failed.
+     */
+    public long getFailedCount()
+    {
+        return failed;
+    }
+
+    /**
+     * Returns the records that failed, up to the maximum set by
+     * setMaxFailures, in the order their errors were received.
+     *
+     * @return A list of BulkExecutor.Failure.
+     */
+    public List<BulkExecutor.Failure> getFailures()
+    {
+        synchronized( failures) {
+            return Collections.unmodifiableList(
+                        new ArrayList<BulkExecutor.Failure>( failures));
+        }
+    }
+
+    /**
+     * Returns the milliseconds since the start of the load, or the duration
+     * of the last load once it is complete.
+     *
+     * @return The elapsed time, in milliseconds.
+     */
+    public long getElapsedTime()
+    {
+        long start = started;
+        if( start == 0) {
+            return 0;
+        }
+        long end = ended;
+        return ((end == 0) ? System.currentTimeMillis() : end) - start;
+    }
+
+    /**
+     * Returns the records completed per second since the start of the
+     * load.
+     *
+     * @return The number of entries loaded per second.
+     */
+    public double getEntriesPerSecond()
+    {
+        long elapsed = getElapsedTime();
+        if( elapsed == 0) {
+            return 0;
+        }
+        return completed * 1000.0 / elapsed;
+    }
+
+    /**
+     * Loads the requests read from an LDIF or DSML reader, and waits for
+     * their results.  Entries of an LDIF content file are added.
+     *
+     * @param reader The source of the entries and changes.
+     *
+     * @return The number of records read.
+     *
+     * @exception IOException Reading the input failed.
+     * @exception LDAPException The LBURP session could not be started or
+     *            ended, or a batch could not be sent.
+     */
+    public long load(LDAPReader reader)
+        throws LDAPException, IOException
+    {
+        queue = null;
+        pending = new HashMap<Integer,Batch>();
+        sequence = 0;
+        records = 0;
+        failed = 0;
+        completed = 0;
+        ended = 0;
+        started = System.currentTimeMillis();
+        synchronized( failures) {
+            failures.clear();
+        }
+
+        int batchSize = maxBatchSize;
+        LDAPExtendedResponse response =
+            conn.extendedOperation( new LburpStartRequest( protocol), cons);
+        if( response instanceof LburpStartResponse) {
+            int tranSize = ((LburpStartResponse)response).getTranSize();
+            if( (tranSize > 0) && (tranSize < batchSize)) {
+                batchSize = tranSize;
+            }
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests,
+                "LburpLoader: started " + protocol + ", batch size " +
+                batchSize);
+        }
+
+        boolean complete = false;
+        try {
+            Batch batch = new Batch();
+            LDAPMessage msg;
+            while( (msg = reader.readMessage()) != null) {
+                long record = ++records;
+                if( msg instanceof LDAPSearchResult) {
+                    // Entry of an LDIF content file
+                    msg = new LDAPAddRequest(
+                        ((LDAPSearchResult)msg).getEntry(), msg.getControls());
+                }
+                switch( msg.getType()) {
+                    case LDAPMessage.ADD_REQUEST:
+                    case LDAPMessage.MODIFY_REQUEST:
+                    case LDAPMessage.MODIFY_RDN_REQUEST:
+                    case LDAPMessage.DEL_REQUEST:
+                        break;
+                    default:
+                        completed( record, msg, null, new LDAPLocalException(
+                            "LBURP loader input is not an add, modify, " +
+                            "modify DN or delete request",
+                            LDAPException.LOCAL_ERROR));
+                        continue;
+                }
+                batch.requests.add( msg);
+                batch.records.add( Long.valueOf( record));
+                batch.bytes += sizeOf( msg);
+                if( (batch.requests.size() >= batchSize) ||
+                        (batch.bytes >= maxBatchBytes)) {
+                    send( batch);
+                    batch = new Batch();
+                }
+            }
+            if( batch.requests.size() > 0) {
+                send( batch);
+            }
+            drain();
+            complete = true;
+        } finally {
+            if( ! complete) {
+                abort();
+            }
+        }
+
+        try {
+            conn.extendedOperation( new LburpEndRequest( sequence), cons);
+        } finally {
+            ended = System.currentTimeMillis();
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests,
+                "LburpLoader: ended, " + records + " records, " + failed +
+                " failed, " + getEntriesPerSecond() + " entries/s");
+        }
+        return records;
+    }
+
+    /*
+     * Sends a batch once fewer than window batches are outstanding.
+     */
+    private void send(Batch batch)
+        throws LDAPException
+    {
+        while( pending.size() >= window) {
+            receive();
+        }
+        LDAPLburpRequest[] ops = new LDAPLburpRequest[batch.requests.size()];
+        for( int i = 0; i < ops.length; i++) {
+            ops[i] = new LDAPLburpRequest( batch.requests.get(i));
+        }
+        batch.sequence = ++sequence;
+        LDAPMessage msg = new LDAPExtendedRequest(
+                new LburpOperationRequest( ops, batch.sequence),
+                (cons == null) ? null : cons.getControls());
+        try {
+            queue = conn.sendRequest( msg, queue, cons);
+        } catch( LDAPException ex) {
+            failed( batch, null, ex);
+            throw ex;
+        }
+        pending.put( Integer.valueOf( msg.getMessageID()), batch);
+        return;
+    }
+
+    /*
+     * Waits for the response of a batch and records its failures.
+     */
+    private void receive()
+        throws LDAPException
+    {
+        LDAPMessage msg = queue.getResponse();
+        if( msg == null) {
+            throw new LDAPLocalException(
+                "LBURP loader has no batch outstanding",
+                LDAPException.LOCAL_ERROR);
+        }
+        Batch batch = pending.remove( Integer.valueOf( msg.getMessageID()));
+        if( (batch == null) || ! (msg instanceof LDAPResponse)) {
+            return;
+        }
+        LDAPResponse response = (LDAPResponse)msg;
+        try {
+            response.chkResultCode();
+        } catch( LDAPException ex) {
+            // The whole batch failed
+            failed( batch, response, ex);
+            return;
+        }
+        HashMap<Integer,Integer> codes = null;
+        HashMap<Integer,String> messages = null;
+        if( response instanceof LburpOperationResponse) {
+            codes = ((LburpOperationResponse)response).getResultCodes();
+            messages = ((LburpOperationResponse)response).getResponse();
+        }
+        for( int i = 0; i < batch.requests.size(); i++) {
+            // Operations are numbered from 1 in the response
+            Integer op = Integer.valueOf( i + 1);
+            LDAPException error = null;
+            if( (codes != null) && codes.containsKey( op)) {
+                int code = codes.get( op).intValue();
+                error = new LDAPException(
+                    LDAPException.resultCodeToString( code), code,
+                    messages.get( op));
+            }
+            completed( batch.records.get(i).longValue(),
+                       batch.requests.get(i), response, error);
+        }
+        return;
+    }
+
+    /*
+     * Waits for the responses of the outstanding batches.
+     */
+    private void drain()
+        throws LDAPException
+    {
+        while( ! pending.isEmpty()) {
+            receive();
+        }
+        return;
+    }
+
+    /*
+     * Completes the outstanding batches and ends the LBURP session after an
+     * error.  Errors are ignored, the error that stopped the load is thrown.
+     */
+    private void abort()
+    {
+        try {
+            drain();
+        } catch( LDAPException ex) {
+            Iterator<Batch> i = pending.values().iterator();
+            while( i.hasNext()) {
+                failed( i.next(), null, ex);
+            }
+            pending.clear();
+        }
+        try {
+            conn.extendedOperation( new LburpEndRequest( sequence), cons);
+        } catch( LDAPException ex) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.apiRequests,
+                    "LburpLoader: end failed, " + ex.toString());
+            }
+        }
+        ended = System.currentTimeMillis();
+        return;
+    }
+
+    /*
+     * Fails every record of a batch.
+     */
+    private void failed(Batch batch, LDAPResponse response, LDAPException ex)
+    {
+        for( int i = 0; i < batch.requests.size(); i++) {
+            completed( batch.records.get(i).longValue(),
+                       batch.requests.get(i), response, ex);
+        }
+        return;
+    }
+
+    /*
+     * Counts the result of a record and gives it to the listener.
+     */
+    private void completed(long record,
+                           LDAPMessage request,
+                           LDAPResponse response,
+                           LDAPException error)
+    {
+        if( error != null) {
+            failed++;
+            synchronized( failures) {
+                if( failures.size() < maxFailures) {
+                    failures.add(
+                        new BulkExecutor.Failure( record, request, error));
+                }
+            }
+        }
+        completed++;
+        if( listener != null) {
+            listener.resultReceived( record, request, response, error);
+        }
+        return;
+    }
+
+    /*
+     * Returns the approximate encoded size of a request, from its DN and
+     * attribute values.
+     */
+    private static int sizeOf(LDAPMessage msg)
+    {
+        int size = 16;
+        switch( msg.getType()) {
+            case LDAPMessage.ADD_REQUEST:
+                LDAPEntry entry = ((LDAPAddRequest)msg).getEntry();
+                size += entry.getDN().length();
+                Iterator<?> i = entry.getAttributeSet().iterator();
+                while( i.hasNext()) {
+                    size += sizeOf( (LDAPAttribute)i.next());
+                }
+                break;
+            case LDAPMessage.MODIFY_REQUEST:
+                LDAPModifyRequest modify = (LDAPModifyRequest)msg;
+                size += modify.getDN().length();
+                LDAPModification[] mods = modify.getModifications();
+                for( int j = 0; j < mods.length; j++) {
+                    size += 8 + sizeOf( mods[j].getAttribute());
+                }
+                break;
+            case LDAPMessage.MODIFY_RDN_REQUEST:
+                LDAPModifyDNRequest rename = (LDAPModifyDNRequest)msg;
+                size += rename.getDN().length() + rename.getNewRDN().length();
+                if( rename.getParentDN() != null) {
+                    size += rename.getParentDN().length();
+                }
+                break;
+            case LDAPMessage.DEL_REQUEST:
+                size += ((LDAPDeleteRequest)msg).getDN().length();
+                break;
+        }
+        return size;
+    }
+
+    private static int sizeOf(LDAPAttribute attr)
+    {
+        int size = 8 + attr.getName().length();
+        // The values are not copied
+        ByteBuffer[] values = attr.getByteBufferArray();
+        for( int i = 0; i < values.length; i++) {
+            size += 4 + values[i].remaining();
+        }
+        return size;
+    }
+}
@@ -25,7 +25,8 @@ import java.util.HashMap;
 
 public class LburpOperationResponse extends LDAPExtendedResponse {
     
-    private HashMap response; 
+    private HashMap<Integer,String> response; 
+    private HashMap<Integer,Integer> resultCodes;
     
     public LburpOperationResponse(RfcLDAPMessage rfcMessage)
                                   throws IOException
@@ -35,7 +36,8 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
         int record;
         String resp;
         
-        response = new HashMap(5);
+        response = new HashMap<Integer,String>(5);
+        resultCodes = new HashMap<Integer,Integer>(5);
         byte [] returnedValue = this.getValue();
         if (returnedValue == null)
                 throw new IOException("No returned value");
@@ -75,22 +77,29 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
                 ASN1Object obj=content[0];
                 record = ((ASN1Integer)obj).intValue();
 
-                ASN1Tagged tval= (ASN1Tagged)content[1];
-                ASN1OctetString astr=(ASN1OctetString)tval.taggedValue();
-                byte[] bval=astr.byteValue();
-
-                ByteArrayInputStream ins = new ByteArrayInputStream(bval);
-                int[] compLen = new int[1];
-                ASN1Object asb=dec.decode(ins, compLen);
-
-                asn1ID.reset(ins);
-                asn1Len.reset(ins);  
-         
-
-                ASN1Object asn2=dec.decode(ins,len);
-                resp=((ASN1OctetString)asn2).stringValue();
+                // LDAPResult of the operation, tagged or as a sequence
+                ASN1Object[] result;
+                if(content[1] instanceof ASN1Tagged){
+                    ASN1Tagged tval= (ASN1Tagged)content[1];
+                    ASN1OctetString astr=(ASN1OctetString)tval.taggedValue();
+                    byte[] bval=astr.byteValue();
+
+                    ByteArrayInputStream ins = new ByteArrayInputStream(bval);
+                    int[] compLen = new int[1];
+                    result = new ASN1Object[3];
+                    for(int i = 0; i < result.length; i++){
+                        result[i] = dec.decode(ins, compLen);
+                    }
+                } else {
+                    result = ((ASN1Sequence)content[1]).toArray();
+                }
+                int code = ((ASN1Numeric)result[0]).intValue();
+                resp=((ASN1OctetString)result[2]).stringValue();
+                if(code != LDAPException.SUCCESS){
+                    resultCodes.put(Integer.valueOf(record), Integer.valueOf(code));
+                }
                 if(resp.length() != 0){
-                    response.put((Object)new Integer(record),(Object)new String(resp));
+                    response.put(Integer.valueOf(record), resp);
                 }
             }      
       }catch(IOException ioe){
@@ -102,10 +111,29 @@ public class LburpOperationResponse extends LDAPExtendedResponse {
     
 }
 
-    public HashMap getResponse()
+    /**
+     * Returns the error messages of the operations, keyed by the Integer
+     * number of the operation in the LburpOperationRequest, starting at 1.
+     * Operations without an error message are not included.
+     *
+     * @return The error messages, by operation number.
+     */
+    public HashMap<Integer,String> getResponse()
     {
         return response;
     }
 
+    /**
+     * Returns the result codes of the operations that failed, keyed by
+     * the Integer number of the operation in the LburpOperationRequest,
+     * starting at 1.  Operations that succeeded are not included.
+     *
+     * @return The Integer result codes, by operation number.
+     */
+    public HashMap<Integer,Integer> getResultCodes()
+    {
+        return resultCodes;
+    }
+
 }
 
@@ -89,6 +89,9 @@ public class ExceptionMessages extends java.util.ListResourceBundle {
   public final static String NO_SCHEMA              = "NO_SCHEMA";
   public final static String READ_MULTIPLE          = "READ_MULTIPLE";
   public final static String CANNOT_BIND            = "CANNOT_BIND";
+  public final static String POOL_TIMEOUT           = "POOL_TIMEOUT";
+  public final static String POOL_CLOSED            = "POOL_CLOSED";
+  public final static String FILTER_PARAMETER       = "FILTER_PARAMETER";
 
   //End constants
 
@@ -155,7 +158,10 @@ public class ExceptionMessages extends java.util.ListResourceBundle {
       {"MULTIPLE_SCHEMA", "Multiple schema found when reading the subschemaSubentry for {0}"}, //the 0th parameter is a String DN
       {"NO_SCHEMA", "No schema found when reading the subschemaSubentry for {0}"}, //the 0th parameter is a String DN
       {"READ_MULTIPLE", "Read response is ambiguous, multiple entries returned"},
-      {"CANNOT_BIND", "Cannot bind. Use PoolManager.getBoundConnection()"}
+      {"CANNOT_BIND", "Cannot bind. Use the getBoundConnection() method of the connection pool"},
+      {"POOL_TIMEOUT", "No pooled connection available within {0} milliseconds"},
+      {"POOL_CLOSED", "The connection pool is closed"},
+      {"FILTER_PARAMETER", "A parameter of the filter template \"{0}\" is only part of a value"}
   // END OF MATERIAL TO LOCALIZE
   };
 }//End ExceptionMessages
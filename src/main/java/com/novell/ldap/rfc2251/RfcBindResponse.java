@@ -16,7 +16,7 @@ package com.novell.ldap.rfc2251;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import com.novell.ldap.*;
 import com.novell.ldap.asn1.*;
 
@@ -53,10 +53,10 @@ public class RfcBindResponse extends ASN1Sequence implements RfcResponse {
             ASN1Tagged obj = (ASN1Tagged)get(3);
             ASN1Identifier id = obj.getIdentifier();
             if(id.getTag() == RfcLDAPResult.REFERRAL) {
-                byte[] content =
-                    ((ASN1OctetString)obj.taggedValue()).byteValue();
-                ByteArrayInputStream bais = new ByteArrayInputStream(content);
-                set(3, new RfcReferral(dec, bais, content.length));
+                ByteBuffer content =
+                    ((ASN1OctetString)obj.taggedValue()).byteBufferValue();
+                set(3, new RfcReferral(dec, new ByteBufferInputStream(content),
+                                       content.remaining()));
             }
         }
 
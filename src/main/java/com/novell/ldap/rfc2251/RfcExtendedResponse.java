@@ -16,7 +16,7 @@ package com.novell.ldap.rfc2251;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import com.novell.ldap.*;
 import com.novell.ldap.asn1.*;
 
@@ -111,11 +111,11 @@ public class RfcExtendedResponse extends ASN1Sequence implements RfcResponse {
                 ASN1Identifier id = obj.getIdentifier();
                 switch(id.getTag()) {
                     case RfcLDAPResult.REFERRAL:
-                        byte[] content =
-                            ((ASN1OctetString)obj.taggedValue()).byteValue();
-                        ByteArrayInputStream bais =
-                            new ByteArrayInputStream(content);
-                        set(i, new RfcReferral(dec, bais, content.length));
+                        ByteBuffer content = ((ASN1OctetString)
+                                obj.taggedValue()).byteBufferValue();
+                        set(i, new RfcReferral(dec,
+                                new ByteBufferInputStream(content),
+                                content.remaining()));
                         referralIndex = i;
                         break;
                     case RESPONSE_NAME:
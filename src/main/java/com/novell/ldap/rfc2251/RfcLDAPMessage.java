@@ -17,7 +17,7 @@ package com.novell.ldap.rfc2251;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPMessage;
 import com.novell.ldap.asn1.*;
@@ -179,15 +179,19 @@ public class RfcLDAPMessage extends ASN1Sequence
     {
         super(dec, in, len);
 
-        byte[] content;
-        ByteArrayInputStream bais;
+        ByteBuffer content;
+        ByteBufferInputStream bais;
+        int length;
 
         // Decode implicitly tagged protocol operation from an ASN1Tagged type
-        // to its appropriate application type.
+        // to its appropriate application type.  The content is a view of
+        // the message if the decoder did not copy it.
         ASN1Tagged protocolOp = (ASN1Tagged)get(1);
         ASN1Identifier protocolOpId = protocolOp.getIdentifier();
-        content = ((ASN1OctetString)protocolOp.taggedValue()).byteValue();
-        bais = new ByteArrayInputStream(content);
+        content =
+            ((ASN1OctetString)protocolOp.taggedValue()).byteBufferValue();
+        length = content.remaining();
+        bais = new ByteBufferInputStream(content);
 
         if( Debug.LDAP_DEBUG ) {
             Debug.trace( Debug.messages, "RfcLDAPMessage: input message w/tag " +
@@ -195,37 +199,44 @@ public class RfcLDAPMessage extends ASN1Sequence
         }
         switch(protocolOpId.getTag()) {
             case LDAPMessage.SEARCH_RESPONSE:
-                set(1, new RfcSearchResultEntry(dec, bais, content.length));
+                if( content.hasArray()) {
+                    int offset = content.arrayOffset() + content.position();
+                    set(1, new RfcSearchResultEntry(dec, content.array(),
+                                                    offset, offset + length));
+                } else {
+                    set(1, new RfcSearchResultEntry(dec, ((ASN1OctetString)
+                                    protocolOp.taggedValue()).byteValue()));
+                }
                 break;
             case LDAPMessage.SEARCH_RESULT:
-                set(1, new RfcSearchResultDone(dec, bais, content.length));
+                set(1, new RfcSearchResultDone(dec, bais, length));
                 break;
             case LDAPMessage.SEARCH_RESULT_REFERENCE:
-                set(1, new RfcSearchResultReference(dec, bais, content.length));
+                set(1, new RfcSearchResultReference(dec, bais, length));
                 break;
             case LDAPMessage.ADD_RESPONSE:
-                set(1, new RfcAddResponse(dec, bais, content.length));
+                set(1, new RfcAddResponse(dec, bais, length));
                 break;
             case LDAPMessage.BIND_RESPONSE:
-                set(1, new RfcBindResponse(dec, bais, content.length));
+                set(1, new RfcBindResponse(dec, bais, length));
                 break;
             case LDAPMessage.COMPARE_RESPONSE:
-                set(1, new RfcCompareResponse(dec, bais, content.length));
+                set(1, new RfcCompareResponse(dec, bais, length));
                 break;
             case LDAPMessage.DEL_RESPONSE:
-                set(1, new RfcDelResponse(dec, bais, content.length));
+                set(1, new RfcDelResponse(dec, bais, length));
                 break;
             case LDAPMessage.EXTENDED_RESPONSE:
-                set(1, new RfcExtendedResponse(dec, bais, content.length));
+                set(1, new RfcExtendedResponse(dec, bais, length));
                 break;
             case LDAPMessage.INTERMEDIATE_RESPONSE:
-                set(1, new RfcIntermediateResponse(dec, bais, content.length));
+                set(1, new RfcIntermediateResponse(dec, bais, length));
                 break;
             case LDAPMessage.MODIFY_RESPONSE:
-                set(1, new RfcModifyResponse(dec, bais, content.length));
+                set(1, new RfcModifyResponse(dec, bais, length));
                 break;
             case LDAPMessage.MODIFY_RDN_RESPONSE:
-                set(1, new RfcModifyDNResponse(dec, bais, content.length));
+                set(1, new RfcModifyDNResponse(dec, bais, length));
                 break;
             default:
                 throw new RuntimeException("RfcLDAPMessage: Invalid tag: " +
@@ -239,9 +250,10 @@ public class RfcLDAPMessage extends ASN1Sequence
             //   ASN1Identifier controlsId = protocolOp.getIdentifier();
             // we could check to make sure we have controls here....
 
-            content = ((ASN1OctetString)controls.taggedValue()).byteValue();
-            bais = new ByteArrayInputStream(content);
-            set(2, new RfcControls(dec, bais, content.length));
+            content =
+                ((ASN1OctetString)controls.taggedValue()).byteBufferValue();
+            set(2, new RfcControls(dec, new ByteBufferInputStream(content),
+                                   content.remaining()));
         }
         return;
     }
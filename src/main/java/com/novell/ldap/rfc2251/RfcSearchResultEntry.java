@@ -31,6 +31,14 @@ import com.novell.ldap.client.Debug;
  */
 public class RfcSearchResultEntry extends ASN1Sequence {
 
+    /* Decoder for the attribute list if it is still in encoded form */
+    private ASN1Decoder dec = null;
+
+    /* Identifier octets of the universal types in a PartialAttributeList */
+    private static final byte SEQUENCE_ID = 0x30;
+    private static final byte SET_ID = 0x31;
+    private static final byte OCTET_STRING_ID = 0x04;
+
     //*************************************************************************
     // Constructors for SearchResultEntry
     //*************************************************************************
@@ -52,6 +60,56 @@ public class RfcSearchResultEntry extends ASN1Sequence {
 //      set(1, new PartitalAttributeList());
         return;
     }
+    /**
+     * Creates a SearchResultEntry from the content octets of its encoding,
+     * decoding only the objectName.
+     *
+     * <p>The attribute list is checked to be well formed, but is kept in
+     * its encoded form as a view of the content array.  It is decoded when
+     * {@link #getAttributes} is first called, so an application that reads
+     * the entry through {@link #getEncodedAttributes} never creates an
+     * ASN.1 object for any attribute or value.</p>
+     *
+     * @param dec The decoder used to decode the attribute list.<br>
+     *
+     * @param content The content octets of the SearchResultEntry.  The array
+     * is retained and must not be modified.
+     */
+    public RfcSearchResultEntry(ASN1Decoder dec, byte[] content)
+            throws IOException
+    {
+        this(dec, content, 0, content.length);
+        return;
+    }
+
+    /**
+     * Creates a SearchResultEntry from the content octets of its encoding,
+     * held in a region of an array such as the whole response message.
+     *
+     * @param dec The decoder used to decode the attribute list.<br>
+     *
+     * @param buffer The array holding the content octets.  The array is
+     * retained and must not be modified.<br>
+     *
+     * @param offset The offset of the first content octet.<br>
+     *
+     * @param limit The offset following the last content octet.
+     */
+    public RfcSearchResultEntry(ASN1Decoder dec, byte[] buffer, int offset,
+                                int limit)
+            throws IOException
+    {
+        super(2);
+        ASN1Encoded objectName = new ASN1Encoded(buffer, offset, limit);
+        ASN1Encoded attributes =
+                new ASN1Encoded(buffer, objectName.getEnd(), limit);
+        checkAttributeList( attributes);
+        this.dec = dec;
+        add(objectName.decode(dec));
+        add(attributes);
+        return;
+    }
+
     /** Creates an RfcSearchResultEntry from individual ASN encoded objects.
      * @param ObjectName The LDAPDN for the search result.
      * @param attributes The various attributes for the specified attribute.
@@ -84,7 +142,85 @@ public class RfcSearchResultEntry extends ASN1Sequence {
      */
     public final ASN1Sequence getAttributes()
     {
-        return (ASN1Sequence)get(1);
+        ASN1Object attributes = get(1);
+        if( attributes instanceof ASN1Encoded) {
+            synchronized( this) {
+                attributes = get(1);
+                if( attributes instanceof ASN1Encoded) {
+                    try {
+                        attributes = ((ASN1Encoded)attributes).decode(dec);
+                    } catch( IOException ioe) {
+                        // The encoding was checked when the entry was created
+                        throw new RuntimeException("Internal error, cannot " +
+                                "decode attribute list: " + ioe.toString());
+                    }
+                    set(1, attributes);
+                    dec = null;
+                }
+            }
+        }
+        return (ASN1Sequence)attributes;
+    }
+
+    /**
+     * Returns the attribute list in its encoded form, or null if the
+     * attribute list has been decoded.
+     *
+     * <p>The content octets of the returned element are a sequence of
+     * PartialAttribute encodings, which have been checked to be well
+     * formed.</p>
+     */
+    public final ASN1Encoded getEncodedAttributes()
+    {
+        ASN1Object attributes = get(1);
+        if( attributes instanceof ASN1Encoded) {
+            return (ASN1Encoded)attributes;
+        }
+        return null;
+    }
+
+    /*
+     * Checks that the encoded attribute list is a sequence of
+     *
+     *        PartialAttribute ::= SEQUENCE {
+     *               type    AttributeDescription,
+     *               vals    SET OF AttributeValue }
+     *
+     * so that it can later be walked without further checks.
+     */
+    private static void checkAttributeList(ASN1Encoded attributes)
+            throws IOException
+    {
+        byte[] buf = attributes.getBuffer();
+        if( buf[attributes.getOffset()] != SEQUENCE_ID) {
+            throw new IOException(
+                "RfcSearchResultEntry: attribute list is not a SEQUENCE");
+        }
+        int limit = attributes.getEnd();
+        for( int attr = attributes.getContentOffset(); attr < limit; ) {
+            int attrEnd = ASN1Encoded.end(buf, attr, limit);
+            if( buf[attr] != SEQUENCE_ID) {
+                throw new IOException(
+                    "RfcSearchResultEntry: attribute is not a SEQUENCE");
+            }
+            int type = ASN1Encoded.contentOffset(buf, attr, attrEnd);
+            int vals = ASN1Encoded.end(buf, type, attrEnd);
+            if( buf[type] != OCTET_STRING_ID || vals >= attrEnd ||
+                buf[vals] != SET_ID ||
+                ASN1Encoded.end(buf, vals, attrEnd) != attrEnd) {
+                throw new IOException(
+                    "RfcSearchResultEntry: malformed PartialAttribute");
+            }
+            for( int val = ASN1Encoded.contentOffset(buf, vals, attrEnd);
+                 val < attrEnd; val = ASN1Encoded.end(buf, val, attrEnd)) {
+                if( buf[val] != OCTET_STRING_ID) {
+                    throw new IOException(
+                        "RfcSearchResultEntry: value is not an OCTET STRING");
+                }
+            }
+            attr = attrEnd;
+        }
+        return;
     }
 
     /**
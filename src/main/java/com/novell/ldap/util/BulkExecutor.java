@@ -0,0 +1,661 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.novell.ldap.LDAPAddRequest;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPConstraints;
+import com.novell.ldap.LDAPDeleteRequest;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPLocalException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPMessageQueue;
+import com.novell.ldap.LDAPModifyDNRequest;
+import com.novell.ldap.LDAPModifyRequest;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.client.Debug;
+
+/**
+ * Sends a stream of requests, such as the adds and modifications of an
+ * LDIF or DSML file, keeping several requests outstanding on each
+ * connection instead of waiting for the result of each request.
+ *
+ * <p>Waiting for each result limits a connection to one request per round
+ * trip to the server.  A BulkExecutor sends up to <code>window</code>
+ * requests on each of its connections before waiting for a result, and
+ * sends the next request as soon as any result is received.  The results
+ * are counted, the failures are kept with the number of their request in
+ * the input, and a BulkResultListener may be given each result.</p>
+ *
+ * <p>Results are received in any order, but a request is not sent while a
+ * request for the same entry, one of its ancestors or one of its
+ * descendants is outstanding.  The order of the input is thus kept where
+ * it matters: a parent is added before its children, the children are
+ * deleted before their parent, and the modifications of an entry are made
+ * in turn.</p>
+ *
+ * <p>The entries of an LDIF content file are added.  A BulkExecutor is
+ * used by one thread at a time.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   BulkExecutor bulk = new BulkExecutor(conn, 32);
+ *   bulk.execute(new LDIFReader(new FileInputStream("users.ldif")));
+ *   System.out.println(bulk.getSucceededCount() + " succeeded, " +
+ *       bulk.getFailedCount() + " failed");
+ * </code></pre></p>
+ */
+public class BulkExecutor
+{
+    private final LDAPConnection[] conns;
+    private final int window;
+    private LDAPConstraints cons = null;
+    private BulkResultListener listener = null;
+    private int maxFailures = 1000;
+
+    // State of the current execution
+    private LDAPMessageQueue queue;     // Queue of all outstanding requests
+    private int[] outstanding;          // Outstanding requests by connection
+    private boolean[] closed;           // Connections found closed
+    private LDAPException lastError;    // Error of the last connection closed
+    // Outstanding requests by message ID
+    private HashMap<Integer,Request> pending;
+    // Entries with a request outstanding
+    private HashMap<String,int[]> entries;
+    // Entries with a request outstanding for them or a descendant
+    private HashMap<String,int[]> subtrees;
+    private long records;
+    private long succeeded;
+    private long failed;
+    private ArrayList<Failure> failures;
+
+    /**
+     * An outstanding request.
+     */
+    private static final class Request
+    {
+        private final long record;
+        private final LDAPMessage request;
+        private final String[][] dns;   // Normalized DN and ancestors
+        private int conn;
+
+        private Request( long record, LDAPMessage request, String[][] dns)
+        {
+            this.record = record;
+            this.request = request;
+            this.dns = dns;
+            return;
+        }
+    }
+
+    /**
+     * A request that failed.
+     */
+    public static final class Failure
+    {
+        private final long record;
+        private final LDAPMessage request;
+        private final LDAPException error;
+
+        /**
+         * Constructs a failure.
+         *
+         * @param record  The number of the request in the input, starting
+         *                at 1.
+         *<br><br>
+         * @param request The request that failed.
+         *<br><br>
+         * @param error   The error of the request.
+         */
+        public Failure( long record, LDAPMessage request, LDAPException error)
+        {
+            this.record = record;
+            this.request = request;
+            this.error = error;
+            return;
+        }
+
+        /**
+         * Returns the number of the request in the input, starting at 1.
+         *
+         * @return The record number.
+         */
+        public long getRecord()
+        {
+            return record;
+        }
+
+        /**
+         * Returns the request that failed.
+         *
+         * @return The request.
+         */
+        public LDAPMessage getRequest()
+        {
+            return request;
+        }
+
+        /**
+         * Returns the error of the request.
+         *
+         * @return The error returned by the server, or the error sending
+         *         the request.
+         */
+        public LDAPException getError()
+        {
+            return error;
+        }
+
+        /**
+         * Returns a string of the record number and error.
+         *
+         * @return The string representation of the failure.
+         */
+        public String toString()
+        {
+            return "record " + record + ": " + error.toString();
+        }
+    }
+
+    /**
+     * Constructs an executor sending requests on one connection.
+     *
+     * @param conn   The connected and bound connection.
+     *<br><br>
+     * @param window The maximum number of requests outstanding.
+     */
+    public BulkExecutor( LDAPConnection conn, int window)
+    {
+        this( new LDAPConnection[] { conn }, window);
+        return;
+    }
+
+    /**
+     * Constructs an executor sending requests on several connections, to
+     * one or more servers.  A request is sent on the connection with the
+     * fewest requests outstanding.
+     *
+     * @param conns  The connected and bound connections.
+     *<br><br>
+     * @param window The maximum number of requests outstanding on each
+     *               connection.
+     */
+    public BulkExecutor( LDAPConnection[] conns, int window)
+    {
+        if( (conns == null) || (conns.length == 0)) {
+            throw new IllegalArgumentException(
+                "bulk executor needs at least one connection");
+        }
+        if( window < 1) {
+            throw new IllegalArgumentException(
+                "bulk executor window must be at least 1");
+        }
+        this.conns = conns.clone();
+        this.window = window;
+        return;
+    }
+
+    /**
+     * Sets the constraints of the requests, such as the time limit of
+     * each request.
+     *
+     * @param cons The constraints, or null for the constraints of each
+     *             connection.
+     */
+    public void setConstraints( LDAPConstraints cons)
+    {
+        this.cons = cons;
+        return;
+    }
+
+    /**
+     * Sets the listener given the result of each request.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public void setListener( BulkResultListener listener)
+    {
+        this.listener = listener;
+        return;
+    }
+
+    /**
+     * Sets the maximum number of failures kept, failures beyond it are only
+     * counted.  Default: 1000
+     *
+     * @param max The maximum number of failures returned by getFailures.
+     */
+    public void setMaxFailures( int max)
+    {
+        this.maxFailures = max;
+        return;
+    }
+
+    /**
+     * Returns the number of requests read from the input by the last
+     * execution.
+     *
+     * @return The number of requests.
+     */
+    public long getRequestCount()
+    {
+        return records;
+    }
+
+    /**
+     * Returns the number of requests that succeeded in the last execution.
+     *
+     * @return The number of requests that succeeded.
+     */
+    public long getSucceededCount()
+    {
+        return succeeded;
+    }
+
+    /**
+     * Returns the number of requests that failed in the last execution.
+     *
+     * @return The number of requests that failed.
+     */
+    public long getFailedCount()
+    {
+        return failed;
+    }
+
+    /**
+     * Returns the requests that failed in the last execution, up to the
+     * maximum set by setMaxFailures, in the order their errors were
+     * received.
+     *
+     * @return A list of BulkExecutor.Failure.
+     */
+    public List<Failure> getFailures()
+    {
+        if( failures == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList( failures);
+    }
+
+    /**
+     * Sends the requests read from an LDIF or DSML reader and waits for
+     * their results.
+     *
+     * @param reader The source of the requests.
+     *
+     * @return The number of requests read.
+     *
+     * @exception IOException Reading the input failed.  The requests
+     *            already sent are completed first.
+     * @exception LDAPException Reading the input failed, or every
+     *            connection was closed.  The requests already sent are
+     *            completed first.
+     */
+    public long execute( LDAPReader reader)
+        throws LDAPException, IOException
+    {
+        start();
+        try {
+            LDAPMessage msg;
+            while( (msg = reader.readMessage()) != null) {
+                submit( msg);
+            }
+        } finally {
+            drain();
+        }
+        return records;
+    }
+
+    /**
+     * Sends the requests of an iterator and waits for their results.
+     *
+     * @param requests An iterator of LDAPMessage requests.
+     *
+     * @return The number of requests sent.
+     *
+     * @exception LDAPException Every connection was closed.  The requests
+     *            already sent are completed first.
+     */
+    public long execute( Iterator<? extends LDAPMessage> requests)
+        throws LDAPException
+    {
+        start();
+        try {
+            while( requests.hasNext()) {
+                submit( requests.next());
+            }
+        } finally {
+            drain();
+        }
+        return records;
+    }
+
+    /*
+     * Resets the state for an execution.
+     */
+    private void start()
+    {
+        queue = null;
+        outstanding = new int[conns.length];
+        closed = new boolean[conns.length];
+        lastError = null;
+        pending = new HashMap<Integer,Request>();
+        entries = new HashMap<String,int[]>();
+        subtrees = new HashMap<String,int[]>();
+        records = 0;
+        succeeded = 0;
+        failed = 0;
+        failures = new ArrayList<Failure>();
+        return;
+    }
+
+    /*
+     * Sends a request once a connection has room for it and no conflicting
+     * request is outstanding.
+     */
+    private void submit( LDAPMessage msg)
+        throws LDAPException
+    {
+        records++;
+        if( msg instanceof LDAPSearchResult) {
+            // Entry of an LDIF content file
+            msg = new LDAPAddRequest(
+                        ((LDAPSearchResult)msg).getEntry(), msg.getControls());
+        } else
+        if( ! msg.isRequest()) {
+            completed( records, msg, null, new LDAPLocalException(
+                "bulk executor input is not a request",
+                LDAPException.LOCAL_ERROR));
+            return;
+        }
+        Request request = new Request( records, msg, getDNs( msg));
+        int conn;
+        while( true) {
+            if( ! conflicts( request)) {
+                conn = choose();
+                if( conn >= 0) {
+                    break;
+                }
+            }
+            receive();
+        }
+        send( conn, request);
+        return;
+    }
+
+    /*
+     * Returns the open connection with the fewest outstanding requests
+     * and room for another, or -1 if all are full.  Throws the error of
+     * the last connection closed if all are closed.
+     */
+    private int choose()
+        throws LDAPException
+    {
+        int best = -1;
+        boolean open = false;
+        for( int i = 0; i < conns.length; i++) {
+            if( closed[i]) {
+                continue;
+            }
+            open = true;
+            if( (outstanding[i] < window) &&
+                    ((best < 0) || (outstanding[i] < outstanding[best]))) {
+                best = i;
+            }
+        }
+        if( ! open) {
+            throw lastError;
+        }
+        return best;
+    }
+
+    /*
+     * Sends a request on a connection.
+     */
+    private void send( int conn, Request request)
+    {
+        try {
+            queue = conns[conn].sendRequest( request.request, queue, cons);
+        } catch( LDAPException ex) {
+            checkClosed( conn, ex);
+            completed( request.record, request.request, null, ex);
+            return;
+        }
+        request.conn = conn;
+        outstanding[conn]++;
+        pending.put( Integer.valueOf( request.request.getMessageID()), request);
+        hold( request);
+        return;
+    }
+
+    /*
+     * Waits for a result and completes its request.
+     */
+    private void receive()
+        throws LDAPException
+    {
+        LDAPMessage msg = queue.getResponse();
+        if( msg == null) {
+            // No request outstanding
+            throw new LDAPLocalException(
+                "bulk executor has no request outstanding",
+                LDAPException.LOCAL_ERROR);
+        }
+        if( ! (msg instanceof LDAPResponse) ||
+                (msg.getType() == LDAPMessage.INTERMEDIATE_RESPONSE)) {
+            // Search result entries and intermediate responses
+            return;
+        }
+        Request request =
+            pending.remove( Integer.valueOf( msg.getMessageID()));
+        if( request == null) {
+            return;
+        }
+        outstanding[request.conn]--;
+        release( request);
+        LDAPResponse response = (LDAPResponse)msg;
+        LDAPException error = null;
+        try {
+            response.chkResultCode();
+        } catch( LDAPException ex) {
+            error = ex;
+            checkClosed( request.conn, ex);
+        }
+        completed( request.record, request.request, response, error);
+        return;
+    }
+
+    /*
+     * Waits for the results of all outstanding requests.
+     */
+    private void drain()
+        throws LDAPException
+    {
+        while( (pending != null) && ! pending.isEmpty()) {
+            receive();
+        }
+        return;
+    }
+
+    /*
+     * Stops using a connection found closed.
+     */
+    private void checkClosed( int conn, LDAPException ex)
+    {
+        if( ! closed[conn] && ! conns[conn].isConnected()) {
+            if( Debug.LDAP_DEBUG) {
+                Debug.trace( Debug.apiRequests,
+                    "BulkExecutor: connection " + conn + " closed, " +
+                    ex.toString());
+            }
+            closed[conn] = true;
+            lastError = ex;
+        }
+        return;
+    }
+
+    /*
+     * Counts a result and gives it to the listener.
+     */
+    private void completed( long record,
+                            LDAPMessage request,
+                            LDAPResponse response,
+                            LDAPException error)
+    {
+        if( error == null) {
+            succeeded++;
+        } else {
+            failed++;
+            if( failures.size() < maxFailures) {
+                failures.add( new Failure( record, request, error));
+            }
+        }
+        if( listener != null) {
+            listener.resultReceived( record, request, response, error);
+        }
+        return;
+    }
+
+    /*
+     * Returns true if a request for the same entry, an ancestor or a
+     * descendant of the request's entries is outstanding.
+     */
+    private boolean conflicts( Request request)
+    {
+        if( request.dns == null) {
+            return false;
+        }
+        for( int i = 0; i < request.dns.length; i++) {
+            String[] chain = request.dns[i];
+            if( subtrees.containsKey( chain[0])) {
+                return true;
+            }
+            for( int j = 1; j < chain.length; j++) {
+                if( entries.containsKey( chain[j])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Records the entries of an outstanding request.
+     */
+    private void hold( Request request)
+    {
+        if( request.dns == null) {
+            return;
+        }
+        for( int i = 0; i < request.dns.length; i++) {
+            String[] chain = request.dns[i];
+            count( entries, chain[0], 1);
+            for( int j = 0; j < chain.length; j++) {
+                count( subtrees, chain[j], 1);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Removes the entries of a completed request.
+     */
+    private void release( Request request)
+    {
+        if( request.dns == null) {
+            return;
+        }
+        for( int i = 0; i < request.dns.length; i++) {
+            String[] chain = request.dns[i];
+            count( entries, chain[0], -1);
+            for( int j = 0; j < chain.length; j++) {
+                count( subtrees, chain[j], -1);
+            }
+        }
+        return;
+    }
+
+    private static void count( HashMap<String,int[]> counts, String dn,
+                               int delta)
+    {
+        int[] count = counts.get( dn);
+        if( count == null) {
+            count = new int[1];
+            counts.put( dn, count);
+        }
+        count[0] += delta;
+        if( count[0] == 0) {
+            counts.remove( dn);
+        }
+        return;
+    }
+
+    /*
+     * Returns the normalized DNs of the entries a request changes, each
+     * followed by its ancestors, or null if the request changes no entry.
+     */
+    private static String[][] getDNs( LDAPMessage msg)
+    {
+        try {
+            switch( msg.getType()) {
+                case LDAPMessage.ADD_REQUEST:
+                    return new String[][] {
+                        chain( new DN( ((LDAPAddRequest)msg).getDN())) };
+                case LDAPMessage.MODIFY_REQUEST:
+                    return new String[][] {
+                        chain( new DN( ((LDAPModifyRequest)msg).getDN())) };
+                case LDAPMessage.DEL_REQUEST:
+                    return new String[][] {
+                        chain( new DN( ((LDAPDeleteRequest)msg).getDN())) };
+                case LDAPMessage.MODIFY_RDN_REQUEST:
+                    LDAPModifyDNRequest rename = (LDAPModifyDNRequest)msg;
+                    DN dn = new DN( rename.getDN());
+                    DN newDN = (rename.getParentDN() == null) ?
+                                dn.getParent() : new DN( rename.getParentDN());
+                    newDN.addRDN( (RDN)new DN(
+                                rename.getNewRDN()).getRDNs().get(0));
+                    return new String[][] { chain( dn), chain( newDN) };
+                default:
+                    return null;
+            }
+        } catch( IllegalArgumentException ex) {
+            // Invalid DN, the server returns the error
+            return null;
+        }
+    }
+
+    /*
+     * Returns a normalized DN followed by its ancestors.
+     */
+    private static String[] chain( DN dn)
+    {
+        int count = dn.countRDNs();
+        String[] chain = new String[count];
+        for( int i = 0; i < count; i++) {
+            chain[i] = dn.toString().toLowerCase();
+            dn = dn.getParent();
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,45 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.util;
+
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+
+/**
+ * Receives the result of each request sent by a BulkExecutor.
+ *
+ * @see BulkExecutor#setListener(BulkResultListener)
+ */
+public interface BulkResultListener
+{
+    /**
+     * Called when the result of a request is received, or the request
+     * could not be sent.  Called by the thread running the BulkExecutor,
+     * in the order the results are received.
+     *
+     * @param record   The number of the request in the input, starting at
+     *                 1.
+     * @param request  The request.
+     * @param response The result of the request, or null if it could not be
+     *                 sent.
+     * @param error    The error, or null if the request succeeded.
+     */
+    public void resultReceived( long record,
+                                LDAPMessage request,
+                                LDAPResponse response,
+                                LDAPException error);
+}
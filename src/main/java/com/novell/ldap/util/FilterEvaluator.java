@@ -0,0 +1,1323 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+
+package com.novell.ldap.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSchema;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPDN;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPLocalException;
+import com.novell.ldap.LDAPMatchingRuleSchema;
+import com.novell.ldap.LDAPSchema;
+import com.novell.ldap.asn1.ASN1Encoded;
+import com.novell.ldap.asn1.LBEREncoder;
+import com.novell.ldap.resources.ExceptionMessages;
+import com.novell.ldap.rfc2251.RfcFilter;
+
+/**
+ * Evaluates a search filter against entries held by the client, such as
+ * cached search results, the entries of an LDIF file or the entries
+ * returned by a persistent search.
+ *
+ * <p>The filter is parsed and compiled once, when the FilterEvaluator is
+ * constructed.  The assertion values are then already normalized, and
+ * evaluating an entry only reads its attribute values.  A FilterEvaluator
+ * may be used by several threads at once.</p>
+ *
+ * <p>The filter evaluates to TRUE, FALSE or UNDEFINED as in RFC 4511,
+ * section 4.5.1.7.  A filter item is UNDEFINED when its matching rule is
+ * not known or when its assertion value is not valid for the rule.  An
+ * entry matches only when the filter evaluates to TRUE.</p>
+ *
+ * <p>When a schema is given, the equality, ordering and substrings
+ * matching rules of each attribute are those of its definition or of its
+ * superior.  An attribute defined without an equality rule is compared
+ * with the usual equality rule of its syntax.
+ * A filter item also matches the subtypes of its attribute, so that
+ * <code>(name=Smith)</code> matches the <code>sn</code> attribute.
+ * Without a schema, every attribute is compared with the caseIgnoreMatch
+ * rules.  The following rules are supported:</p>
+ * <ul>
+ *   <li>caseIgnoreMatch, caseIgnoreOrderingMatch, caseIgnoreSubstringsMatch,
+ *       caseIgnoreIA5Match, caseIgnoreIA5SubstringsMatch,
+ *       caseIgnoreListMatch, booleanMatch and objectIdentifierMatch</li>
+ *   <li>caseExactMatch, caseExactOrderingMatch, caseExactSubstringsMatch
+ *       and caseExactIA5Match</li>
+ *   <li>numericStringMatch, numericStringOrderingMatch and
+ *       numericStringSubstringsMatch</li>
+ *   <li>telephoneNumberMatch and telephoneNumberSubstringsMatch</li>
+ *   <li>integerMatch and integerOrderingMatch</li>
+ *   <li>distinguishedNameMatch</li>
+ *   <li>octetStringMatch, octetStringOrderingMatch,
+ *       octetStringSubstringsMatch, bitStringMatch, generalizedTimeMatch and
+ *       generalizedTimeOrderingMatch, which compare the octets of the
+ *       values</li>
+ * </ul>
+ *
+ * <p>Approximate matches use the equality rule.  Extensible matches with
+ * the dnAttributes flag also match the attribute values of the DN when an
+ * LDAPEntry is evaluated.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   FilterEvaluator filter = new FilterEvaluator(
+ *       "(&amp;(objectClass=person)(employeeNumber&gt;=1000))", schema);
+ *   while( reader.readMessage() ...) {
+ *       if( filter.matches( entry)) {
+ *           ...
+ *       }
+ *   }
+ * </code></pre></p>
+ *
+ * @see com.novell.ldap.LDAPConnection#fetchSchema(String)
+ */
+public class FilterEvaluator
+{
+    /**
+     * The filter does not match the entry.
+     */
+    public static final int FALSE = 0;
+
+    /**
+     * The filter matches the entry.
+     */
+    public static final int TRUE = 1;
+
+    /**
+     * Whether the filter matches the entry cannot be determined.
+     */
+    public static final int UNDEFINED = 2;
+
+    // Filter choices, the tag numbers of RFC 4511
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int NOT = 2;
+    private static final int EQUALITY_MATCH = 3;
+    private static final int SUBSTRINGS = 4;
+    private static final int GREATER_OR_EQUAL = 5;
+    private static final int LESS_OR_EQUAL = 6;
+    private static final int PRESENT = 7;
+    private static final int APPROX_MATCH = 8;
+    private static final int EXTENSIBLE_MATCH = 9;
+
+    // Uses of a matching rule
+    private static final int EQUALITY = 0;
+    private static final int ORDERING = 1;
+    private static final int SUBSTRING = 2;
+
+    // Kinds of matching rules
+    private static final int OCTET_STRING = 0;
+    private static final int CASE_IGNORE = 1;
+    private static final int CASE_EXACT = 2;
+    private static final int NUMERIC_STRING = 3;
+    private static final int TELEPHONE_NUMBER = 4;
+    private static final int INTEGER = 5;
+    private static final int DISTINGUISHED_NAME = 6;
+
+    // Result of a comparison that could not be made
+    private static final int INVALID = Integer.MIN_VALUE;
+
+    private static final Rule[] RULES = {
+        new Rule( OCTET_STRING),
+        new Rule( CASE_IGNORE),
+        new Rule( CASE_EXACT),
+        new Rule( NUMERIC_STRING),
+        new Rule( TELEPHONE_NUMBER),
+        new Rule( INTEGER),
+        new Rule( DISTINGUISHED_NAME),
+    };
+
+    // Kinds of the matching rules by upper case name and OID
+    private static final HashMap<String,Integer> ruleKinds =
+                                            new HashMap<String,Integer>();
+    // Kinds of the equality rules by attribute syntax OID
+    private static final HashMap<String,Integer> syntaxKinds =
+                                            new HashMap<String,Integer>();
+
+    static {
+        rule( OCTET_STRING, "octetStringMatch", "2.5.13.17");
+        rule( OCTET_STRING, "octetStringOrderingMatch", "2.5.13.18");
+        rule( OCTET_STRING, "octetStringSubstringsMatch", "2.5.13.19");
+        rule( OCTET_STRING, "bitStringMatch", "2.5.13.16");
+        rule( OCTET_STRING, "generalizedTimeMatch", "2.5.13.27");
+        rule( OCTET_STRING, "generalizedTimeOrderingMatch", "2.5.13.28");
+        rule( CASE_IGNORE, "caseIgnoreMatch", "2.5.13.2");
+        rule( CASE_IGNORE, "caseIgnoreOrderingMatch", "2.5.13.3");
+        rule( CASE_IGNORE, "caseIgnoreSubstringsMatch", "2.5.13.4");
+        rule( CASE_IGNORE, "caseIgnoreListMatch", "2.5.13.11");
+        rule( CASE_IGNORE, "caseIgnoreListSubstringsMatch", "2.5.13.12");
+        rule( CASE_IGNORE, "caseIgnoreIA5Match",
+              "1.3.6.1.4.1.1466.109.114.2");
+        rule( CASE_IGNORE, "caseIgnoreIA5SubstringsMatch",
+              "1.3.6.1.4.1.1466.109.114.3");
+        rule( CASE_IGNORE, "booleanMatch", "2.5.13.13");
+        rule( CASE_IGNORE, "objectIdentifierMatch", "2.5.13.0");
+        rule( CASE_EXACT, "caseExactMatch", "2.5.13.5");
+        rule( CASE_EXACT, "caseExactOrderingMatch", "2.5.13.6");
+        rule( CASE_EXACT, "caseExactSubstringsMatch", "2.5.13.7");
+        rule( CASE_EXACT, "caseExactIA5Match", "1.3.6.1.4.1.1466.109.114.1");
+        rule( NUMERIC_STRING, "numericStringMatch", "2.5.13.8");
+        rule( NUMERIC_STRING, "numericStringOrderingMatch", "2.5.13.9");
+        rule( NUMERIC_STRING, "numericStringSubstringsMatch", "2.5.13.10");
+        rule( TELEPHONE_NUMBER, "telephoneNumberMatch", "2.5.13.20");
+        rule( TELEPHONE_NUMBER, "telephoneNumberSubstringsMatch",
+              "2.5.13.21");
+        rule( INTEGER, "integerMatch", "2.5.13.14");
+        rule( INTEGER, "integerOrderingMatch", "2.5.13.15");
+        rule( DISTINGUISHED_NAME, "distinguishedNameMatch", "2.5.13.1");
+
+        syntax( OCTET_STRING, "5");             // Binary
+        syntax( OCTET_STRING, "6");             // Bit String
+        syntax( CASE_IGNORE, "7");              // Boolean
+        syntax( DISTINGUISHED_NAME, "12");      // DN
+        syntax( CASE_IGNORE, "15");             // Directory String
+        syntax( OCTET_STRING, "24");            // Generalized Time
+        syntax( CASE_EXACT, "26");              // IA5 String
+        syntax( INTEGER, "27");                 // INTEGER
+        syntax( NUMERIC_STRING, "36");          // Numeric String
+        syntax( CASE_IGNORE, "38");             // OID
+        syntax( OCTET_STRING, "40");            // Octet String
+        syntax( CASE_IGNORE, "41");             // Postal Address
+        syntax( CASE_IGNORE, "44");             // Printable String
+        syntax( TELEPHONE_NUMBER, "50");        // Telephone Number
+    }
+
+    private final String filter;
+    private final LDAPSchema schema;
+    private final Node root;
+
+    /**
+     * Constructs an evaluator for a string filter, comparing all attributes
+     * with the caseIgnoreMatch rules.
+     *
+     * @param filter The string filter, as in RFC 2254.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code, such as
+     *                          FILTER_ERROR if the filter is not valid.
+     */
+    public FilterEvaluator( String filter)
+        throws LDAPException
+    {
+        this( filter, null);
+        return;
+    }
+
+    /**
+     * Constructs an evaluator for a string filter, with the matching rules
+     * of a schema.
+     *
+     * @param filter The string filter, as in RFC 2254.
+     *<br><br>
+     * @param schema The schema defining the attributes, or null to compare
+     *               all attributes with the caseIgnoreMatch rules.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code, such as
+     *                          FILTER_ERROR if the filter is not valid.
+     */
+    public FilterEvaluator( String filter, LDAPSchema schema)
+        throws LDAPException
+    {
+        this( new RfcFilter( filter), filter, schema);
+        return;
+    }
+
+    /**
+     * Constructs an evaluator for a filter, with the matching rules of a
+     * schema.
+     *
+     * @param filter The filter, such as the filter of a search request or
+     *               a bound LDAPFilterTemplate.
+     *<br><br>
+     * @param schema The schema defining the attributes, or null to compare
+     *               all attributes with the caseIgnoreMatch rules.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public FilterEvaluator( RfcFilter filter, LDAPSchema schema)
+        throws LDAPException
+    {
+        this( filter, null, schema);
+        return;
+    }
+
+    private FilterEvaluator( RfcFilter filter, String text, LDAPSchema schema)
+        throws LDAPException
+    {
+        this.schema = schema;
+        byte[] ber = new LBEREncoder().encode( filter);
+        try {
+            root = compile( ber, 0, ber.length);
+        } catch( IOException ex) {
+            throw new LDAPLocalException( ExceptionMessages.ENCODING_ERROR,
+                                          LDAPException.ENCODING_ERROR, ex);
+        }
+        this.filter = (text != null) ? text : filter.filterToString();
+        return;
+    }
+
+    /**
+     * Returns whether an entry matches the filter.
+     *
+     * @param entry The entry.
+     *
+     * @return true if the filter evaluates to TRUE for the entry.
+     */
+    public boolean matches( LDAPEntry entry)
+    {
+        return evaluate( entry) == TRUE;
+    }
+
+    /**
+     * Returns whether a set of attributes matches the filter.
+     *
+     * @param attributes The attributes of an entry.
+     *
+     * @return true if the filter evaluates to TRUE for the attributes.
+     */
+    public boolean matches( LDAPAttributeSet attributes)
+    {
+        return evaluate( attributes) == TRUE;
+    }
+
+    /**
+     * Evaluates the filter for an entry.
+     *
+     * @param entry The entry.
+     *
+     * @return TRUE, FALSE or UNDEFINED.
+     */
+    public int evaluate( LDAPEntry entry)
+    {
+        return root.evaluate( new Target( entry.getAttributeSet(),
+                                          entry.getDN()));
+    }
+
+    /**
+     * Evaluates the filter for a set of attributes.
+     *
+     * @param attributes The attributes of an entry.
+     *
+     * @return TRUE, FALSE or UNDEFINED.
+     */
+    public int evaluate( LDAPAttributeSet attributes)
+    {
+        return root.evaluate( new Target( attributes, null));
+    }
+
+    /**
+     * Returns the string representation of the filter.
+     *
+     * @return The filter.
+     */
+    public String toString()
+    {
+        return filter;
+    }
+
+    /*
+     * Compiles the BER encoded filter at offset.
+     */
+    private Node compile( byte[] ber, int offset, int limit)
+        throws IOException
+    {
+        int start = ASN1Encoded.contentOffset( ber, offset, limit);
+        int end = ASN1Encoded.end( ber, offset, limit);
+        switch( ber[offset] & 0x1F) {
+            case AND:
+            case OR: {
+                ArrayList<Node> nodes = new ArrayList<Node>();
+                for( int i = start; i < end; i = ASN1Encoded.end( ber, i, end)) {
+                    nodes.add( compile( ber, i, end));
+                }
+                Node[] children = nodes.toArray( new Node[nodes.size()]);
+                if( (ber[offset] & 0x1F) == AND) {
+                    return new And( children);
+                }
+                return new Or( children);
+            }
+            case NOT:
+                return new Not( compile( ber, start, end));
+            case EQUALITY_MATCH:
+            case GREATER_OR_EQUAL:
+            case LESS_OR_EQUAL:
+            case APPROX_MATCH: {
+                int value = ASN1Encoded.end( ber, start, end);
+                String type = string( ber, start, value);
+                return compare( ber[offset] & 0x1F, type,
+                                octets( ber, value, end));
+            }
+            case SUBSTRINGS: {
+                int value = ASN1Encoded.end( ber, start, end);
+                String type = string( ber, start, value);
+                Rule rule = rule( type, SUBSTRING);
+                String initial = null;
+                String last = null;
+                ArrayList<String> any = new ArrayList<String>();
+                int limitAny = ASN1Encoded.end( ber, value, end);
+                for( int i = ASN1Encoded.contentOffset( ber, value, end);
+                     i < limitAny; i = ASN1Encoded.end( ber, i, limitAny)) {
+                    byte[] octets = octets( ber, i, limitAny);
+                    switch( ber[i] & 0x1F) {
+                        case 0:
+                            initial = (rule == null) ? null :
+                                rule.substring( ByteBuffer.wrap( octets), true, false);
+                            break;
+                        case 1:
+                            any.add( (rule == null) ? null :
+                                rule.substring( ByteBuffer.wrap( octets), false, false));
+                            break;
+                        default:
+                            last = (rule == null) ? null :
+                                rule.substring( ByteBuffer.wrap( octets), false, true);
+                            break;
+                    }
+                }
+                if( rule == null || any.contains( null)) {
+                    return new Constant( UNDEFINED);
+                }
+                return new Substrings( type( type), rule, initial,
+                    any.toArray( new String[any.size()]), last);
+            }
+            case PRESENT:
+                return new Present( type( utf8( ber, start, end)));
+            case EXTENSIBLE_MATCH: {
+                String name = null;
+                String type = null;
+                byte[] value = null;
+                boolean dnAttributes = false;
+                for( int i = start; i < end; i = ASN1Encoded.end( ber, i, end)) {
+                    switch( ber[i] & 0x1F) {
+                        case 1:
+                            name = string( ber, i, end);
+                            break;
+                        case 2:
+                            type = string( ber, i, end);
+                            break;
+                        case 3:
+                            value = octets( ber, i, end);
+                            break;
+                        default:
+                            int c = ASN1Encoded.contentOffset( ber, i, end);
+                            dnAttributes = ber[c] != 0;
+                            break;
+                    }
+                }
+                Rule rule = null;
+                if( name != null) {
+                    rule = ruleByName( name);
+                } else if( type != null) {
+                    rule = rule( type, EQUALITY);
+                }
+                Object assertion = (rule == null) ? null :
+                                   rule.assertion( value);
+                if( assertion == null) {
+                    return new Constant( UNDEFINED);
+                }
+                return new Extensible( (type == null) ? null : type( type),
+                                       rule, assertion, dnAttributes);
+            }
+            default:
+                throw new IOException( "FilterEvaluator: unknown filter " +
+                                       "choice " + (ber[offset] & 0x1F));
+        }
+    }
+
+    /*
+     * Compiles an equality, ordering or approximate filter item.
+     */
+    private Node compare( int choice, String type, byte[] value)
+    {
+        Rule rule = rule( type,
+            (choice == GREATER_OR_EQUAL || choice == LESS_OR_EQUAL) ?
+                ORDERING : EQUALITY);
+        Object assertion = (rule == null) ? null : rule.assertion( value);
+        if( assertion == null) {
+            return new Constant( UNDEFINED);
+        }
+        return new Compare( type( type), rule, assertion, choice);
+    }
+
+    /*
+     * Returns the names of an attribute description and of the subtypes of
+     * its attribute type, with its options.
+     */
+    private AttributeType type( String description)
+    {
+        String[] options = LDAPAttribute.getSubtypes( description);
+        String base = LDAPAttribute.getBaseName( description);
+        ArrayList<String> names = new ArrayList<String>();
+        names.add( base.toUpperCase());
+        LDAPAttributeSchema attr = (schema == null) ? null :
+                                   schema.getAttributeSchema( base);
+        if( attr != null) {
+            addNames( names, attr);
+            Enumeration<?> e = schema.getAttributeSchemas();
+            while( e.hasMoreElements()) {
+                LDAPAttributeSchema sub = (LDAPAttributeSchema)e.nextElement();
+                if( sub != attr && isSubtype( sub, attr)) {
+                    addNames( names, sub);
+                }
+            }
+        }
+        if( options != null && options.length == 0) {
+            options = null;
+        }
+        for( int i = 0; options != null && i < options.length; i++) {
+            options[i] = options[i].toUpperCase();
+        }
+        return new AttributeType(
+            names.toArray( new String[names.size()]), options);
+    }
+
+    private static void addNames( ArrayList<String> names,
+                                  LDAPAttributeSchema attr)
+    {
+        String[] n = attr.getNames();
+        for( int i = 0; n != null && i < n.length; i++) {
+            if( ! names.contains( n[i].toUpperCase())) {
+                names.add( n[i].toUpperCase());
+            }
+        }
+        if( attr.getID() != null && ! names.contains( attr.getID())) {
+            names.add( attr.getID());
+        }
+        return;
+    }
+
+    /*
+     * Returns whether sup is a superior of attr.
+     */
+    private boolean isSubtype( LDAPAttributeSchema attr,
+                               LDAPAttributeSchema sup)
+    {
+        for( int depth = 0; attr != null && depth < 16; depth++) {
+            if( attr == sup) {
+                return true;
+            }
+            attr = (attr.getSuperior() == null) ? null :
+                   schema.getAttributeSchema( attr.getSuperior());
+        }
+        return false;
+    }
+
+    /*
+     * Returns the matching rule of an attribute for a use, or null if it
+     * has none or is not supported.
+     */
+    private Rule rule( String type, int use)
+    {
+        if( schema == null) {
+            return RULES[CASE_IGNORE];
+        }
+        String syntax = null;
+        LDAPAttributeSchema attr = schema.getAttributeSchema(
+                                    LDAPAttribute.getBaseName( type));
+        for( int depth = 0; attr != null && depth < 16; depth++) {
+            String name;
+            if( use == EQUALITY) {
+                name = attr.getEqualityMatchingRule();
+            } else if( use == ORDERING) {
+                name = attr.getOrderingMatchingRule();
+            } else {
+                name = attr.getSubstringMatchingRule();
+            }
+            if( name != null) {
+                return ruleByName( name);
+            }
+            if( syntax == null) {
+                syntax = attr.getSyntaxString();
+            }
+            attr = (attr.getSuperior() == null) ? null :
+                   schema.getAttributeSchema( attr.getSuperior());
+        }
+        if( syntax == null || use != EQUALITY) {
+            return null;
+        }
+        if( syntax.indexOf( '{') > 0) {
+            syntax = syntax.substring( 0, syntax.indexOf( '{'));
+        }
+        Integer kind = syntaxKinds.get( syntax.trim());
+        return (kind == null) ? null : RULES[kind.intValue()];
+    }
+
+    /*
+     * Returns the matching rule with a name or OID, or null if it is not
+     * supported.
+     */
+    private Rule ruleByName( String name)
+    {
+        Integer kind = ruleKinds.get( name.toUpperCase());
+        if( kind == null && schema != null) {
+            // A name or OID the schema knows under another one
+            LDAPMatchingRuleSchema rule = schema.getMatchingRuleSchema( name);
+            if( rule != null) {
+                kind = ruleKinds.get( rule.getID());
+                String[] names = rule.getNames();
+                for( int i = 0; kind == null && names != null &&
+                                i < names.length; i++) {
+                    kind = ruleKinds.get( names[i].toUpperCase());
+                }
+            }
+        }
+        return (kind == null) ? null : RULES[kind.intValue()];
+    }
+
+    private static void rule( int kind, String name, String oid)
+    {
+        ruleKinds.put( name.toUpperCase(), Integer.valueOf( kind));
+        ruleKinds.put( oid, Integer.valueOf( kind));
+        return;
+    }
+
+    private static void syntax( int kind, String number)
+    {
+        syntaxKinds.put( "1.3.6.1.4.1.1466.115.121.1." + number,
+                         Integer.valueOf( kind));
+        return;
+    }
+
+    /*
+     * Returns the content octets of the element at offset.
+     */
+    private static byte[] octets( byte[] ber, int offset, int limit)
+        throws IOException
+    {
+        int start = ASN1Encoded.contentOffset( ber, offset, limit);
+        byte[] octets = new byte[ASN1Encoded.end( ber, offset, limit) - start];
+        System.arraycopy( ber, start, octets, 0, octets.length);
+        return octets;
+    }
+
+    /*
+     * Returns the content of the element at offset as a UTF-8 string.
+     */
+    private static String string( byte[] ber, int offset, int limit)
+        throws IOException
+    {
+        int start = ASN1Encoded.contentOffset( ber, offset, limit);
+        return utf8( ber, start, ASN1Encoded.end( ber, offset, limit));
+    }
+
+    private static String utf8( byte[] bytes, int start, int end)
+    {
+        try {
+            return new String( bytes, start, end - start, "UTF-8");
+        } catch( UnsupportedEncodingException ex) {
+            throw new RuntimeException( ex.toString());
+        }
+    }
+
+    /**
+     * The attributes of the entry being evaluated.
+     */
+    private static final class Target
+    {
+        private final LDAPAttributeSet attributes;
+        private final String dn;
+        private final LDAPAttribute[] optioned; // Attributes with options
+
+        private Target( LDAPAttributeSet attributes, String dn)
+        {
+            this.attributes = attributes;
+            this.dn = dn;
+            ArrayList<LDAPAttribute> found = null;
+            Iterator<?> i = attributes.keySet().iterator();
+            while( i.hasNext()) {
+                String name = (String)i.next();
+                if( name.indexOf( ';') >= 0) {
+                    if( found == null) {
+                        found = new ArrayList<LDAPAttribute>();
+                    }
+                    found.add( attributes.getAttribute( name));
+                }
+            }
+            optioned = (found == null) ? null :
+                found.toArray( new LDAPAttribute[found.size()]);
+            return;
+        }
+    }
+
+    /**
+     * The attribute description of a filter item: the upper case names of
+     * its attribute type and subtypes, and its options.
+     */
+    private static final class AttributeType
+    {
+        private final String[] names;
+        private final String[] options;
+
+        private AttributeType( String[] names, String[] options)
+        {
+            this.names = names;
+            this.options = options;
+            return;
+        }
+
+        /*
+         * Returns whether an attribute with options has this description.
+         */
+        private boolean accepts( LDAPAttribute attr)
+        {
+            String name = attr.getName();
+            int semi = name.indexOf( ';');
+            if( semi < 0) {
+                semi = name.length();
+            }
+            boolean found = false;
+            for( int i = 0; ! found && i < names.length; i++) {
+                found = names[i].length() == semi &&
+                        name.regionMatches( true, 0, names[i], 0, semi);
+            }
+            if( found && options != null) {
+                return attr.hasSubtypes( options);
+            }
+            return found;
+        }
+    }
+
+    /**
+     * A compiled filter.
+     */
+    private static abstract class Node
+    {
+        /* package */
+        abstract int evaluate( Target target);
+    }
+
+    private static final class Constant extends Node
+    {
+        private final int result;
+
+        private Constant( int result)
+        {
+            this.result = result;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            return result;
+        }
+    }
+
+    private static final class And extends Node
+    {
+        private final Node[] nodes;
+
+        private And( Node[] nodes)
+        {
+            this.nodes = nodes;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            int result = TRUE;
+            for( int i = 0; i < nodes.length; i++) {
+                int r = nodes[i].evaluate( target);
+                if( r == FALSE) {
+                    return FALSE;
+                }
+                if( r == UNDEFINED) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Or extends Node
+    {
+        private final Node[] nodes;
+
+        private Or( Node[] nodes)
+        {
+            this.nodes = nodes;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            int result = FALSE;
+            for( int i = 0; i < nodes.length; i++) {
+                int r = nodes[i].evaluate( target);
+                if( r == TRUE) {
+                    return TRUE;
+                }
+                if( r == UNDEFINED) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Not extends Node
+    {
+        private final Node node;
+
+        private Not( Node node)
+        {
+            this.node = node;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            int r = node.evaluate( target);
+            return (r == UNDEFINED) ? UNDEFINED : TRUE - r;
+        }
+    }
+
+    /**
+     * A filter item, evaluated for each attribute with its attribute
+     * description.
+     */
+    private static abstract class Item extends Node
+    {
+        /* package */
+        final AttributeType type;           // null for all attributes
+
+        private Item( AttributeType type)
+        {
+            this.type = type;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            int result = FALSE;
+            if( type.options == null) {
+                for( int i = 0; i < type.names.length; i++) {
+                    LDAPAttribute attr =
+                        target.attributes.getAttribute( type.names[i]);
+                    if( attr != null) {
+                        int r = evaluate( attr);
+                        if( r == TRUE) {
+                            return TRUE;
+                        }
+                        if( r == UNDEFINED) {
+                            result = UNDEFINED;
+                        }
+                    }
+                }
+            }
+            if( target.optioned != null) {
+                for( int i = 0; i < target.optioned.length; i++) {
+                    if( type.accepts( target.optioned[i])) {
+                        int r = evaluate( target.optioned[i]);
+                        if( r == TRUE) {
+                            return TRUE;
+                        }
+                        if( r == UNDEFINED) {
+                            result = UNDEFINED;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /*
+         * Evaluates the item for the values of an attribute.
+         */
+        /* package */
+        abstract int evaluate( LDAPAttribute attr);
+    }
+
+    private static final class Present extends Item
+    {
+        private Present( AttributeType type)
+        {
+            super( type);
+            return;
+        }
+
+        /* package */
+        int evaluate( LDAPAttribute attr)
+        {
+            return TRUE;
+        }
+    }
+
+    private static final class Compare extends Item
+    {
+        private final Rule rule;
+        private final Object assertion;
+        private final int choice;
+
+        private Compare( AttributeType type, Rule rule, Object assertion,
+                         int choice)
+        {
+            super( type);
+            this.rule = rule;
+            this.assertion = assertion;
+            this.choice = choice;
+            return;
+        }
+
+        /* package */
+        int evaluate( LDAPAttribute attr)
+        {
+            int result = FALSE;
+            for( ByteBuffer value : attr.getByteBufferArray()) {
+                int c = rule.compare( value, assertion);
+                if( c == INVALID) {
+                    result = UNDEFINED;
+                } else if( choice == GREATER_OR_EQUAL ? c >= 0 :
+                           choice == LESS_OR_EQUAL ? c <= 0 : c == 0) {
+                    return TRUE;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Substrings extends Item
+    {
+        private final Rule rule;
+        private final String initial;
+        private final String[] any;
+        private final String last;
+
+        private Substrings( AttributeType type, Rule rule, String initial,
+                            String[] any, String last)
+        {
+            super( type);
+            this.rule = rule;
+            this.initial = initial;
+            this.any = any;
+            this.last = last;
+            return;
+        }
+
+        /* package */
+        int evaluate( LDAPAttribute attr)
+        {
+            for( ByteBuffer value : attr.getByteBufferArray()) {
+                if( matches( rule.substring( value, true, true))) {
+                    return TRUE;
+                }
+            }
+            return FALSE;
+        }
+
+        private boolean matches( String value)
+        {
+            int start = 0;
+            int end = value.length();
+            if( initial != null) {
+                if( ! value.startsWith( initial)) {
+                    return false;
+                }
+                start = initial.length();
+            }
+            if( last != null) {
+                if( last.length() > end - start || ! value.endsWith( last)) {
+                    return false;
+                }
+                end -= last.length();
+            }
+            for( int i = 0; i < any.length; i++) {
+                int found = value.indexOf( any[i], start);
+                if( found < 0 || found + any[i].length() > end) {
+                    return false;
+                }
+                start = found + any[i].length();
+            }
+            return true;
+        }
+    }
+
+    private static final class Extensible extends Item
+    {
+        private final Rule rule;
+        private final Object assertion;
+        private final boolean dnAttributes;
+
+        private Extensible( AttributeType type, Rule rule, Object assertion,
+                            boolean dnAttributes)
+        {
+            super( type);
+            this.rule = rule;
+            this.assertion = assertion;
+            this.dnAttributes = dnAttributes;
+            return;
+        }
+
+        /* package */
+        int evaluate( Target target)
+        {
+            int result = FALSE;
+            if( type != null) {
+                result = super.evaluate( target);
+            } else {
+                // Values not valid for the rule are of attributes it does
+                // not apply to, and do not make the result UNDEFINED
+                Iterator<?> i = target.attributes.iterator();
+                while( result != TRUE && i.hasNext()) {
+                    if( evaluate( (LDAPAttribute)i.next()) == TRUE) {
+                        result = TRUE;
+                    }
+                }
+            }
+            if( result == TRUE || ! dnAttributes || target.dn == null) {
+                return result;
+            }
+            String[] rdns = LDAPDN.explodeDN( target.dn, false);
+            for( int i = 0; rdns != null && i < rdns.length; i++) {
+                String[] avas = LDAPDN.explodeRDN( rdns[i], false);
+                for( int j = 0; avas != null && j < avas.length; j++) {
+                    int equals = avas[j].indexOf( '=');
+                    if( type != null && ! type.accepts( new LDAPAttribute(
+                            avas[j].substring( 0, equals)))) {
+                        continue;
+                    }
+                    int c = rule.compare( ByteBuffer.wrap( octets(
+                                LDAPDN.unescapeRDN( avas[j]).substring(
+                                equals + 1))), assertion);
+                    if( c == 0) {
+                        return TRUE;
+                    }
+                    if( c == INVALID && type != null) {
+                        result = UNDEFINED;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /* package */
+        int evaluate( LDAPAttribute attr)
+        {
+            int result = FALSE;
+            for( ByteBuffer value : attr.getByteBufferArray()) {
+                int c = rule.compare( value, assertion);
+                if( c == 0) {
+                    return TRUE;
+                }
+                if( c == INVALID) {
+                    result = UNDEFINED;
+                }
+            }
+            return result;
+        }
+
+        private static byte[] octets( String value)
+        {
+            try {
+                return value.getBytes( "UTF-8");
+            } catch( UnsupportedEncodingException ex) {
+                throw new RuntimeException( ex.toString());
+            }
+        }
+    }
+
+    /**
+     * A string assertion value, normalized, and its octets when it has only
+     * ASCII characters.
+     */
+    private static final class Normalized
+    {
+        private final String value;
+        private final byte[] ascii;
+
+        private Normalized( String value)
+        {
+            this.value = value;
+            byte[] ascii = new byte[value.length()];
+            for( int i = 0; ascii != null && i < ascii.length; i++) {
+                char c = value.charAt( i);
+                if( c < 0x80) {
+                    ascii[i] = (byte)c;
+                } else {
+                    ascii = null;
+                }
+            }
+            this.ascii = ascii;
+            return;
+        }
+    }
+
+    /**
+     * The implementation of a kind of matching rules.
+     */
+    private static final class Rule
+    {
+        private final int kind;
+        private final boolean ignoreCase;   // Compare the case folded values
+        private final boolean squeeze;      // Keep single inner spaces
+
+        private Rule( int kind)
+        {
+            this.kind = kind;
+            ignoreCase = kind == CASE_IGNORE || kind == TELEPHONE_NUMBER;
+            squeeze = kind == CASE_IGNORE || kind == CASE_EXACT;
+            return;
+        }
+
+        /*
+         * Returns the assertion value compared to the attribute values, or
+         * null if it is not valid.
+         */
+        private Object assertion( byte[] value)
+        {
+            if( value == null) {
+                return null;
+            }
+            switch( kind) {
+                case OCTET_STRING:
+                    return value;
+                case INTEGER:
+                    return integer( value);
+                case DISTINGUISHED_NAME:
+                    try {
+                        return new DN( utf8( value, 0, value.length));
+                    } catch( IllegalArgumentException ex) {
+                        return null;
+                    }
+                default:
+                    return new Normalized( normalize(
+                        utf8( value, 0, value.length), true, true));
+            }
+        }
+
+        /*
+         * Compares an attribute value with an assertion value, returning
+         * INVALID if the attribute value is not valid.  The value is read
+         * from its position to its limit, and copied only to be decoded.
+         */
+        private int compare( ByteBuffer value, Object assertion)
+        {
+            int length = value.remaining();
+            int p = value.position();
+            switch( kind) {
+                case OCTET_STRING: {
+                    byte[] a = (byte[])assertion;
+                    int n = Math.min( length, a.length);
+                    for( int i = 0; i < n; i++) {
+                        byte b = value.get( p + i);
+                        if( b != a[i]) {
+                            return (b & 0xFF) - (a[i] & 0xFF);
+                        }
+                    }
+                    return length - a.length;
+                }
+                case INTEGER: {
+                    int neg = (length > 0 && value.get( p) == '-') ? 1 : 0;
+                    if( assertion instanceof Long &&
+                        length > neg && length - neg <= 18) {
+                        // Compare without a Long for each value
+                        long l = 0;
+                        for( int i = neg; i < length; i++) {
+                            byte b = value.get( p + i);
+                            if( b < '0' || b > '9') {
+                                return INVALID;
+                            }
+                            l = l * 10 + (b - '0');
+                        }
+                        l = (neg == 0) ? l : -l;
+                        long a = ((Long)assertion).longValue();
+                        return (l < a) ? -1 : (l == a) ? 0 : 1;
+                    }
+                    Object v = integer( bytes( value));
+                    if( v == null) {
+                        return INVALID;
+                    }
+                    return big( v).compareTo( big( assertion));
+                }
+                case DISTINGUISHED_NAME:
+                    try {
+                        DN dn = new DN( utf8( bytes( value), 0, length));
+                        return dn.equals( (DN)assertion) ? 0 : 1;
+                    } catch( IllegalArgumentException ex) {
+                        return INVALID;
+                    }
+                default: {
+                    Normalized a = (Normalized)assertion;
+                    if( a.ascii != null) {
+                        int c = compareAscii( value, a.ascii);
+                        if( c != INVALID) {
+                            return c;
+                        }
+                    }
+                    return normalize( utf8( bytes( value), 0, length),
+                                      true, true).compareTo( a.value);
+                }
+            }
+        }
+
+        /*
+         * Returns the string compared by substrings matching of an
+         * attribute value or substring of a substrings assertion.
+         */
+        private String substring( ByteBuffer value, boolean leading,
+                                  boolean trailing)
+        {
+            if( kind == OCTET_STRING) {
+                char[] chars = new char[value.remaining()];
+                for( int i = 0; i < chars.length; i++) {
+                    chars[i] = (char)(value.get( value.position() + i) & 0xFF);
+                }
+                return new String( chars);
+            }
+            return normalize( utf8( bytes( value), 0, value.remaining()),
+                              leading, trailing);
+        }
+
+        /*
+         * Returns a copy of the remaining octets of a value.
+         */
+        private static byte[] bytes( ByteBuffer value)
+        {
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get( bytes);
+            return bytes;
+        }
+
+        /*
+         * Removes the insignificant spaces of a value, and folds its case
+         * when the rule ignores case.  Leading and trailing spaces are
+         * removed when requested, or else kept as one space.
+         */
+        private String normalize( String value, boolean leading,
+                                  boolean trailing)
+        {
+            char[] chars = new char[value.length()];
+            int n = 0;
+            boolean space = false;
+            for( int i = 0; i < value.length(); i++) {
+                char c = value.charAt( i);
+                if( c == ' ') {
+                    space = squeeze;
+                    continue;
+                }
+                if( c == '-' && kind == TELEPHONE_NUMBER) {
+                    continue;
+                }
+                if( space) {
+                    if( n > 0 || ! leading) {
+                        chars[n++] = ' ';
+                    }
+                    space = false;
+                }
+                chars[n++] = ignoreCase ?
+                    Character.toLowerCase( Character.toUpperCase( c)) : c;
+            }
+            if( space && ! trailing) {
+                chars[n++] = ' ';
+            }
+            return new String( chars, 0, n);
+        }
+
+        /*
+         * Compares an attribute value with a normalized ASCII assertion
+         * value as normalize would, without decoding or copying the
+         * attribute value.  Returns INVALID if the value is not ASCII.
+         */
+        private int compareAscii( ByteBuffer value, byte[] a)
+        {
+            int j = 0;
+            boolean space = false;
+            for( int i = value.position(); i < value.limit(); i++) {
+                int c = value.get( i);
+                if( c < 0) {
+                    return INVALID;
+                }
+                if( c == ' ') {
+                    space = squeeze;
+                    continue;
+                }
+                if( c == '-' && kind == TELEPHONE_NUMBER) {
+                    continue;
+                }
+                if( space) {
+                    space = false;
+                    if( j > 0) {
+                        if( j == a.length) {
+                            return 1;
+                        }
+                        if( a[j] != ' ') {
+                            return ' ' - a[j];
+                        }
+                        j++;
+                    }
+                }
+                if( ignoreCase && c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                if( j == a.length) {
+                    return 1;
+                }
+                if( c != a[j]) {
+                    return c - a[j];
+                }
+                j++;
+            }
+            return (j == a.length) ? 0 : -1;
+        }
+
+        /*
+         * Returns an INTEGER value as a Long, or as a BigInteger when it is
+         * too large, or null if it is not valid.
+         */
+        private static Object integer( byte[] value)
+        {
+            int i = (value.length > 0 && value[0] == '-') ? 1 : 0;
+            if( i == value.length) {
+                return null;
+            }
+            long l = 0;
+            for( int j = i; j < value.length; j++) {
+                if( value[j] < '0' || value[j] > '9') {
+                    return null;
+                }
+                l = l * 10 + (value[j] - '0');
+            }
+            if( value.length - i > 18) {
+                return new BigInteger( utf8( value, 0, value.length));
+            }
+            return Long.valueOf( (i == 0) ? l : -l);
+        }
+
+        private static BigInteger big( Object integer)
+        {
+            if( integer instanceof Long) {
+                return BigInteger.valueOf( ((Long)integer).longValue());
+            }
+            return (BigInteger)integer;
+        }
+    }
+}
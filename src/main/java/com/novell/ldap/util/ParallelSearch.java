@@ -0,0 +1,842 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ***************************************************************************/
+
+package com.novell.ldap.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPLocalException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPMessageQueue;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchRequest;
+import com.novell.ldap.LDAPSearchResult;
+import com.novell.ldap.client.Debug;
+import com.novell.ldap.connectionpool.ConnectionPool;
+import com.novell.ldap.extensions.PartitionEntryCountRequest;
+import com.novell.ldap.extensions.PartitionEntryCountResponse;
+
+/**
+ * Runs a subtree search as several searches of parts of the subtree, one
+ * on each of several connections at a time, and returns their entries as
+ * one enumeration.
+ *
+ * <p>The subtree is split into partitions, each searched with its own
+ * base, scope and filter:</p>
+ * <ul>
+ *   <li>By default, the base entry, its children, and the subtree of each
+ *   child that has subordinates.  Children reported by the server to have
+ *   no subordinates, with the hasSubordinates or numSubordinates
+ *   attributes, are only returned by the search of the children, and the
+ *   subtrees with the most subordinates are searched first.</li>
+ *   <li>With {@link #partitionByFilters}, the subtree is searched once for
+ *   each of several filters, such as ranges of a naming attribute, added
+ *   to the search filter.</li>
+ *   <li>With {@link #partitionByNamingContexts}, the subtree of each of
+ *   several naming contexts is searched, largest first as counted by the
+ *   server with a PartitionEntryCountRequest when it supports it.</li>
+ *   <li>With {@link #addPartition}, the partitions given.</li>
+ * </ul>
+ *
+ * <p>An entry in more than one partition is returned by the partition
+ * whose base is deepest: an entry returned by the search of a subtree or
+ * of the children of an entry is dropped when another partition searches
+ * a subtree, the children or the entry of a descendant holding it.
+ * Entries returned by overlapping partitions with the same base, such as
+ * overlapping filters, are dropped when {@link #setDeduplicate} is set,
+ * which keeps the DN of each entry returned.</p>
+ *
+ * <p>The entries are returned in the order they are received.  When a
+ * partition fails, next throws its error and the other partitions
+ * continue.  Search continuation references are skipped.  The
+ * partitions, with their progress, may be read by another thread while
+ * the search runs.  A ParallelSearch is used by one thread at a time.</p>
+ *
+ * <p>Sample Code:
+ * <pre><code>
+ *   ParallelSearch search = new ParallelSearch(pool, dn, pw, 8,
+ *       "o=Acme", "(objectClass=*)", null, false);
+ *   while( search.hasMore()) {
+ *       try {
+ *           writer.writeEntry(search.next());
+ *       } catch( LDAPException e) {
+ *           System.err.println(e.toString());
+ *       }
+ *   }
+ * </code></pre></p>
+ */
+public class ParallelSearch
+{
+    private LDAPConnection[] conns;
+    private final ConnectionPool pool;
+    private final String poolDN;
+    private final byte[] poolPW;
+    private final String base;
+    private final String filter;
+    private final String[] attrs;
+    private final boolean typesOnly;
+    private LDAPSearchConstraints cons = null;
+    private final ArrayList<Partition> partitions =
+                                            new ArrayList<Partition>();
+    private boolean countEntries = false;
+    private boolean deduplicate = false;
+
+    // State of the search
+    private boolean started = false;
+    private LDAPMessageQueue queue = null;  // Queue of all partitions
+    // Partitions not yet sent
+    private ArrayDeque<Partition> waiting;
+    // Partitions sent by message ID
+    private HashMap<Integer,Partition> pending;
+    // Partitions by normalized base
+    private HashMap<String,ArrayList<Partition>> bases;
+    // DNs returned, to deduplicate
+    private HashSet<String> returned;
+    private LDAPEntry nextEntry = null;
+    // Errors not yet thrown
+    private ArrayDeque<LDAPException> errors = new ArrayDeque<LDAPException>();
+    private volatile long entryCount = 0;
+
+    /**
+     * A part of the subtree searched by one search request.
+     */
+    public static final class Partition
+    {
+        private final String base;
+        private final int scope;
+        private final String filter;
+        private String[] chain;         // Normalized base and ancestors
+        private boolean nesting;        // Holds the base of a partition
+        private long estimate = -1;     // Entries expected, -1 if unknown
+        private int conn;
+        private volatile long entries = 0;
+        private volatile boolean started = false;
+        private volatile boolean complete = false;
+        private volatile LDAPException error = null;
+
+        /**
+         * Constructs a partition.
+         *
+         * @param base   The base distinguished name to search from.
+         *<br><br>
+         * @param scope  The scope of the entries to search: SCOPE_BASE,
+         *               SCOPE_ONE or SCOPE_SUB.
+         *<br><br>
+         * @param filter The search filter.
+         */
+        public Partition( String base, int scope, String filter)
+        {
+            this.base = base;
+            this.scope = scope;
+            this.filter = filter;
+            return;
+        }
+
+        /**
+         * Returns the base of the partition.
+         *
+         * @return The base distinguished name.
+         */
+        public String getBase()
+        {
+            return base;
+        }
+
+        /**
+         * Returns the scope of the partition.
+         *
+         * @return SCOPE_BASE, SCOPE_ONE or SCOPE_SUB.
+         */
+        public int getScope()
+        {
+            return scope;
+        }
+
+        /**
+         * Returns the filter of the partition.
+         *
+         * @return The search filter.
+         */
+        public String getFilter()
+        {
+            return filter;
+        }
+
+        /**
+         * Returns the number of entries of the partition returned so far.
+         *
+         * @return The entry count.
+         */
+        public long getEntryCount()
+        {
+            return entries;
+        }
+
+        /**
+         * Returns the number of entries the server expects the partition
+         * to hold.
+         *
+         * @return The estimate, or -1 if unknown.
+         */
+        public long getEstimate()
+        {
+            return estimate;
+        }
+
+        /**
+         * Reports whether the partition has been sent.
+         *
+         * @return true once the search of the partition is sent.
+         */
+        public boolean isStarted()
+        {
+            return started;
+        }
+
+        /**
+         * Reports whether the partition is complete.
+         *
+         * @return true once the result of the partition is received.
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+
+        /**
+         * Returns the error of the partition.
+         *
+         * @return The error, or null if the partition has not failed.
+         */
+        public LDAPException getException()
+        {
+            return error;
+        }
+
+        /**
+         * Returns a string of the partition and its progress.
+         *
+         * @return The string representation of the partition.
+         */
+        public String toString()
+        {
+            return "base=" + base + ", scope=" + scope + ", filter=" +
+                filter + ", entries=" + entries +
+                (complete ? ((error == null) ? ", complete" :
+                                ", failed: " + error.toString()) :
+                 (started ? ", running" : ", waiting"));
+        }
+    }
+
+    /**
+     * Constructs a search on several connections.
+     *
+     * @param conns     The connected and bound connections.
+     *<br><br>
+     * @param base      The base distinguished name to search from.
+     *<br><br>
+     * @param filter    The search filter.
+     *<br><br>
+     * @param attrs     The names of attributes to retrieve, or null for
+     *                  all user attributes.
+     *<br><br>
+     * @param typesOnly If true, returns the names but not the values of
+     *                  the attributes found.
+     */
+    public ParallelSearch( LDAPConnection[] conns,
+                           String base,
+                           String filter,
+                           String[] attrs,
+                           boolean typesOnly)
+    {
+        this( conns, null, null, null, base, filter, attrs, typesOnly);
+        return;
+    }
+
+    /**
+     * Constructs a search on connections of a pool.  The connections are
+     * taken from the pool when the search starts, and made available again
+     * when it completes or is abandoned.
+     *
+     * @param pool        The connection pool.
+     *<br><br>
+     * @param dn          The DN the connections are bound with.
+     *<br><br>
+     * @param pw          The password the connections are bound with.
+     *<br><br>
+     * @param connections The number of connections to use.
+     *<br><br>
+     * @param base        The base distinguished name to search from.
+     *<br><br>
+     * @param filter      The search filter.
+     *<br><br>
+     * @param attrs       The names of attributes to retrieve, or null for
+     *                    all user attributes.
+     *<br><br>
+     * @param typesOnly   If true, returns the names but not the values of
+     *                    the attributes found.
+     */
+    public ParallelSearch( ConnectionPool pool,
+                           String dn,
+                           byte[] pw,
+                           int connections,
+                           String base,
+                           String filter,
+                           String[] attrs,
+                           boolean typesOnly)
+    {
+        this( new LDAPConnection[connections], pool, dn, pw,
+              base, filter, attrs, typesOnly);
+        return;
+    }
+
+    private ParallelSearch( LDAPConnection[] conns,
+                            ConnectionPool pool,
+                            String dn,
+                            byte[] pw,
+                            String base,
+                            String filter,
+                            String[] attrs,
+                            boolean typesOnly)
+    {
+        if( conns.length < 1) {
+            throw new IllegalArgumentException(
+                "Parallel search needs at least one connection");
+        }
+        this.conns = conns;
+        this.pool = pool;
+        this.poolDN = dn;
+        this.poolPW = pw;
+        this.base = base;
+        this.filter = filter;
+        this.attrs = attrs;
+        this.typesOnly = typesOnly;
+        return;
+    }
+
+    /**
+     * Sets the constraints of the searches.  Default: the search constraints
+     * of the first connection, without a size limit, which would apply to
+     * each partition rather than to the whole search.
+     *
+     * @param cons The search constraints.
+     */
+    public void setConstraints( LDAPSearchConstraints cons)
+    {
+        this.cons = (LDAPSearchConstraints)cons.clone();
+        return;
+    }
+
+    /**
+     * Sets whether the DN of each entry is kept to drop the entries
+     * returned by more than one partition with the same base.  Default:
+     * false
+     *
+     * @param deduplicate true to drop repeated entries.
+     */
+    public void setDeduplicate( boolean deduplicate)
+    {
+        this.deduplicate = deduplicate;
+        return;
+    }
+
+    /**
+     * Adds a partition to search.
+     *
+     * @param partition The partition.
+     */
+    public void addPartition( Partition partition)
+    {
+        if( started) {
+            throw new IllegalStateException(
+                "Parallel search partition added after the search started");
+        }
+        add( partition);
+        return;
+    }
+
+    /*
+     * Adds a partition, which getPartitions may read from another thread.
+     */
+    private void add( Partition partition)
+    {
+        synchronized( partitions) {
+            partitions.add( partition);
+        }
+        return;
+    }
+
+    /**
+     * Splits the subtree into one partition for each of several filters.
+     * Each filter is added to the search filter, and the filters should
+     * together match all the entries, such as "(cn&lt;=f)", "(cn&gt;=g)
+     * (cn&lt;=m)" and "(cn&gt;=n)" split in the two last filters.
+     *
+     * @param filters The filters of the partitions.
+     */
+    public void partitionByFilters( String[] filters)
+    {
+        for( int i = 0; i < filters.length; i++) {
+            String f = filters[i].startsWith("(") ?
+                                    filters[i] : "(" + filters[i] + ")";
+            String s = filter.startsWith("(") ? filter : "(" + filter + ")";
+            addPartition( new Partition( base, LDAPConnection.SCOPE_SUB,
+                                         "(&" + s + f + ")"));
+        }
+        return;
+    }
+
+    /**
+     * Splits the subtree into the subtrees of naming contexts.  The number
+     * of entries of each context is requested with a
+     * PartitionEntryCountRequest when the search starts, to search the
+     * largest first.  The entries of a context held in another are only
+     * returned by the search of the context holding them.
+     *
+     * @param contexts The DNs of the naming contexts, which together hold
+     *                 the entries to search.
+     */
+    public void partitionByNamingContexts( String[] contexts)
+    {
+        for( int i = 0; i < contexts.length; i++) {
+            addPartition( new Partition( contexts[i],
+                                         LDAPConnection.SCOPE_SUB, filter));
+        }
+        countEntries = true;
+        return;
+    }
+
+    /**
+     * Returns the partitions of the search, including the partitions found
+     * when the search starts.
+     *
+     * @return The partitions.
+     */
+    public Partition[] getPartitions()
+    {
+        synchronized( partitions) {
+            return partitions.toArray( new Partition[partitions.size()]);
+        }
+    }
+
+    /**
+     * Returns the number of entries returned so far.
+     *
+     * @return The entry count.
+     */
+    public long getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Reports if there are more entries or errors, waiting for the next
+     * entry if needed.  Starts the search on its first call.
+     *
+     * @return true if next will return an entry or throw an error.
+     *
+     * @exception LDAPException The search could not be started.
+     */
+    public boolean hasMore()
+        throws LDAPException
+    {
+        if( ! started) {
+            start();
+        }
+        while( (nextEntry == null) && errors.isEmpty() &&
+                                                    ! pending.isEmpty()) {
+            receive();
+        }
+        if( (nextEntry == null) && errors.isEmpty()) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next entry.
+     *
+     * @return The next entry of the search.
+     *
+     * @exception LDAPException The error of a partition that failed.  The
+     *                          other partitions continue.
+     */
+    public LDAPEntry next()
+        throws LDAPException
+    {
+        if( ! hasMore()) {
+            throw new NoSuchElementException(
+                "ParallelSearch.next() no more results");
+        }
+        if( ! errors.isEmpty()) {
+            throw errors.removeFirst();
+        }
+        LDAPEntry entry = nextEntry;
+        nextEntry = null;
+        entryCount++;
+        return entry;
+    }
+
+    /**
+     * Abandons the partitions being searched, and makes the connections
+     * taken from the pool available.
+     *
+     * @exception LDAPException A general exception which includes an error
+     *                          message and an LDAP error code.
+     */
+    public void abandon()
+        throws LDAPException
+    {
+        try {
+            if( started && ! pending.isEmpty()) {
+                conns[0].abandon( queue);
+                pending.clear();
+            }
+            if( started) {
+                waiting.clear();
+            }
+            nextEntry = null;
+            errors.clear();
+        } finally {
+            release();
+        }
+        return;
+    }
+
+    /*
+     * Takes the connections, finds the partitions and sends the first
+     * partition on each connection.
+     */
+    private void start()
+        throws LDAPException
+    {
+        started = true;
+        waiting = new ArrayDeque<Partition>();
+        pending = new HashMap<Integer,Partition>();
+        bases = new HashMap<String,ArrayList<Partition>>();
+        returned = deduplicate ? new HashSet<String>() : null;
+        if( pool != null) {
+            acquire();
+        }
+        if( cons == null) {
+            cons = conns[0].getSearchConstraints();
+            cons.setMaxResults( 0);
+        }
+        if( partitions.isEmpty()) {
+            partitionByChildren();
+        }
+        if( countEntries) {
+            countEntries();
+        }
+
+        // Index the partitions by base, and mark those holding others
+        for( int i = 0; i < partitions.size(); i++) {
+            Partition p = partitions.get(i);
+            p.chain = chain( p.base);
+            ArrayList<Partition> same = bases.get( p.chain[0]);
+            if( same == null) {
+                same = new ArrayList<Partition>();
+                bases.put( p.chain[0], same);
+            }
+            same.add( p);
+        }
+        for( int i = 0; i < partitions.size(); i++) {
+            Partition q = partitions.get(i);
+            for( int j = 1; j < q.chain.length; j++) {
+                ArrayList<Partition> outer = bases.get( q.chain[j]);
+                for( int k = 0; (outer != null) && (k < outer.size()); k++) {
+                    Partition p = outer.get(k);
+                    p.nesting = p.nesting ||
+                                (p.scope != LDAPConnection.SCOPE_BASE);
+                }
+            }
+        }
+
+        // Largest partitions first, the others in the order added
+        ArrayList<Partition> ordered = new ArrayList<Partition>( partitions);
+        Collections.sort( ordered, new Comparator<Partition>() {
+            public int compare( Partition p1, Partition p2)
+            {
+                long e1 = p1.estimate;
+                long e2 = p2.estimate;
+                return (e1 == e2) ? 0 : ((e1 > e2) ? -1 : 1);
+            }
+        });
+        waiting.addAll( ordered);
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests, "ParallelSearch: " +
+                partitions.size() + " partitions on " + conns.length +
+                " connections");
+        }
+        for( int i = 0; i < conns.length; i++) {
+            sendNext( i);
+        }
+        return;
+    }
+
+    /*
+     * Takes the connections from the pool.
+     */
+    private void acquire()
+        throws LDAPException
+    {
+        for( int i = 0; i < conns.length; i++) {
+            try {
+                conns[i] = pool.getBoundConnection( poolDN, poolPW);
+            } catch( InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release();
+                throw new LDAPLocalException(
+                    "ParallelSearch interrupted taking a pooled connection",
+                    LDAPException.LOCAL_ERROR);
+            } catch( LDAPException e) {
+                release();
+                throw e;
+            }
+        }
+        return;
+    }
+
+    /*
+     * Makes the connections taken from the pool available again.
+     */
+    private void release()
+    {
+        if( pool == null) {
+            return;
+        }
+        for( int i = 0; i < conns.length; i++) {
+            if( conns[i] != null) {
+                pool.makeConnectionAvailable( conns[i]);
+                conns[i] = null;
+            }
+        }
+        return;
+    }
+
+    /*
+     * Splits the subtree into the base entry, its children, and the subtree
+     * of each child that may have subordinates.
+     */
+    private void partitionByChildren()
+        throws LDAPException
+    {
+        LDAPSearchConstraints childCons = (LDAPSearchConstraints)cons.clone();
+        childCons.setControls( (com.novell.ldap.LDAPControl[])null);
+        LDAPMessageQueue children = conns[0].search( base,
+                LDAPConnection.SCOPE_ONE, "(objectClass=*)",
+                new String[] { "hasSubordinates", "numSubordinates" },
+                false, null, childCons);
+        ArrayList<Partition> subtrees = new ArrayList<Partition>();
+        LDAPMessage msg;
+        while( (msg = children.getResponse()) != null) {
+            if( msg instanceof LDAPSearchResult) {
+                LDAPEntry child = ((LDAPSearchResult)msg).getEntry();
+                LDAPAttribute has = child.getAttribute( "hasSubordinates");
+                LDAPAttribute num = child.getAttribute( "numSubordinates");
+                long count = -1;
+                try {
+                    count = (num == null) ? -1 :
+                                Long.parseLong( num.getStringValue().trim());
+                } catch( NumberFormatException e) {
+                    // Unknown
+                }
+                if( (count == 0) || ((has != null) &&
+                        "FALSE".equalsIgnoreCase( has.getStringValue()))) {
+                    continue;
+                }
+                Partition p = new Partition( child.getDN(),
+                                             LDAPConnection.SCOPE_SUB, filter);
+                p.estimate = count;
+                subtrees.add( p);
+            } else
+            if( msg instanceof LDAPResponse) {
+                ((LDAPResponse)msg).chkResultCode();
+                break;
+            }
+        }
+        add( new Partition( base, LDAPConnection.SCOPE_BASE, filter));
+        add( new Partition( base, LDAPConnection.SCOPE_ONE, filter));
+        for( int i = 0; i < subtrees.size(); i++) {
+            add( subtrees.get(i));
+        }
+        return;
+    }
+
+    /*
+     * Requests the number of entries of each partition from the server,
+     * leaving the estimate unknown if the server does not support it.
+     */
+    private void countEntries()
+    {
+        for( int i = 0; i < partitions.size(); i++) {
+            Partition p = partitions.get(i);
+            try {
+                Object response = conns[0].extendedOperation(
+                                    new PartitionEntryCountRequest( p.base));
+                if( response instanceof PartitionEntryCountResponse) {
+                    p.estimate =
+                        ((PartitionEntryCountResponse)response).getCount();
+                }
+            } catch( LDAPException e) {
+                if( Debug.LDAP_DEBUG) {
+                    Debug.trace( Debug.apiRequests, "ParallelSearch: no " +
+                        "entry count for " + p.base + ", " + e.toString());
+                }
+            }
+        }
+        return;
+    }
+
+    /*
+     * Sends the next waiting partition on a connection.
+     */
+    private void sendNext( int conn)
+    {
+        Partition p;
+        while( (p = waiting.pollFirst()) != null) {
+            try {
+                LDAPSearchRequest request = new LDAPSearchRequest( p.base,
+                        p.scope, p.filter, attrs, cons.getDereference(),
+                        cons.getMaxResults(), cons.getServerTimeLimit(),
+                        typesOnly, cons.getControls());
+                queue = conns[conn].sendRequest( request, queue, cons);
+                p.conn = conn;
+                p.started = true;
+                pending.put( Integer.valueOf( request.getMessageID()), p);
+                return;
+            } catch( LDAPException e) {
+                completed( p, e);
+            }
+        }
+        return;
+    }
+
+    /*
+     * Processes one response.
+     */
+    private void receive()
+        throws LDAPException
+    {
+        LDAPMessage msg = queue.getResponse();
+        if( msg == null) {
+            throw new LDAPLocalException(
+                "ParallelSearch has no partition outstanding",
+                LDAPException.LOCAL_ERROR);
+        }
+        Partition p = pending.get( Integer.valueOf( msg.getMessageID()));
+        if( p == null) {
+            return;
+        }
+        if( msg instanceof LDAPSearchResult) {
+            LDAPEntry entry = ((LDAPSearchResult)msg).getEntry();
+            if( keep( p, entry)) {
+                p.entries++;
+                nextEntry = entry;
+            }
+        } else
+        if( (msg instanceof LDAPResponse) &&
+                (msg.getType() != LDAPMessage.INTERMEDIATE_RESPONSE)) {
+            pending.remove( Integer.valueOf( msg.getMessageID()));
+            LDAPException error = null;
+            try {
+                ((LDAPResponse)msg).chkResultCode();
+            } catch( LDAPException e) {
+                error = e;
+            }
+            completed( p, error);
+            sendNext( p.conn);
+        }
+        return;
+    }
+
+    /*
+     * Records the end of a partition.
+     */
+    private void completed( Partition p, LDAPException error)
+    {
+        p.error = error;
+        p.complete = true;
+        if( error != null) {
+            errors.addLast( error);
+        }
+        if( Debug.LDAP_DEBUG) {
+            Debug.trace( Debug.apiRequests, "ParallelSearch: " + p);
+        }
+        return;
+    }
+
+    /*
+     * Returns false if the entry is returned by another partition, or was
+     * already returned.
+     */
+    private boolean keep( Partition p, LDAPEntry entry)
+    {
+        if( ! p.nesting && (returned == null)) {
+            return true;
+        }
+        String[] dns;
+        try {
+            dns = chain( entry.getDN());
+        } catch( IllegalArgumentException e) {
+            return true;
+        }
+        if( p.nesting) {
+            // A partition with a deeper base holding the entry returns it
+            for( int i = 0; i < dns.length - p.chain.length; i++) {
+                ArrayList<Partition> inner = bases.get( dns[i]);
+                for( int k = 0; (inner != null) && (k < inner.size()); k++) {
+                    Partition q = inner.get(k);
+                    if( (q.scope == LDAPConnection.SCOPE_SUB) ||
+                            ((q.scope == LDAPConnection.SCOPE_ONE) &&
+                                                            (i == 1)) ||
+                            ((q.scope == LDAPConnection.SCOPE_BASE) &&
+                                                            (i == 0))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return (returned == null) || returned.add( dns[0]);
+    }
+
+    /*
+     * Returns a normalized DN followed by its ancestors.
+     */
+    private static String[] chain( String dn)
+    {
+        DN name = new DN( dn);
+        int count = name.countRDNs();
+        String[] chain = new String[count + 1];
+        for( int i = 0; i < count; i++) {
+            chain[i] = name.toString().toLowerCase();
+            name = name.getParent();
+        }
+        chain[count] = "";
+        return chain;
+    }
+}
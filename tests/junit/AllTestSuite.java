@@ -13,9 +13,23 @@
  * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
  * CRIMINAL AND CIVIL LIABILITY.
  */
+import com.novell.ldap.ConnectionSelectorTest;
+import com.novell.ldap.ConnectionWriteTest;
+import com.novell.ldap.LDAPAttributeTest;
+import com.novell.ldap.LDAPConnectionAsyncTest;
+import com.novell.ldap.LDAPResultCacheTest;
+import com.novell.ldap.LDAPServerSetTest;
 import com.novell.ldap.LDAPUrlTest;
+import com.novell.ldap.asn1.LBERBufferDecoderTest;
+import com.novell.ldap.asn1.LBERFrameReaderTest;
+import com.novell.ldap.connectionpool.ConnectionPoolTest;
+import com.novell.ldap.controls.VirtualListCursorTest;
+import com.novell.ldap.extensions.LburpLoaderTest;
+import com.novell.ldap.util.BulkExecutorTest;
 import com.novell.ldap.util.DSMLReaderTest;
 import com.novell.ldap.util.DSMLWriterTest;
+import com.novell.ldap.util.FilterEvaluatorTest;
+import com.novell.ldap.util.ParallelSearchTest;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 /**
@@ -31,6 +45,20 @@ public class AllTestSuite {
 		suite.addTest(new TestSuite(LDAPUrlTest.class));
 		suite.addTest(new TestSuite(DSMLReaderTest.class));
 		suite.addTest(new TestSuite(DSMLWriterTest.class));
+		suite.addTest(new TestSuite(LBERFrameReaderTest.class));
+		suite.addTest(new TestSuite(LBERBufferDecoderTest.class));
+		suite.addTest(new TestSuite(LDAPResultCacheTest.class));
+		suite.addTest(new TestSuite(LDAPAttributeTest.class));
+		suite.addTest(new TestSuite(ConnectionPoolTest.class));
+		suite.addTest(new TestSuite(ConnectionSelectorTest.class));
+		suite.addTest(new TestSuite(LDAPServerSetTest.class));
+		suite.addTest(new TestSuite(FilterEvaluatorTest.class));
+		suite.addTest(new TestSuite(ConnectionWriteTest.class));
+		suite.addTest(new TestSuite(LDAPConnectionAsyncTest.class));
+		suite.addTest(new TestSuite(BulkExecutorTest.class));
+		suite.addTest(new TestSuite(LburpLoaderTest.class));
+		suite.addTest(new TestSuite(VirtualListCursorTest.class));
+		suite.addTest(new TestSuite(ParallelSearchTest.class));
 		//$JUnit-END$
 		return suite;
 	}
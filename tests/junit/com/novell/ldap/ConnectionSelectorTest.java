@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for connections read by a
+ * ConnectionSelector, made with an LDAPSelectorSocketFactory, against a
+ * server on the loopback interface.
+ */
+public class ConnectionSelectorTest extends TestCase {
+	private LoopbackServer server;
+	private LDAPConnection conn;
+
+	protected void tearDown() throws Exception {
+		if (conn != null) {
+			conn.disconnect();
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	/**
+	 * Responses arriving a few octets at a time, so that each message is
+	 * split across many reads, are decoded whole.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSplitFrames() throws Exception {
+		server = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				ByteArrayOutputStream responses = new ByteArrayOutputStream();
+				super.handle(responses, id, op, message);
+				byte[] bytes = responses.toByteArray();
+				for (int i = 0; i < bytes.length; i += 7) {
+					out.write(bytes, i, Math.min(7, bytes.length - i));
+					out.flush();
+					pause(1);
+				}
+			}
+		};
+		addEntries(20, 10);
+		connect();
+		assertEquals(20, search(null));
+		// The connection is still in step after the split responses
+		assertEquals(20, search(null));
+	}
+
+	/**
+	 * A response larger than the read buffer of the transport is received
+	 * intact.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testLargeFrame() throws Exception {
+		server = new LoopbackServer();
+		byte[] value = new byte[100 * 1024];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte) i;
+		}
+		LDAPAttributeSet set = new LDAPAttributeSet();
+		set.add(new LDAPAttribute("photo", value));
+		server.addEntry(new LDAPEntry("cn=big,o=Acme", set));
+		addEntries(3, 10);
+		connect();
+		LDAPSearchResults results = conn.search("o=Acme",
+				LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false);
+		LDAPEntry entry = results.next();
+		assertEquals("cn=big,o=Acme", entry.getDN());
+		assertTrue(Arrays.equals(value, entry.getAttribute("photo")
+				.getByteValue()));
+		int count = 1;
+		while (results.hasMore()) {
+			results.next();
+			count++;
+		}
+		assertEquals(4, count);
+	}
+
+	/**
+	 * Reading stops while a bounded reply queue is full, and resumes once
+	 * the application takes the results queued.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testPauseWhenQueueFull() throws Exception {
+		server = new LoopbackServer();
+		// More than the socket buffers hold, so the server is held back
+		addEntries(1000, 2048);
+		connect();
+		LDAPSearchConstraints cons = conn.getSearchConstraints();
+		cons.setMaxQueuedResults(4);
+		LDAPSearchQueue queue = conn.search("o=Acme",
+				LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false,
+				(LDAPSearchQueue) null, cons);
+		pause(500);
+		int queued = queue.getMessageAgent().getCount();
+		assertTrue("queued " + queued, (queued > 0) && (queued <= 4));
+		int entries = 0;
+		LDAPMessage message;
+		while (!((message = queue.getResponse()) instanceof LDAPResponse)) {
+			assertTrue(message instanceof LDAPSearchResult);
+			assertEquals("cn=e" + entries + ",o=Acme",
+					((LDAPSearchResult) message).getEntry().getDN());
+			entries++;
+			assertTrue(queue.getMessageAgent().getCount() <= 4);
+		}
+		assertEquals(LDAPException.SUCCESS, ((LDAPResponse) message)
+				.getResultCode());
+		assertEquals(1000, entries);
+		// Reading is not left paused
+		assertEquals(1000, search(null));
+	}
+
+	private void connect() throws LDAPException {
+		conn = new LDAPConnection(new LDAPSelectorSocketFactory());
+		conn.connect(server.getHost(), server.getPort());
+	}
+
+	/*
+	 * Adds entries below o=Acme with a value of the given length.
+	 */
+	private void addEntries(int count, int length) {
+		byte[] value = new byte[length];
+		Arrays.fill(value, (byte) 'x');
+		for (int i = 0; i < count; i++) {
+			LDAPAttributeSet set = new LDAPAttributeSet();
+			set.add(new LDAPAttribute("description", value));
+			server.addEntry(new LDAPEntry("cn=e" + i + ",o=Acme", set));
+		}
+	}
+
+	/*
+	 * Returns the number of entries below o=Acme, checking their values.
+	 */
+	private int search(LDAPSearchConstraints cons) throws LDAPException {
+		LDAPSearchResults results = conn.search("o=Acme",
+				LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false,
+				cons);
+		int count = 0;
+		while (results.hasMore()) {
+			LDAPEntry entry = results.next();
+			assertNotNull(entry.getAttribute("description"));
+			count++;
+		}
+		return count;
+	}
+
+	private static void pause(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for the queue of requests written to a
+ * connection, against a server on the loopback interface. The requests
+ * queued while one thread writes are written by that thread, with one
+ * flush of the socket.
+ */
+public class ConnectionWriteTest extends TestCase {
+	private LoopbackServer server;
+
+	private LDAPConnection conn;
+
+	private GatedSocketFactory factory;
+
+	protected void setUp() throws Exception {
+		server = new LoopbackServer();
+		factory = new GatedSocketFactory();
+		conn = new LDAPConnection(factory);
+		conn.connect(server.getHost(), server.getPort());
+		conn.bind(LDAPConnection.LDAP_V3, "cn=admin", "pw".getBytes("UTF-8"));
+	}
+
+	protected void tearDown() throws Exception {
+		factory.fail = false;
+		if (factory.gate != null) {
+			factory.gate.countDown();
+		}
+		conn.disconnect();
+		server.close();
+	}
+
+	/**
+	 * Requests queued while another thread is writing are written by that
+	 * thread in a single write to the socket.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testCoalescedFlush() throws Exception {
+		Writer writer = block();
+		int before = factory.writes.get();
+		LDAPResponseQueue queue = conn.delete("cn=1,o=test",
+				(LDAPResponseQueue) null);
+		for (int i = 2; i <= 10; i++) {
+			conn.delete("cn=" + i + ",o=test", queue);
+		}
+		// Nothing is written while the first write is blocked
+		assertEquals(before, factory.writes.get());
+		factory.gate.countDown();
+		writer.join(5000);
+		assertNull(writer.error);
+		assertSuccess(writer.queue.getResponse());
+		for (int i = 1; i <= 10; i++) {
+			assertSuccess(queue.getResponse());
+		}
+		// The first request, then the ten queued behind it
+		assertEquals(before + 2, factory.writes.get());
+		assertEquals(1 + 11, server.getRequestCount());
+	}
+
+	/**
+	 * Requests from several threads at once are all written and answered.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testConcurrentWriters() throws Exception {
+		final int threads = 8;
+		final int requests = 100;
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final LDAPConnection clone = (LDAPConnection) conn.clone();
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < requests; i++) {
+						try {
+							clone.delete("cn=" + i + ",o=test");
+						} catch (LDAPException e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (int t = 0; t < threads; t++) {
+			writers[t].join(60 * 1000);
+			assertFalse(writers[t].isAlive());
+		}
+		assertEquals(0, errors.get());
+		assertEquals(1 + threads * requests, server.getRequestCount());
+		assertTrue(factory.writes.get() <= 1 + threads * requests);
+	}
+
+	/**
+	 * When the socket write fails, the thread writing gets the error and
+	 * the requests it was writing for other threads are abandoned with it.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testWriteFailure() throws Exception {
+		Writer writer = block();
+		LDAPResponseQueue queue = conn.delete("cn=1,o=test",
+				(LDAPResponseQueue) null);
+		factory.fail = true;
+		factory.gate.countDown();
+		writer.join(5000);
+		assertTrue(writer.error instanceof LDAPException);
+		assertEquals(LDAPException.CONNECT_ERROR,
+				((LDAPException) writer.error).getResultCode());
+		// The abandoned request is answered with the I/O error
+		LDAPResponse response = (LDAPResponse) queue.getResponse();
+		assertEquals(LDAPException.CONNECT_ERROR, response.getResultCode());
+		try {
+			response.chkResultCode();
+			fail("abandoned request has no error");
+		} catch (LDAPException e) {
+			assertEquals(LDAPException.CONNECT_ERROR, e.getResultCode());
+		}
+	}
+
+	private static void assertSuccess(LDAPMessage response) throws Exception {
+		assertEquals(LDAPException.SUCCESS, ((LDAPResponse) response)
+				.getResultCode());
+	}
+
+	/*
+	 * Starts a thread sending a delete request, and returns it once it is
+	 * blocked writing the request to the socket.
+	 */
+	private Writer block() throws Exception {
+		factory.gate = new CountDownLatch(1);
+		Writer writer = new Writer();
+		writer.start();
+		assertTrue(factory.blocked.await(5, TimeUnit.SECONDS));
+		return writer;
+	}
+
+	/*
+	 * Sends a delete request, keeping its queue or the error.
+	 */
+	private class Writer extends Thread {
+		volatile LDAPResponseQueue queue;
+
+		volatile Exception error;
+
+		public void run() {
+			try {
+				queue = conn.delete("cn=0,o=test", (LDAPResponseQueue) null);
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/*
+	 * Makes sockets that count the writes to them, and can hold a write
+	 * until the gate is opened.
+	 */
+	private static class GatedSocketFactory implements LDAPSocketFactory {
+		final AtomicInteger writes = new AtomicInteger();
+
+		final CountDownLatch blocked = new CountDownLatch(1);
+
+		volatile CountDownLatch gate = null;
+
+		volatile boolean fail = false;
+
+		public Socket createSocket(String host, int port) throws IOException {
+			return new Socket(host, port) {
+				private OutputStream out = null;
+
+				public synchronized OutputStream getOutputStream()
+						throws IOException {
+					if (out == null) {
+						out = new FilterOutputStream(super.getOutputStream()) {
+							public void write(byte[] b, int off, int len)
+									throws IOException {
+								await();
+								writes.incrementAndGet();
+								out.write(b, off, len);
+							}
+						};
+					}
+					return out;
+				}
+			};
+		}
+
+		private void await() throws IOException {
+			CountDownLatch latch = gate;
+			if (latch != null) {
+				blocked.countDown();
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
+				}
+			}
+			if (fail) {
+				throw new IOException("write failed");
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import com.novell.ldap.util.ByteArray;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for the values of an LDAPAttribute.
+ */
+public class LDAPAttributeTest extends TestCase {
+	/**
+	 * Values added to, removed from and replaced in the list returned by
+	 * getAllValues are seen by the attribute.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testMutateAllValues() throws Exception {
+		LDAPAttribute attr = new LDAPAttribute("member", new String[] { "a",
+				"b" });
+		LinkedList<ByteArray> list = attr.getAllValues();
+		assertEquals(2, list.size());
+		list.add(new ByteArray("c"));
+		assertValues(new String[] { "a", "b", "c" }, attr.getByteValueArray());
+		list.removeFirst();
+		assertValues(new String[] { "b", "c" }, attr.getByteValueArray());
+		list.set(0, new ByteArray("x"));
+		assertValues(new String[] { "x", "c" }, attr.getByteValueArray());
+		ListIterator<ByteArray> it = list.listIterator();
+		it.next();
+		it.set(new ByteArray("y"));
+		assertEquals("c", it.next().toString());
+		assertValues(new String[] { "y", "c" }, attr.getByteValueArray());
+		assertTrue(attr.hasValue("y"));
+		assertEquals(2, attr.size());
+	}
+
+	/**
+	 * Values changed through the attribute are seen in the list returned
+	 * by getAllValues.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testAllValuesFollowAttribute() throws Exception {
+		LDAPAttribute attr = new LDAPAttribute("cn", "a");
+		LinkedList<ByteArray> list = attr.getAllValues();
+		attr.addValue("b");
+		attr.removeValue("a");
+		assertEquals(1, list.size());
+		assertEquals("b", list.getFirst().toString());
+		assertSame(list, attr.getAllValues());
+	}
+
+	/**
+	 * A list passed to setAllValues is kept, and later changes to it are
+	 * seen by the attribute.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSetAllValues() throws Exception {
+		LDAPAttribute attr = new LDAPAttribute("cn", "a");
+		LinkedList<ByteArray> list = new LinkedList<ByteArray>();
+		list.add(new ByteArray("b"));
+		attr.setAllValues(list);
+		assertSame(list, attr.getAllValues());
+		list.add(new ByteArray("c"));
+		assertValues(new String[] { "b", "c" }, attr.getByteValueArray());
+	}
+
+	/**
+	 * The list returned by getValueList is a copy, which cannot be changed
+	 * and does not follow the attribute.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testValueList() throws Exception {
+		LDAPAttribute attr = new LDAPAttribute("cn", "a");
+		List<ByteArray> values = attr.getValueList();
+		try {
+			values.add(new ByteArray("b"));
+			fail("value list can be changed");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		attr.addValue("b");
+		assertEquals(1, values.size());
+		assertEquals(2, attr.getValueList().size());
+	}
+
+	private static void assertValues(String[] expected, byte[][] actual)
+			throws Exception {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], new String(actual[i], "UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for the operations of LDAPConnection that
+ * return a CompletableFuture or a Flow.Publisher, against a server on the
+ * loopback interface.
+ */
+public class LDAPConnectionAsyncTest extends TestCase {
+	private static final int DELETE = 10, COMPARE = 14;
+
+	private final AtomicInteger abandons = new AtomicInteger();
+
+	private LoopbackServer server;
+
+	private LDAPConnection conn;
+
+	protected void setUp() throws Exception {
+		// Deletes of cn=missing fail, deletes of cn=slow are never answered
+		// and compares of cn=yes are true
+		server = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				int type = op.getIdentifier().getTag();
+				if (type == DELETE) {
+					String dn = ((ASN1OctetString) op.taggedValue())
+							.stringValue();
+					if (dn.equals("cn=missing")) {
+						out.write(result(id, DELETE + 1,
+								LDAPException.NO_SUCH_OBJECT));
+						return;
+					}
+					if (dn.equals("cn=slow")) {
+						return;
+					}
+				} else if (type == COMPARE) {
+					String dn = ((ASN1OctetString) elements(op)[0])
+							.stringValue();
+					out.write(result(id, COMPARE + 1, dn.equals("cn=yes")
+							? LDAPException.COMPARE_TRUE
+							: LDAPException.COMPARE_FALSE));
+					return;
+				} else if (type == ABANDON) {
+					abandons.incrementAndGet();
+				}
+				super.handle(out, id, op, message);
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			server.addEntry(new LDAPEntry("cn=e" + i + ",o=test",
+					new LDAPAttributeSet()));
+		}
+		conn = new LDAPConnection();
+		conn.connect(server.getHost(), server.getPort());
+	}
+
+	protected void tearDown() throws Exception {
+		conn.disconnect();
+		server.close();
+	}
+
+	/**
+	 * Futures complete with the response, or the comparison.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFutures() throws Exception {
+		List<CompletableFuture<LDAPResponse>> futures =
+				new ArrayList<CompletableFuture<LDAPResponse>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(conn.deleteAsync("cn=" + i, null));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			assertEquals(LDAPException.SUCCESS, futures.get(i).get(5,
+					TimeUnit.SECONDS).getResultCode());
+		}
+		LDAPAttribute attr = new LDAPAttribute("cn", "x");
+		assertEquals(Boolean.TRUE, conn.compareAsync("cn=yes", attr, null)
+				.get(5, TimeUnit.SECONDS));
+		assertEquals(Boolean.FALSE, conn.compareAsync("cn=no", attr, null)
+				.get(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A failed request completes its future with the LDAPException.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFailure() throws Exception {
+		CompletableFuture<LDAPResponse> future = conn.deleteAsync(
+				"cn=missing", null);
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("failed delete completed normally");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof LDAPException);
+			assertEquals(LDAPException.NO_SUCH_OBJECT, ((LDAPException) e
+					.getCause()).getResultCode());
+		}
+	}
+
+	/**
+	 * Cancelling a future abandons the request, and a request pending when
+	 * the connection is closed fails.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testCancelAndDisconnect() throws Exception {
+		CompletableFuture<LDAPResponse> future = conn.deleteAsync("cn=slow",
+				null);
+		assertTrue(future.cancel(true));
+		assertTrue(future.isCancelled());
+		long end = System.currentTimeMillis() + 5000;
+		while (abandons.get() == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, abandons.get());
+
+		future = conn.deleteAsync("cn=slow", null);
+		conn.disconnect();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("pending delete completed normally");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof LDAPException);
+		}
+	}
+
+	/**
+	 * A search publisher delivers entries only as they are requested, then
+	 * completes.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSearchDemand() throws Exception {
+		Recorder recorder = new Recorder();
+		conn.searchAsync("o=test", LDAPConnection.SCOPE_ONE,
+				"(objectClass=*)", null, false, null).subscribe(recorder);
+		assertNull(recorder.events.poll(200, TimeUnit.MILLISECONDS));
+		recorder.subscription.request(1);
+		assertTrue(recorder.next() instanceof LDAPSearchResult);
+		assertNull(recorder.events.poll(200, TimeUnit.MILLISECONDS));
+		recorder.subscription.request(Long.MAX_VALUE);
+		assertTrue(recorder.next() instanceof LDAPSearchResult);
+		assertTrue(recorder.next() instanceof LDAPSearchResult);
+		assertEquals("complete", recorder.next());
+	}
+
+	/**
+	 * A search publisher accepts a single subscriber.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSingleSubscriber() throws Exception {
+		Flow.Publisher<LDAPMessage> publisher = conn.searchAsync("o=test",
+				LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false,
+				null);
+		Recorder first = new Recorder();
+		publisher.subscribe(first);
+		Recorder second = new Recorder();
+		publisher.subscribe(second);
+		assertTrue(second.next() instanceof IllegalStateException);
+		first.subscription.request(Long.MAX_VALUE);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(first.next() instanceof LDAPSearchResult);
+		}
+		assertEquals("complete", first.next());
+	}
+
+	/*
+	 * Records the messages, error and completion a subscriber receives.
+	 */
+	private static class Recorder implements Flow.Subscriber<LDAPMessage> {
+		final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+
+		volatile Flow.Subscription subscription;
+
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+		}
+
+		public void onNext(LDAPMessage message) {
+			events.add(message);
+		}
+
+		public void onError(Throwable t) {
+			events.add(t);
+		}
+
+		public void onComplete() {
+			events.add("complete");
+		}
+
+		Object next() throws InterruptedException {
+			Object event = events.poll(5, TimeUnit.SECONDS);
+			assertNotNull(event);
+			return event;
+		}
+	}
+}
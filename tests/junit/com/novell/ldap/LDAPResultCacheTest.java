@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for searches answered from an
+ * LDAPResultCache, which need no server.
+ */
+public class LDAPResultCacheTest extends TestCase {
+	/**
+	 * The results of a cache hit are counted and enumerated as the results
+	 * of a completed search, and abandoning them, which sends nothing,
+	 * keeps the entries not yet enumerated.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testCacheHit() throws Exception {
+		LDAPConnection conn = new LDAPConnection();
+		LDAPResultCache cache = new LDAPResultCache(1 << 20, 60);
+		conn.setResultCache(cache);
+		String[] attrs = { "cn" };
+		ArrayList<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+		for (int i = 0; i < 3; i++) {
+			LDAPAttributeSet set = new LDAPAttributeSet();
+			set.add(new LDAPAttribute("cn", "e" + i));
+			entries.add(new LDAPEntry("cn=e" + i + ",o=Acme", set));
+		}
+		String key = LDAPResultCache.getKey(conn, "o=Acme",
+				LDAPConnection.SCOPE_ONE, "(cn=*)", attrs, false,
+				conn.getSearchConstraints());
+		cache.put(key, "o=Acme", LDAPConnection.SCOPE_ONE, cache
+				.getGeneration(), entries, 100);
+
+		LDAPSearchResults results = conn.search("o=Acme",
+				LDAPConnection.SCOPE_ONE, "(cn=*)", attrs, false);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, results.getCount());
+		assertTrue(results.hasMore());
+		assertEquals("cn=e0,o=Acme", results.next().getDN());
+		assertEquals(2, results.getCount());
+		conn.abandon(results);
+		assertEquals(2, results.getCount());
+		assertEquals("cn=e1,o=Acme", results.next().getDN());
+		assertEquals("cn=e2,o=Acme", results.next().getDN());
+		assertFalse(results.hasMore());
+		assertEquals(0, results.getCount());
+	}
+
+	/**
+	 * A cache shared by connections to different servers keeps their
+	 * results apart.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSharedAcrossServers() throws Exception {
+		LoopbackServer one = new LoopbackServer();
+		LoopbackServer two = new LoopbackServer();
+		try {
+			one.addEntry(new LDAPEntry("cn=one,o=Acme"));
+			two.addEntry(new LDAPEntry("cn=two,o=Acme"));
+			LDAPResultCache cache = new LDAPResultCache(1 << 20, 60000);
+			assertEquals("cn=one,o=Acme", searchOne(cache, one, null));
+			assertEquals("cn=two,o=Acme", searchOne(cache, two, null));
+			assertEquals(0, cache.getHitCount());
+			assertEquals("cn=one,o=Acme", searchOne(cache, one, null));
+			assertEquals(1, cache.getHitCount());
+		} finally {
+			one.close();
+			two.close();
+		}
+	}
+
+	/**
+	 * Bind DNs differing only in case and spacing share their results.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testBindDnNormalized() throws Exception {
+		LoopbackServer server = new LoopbackServer();
+		try {
+			server.addEntry(new LDAPEntry("cn=one,o=Acme"));
+			LDAPResultCache cache = new LDAPResultCache(1 << 20, 60000);
+			searchOne(cache, server, "cn=Admin, o=Acme");
+			assertEquals(0, cache.getHitCount());
+			searchOne(cache, server, "CN=admin,O=acme");
+			assertEquals(1, cache.getHitCount());
+			searchOne(cache, server, "cn=other,o=Acme");
+			assertEquals(1, cache.getHitCount());
+		} finally {
+			server.close();
+		}
+	}
+
+	/*
+	 * Searches one level below o=Acme on a new connection using the cache,
+	 * and returns the DN of the only entry found.
+	 */
+	private static String searchOne(LDAPResultCache cache,
+			LoopbackServer server, String bindDN) throws Exception {
+		LDAPConnection conn = new LDAPConnection();
+		conn.connect(server.getHost(), server.getPort());
+		try {
+			if (bindDN != null) {
+				conn.bind(LDAPConnection.LDAP_V3, bindDN, new byte[] { 'p' });
+			}
+			conn.setResultCache(cache);
+			LDAPSearchResults results = conn.search("o=Acme",
+					LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false);
+			String dn = results.next().getDN();
+			assertFalse(results.hasMore());
+			return dn;
+		} finally {
+			conn.disconnect();
+		}
+	}
+}
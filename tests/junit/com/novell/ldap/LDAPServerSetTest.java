@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for the choice of server by an
+ * LDAPServerSet, against servers on the loopback interface.
+ */
+public class LDAPServerSetTest extends TestCase {
+	private LoopbackServer[] servers = new LoopbackServer[3];
+	private LDAPServerSet set;
+
+	protected void tearDown() throws Exception {
+		if (set != null) {
+			set.close();
+		}
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i] != null) {
+				servers[i].close();
+			}
+		}
+	}
+
+	/**
+	 * Round robin puts each server first in turn.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testRoundRobin() throws Exception {
+		start();
+		set = new LDAPServerSet(hosts(), 389, LDAPServerSet.ROUND_ROBIN, null);
+		boolean[] first = new boolean[3];
+		for (int i = 0; i < 3; i++) {
+			int[] order = set.getPreferredServers();
+			assertEquals(3, order.length);
+			first[order[0]] = true;
+			// The others follow in turn
+			assertEquals((order[0] + 1) % 3, order[1]);
+			assertEquals((order[0] + 2) % 3, order[2]);
+		}
+		assertTrue(first[0] && first[1] && first[2]);
+		for (int i = 0; i < 3; i++) {
+			LDAPConnection conn = new LDAPConnection();
+			int index = set.connect(conn);
+			assertEquals(index, set.getServerIndex(conn));
+			conn.disconnect();
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, servers[i].awaitConnectCount(1));
+		}
+	}
+
+	/**
+	 * Failover tries the servers in the order listed, and an unreachable
+	 * server is tried last until it is reached again.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFailover() throws Exception {
+		start();
+		ServerSocket closed = new ServerSocket(0);
+		int down = closed.getLocalPort();
+		closed.close();
+		set = new LDAPServerSet("127.0.0.1:" + down + " " + hosts(), 389,
+				LDAPServerSet.FAILOVER, null);
+		set.setProbeInterval(60 * 1000);
+		assertEquals(4, set.getServerCount());
+		assertOrder(new int[] { 0, 1, 2, 3 }, set.getPreferredServers());
+		LDAPConnection conn = new LDAPConnection();
+		assertEquals(1, set.connect(conn));
+		conn.disconnect();
+		assertFalse(set.isAvailable(0));
+		assertTrue(set.isAvailable(1));
+		assertOrder(new int[] { 1, 2, 3, 0 }, set.getPreferredServers());
+		conn = new LDAPConnection();
+		assertEquals(1, set.connect(conn));
+		conn.disconnect();
+		assertEquals(2, servers[0].awaitConnectCount(2));
+		assertEquals(0, servers[1].getConnectCount());
+
+		// The next server listed once the first available one goes down
+		servers[0].close();
+		conn = new LDAPConnection();
+		assertEquals(2, set.connect(conn));
+		conn.disconnect();
+		assertFalse(set.isAvailable(1));
+		assertOrder(new int[] { 2, 3, 0, 1 }, set.getPreferredServers());
+	}
+
+	/**
+	 * Fewest operations puts the servers with no operation outstanding
+	 * before a server still working on a search.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFewestOperations() throws Exception {
+		servers[0] = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				if (op.getIdentifier().getTag() != SEARCH) {
+					super.handle(out, id, op, message);
+				}
+				// A search is never answered
+			}
+		};
+		servers[1] = new LoopbackServer();
+		servers[2] = new LoopbackServer();
+		set = new LDAPServerSet(hosts(), 389,
+				LDAPServerSet.FEWEST_OPERATIONS, null);
+		LDAPConnection busy = new LDAPConnection();
+		while (set.connect(busy) != 0) {
+			busy.disconnect();
+			busy = new LDAPConnection();
+		}
+		try {
+			busy.search("o=Acme", LDAPConnection.SCOPE_ONE,
+					"(objectClass=*)", null, false, (LDAPSearchQueue) null,
+					busy.getSearchConstraints());
+			assertEquals(1, set.getOutstandingOperations(0));
+			for (int i = 0; i < 6; i++) {
+				int[] order = set.getPreferredServers();
+				assertTrue(order[0] != 0);
+				assertEquals(0, order[2]);
+			}
+		} finally {
+			busy.disconnect();
+		}
+	}
+
+	private void start() throws IOException {
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new LoopbackServer();
+		}
+	}
+
+	private String hosts() {
+		StringBuffer hosts = new StringBuffer();
+		for (int i = 0; i < servers.length; i++) {
+			if (i > 0) {
+				hosts.append(' ');
+			}
+			hosts.append(servers[i].getHost() + ":" + servers[i].getPort());
+		}
+		return hosts.toString();
+	}
+
+	private static void assertOrder(int[] expected, int[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+}
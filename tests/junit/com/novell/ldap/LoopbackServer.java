@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.novell.ldap.asn1.ASN1Enumerated;
+import com.novell.ldap.asn1.ASN1Identifier;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1SequenceOf;
+import com.novell.ldap.asn1.ASN1SetOf;
+import com.novell.ldap.asn1.ASN1Tagged;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+import com.novell.ldap.asn1.LBERFrameReader;
+/**
+ * A minimal LDAP server on the loopback interface, for testcases that need
+ * a server to talk to.
+ * 
+ * <p>Binds, modifications and extended operations succeed, and a search
+ * returns the entries added with addEntry that are in its scope, without
+ * evaluating the filter. Sub-classes override handle to answer other
+ * requests.</p>
+ */
+public class LoopbackServer implements Runnable {
+	/** Protocol op tags of the requests and responses. */
+	public static final int BIND = 0, BIND_RESULT = 1, UNBIND = 2,
+			SEARCH = 3, SEARCH_ENTRY = 4, SEARCH_RESULT = 5, ABANDON = 16,
+			EXTENDED = 23, EXTENDED_RESULT = 24;
+
+	private final ServerSocketChannel listener;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final List<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+	private final AtomicInteger connects = new AtomicInteger();
+	private final AtomicInteger binds = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final Thread acceptor;
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts a server on a free port of the loopback interface.
+	 */
+	public LoopbackServer() throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		acceptor = start(this, "LoopbackServer " + getPort());
+	}
+
+	public String getHost() {
+		return "127.0.0.1";
+	}
+
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+	/** Returns the number of connections accepted. */
+	public int getConnectCount() {
+		return connects.get();
+	}
+
+	/**
+	 * Returns the number of connections accepted, once it reaches count or
+	 * after five seconds. A client can connect before the server accepts.
+	 */
+	public int awaitConnectCount(int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (connects.get() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		return connects.get();
+	}
+
+	/** Returns the number of bind requests received. */
+	public int getBindCount() {
+		return binds.get();
+	}
+
+	/** Returns the number of requests received, of any kind. */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/** Adds an entry returned by searches. */
+	public synchronized void addEntry(LDAPEntry entry) {
+		entries.add(entry);
+	}
+
+	/** Closes every connection accepted, leaving the server running. */
+	public void dropConnections() {
+		synchronized (sockets) {
+			for (Iterator<Socket> i = sockets.iterator(); i.hasNext();) {
+				close(i.next());
+			}
+			sockets.clear();
+		}
+	}
+
+	/**
+	 * Stops the server and closes every connection. The port is released
+	 * once the accepting thread has ended.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			listener.close();
+			acceptor.join(5000);
+		} catch (IOException e) {
+			// closing anyway
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		dropConnections();
+	}
+
+	public void run() {
+		try {
+			while (!closed) {
+				SocketChannel channel = listener.accept();
+				final Socket socket = channel.socket();
+				socket.setTcpNoDelay(true);
+				connects.incrementAndGet();
+				synchronized (sockets) {
+					sockets.add(socket);
+				}
+				start(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "LoopbackServer session");
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	/*
+	 * Reads and answers the requests of one connection until it closes.
+	 */
+	private void serve(Socket socket) {
+		try {
+			LBERFrameReader reader = new LBERFrameReader(socket
+					.getInputStream());
+			LBERDecoder decoder = new LBERDecoder();
+			OutputStream out = socket.getOutputStream();
+			for (;;) {
+				ASN1Sequence message = (ASN1Sequence) decoder.decode(reader
+						.nextFrame());
+				int id = ((ASN1Integer) message.get(0)).intValue();
+				ASN1Tagged op = (ASN1Tagged) message.get(1);
+				requests.incrementAndGet();
+				int type = op.getIdentifier().getTag();
+				if (type == UNBIND) {
+					break;
+				}
+				if (type == BIND) {
+					binds.incrementAndGet();
+				}
+				handle(out, id, op, message);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// connection closed
+		} finally {
+			close(socket);
+		}
+	}
+
+	/**
+	 * Answers a request. Searches return the entries in scope, abandon
+	 * requests are ignored, and any other request succeeds.
+	 * 
+	 * @param out
+	 *            The connection to write the responses to.
+	 * @param id
+	 *            The message ID of the request.
+	 * @param op
+	 *            The protocol op of the request.
+	 * @param message
+	 *            The whole request.
+	 */
+	protected void handle(OutputStream out, int id, ASN1Tagged op,
+			ASN1Sequence message) throws IOException {
+		int type = op.getIdentifier().getTag();
+		if (type == SEARCH) {
+			ASN1Object[] request = elements(op);
+			String base = ((ASN1OctetString) request[0]).stringValue();
+			int scope = ((ASN1Enumerated) request[1]).intValue();
+			List<LDAPEntry> found = new ArrayList<LDAPEntry>();
+			synchronized (this) {
+				for (Iterator<LDAPEntry> i = entries.iterator(); i.hasNext();) {
+					LDAPEntry entry = i.next();
+					if (inScope(entry.getDN(), base, scope)) {
+						found.add(entry);
+					}
+				}
+			}
+			for (Iterator<LDAPEntry> i = found.iterator(); i.hasNext();) {
+				out.write(entry(id, i.next()));
+			}
+			out.write(result(id, SEARCH_RESULT, LDAPException.SUCCESS));
+		} else if (type != ABANDON) {
+			out.write(result(id, type + 1, LDAPException.SUCCESS));
+		}
+	}
+
+	/**
+	 * Returns the elements of a constructed protocol op.
+	 */
+	public static ASN1Object[] elements(ASN1Tagged op) throws IOException {
+		byte[] content = ((ASN1OctetString) op.taggedValue()).byteValue();
+		ByteArrayInputStream in = new ByteArrayInputStream(content);
+		LBERDecoder decoder = new LBERDecoder();
+		List<ASN1Object> elements = new ArrayList<ASN1Object>();
+		while (in.available() > 0) {
+			elements.add(decoder.decode(in));
+		}
+		return elements.toArray(new ASN1Object[elements.size()]);
+	}
+
+	/**
+	 * Encodes an LDAPResult response.
+	 */
+	public static byte[] result(int id, int type, int code) {
+		ASN1Sequence result = new ASN1Sequence();
+		result.add(new ASN1Enumerated(code));
+		result.add(new ASN1OctetString(""));
+		result.add(new ASN1OctetString(""));
+		return message(id, type, result);
+	}
+
+	/**
+	 * Encodes a search result entry.
+	 */
+	public static byte[] entry(int id, LDAPEntry entry) {
+		ASN1SequenceOf attrs = new ASN1SequenceOf();
+		for (Iterator<?> i = entry.getAttributeSet().iterator(); i.hasNext();) {
+			LDAPAttribute attr = (LDAPAttribute) i.next();
+			ASN1SetOf values = new ASN1SetOf();
+			byte[][] bytes = attr.getByteValueArray();
+			for (int j = 0; j < bytes.length; j++) {
+				values.add(new ASN1OctetString(bytes[j]));
+			}
+			ASN1Sequence pair = new ASN1Sequence();
+			pair.add(new ASN1OctetString(attr.getName()));
+			pair.add(values);
+			attrs.add(pair);
+		}
+		ASN1Sequence body = new ASN1Sequence();
+		body.add(new ASN1OctetString(entry.getDN()));
+		body.add(attrs);
+		return message(id, SEARCH_ENTRY, body);
+	}
+
+	/**
+	 * Encodes a message with a constructed protocol op.
+	 */
+	public static byte[] message(int id, int type, ASN1Sequence body) {
+		ASN1Sequence message = new ASN1Sequence();
+		message.add(new ASN1Integer(id));
+		message.add(new ASN1Tagged(new ASN1Identifier(
+				ASN1Identifier.APPLICATION, true, type), body, false));
+		return message.getEncoding(new LBEREncoder());
+	}
+
+	private static boolean inScope(String dn, String base, int scope) {
+		dn = dn.toLowerCase();
+		base = base.toLowerCase();
+		switch (scope) {
+		case LDAPConnection.SCOPE_BASE:
+			return dn.equals(base);
+		case LDAPConnection.SCOPE_ONE:
+			int comma = dn.indexOf(',');
+			return (comma >= 0) && dn.substring(comma + 1).equals(base);
+		default:
+			return base.length() == 0 || dn.equals(base)
+					|| dn.endsWith("," + base);
+		}
+	}
+
+	private void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private static Thread start(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.asn1;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for LBERBufferDecoder, checking that
+ * messages decoded from heap and direct buffers equal those decoded by
+ * LBERDecoder, and that OCTET STRING values are views of the buffer.
+ */
+public class LBERBufferDecoderTest extends TestCase {
+	private LBEREncoder encoder = new LBEREncoder();
+	/**
+	 * A message decoded from a heap or a direct buffer must encode to the
+	 * same octets as the message decoded from a stream.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testDecode() throws Exception {
+		byte[] pdu = encode();
+		byte[] expected = new LBERDecoder().decode(pdu).getEncoding(encoder);
+		LBERBufferDecoder decoder = new LBERBufferDecoder();
+		ByteBuffer heap = ByteBuffer.wrap(pdu);
+		assertTrue(Arrays.equals(expected, decoder.decode(heap).getEncoding(
+				encoder)));
+		assertEquals(pdu.length, heap.position());
+		ByteBuffer direct = ByteBuffer.allocateDirect(pdu.length + 3);
+		direct.put(new byte[] { 1, 2, 3 }).put(pdu).position(3);
+		assertTrue(Arrays.equals(expected, decoder.decode(direct).getEncoding(
+				encoder)));
+		assertEquals(pdu.length + 3, direct.position());
+	}
+	/**
+	 * Values decoded from a heap buffer share its array, are copied only by
+	 * byteValue, and decode their string once.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testViews() throws Exception {
+		byte[] pdu = encode();
+		ASN1Sequence seq = (ASN1Sequence) new LBERBufferDecoder().decode(pdu);
+		ASN1OctetString value = (ASN1OctetString) seq.get(1);
+		ByteBuffer view = value.byteBufferValue();
+		assertSame(pdu, view.array());
+		assertEquals("cn=J\u00f6rg,o=Acme", value.stringValue());
+		assertSame(value.stringValue(), value.stringValue());
+		byte[] copy = value.byteValue();
+		assertEquals(value.getLength(), copy.length);
+		assertSame(copy, value.byteValue());
+		copy[0] = 'x';
+		assertEquals('c', pdu[view.position()]);
+		ASN1Tagged tagged = (ASN1Tagged) seq.get(2);
+		assertEquals(0, ((ASN1OctetString) tagged.taggedValue()).getLength());
+	}
+	private byte[] encode() throws Exception {
+		ASN1Sequence seq = new ASN1Sequence();
+		seq.add(new ASN1Integer(7));
+		seq.add(new ASN1OctetString("cn=J\u00f6rg,o=Acme"));
+		seq.add(new ASN1Tagged(new ASN1Identifier(ASN1Identifier.CONTEXT,
+				false, 0), new ASN1OctetString(""), false));
+		seq.add(new ASN1Boolean(true));
+		return seq.getEncoding(encoder);
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.asn1;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for LBERFrameReader, checking that elements
+ * are framed correctly regardless of how the stream delivers the data.
+ */
+public class LBERFrameReaderTest extends TestCase {
+	private LBEREncoder encoder = new LBEREncoder();
+	/**
+	 * Elements smaller and larger than the buffer, delivered one octet at a
+	 * time, must decode to the original encodings.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFraming() throws Exception {
+		byte[][] pdus = new byte[][] { encode(1, 10), encode(2, 1000),
+				encode(3, 0), encode(4, 70000) };
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for (int i = 0; i < pdus.length; i++) {
+			all.write(pdus[i]);
+		}
+		LBERFrameReader reader = new LBERFrameReader(new TrickleStream(all
+				.toByteArray()), 64);
+		LBERDecoder decoder = new LBERDecoder();
+		for (int i = 0; i < pdus.length; i++) {
+			InputStream frame = reader.nextFrame();
+			assertEquals(pdus[i].length, frame.available());
+			ASN1Object obj = decoder.decode(frame);
+			assertTrue(Arrays.equals(pdus[i], obj.getEncoding(encoder)));
+		}
+		try {
+			reader.nextFrame();
+			fail("Expected EOFException at end of stream");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+	private byte[] encode(int id, int size) {
+		ASN1Sequence seq = new ASN1Sequence();
+		seq.add(new ASN1Integer(id));
+		byte[] value = new byte[size];
+		Arrays.fill(value, (byte) id);
+		seq.add(new ASN1OctetString(value));
+		return seq.getEncoding(encoder);
+	}
+	/**
+	 * Returns at most one octet per read.
+	 */
+	private static class TrickleStream extends FilterInputStream {
+		TrickleStream(byte[] data) {
+			super(new ByteArrayInputStream(data));
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.connectionpool;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LoopbackServer;
+import junit.framework.TestCase;
+/**
+ * This Class contains testcases for ConnectionPool, against a server on the
+ * loopback interface.
+ */
+public class ConnectionPoolTest extends TestCase {
+	private static final byte[] PW = { 'p', 'w' };
+	private LoopbackServer server;
+	private ConnectionPool pool;
+
+	protected void setUp() throws Exception {
+		server = new LoopbackServer();
+	}
+
+	protected void tearDown() throws Exception {
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+	}
+
+	/**
+	 * A connection made available is checked out again without opening or
+	 * binding another, and cannot be made available twice.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testCheckoutAndReturn() throws Exception {
+		pool = new ConnectionPool(server.getHost(), server.getPort(), 0, 2,
+				null);
+		LDAPConnection conn = pool.getBoundConnection("cn=a", PW);
+		assertTrue(conn.isConnected());
+		assertEquals(1, pool.getSize());
+		assertEquals(0, pool.getAvailableCount());
+		pool.makeConnectionAvailable(conn);
+		assertEquals(1, pool.getAvailableCount());
+		try {
+			pool.makeConnectionAvailable(conn);
+			fail("connection made available twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertSame(conn, pool.getBoundConnection("cn=a", PW));
+		assertEquals(1, server.getConnectCount());
+		assertEquals(1, server.getBindCount());
+		pool.makeConnectionAvailable(conn);
+		// Other credentials get a new connection while the pool can grow
+		LDAPConnection other = pool.getBoundConnection("cn=b", PW);
+		assertNotSame(conn, other);
+		assertEquals(2, server.getConnectCount());
+		pool.makeConnectionAvailable(other);
+		// then a connection bound with other credentials is bound again
+		LDAPConnection rebound = pool.getBoundConnection("cn=c", PW);
+		assertTrue((rebound == conn) || (rebound == other));
+		assertEquals(2, server.getConnectCount());
+		assertEquals(3, server.getBindCount());
+	}
+
+	/**
+	 * A thread waiting for a connection is handed the connection made
+	 * available by another.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testWaiterHandedConnection() throws Exception {
+		pool = new ConnectionPool(server.getHost(), server.getPort(), 0, 1,
+				null);
+		LDAPConnection held = pool.getBoundConnection("cn=a", PW);
+		final LDAPConnection[] taken = new LDAPConnection[1];
+		final Exception[] failed = new Exception[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					taken[0] = pool.getBoundConnection("cn=a", PW);
+				} catch (Exception e) {
+					failed[0] = e;
+				}
+			}
+		};
+		waiter.start();
+		long end = System.currentTimeMillis() + 5000;
+		while ((waiter.getState() != Thread.State.WAITING)
+				&& (System.currentTimeMillis() < end)) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.WAITING, waiter.getState());
+		assertNull(taken[0]);
+		pool.makeConnectionAvailable(held);
+		waiter.join(5000);
+		assertNull(failed[0]);
+		assertSame(held, taken[0]);
+		assertEquals(0, pool.getAvailableCount());
+		assertEquals(1, server.getConnectCount());
+	}
+
+	/**
+	 * No more than maxConns connections are opened, and a thread waiting
+	 * for one gives up after its timeout.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testMaxConnections() throws Exception {
+		pool = new ConnectionPool(server.getHost(), server.getPort(), 0, 2,
+				null);
+		LDAPConnection first = pool.getBoundConnection("cn=a", PW);
+		LDAPConnection second = pool.getBoundConnection("cn=b", PW);
+		assertNotSame(first, second);
+		long start = System.currentTimeMillis();
+		try {
+			pool.getBoundConnection("cn=c", PW, 200);
+			fail("more than maxConns connections");
+		} catch (LDAPException e) {
+			assertEquals(LDAPException.LDAP_TIMEOUT, e.getResultCode());
+		}
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(2, pool.getSize());
+		assertEquals(2, server.getConnectCount());
+		pool.makeConnectionAvailable(second);
+		assertSame(second, pool.getBoundConnection("cn=c", PW, 200));
+		assertEquals(2, server.getConnectCount());
+	}
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.controls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LoopbackServer;
+import com.novell.ldap.asn1.ASN1Enumerated;
+import com.novell.ldap.asn1.ASN1Identifier;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1SequenceOf;
+import com.novell.ldap.asn1.ASN1Tagged;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for VirtualListCursor, against a server on
+ * the loopback interface that returns the windows of a sorted list of
+ * <code>total</code> entries named uid=u0 to uid=u&lt;total-1&gt;.
+ */
+public class VirtualListCursorTest extends TestCase {
+	private static final String VLV_REQUEST = "2.16.840.1.113730.3.4.9";
+
+	private static final String VLV_RESPONSE = "2.16.840.1.113730.3.4.10";
+
+	private volatile int total = 1000;
+
+	/* The offset, count and content count of each VLV request */
+	private final List<String> requests = new ArrayList<String>();
+
+	/* The context ID sent with each VLV request, and the one returned */
+	private final List<String> sent = new ArrayList<String>();
+
+	private final List<String> returned = new ArrayList<String>();
+
+	private LoopbackServer server;
+
+	private LDAPConnection conn;
+
+	private VirtualListCursor cursor;
+
+	protected void setUp() throws Exception {
+		server = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				if (op.getIdentifier().getTag() == SEARCH) {
+					window(out, id, message);
+				} else {
+					super.handle(out, id, op, message);
+				}
+			}
+		};
+		conn = new LDAPConnection();
+		conn.connect(server.getHost(), server.getPort());
+		cursor = new VirtualListCursor(conn, "o=test",
+				LDAPConnection.SCOPE_ONE, "(objectClass=*)", null, false,
+				new LDAPSortKey[] { new LDAPSortKey("uid") });
+	}
+
+	protected void tearDown() throws Exception {
+		cursor.close();
+		conn.disconnect();
+		server.close();
+	}
+
+	/**
+	 * Entries are read a window at a time, and only the entries not
+	 * cached are requested.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testRange() throws Exception {
+		cursor.setPrefetch(false);
+		assertEquals(1000, cursor.size());
+		assertEquals(1, cursor.getSearchCount());
+		assertRange(10, cursor.range(10, 20), 10);
+		assertEquals(1, cursor.getSearchCount());
+		assertRange(150, cursor.range(150, 160), 10);
+		assertEquals(2, cursor.getSearchCount());
+		assertRange(140, cursor.range(140, 200), 60);
+		assertEquals(3, cursor.getSearchCount());
+		assertEquals("uid=u999,o=test", cursor.get(999).getDN());
+		assertNull(cursor.get(1000));
+		assertRange(995, cursor.range(995, 1010), 5);
+	}
+
+	/**
+	 * The missing entries of a range less than a window apart are
+	 * requested in one search.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testWindowSize() throws Exception {
+		cursor.setPrefetch(false);
+		cursor.setWindowSize(10);
+		assertRange(0, cursor.range(0, 25), 25);
+		assertEquals(1, cursor.getSearchCount());
+		assertEquals("1+25/0", requests.get(0));
+	}
+
+	/**
+	 * The next window in the direction of scrolling is read ahead.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testPrefetch() throws Exception {
+		cursor.setWindowSize(20);
+		assertEquals("uid=u0,o=test", cursor.get(0).getDN());
+		assertEquals(2, cursor.getSearchCount());
+		assertRange(20, cursor.range(20, 40), 20);
+		// The window read ahead, then the one after it
+		assertEquals(3, cursor.getSearchCount());
+		awaitRequests(3);
+		assertEquals("21+20/1000", requests.get(1));
+		assertEquals("41+20/1000", requests.get(2));
+	}
+
+	/**
+	 * A content count that changes drops the cached entries, and refresh
+	 * reads the list again.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testListChanged() throws Exception {
+		cursor.setPrefetch(false);
+		cursor.setWindowSize(10);
+		assertEquals(1000, cursor.size());
+		total = 500;
+		assertRange(300, cursor.range(300, 305), 5);
+		assertEquals(500, cursor.size());
+		long searches = cursor.getSearchCount();
+		// The first window was dropped with the change
+		assertRange(0, cursor.range(0, 5), 5);
+		assertEquals(searches + 1, cursor.getSearchCount());
+
+		total = 400;
+		cursor.refresh();
+		assertEquals(400, cursor.size());
+		assertNull(cursor.get(450));
+	}
+
+	/**
+	 * The context ID returned by the server is sent with the next request.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testContext() throws Exception {
+		cursor.setPrefetch(false);
+		cursor.get(0);
+		cursor.get(500);
+		assertEquals("", sent.get(0));
+		assertEquals(returned.get(0), sent.get(1));
+	}
+
+	/*
+	 * Waits for the server to receive a number of requests, as a request
+	 * read ahead is not waited for.
+	 */
+	private void awaitRequests(int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < end) {
+			synchronized (requests) {
+				if (requests.size() >= count) {
+					return;
+				}
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static void assertRange(int from, LDAPEntry[] entries, int length) {
+		assertEquals(length, entries.length);
+		for (int i = 0; i < entries.length; i++) {
+			assertEquals("uid=u" + (from + i) + ",o=test", entries[i].getDN());
+		}
+	}
+
+	/*
+	 * Returns the window of the list requested by the VLV control of a
+	 * search, with the VLV response control.
+	 */
+	private void window(OutputStream out, int id, ASN1Sequence message)
+			throws IOException {
+		LBERDecoder decoder = new LBERDecoder();
+		ASN1Sequence vlv = null;
+		ASN1Object[] controls = LoopbackServer.elements((ASN1Tagged) message
+				.get(2));
+		for (int i = 0; i < controls.length; i++) {
+			ASN1Sequence control = (ASN1Sequence) controls[i];
+			String oid = ((ASN1OctetString) control.get(0)).stringValue();
+			if (oid.equals(VLV_REQUEST)) {
+				vlv = (ASN1Sequence) decoder.decode(((ASN1OctetString) control
+						.get(control.size() - 1)).byteValue());
+			}
+		}
+		int before = ((ASN1Integer) vlv.get(0)).intValue();
+		int after = ((ASN1Integer) vlv.get(1)).intValue();
+		ASN1Object[] byOffset = LoopbackServer.elements((ASN1Tagged) vlv
+				.get(2));
+		int offset = ((ASN1Integer) byOffset[0]).intValue();
+		int count = ((ASN1Integer) byOffset[1]).intValue();
+		String context = (vlv.size() > 3) ? ((ASN1OctetString) vlv.get(3))
+				.stringValue() : "";
+		int n = total;
+		synchronized (requests) {
+			requests.add(offset + "+" + (before + after + 1) + "/" + count);
+			sent.add(context);
+			returned.add("ctx" + id);
+		}
+		// Scale the offset to the current size of the list
+		int target = (count > 0 && count != n) ? Math.max(1,
+				(int) ((long) offset * n / count)) : offset;
+		target = Math.min(target, n);
+		int last = Math.min(n, target + after);
+		for (int i = Math.max(1, target - before); i <= last; i++) {
+			out.write(LoopbackServer.entry(id, new LDAPEntry("uid=u" + (i - 1)
+					+ ",o=test")));
+		}
+
+		ASN1Sequence value = new ASN1Sequence();
+		value.add(new ASN1Integer(target));
+		value.add(new ASN1Integer(n));
+		value.add(new ASN1Enumerated(LDAPException.SUCCESS));
+		value.add(new ASN1OctetString("ctx" + id));
+		ASN1Sequence control = new ASN1Sequence();
+		control.add(new ASN1OctetString(VLV_RESPONSE));
+		control.add(new ASN1OctetString(value.getEncoding(new LBEREncoder())));
+		ASN1SequenceOf responseControls = new ASN1SequenceOf();
+		responseControls.add(control);
+		ASN1Sequence result = new ASN1Sequence();
+		result.add(new ASN1Enumerated(LDAPException.SUCCESS));
+		result.add(new ASN1OctetString(""));
+		result.add(new ASN1OctetString(""));
+		ASN1Sequence response = new ASN1Sequence();
+		response.add(new ASN1Integer(id));
+		response.add(new ASN1Tagged(new ASN1Identifier(
+				ASN1Identifier.APPLICATION, true, LoopbackServer.SEARCH_RESULT),
+				result, false));
+		response.add(new ASN1Tagged(new ASN1Identifier(
+				ASN1Identifier.CONTEXT, true, 0), responseControls, false));
+		out.write(response.getEncoding(new LBEREncoder()));
+	}
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.extensions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LoopbackServer;
+import com.novell.ldap.asn1.ASN1Enumerated;
+import com.novell.ldap.asn1.ASN1Identifier;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+import com.novell.ldap.util.BulkExecutor;
+import com.novell.ldap.util.LDIFReader;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for LburpLoader, against a server on the
+ * loopback interface that answers the LBURP extended operations. The
+ * server fails the requests of entries with a cn of "fail", and answers
+ * each LburpOperationRequest after a delay.
+ */
+public class LburpLoaderTest extends TestCase {
+	private final ScheduledExecutorService answers = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final List<Integer> sequences = new ArrayList<Integer>();
+
+	private int outstanding = 0;
+
+	private int maxOutstanding = 0;
+
+	private int endSequence = -1;
+
+	private LoopbackServer server;
+
+	private LDAPConnection conn;
+
+	protected void setUp() throws Exception {
+		server = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				if (op.getIdentifier().getTag() == EXTENDED) {
+					extended(out, id, elements(op));
+				} else {
+					super.handle(out, id, op, message);
+				}
+			}
+		};
+		conn = new LDAPConnection();
+		conn.connect(server.getHost(), server.getPort());
+		conn.bind(LDAPConnection.LDAP_V3, "cn=admin", "pw".getBytes("UTF-8"));
+	}
+
+	protected void tearDown() throws Exception {
+		conn.disconnect();
+		server.close();
+		answers.shutdownNow();
+	}
+
+	/**
+	 * The records are sent in batches of the transaction size returned by
+	 * the server, numbered in sequence, and the failures are traced back
+	 * to their records.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testLoad() throws Exception {
+		LburpLoader loader = new LburpLoader(conn);
+		assertEquals(250, loader.load(ldif(250, new int[] { 7, 120 })));
+		assertEquals(250, loader.getRequestCount());
+		assertEquals(250, loader.getCompletedCount());
+		assertEquals(2, loader.getFailedCount());
+		List<BulkExecutor.Failure> failures = loader.getFailures();
+		assertEquals(2, failures.size());
+		// Batches complete in any order
+		BulkExecutor.Failure first = failures.get(0);
+		BulkExecutor.Failure second = failures.get(1);
+		if (first.getRecord() > second.getRecord()) {
+			first = second;
+			second = failures.get(0);
+		}
+		assertEquals(7, first.getRecord());
+		assertEquals(120, second.getRecord());
+		assertEquals(LDAPException.ENTRY_ALREADY_EXISTS, first.getError()
+				.getResultCode());
+		assertEquals("exists", first.getError().getLDAPErrorMessage());
+		// Transaction size of 100
+		assertEquals(3, sequences.size());
+		for (int i = 0; i < sequences.size(); i++) {
+			assertTrue(sequences.contains(Integer.valueOf(i + 1)));
+		}
+		assertEquals(3, endSequence);
+	}
+
+	/**
+	 * Up to window batches are outstanding at once.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testWindow() throws Exception {
+		LburpLoader loader = new LburpLoader(conn);
+		loader.setWindow(3);
+		loader.load(ldif(1000, new int[0]));
+		assertEquals(10, sequences.size());
+		assertEquals(3, maxOutstanding);
+		assertEquals(0, loader.getFailedCount());
+	}
+
+	/**
+	 * A batch is also sent when it holds the maximum batch size or bytes.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testBatchLimits() throws Exception {
+		LburpLoader loader = new LburpLoader(conn);
+		loader.setMaxBatchSize(30);
+		loader.load(ldif(100, new int[0]));
+		assertEquals(4, sequences.size());
+
+		sequences.clear();
+		loader = new LburpLoader(conn);
+		loader.setMaxBatchBytes(2000);
+		loader.load(ldif(100, new int[] { 50 }));
+		assertTrue(sequences.size() > 4);
+		assertEquals(1, loader.getFailedCount());
+		assertEquals(50, loader.getFailures().get(0).getRecord());
+	}
+
+	/*
+	 * Answers an LBURP extended request.
+	 */
+	private void extended(final OutputStream out, int id,
+			ASN1Object[] request) throws IOException {
+		LBERDecoder decoder = new LBERDecoder();
+		LBEREncoder encoder = new LBEREncoder();
+		String oid = ((ASN1OctetString) ((ASN1Tagged) request[0])
+				.taggedValue()).stringValue();
+		byte[] value = ((ASN1OctetString) ((ASN1Tagged) request[1])
+				.taggedValue()).byteValue();
+		if (oid.equals(LburpConstants.LBURPStartReplReqOID)) {
+			ASN1Sequence start = new ASN1Sequence();
+			start.add(new ASN1Integer(100));
+			write(out, extendedResult(id, LburpConstants.LBURPStartReplResOID,
+					start.getEncoding(encoder)));
+		} else if (oid.equals(LburpConstants.LBURPEndReplReqOID)) {
+			ASN1Sequence end = (ASN1Sequence) decoder.decode(value);
+			endSequence = ((ASN1Integer) end.get(0)).intValue();
+			write(out, extendedResult(id, LburpConstants.LBURPEndReplResOID,
+					new ASN1Sequence().getEncoding(encoder)));
+		} else {
+			ASN1Sequence batch = (ASN1Sequence) decoder.decode(value);
+			ByteArrayOutputStream results = new ByteArrayOutputStream();
+			for (int i = 1; i < batch.size(); i++) {
+				String operation = new String(batch.get(i).getEncoding(
+						encoder), "UTF-8");
+				if (operation.indexOf("fail") >= 0) {
+					ASN1Sequence error = new ASN1Sequence();
+					error.add(new ASN1Enumerated(
+							LDAPException.ENTRY_ALREADY_EXISTS));
+					error.add(new ASN1OctetString(""));
+					error.add(new ASN1OctetString("exists"));
+					ASN1Sequence result = new ASN1Sequence();
+					result.add(new ASN1Integer(i));
+					result.add(new ASN1Tagged(new ASN1Identifier(
+							ASN1Identifier.APPLICATION, true, 9), error, false));
+					results.write(result.getEncoding(encoder));
+				}
+			}
+			synchronized (sequences) {
+				sequences.add(Integer.valueOf(((ASN1Integer) batch.get(0))
+						.intValue()));
+				outstanding++;
+				maxOutstanding = Math.max(maxOutstanding, outstanding);
+			}
+			final byte[] response = extendedResult(id,
+					LburpConstants.LBURPOperationResOID, results.toByteArray());
+			answers.schedule(new Runnable() {
+				public void run() {
+					synchronized (sequences) {
+						outstanding--;
+					}
+					try {
+						write(out, response);
+					} catch (IOException e) {
+						// connection closed
+					}
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void write(OutputStream out, byte[] response)
+			throws IOException {
+		synchronized (out) {
+			out.write(response);
+			out.flush();
+		}
+	}
+
+	/*
+	 * Encodes a successful extended response.
+	 */
+	private static byte[] extendedResult(int id, String oid, byte[] value) {
+		ASN1Sequence body = new ASN1Sequence();
+		body.add(new ASN1Enumerated(LDAPException.SUCCESS));
+		body.add(new ASN1OctetString(""));
+		body.add(new ASN1OctetString(""));
+		body.add(new ASN1Tagged(new ASN1Identifier(ASN1Identifier.CONTEXT,
+				false, 10), new ASN1OctetString(oid), false));
+		body.add(new ASN1Tagged(new ASN1Identifier(ASN1Identifier.CONTEXT,
+				false, 11), new ASN1OctetString(value), false));
+		return LoopbackServer.message(id, LoopbackServer.EXTENDED_RESULT,
+				body);
+	}
+
+	/*
+	 * Returns a reader of an LDIF file of count entries, those at the
+	 * given records failing.
+	 */
+	private static LDIFReader ldif(int count, int[] failing)
+			throws Exception {
+		StringBuffer ldif = new StringBuffer("version: 1\n\n");
+		for (int i = 1; i <= count; i++) {
+			String cn = "u" + i;
+			for (int j = 0; j < failing.length; j++) {
+				if (failing[j] == i) {
+					cn = "fail";
+				}
+			}
+			ldif.append("dn: cn=u" + i + ",o=test\nobjectClass: person\n");
+			ldif.append("cn: " + cn + "\nsn: s" + i + "\n\n");
+		}
+		return new LDIFReader(new ByteArrayInputStream(ldif.toString()
+				.getBytes("UTF-8")));
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.novell.ldap.LDAPAddRequest;
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LoopbackServer;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for BulkExecutor, against a server on the
+ * loopback interface that answers add requests after a delay.
+ */
+public class BulkExecutorTest extends TestCase {
+	private static final int ADD = 8;
+
+	private final ScheduledExecutorService answers = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final List<String> log = new ArrayList<String>();
+
+	private int outstanding = 0;
+
+	private int maxOutstanding = 0;
+
+	private LoopbackServer server;
+
+	private LDAPConnection conn;
+
+	protected void setUp() throws Exception {
+		// Adds of entries named cn=fail... fail with entryAlreadyExists
+		server = new LoopbackServer() {
+			protected void handle(final OutputStream out, final int id,
+					ASN1Tagged op, ASN1Sequence message) throws IOException {
+				if (op.getIdentifier().getTag() != ADD) {
+					super.handle(out, id, op, message);
+					return;
+				}
+				final String dn = ((ASN1OctetString) elements(op)[0])
+						.stringValue();
+				synchronized (log) {
+					log.add("req " + dn);
+					outstanding++;
+					maxOutstanding = Math.max(maxOutstanding, outstanding);
+				}
+				answers.schedule(new Runnable() {
+					public void run() {
+						synchronized (log) {
+							log.add("res " + dn);
+							outstanding--;
+						}
+						try {
+							out.write(result(id, ADD + 1, dn
+									.startsWith("cn=fail")
+									? LDAPException.ENTRY_ALREADY_EXISTS
+									: LDAPException.SUCCESS));
+						} catch (IOException e) {
+							// connection closed
+						}
+					}
+				}, 20, TimeUnit.MILLISECONDS);
+			}
+		};
+		conn = connect();
+	}
+
+	protected void tearDown() throws Exception {
+		conn.disconnect();
+		server.close();
+		answers.shutdownNow();
+	}
+
+	/**
+	 * Up to window requests are outstanding on the connection at once.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testWindow() throws Exception {
+		BulkExecutor bulk = new BulkExecutor(conn, 4);
+		assertEquals(40, bulk.execute(adds(40, -1).iterator()));
+		assertEquals(40, bulk.getRequestCount());
+		assertEquals(40, bulk.getSucceededCount());
+		assertEquals(0, bulk.getFailedCount());
+		assertEquals(4, maxOutstanding);
+	}
+
+	/**
+	 * Failures are kept with the number of their request, and every result
+	 * is given to the listener.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFailures() throws Exception {
+		final List<Long> records = new ArrayList<Long>();
+		BulkExecutor bulk = new BulkExecutor(conn, 8);
+		bulk.setListener(new BulkResultListener() {
+			public void resultReceived(long record, LDAPMessage request,
+					LDAPResponse response, LDAPException error) {
+				records.add(Long.valueOf(record));
+			}
+		});
+		bulk.execute(adds(20, 12).iterator());
+		assertEquals(19, bulk.getSucceededCount());
+		assertEquals(1, bulk.getFailedCount());
+		BulkExecutor.Failure failure = bulk.getFailures().get(0);
+		assertEquals(13, failure.getRecord());
+		assertEquals(LDAPException.ENTRY_ALREADY_EXISTS, failure.getError()
+				.getResultCode());
+		assertEquals(20, records.size());
+	}
+
+	/**
+	 * The children of an entry are added only once the entry has been, and
+	 * the entries of an LDIF content file are added.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testOrder() throws Exception {
+		StringBuffer ldif = new StringBuffer("version: 1\n\n");
+		ldif.append("dn: cn=p,o=test\ncn: p\n\n");
+		for (int i = 0; i < 5; i++) {
+			ldif.append("dn: cn=c" + i + ",cn=p,o=test\ncn: c" + i + "\n\n");
+		}
+		ldif.append("dn: cn=q,o=test\ncn: q\n\n");
+		BulkExecutor bulk = new BulkExecutor(conn, 32);
+		assertEquals(7, bulk.execute(new LDIFReader(new ByteArrayInputStream(
+				ldif.toString().getBytes("UTF-8")))));
+		assertEquals(7, bulk.getSucceededCount());
+		int parent = log.indexOf("res cn=p,o=test");
+		assertTrue(parent >= 0);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(log.indexOf("req cn=c" + i + ",cn=p,o=test") > parent);
+		}
+	}
+
+	/**
+	 * Requests are shared among the connections, and once one is found
+	 * closed they are sent on the others.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testConnections() throws Exception {
+		LDAPConnection other = connect();
+		BulkExecutor bulk = new BulkExecutor(new LDAPConnection[] { conn,
+				other }, 4);
+		bulk.execute(adds(40, -1).iterator());
+		assertEquals(40, bulk.getSucceededCount());
+		assertEquals(8, maxOutstanding);
+
+		other.disconnect();
+		bulk = new BulkExecutor(new LDAPConnection[] { conn, other }, 4);
+		bulk.execute(adds(20, -1).iterator());
+		// The request sent on the closed connection fails
+		assertEquals(19, bulk.getSucceededCount());
+		assertEquals(1, bulk.getFailedCount());
+		assertEquals(LDAPException.CONNECT_ERROR, bulk.getFailures().get(0)
+				.getError().getResultCode());
+	}
+
+	private LDAPConnection connect() throws Exception {
+		LDAPConnection c = new LDAPConnection();
+		c.connect(server.getHost(), server.getPort());
+		c.bind(LDAPConnection.LDAP_V3, "cn=admin", "pw".getBytes("UTF-8"));
+		return c;
+	}
+
+	/*
+	 * Returns count add requests, the one at index failing.
+	 */
+	private static List<LDAPMessage> adds(int count, int failing)
+			throws Exception {
+		List<LDAPMessage> requests = new ArrayList<LDAPMessage>();
+		for (int i = 0; i < count; i++) {
+			LDAPAttributeSet attrs = new LDAPAttributeSet();
+			attrs.add(new LDAPAttribute("cn", "u" + i));
+			String name = (i == failing) ? "fail" : "u";
+			requests.add(new LDAPAddRequest(new LDAPEntry("cn=" + name + i
+					+ ",o=test", attrs), null));
+		}
+		return requests;
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.util;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPSchema;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for the evaluation of search filters by
+ * FilterEvaluator.
+ */
+public class FilterEvaluatorTest extends TestCase {
+	private LDAPEntry entry;
+
+	private LDAPSchema schema;
+
+	protected void setUp() throws Exception {
+		entry = entry("cn=John  Smith,ou=People,o=Acme", new String[][] {
+				{ "objectClass", "person" }, { "cn", "John  Smith" },
+				{ "cn", "Johnny" }, { "sn;lang-en", "Smith" },
+				{ "age", "42" }, { "code", "AbC" },
+				{ "phone", "+1 555-1234" },
+				{ "manager", "CN=Boss, O=acme" } });
+		LDAPAttribute types = new LDAPAttribute("attributeTypes");
+		types.addValue("( 2.5.4.41 NAME 'name' EQUALITY caseIgnoreMatch "
+				+ "SUBSTR caseIgnoreSubstringsMatch "
+				+ "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15{32768} )");
+		types.addValue("( 2.5.4.3 NAME ( 'cn' 'commonName' ) SUP name )");
+		types.addValue("( 2.5.4.4 NAME ( 'sn' 'surname' ) SUP name )");
+		types.addValue("( 9.9.1 NAME 'age' EQUALITY integerMatch "
+				+ "ORDERING integerOrderingMatch "
+				+ "SYNTAX 1.3.6.1.4.1.1466.115.121.1.27 )");
+		types.addValue("( 9.9.2 NAME 'code' EQUALITY caseExactMatch "
+				+ "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )");
+		types.addValue("( 9.9.3 NAME 'phone' "
+				+ "SYNTAX 1.3.6.1.4.1.1466.115.121.1.50 )");
+		types.addValue("( 9.9.4 NAME 'manager' "
+				+ "EQUALITY distinguishedNameMatch "
+				+ "SYNTAX 1.3.6.1.4.1.1466.115.121.1.12 )");
+		LDAPAttributeSet set = new LDAPAttributeSet();
+		set.add(types);
+		schema = new LDAPSchema(new LDAPEntry("cn=schema", set));
+	}
+
+	/**
+	 * Without a schema, values are compared ignoring case and repeated
+	 * spaces, and substrings are matched in order.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testCaseIgnore() throws Exception {
+		assertTrue(matches("(cn=john smith)", null));
+		assertTrue(matches("(cn= JOHN   SMITH )", null));
+		assertFalse(matches("(cn=john)", null));
+		assertTrue(matches("(cn=jo*)", null));
+		assertTrue(matches("(cn=j*h*h)", null));
+		assertTrue(matches("(cn=*ny)", null));
+		assertFalse(matches("(cn=*nyx)", null));
+		assertTrue(matches("(code=abc)", null));
+		assertTrue(matches("(objectClass=PERSON)", null));
+		assertTrue(matches("(&(cn=johnny)(objectclass=*))", null));
+		assertFalse(matches("(|(cn=x)(mail=*))", null));
+		assertTrue(matches("(!(cn=x))", null));
+	}
+
+	/**
+	 * Attribute options must all be present on a value that matches.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testOptions() throws Exception {
+		assertTrue(matches("(sn=smith)", null));
+		assertTrue(matches("(sn;lang-en=smith)", null));
+		assertFalse(matches("(sn;lang-fr=smith)", null));
+	}
+
+	/**
+	 * An unknown matching rule is UNDEFINED, which NOT leaves undefined,
+	 * OR and AND resolve when another item decides.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testUndefined() throws Exception {
+		assertEquals(FilterEvaluator.UNDEFINED, evaluate("(cn:1.2.3:=x)",
+				null));
+		assertEquals(FilterEvaluator.UNDEFINED, evaluate(
+				"(!(cn:1.2.3:=x))", null));
+		assertEquals(FilterEvaluator.TRUE, evaluate(
+				"(|(cn:1.2.3:=x)(cn=johnny))", null));
+		assertEquals(FilterEvaluator.FALSE, evaluate(
+				"(&(cn:1.2.3:=x)(cn=nope))", null));
+		assertFalse(matches("(!(cn:1.2.3:=x))", null));
+		assertEquals(FilterEvaluator.UNDEFINED, evaluate(
+				"(unknownattr=x)", schema));
+		assertEquals(FilterEvaluator.FALSE, evaluate("(unknownattr=*)",
+				schema));
+	}
+
+	/**
+	 * Extensible matches use the named rule, and with dnAttributes also
+	 * match the values of the DN.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testExtensible() throws Exception {
+		assertTrue(matches("(cn:caseExactMatch:=Johnny)", null));
+		assertFalse(matches("(cn:caseExactMatch:=johnny)", null));
+		assertTrue(matches("(:2.5.13.2:=SMITH)", null));
+		assertTrue(matches("(ou:dn:caseIgnoreMatch:=people)", null));
+		assertFalse(matches("(ou:caseIgnoreMatch:=people)", null));
+	}
+
+	/**
+	 * With a schema, each attribute is compared with the rules of its
+	 * definition, and a filter item matches the subtypes of its attribute.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testSchemaRules() throws Exception {
+		assertTrue(matches("(name=smith)", schema));
+		assertTrue(matches("(commonName=johnny)", schema));
+		assertTrue(matches("(2.5.4.3=johnny)", schema));
+		assertTrue(matches("(age=42)", schema));
+		assertTrue(matches("(age>=9)", schema));
+		assertFalse(matches("(age>=100)", schema));
+		assertTrue(matches("(age<=100)", schema));
+		assertEquals(FilterEvaluator.UNDEFINED, evaluate("(age=x)", schema));
+		assertTrue(matches("(code=AbC)", schema));
+		assertFalse(matches("(code=abc)", schema));
+		assertTrue(matches("(phone=+15551234)", schema));
+		assertTrue(matches("(manager=cn=boss,o=ACME)", schema));
+		assertFalse(matches("(manager=cn=boss,o=x)", schema));
+		// No ordering rule for cn
+		assertEquals(FilterEvaluator.UNDEFINED, evaluate("(cn>=k)", schema));
+		// Compared as strings without a schema
+		assertFalse(matches("(age>=9)", null));
+	}
+
+	/**
+	 * Integers are compared by value, however long.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testLongIntegers() throws Exception {
+		LDAPEntry big = entry("cn=x", new String[][] { { "age",
+				"123456789012345678901234" } });
+		assertTrue(new FilterEvaluator("(age>=123456789012345678901233)",
+				schema).matches(big));
+		assertTrue(new FilterEvaluator("(age>=5)", schema).matches(big));
+		assertFalse(matches("(age>=99999999999999999999999)", schema));
+	}
+
+	private boolean matches(String filter, LDAPSchema schema)
+			throws Exception {
+		return new FilterEvaluator(filter, schema).matches(entry);
+	}
+
+	private int evaluate(String filter, LDAPSchema schema) throws Exception {
+		return new FilterEvaluator(filter, schema).evaluate(entry);
+	}
+
+	private static LDAPEntry entry(String dn, String[][] values) {
+		LDAPAttributeSet set = new LDAPAttributeSet();
+		for (int i = 0; i < values.length; i++) {
+			LDAPAttribute attr = set.getAttribute(values[i][0]);
+			if (attr == null) {
+				set.add(new LDAPAttribute(values[i][0], values[i][1]));
+			} else {
+				attr.addValue(values[i][1]);
+			}
+		}
+		return new LDAPEntry(dn, set);
+	}
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * $OpenLDAP$
+ * 
+ * Copyright (C) 2002 - 2003 Novell, Inc. All Rights Reserved.
+ * 
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND TREATIES.
+ * USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT TO VERSION
+ * 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS AVAILABLE AT
+ * HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE" IN THE
+ * TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION OF THIS WORK
+ * OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, OR
+ * OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT THE PERPETRATOR TO
+ * CRIMINAL AND CIVIL LIABILITY.
+ */
+package com.novell.ldap.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LoopbackServer;
+import com.novell.ldap.asn1.ASN1Enumerated;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.ASN1Tagged;
+
+import junit.framework.TestCase;
+
+/**
+ * This Class contains testcases for ParallelSearch, against a server on the
+ * loopback interface holding a small tree. Each entry of the tree must be
+ * returned once, however the partitions overlap.
+ */
+public class ParallelSearchTest extends TestCase {
+	private final List<LDAPEntry> tree = new ArrayList<LDAPEntry>();
+
+	private final Set<String> dns = new HashSet<String>();
+
+	private volatile String failing = null;
+
+	private LoopbackServer server;
+
+	private LDAPConnection[] conns;
+
+	protected void setUp() throws Exception {
+		add("o=test", true);
+		add("ou=a,o=test", true);
+		for (int i = 0; i < 10; i++) {
+			add("cn=a" + i + ",ou=a,o=test", false);
+		}
+		add("ou=deep,ou=a,o=test", true);
+		for (int i = 0; i < 5; i++) {
+			add("cn=d" + i + ",ou=deep,ou=a,o=test", false);
+		}
+		add("ou=b,o=test", true);
+		for (int i = 0; i < 5; i++) {
+			add("cn=b" + i + ",ou=b,o=test", false);
+		}
+		add("cn=leaf,o=test", false);
+
+		// Searches the entries added, and fails searches based at failing
+		server = new LoopbackServer() {
+			protected void handle(OutputStream out, int id, ASN1Tagged op,
+					ASN1Sequence message) throws IOException {
+				if (op.getIdentifier().getTag() != SEARCH) {
+					super.handle(out, id, op, message);
+					return;
+				}
+				ASN1Object[] request = elements(op);
+				String base = ((ASN1OctetString) request[0]).stringValue();
+				int scope = ((ASN1Enumerated) request[1]).intValue();
+				if (base.equals(failing)) {
+					out.write(result(id, SEARCH_RESULT,
+							LDAPException.BUSY));
+					return;
+				}
+				try {
+					FilterEvaluator filter = new FilterEvaluator(
+							filterString(request[6]));
+					for (int i = 0; i < tree.size(); i++) {
+						LDAPEntry entry = tree.get(i);
+						if (inScope(entry.getDN(), base, scope)
+								&& filter.matches(entry)) {
+							out.write(entry(id, entry));
+						}
+					}
+				} catch (LDAPException e) {
+					throw new IOException(e.toString());
+				}
+				out.write(result(id, SEARCH_RESULT, LDAPException.SUCCESS));
+			}
+		};
+		conns = new LDAPConnection[3];
+		for (int i = 0; i < conns.length; i++) {
+			conns[i] = new LDAPConnection();
+			conns[i].connect(server.getHost(), server.getPort());
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		for (int i = 0; i < conns.length; i++) {
+			conns[i].disconnect();
+		}
+		server.close();
+	}
+
+	/**
+	 * By default the base, its children and the subtree of each child with
+	 * subordinates are searched, and each entry is returned once.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testChildren() throws Exception {
+		ParallelSearch search = new ParallelSearch(conns, "o=test",
+				"(objectClass=*)", null, false);
+		assertEquals(dns, read(search, null));
+		assertEquals(dns.size(), search.getEntryCount());
+		ParallelSearch.Partition[] partitions = search.getPartitions();
+		// Base, children, ou=a and ou=b, but not cn=leaf
+		assertEquals(4, partitions.length);
+		for (int i = 0; i < partitions.length; i++) {
+			assertTrue(partitions[i].isComplete());
+			assertFalse(partitions[i].getBase().equals("cn=leaf,o=test"));
+		}
+	}
+
+	/**
+	 * An entry in nested partitions is returned by the deepest one.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testNested() throws Exception {
+		ParallelSearch search = new ParallelSearch(conns, "o=test",
+				"(objectClass=*)", null, false);
+		search.addPartition(new ParallelSearch.Partition("o=test",
+				LDAPConnection.SCOPE_SUB, "(objectClass=*)"));
+		search.addPartition(new ParallelSearch.Partition("ou=a,o=test",
+				LDAPConnection.SCOPE_SUB, "(objectClass=*)"));
+		search.addPartition(new ParallelSearch.Partition(
+				"ou=deep,ou=a,o=test", LDAPConnection.SCOPE_ONE,
+				"(objectClass=*)"));
+		assertEquals(dns, read(search, null));
+		ParallelSearch.Partition[] partitions = search.getPartitions();
+		long entries = 0;
+		for (int i = 0; i < partitions.length; i++) {
+			entries += partitions[i].getEntryCount();
+		}
+		assertEquals(dns.size(), entries);
+	}
+
+	/**
+	 * Entries returned by overlapping filters are returned once when
+	 * deduplicating.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testDeduplicate() throws Exception {
+		String[] filters = new String[] { "(kind=even)", "(kind=odd)",
+				"(|(kind=even)(kind=odd))" };
+		ParallelSearch search = new ParallelSearch(conns, "o=test",
+				"(objectClass=*)", null, false);
+		search.partitionByFilters(filters);
+		search.setDeduplicate(true);
+		assertEquals(dns, read(search, null));
+
+		search = new ParallelSearch(conns, "o=test", "(objectClass=*)",
+				null, false);
+		search.partitionByFilters(filters);
+		List<String> all = new ArrayList<String>();
+		read(search, all);
+		assertEquals(2 * dns.size(), all.size());
+	}
+
+	/**
+	 * The error of a failed partition is thrown by next, and the other
+	 * partitions complete.
+	 * 
+	 * @throws Exception
+	 *             When error occurs.
+	 */
+	public void testFailure() throws Exception {
+		failing = "ou=b,o=test";
+		ParallelSearch search = new ParallelSearch(conns, "o=test",
+				"(objectClass=*)", null, false);
+		int errors = 0;
+		Set<String> found = new HashSet<String>();
+		while (search.hasMore()) {
+			try {
+				found.add(search.next().getDN());
+			} catch (LDAPException e) {
+				assertEquals(LDAPException.BUSY, e.getResultCode());
+				errors++;
+			}
+		}
+		assertEquals(1, errors);
+		// All but the subtree of ou=b, which the failed partition holds
+		assertEquals(dns.size() - 6, found.size());
+		assertFalse(found.contains("ou=b,o=test"));
+		assertTrue(found.contains("cn=d0,ou=deep,ou=a,o=test"));
+	}
+
+	/*
+	 * Returns the DNs of the entries of a search, checking each is returned
+	 * once, and adding each to all if not null.
+	 */
+	private static Set<String> read(ParallelSearch search, List<String> all)
+			throws Exception {
+		Set<String> found = new HashSet<String>();
+		while (search.hasMore()) {
+			String dn = search.next().getDN();
+			if (all != null) {
+				all.add(dn);
+				found.add(dn);
+			} else {
+				assertTrue("returned twice: " + dn, found.add(dn));
+			}
+		}
+		return found;
+	}
+
+	private void add(String dn, boolean subordinates) {
+		LDAPAttributeSet attrs = new LDAPAttributeSet();
+		attrs.add(new LDAPAttribute("objectClass", "top"));
+		attrs.add(new LDAPAttribute("kind", (tree.size() % 2 == 0) ? "even"
+				: "odd"));
+		attrs.add(new LDAPAttribute("hasSubordinates", subordinates ? "TRUE"
+				: "FALSE"));
+		tree.add(new LDAPEntry(dn, attrs));
+		dns.add(dn);
+	}
+
+	private static boolean inScope(String dn, String base, int scope) {
+		switch (scope) {
+		case LDAPConnection.SCOPE_BASE:
+			return dn.equals(base);
+		case LDAPConnection.SCOPE_ONE:
+			return dn.endsWith("," + base)
+					&& dn.indexOf(',') == dn.length() - base.length() - 1;
+		default:
+			return dn.equals(base) || dn.endsWith("," + base);
+		}
+	}
+
+	/*
+	 * Returns the string form of the AND, OR, NOT, equality and presence
+	 * filters of a search request.
+	 */
+	private static String filterString(ASN1Object filter) throws IOException {
+		ASN1Tagged tagged = (ASN1Tagged) filter;
+		int tag = tagged.getIdentifier().getTag();
+		if (tag == 7) {
+			return "(" + ((ASN1OctetString) tagged.taggedValue()).stringValue()
+					+ "=*)";
+		}
+		ASN1Object[] elements = LoopbackServer.elements(tagged);
+		if (tag == 3) {
+			return "(" + ((ASN1OctetString) elements[0]).stringValue() + "="
+					+ ((ASN1OctetString) elements[1]).stringValue() + ")";
+		}
+		StringBuffer buffer = new StringBuffer("(");
+		buffer.append("&|!".charAt(tag));
+		for (int i = 0; i < elements.length; i++) {
+			buffer.append(filterString(elements[i]));
+		}
+		return buffer.append(')').toString();
+	}
+}
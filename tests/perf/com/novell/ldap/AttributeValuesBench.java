@@ -0,0 +1,220 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+/*
+ * Memory and throughput benchmark for the values of an LDAPAttribute.
+ *
+ * Builds a static group with a member attribute of 500,000 values, and
+ * compares LDAPAttribute with values held as they were before, in a
+ * LinkedList of ByteArray objects.  Reports the heap retained by the
+ * values, and the time taken to add them, to read them all as strings
+ * first and again, to look up random values and to remove random values.
+ * Each string read of the list decodes every value again, and each lookup
+ * or removal in the list compares values one by one, while LDAPAttribute
+ * keeps the strings and builds an index on the first lookup.
+ *
+ * Run with a heap large enough for both copies, for example:
+ *   java -Xmx1g -cp .:ldap.jar com.novell.ldap.AttributeValuesBench
+ *        [values [lookups]]
+ */
+package com.novell.ldap;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import com.novell.ldap.util.ByteArray;
+
+public class AttributeValuesBench
+{
+    public static void main( String[] args)
+        throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+        int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        byte[][] values = new byte[count][];
+        for( int i = 0; i < count; i++) {
+            values[i] = ("cn=user" + i + ",ou=People,o=Acme").getBytes("UTF-8");
+        }
+        Random random = new Random( 1);
+        int[] probes = new int[lookups];
+        for( int i = 0; i < lookups; i++) {
+            probes[i] = random.nextInt( count);
+        }
+
+        // Warm up both before timing
+        for( int i = 0; i < 3; i++) {
+            runList( values, probes, false);
+            runAttribute( values, probes, false);
+        }
+        System.out.println(count + " values, " + lookups +
+            " lookups and removals");
+        System.out.println("              retained   add ms  strings ms" +
+            "  again ms  index ms   lookup us   remove us");
+        runList( values, probes, true);
+        runAttribute( values, probes, true);
+        return;
+    }
+
+    /*
+     * The values held as before, with the operations LDAPAttribute used.
+     */
+    private static void runList( byte[][] values, int[] probes,
+                                 boolean print)
+        throws Exception
+    {
+        long before = retained();
+        long start = System.nanoTime();
+        LinkedList list = new LinkedList();
+        for( int i = 0; i < values.length; i++) {
+            byte[] copy = new byte[values[i].length];
+            System.arraycopy( values[i], 0, copy, 0, copy.length);
+            list.add( new ByteArray( copy));
+        }
+        long add = System.nanoTime() - start;
+        long memory = retained() - before;
+
+        // The first read, then the fastest of the next reads
+        long[] strings = { 0, Long.MAX_VALUE };
+        for( int pass = 0; pass < 5; pass++) {
+            start = System.nanoTime();
+            String[] array = new String[list.size()];
+            int i = 0;
+            for( java.util.Iterator it = list.iterator(); it.hasNext(); ) {
+                array[i++] = new String(
+                                    ((ByteArray)it.next()).getValue(), "UTF-8");
+            }
+            time( strings, pass, System.nanoTime() - start);
+        }
+
+        // The list has no index to build
+        long index = 0;
+
+        start = System.nanoTime();
+        int found = 0;
+        for( int i = 0; i < probes.length; i++) {
+            if( list.contains( new ByteArray( values[probes[i]]))) {
+                found++;
+            }
+        }
+        long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for( int i = 0; i < probes.length; i++) {
+            list.removeFirstOccurrence( new ByteArray( values[probes[i]]));
+        }
+        long remove = System.nanoTime() - start;
+        report( "LinkedList", print, memory, add, strings, index, lookup,
+                remove,
+                probes.length, found + list.size());
+        return;
+    }
+
+    private static void runAttribute( byte[][] values, int[] probes,
+                                      boolean print)
+    {
+        long before = retained();
+        long start = System.nanoTime();
+        LDAPAttribute attr = new LDAPAttribute( "member");
+        for( int i = 0; i < values.length; i++) {
+            attr.addValue( values[i]);
+        }
+        long add = System.nanoTime() - start;
+        long memory = retained() - before;
+
+        long[] strings = { 0, Long.MAX_VALUE };
+        for( int pass = 0; pass < 5; pass++) {
+            start = System.nanoTime();
+            attr.getStringValueArray();
+            time( strings, pass, System.nanoTime() - start);
+        }
+
+        // The first lookup builds the index
+        start = System.nanoTime();
+        attr.hasValue( new byte[0]);
+        long index = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int found = 0;
+        for( int i = 0; i < probes.length; i++) {
+            if( attr.hasValue( values[probes[i]])) {
+                found++;
+            }
+        }
+        long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for( int i = 0; i < probes.length; i++) {
+            attr.removeValue( values[probes[i]]);
+        }
+        long remove = System.nanoTime() - start;
+        report( "LDAPAttribute", print, memory, add, strings, index, lookup,
+                remove,
+                probes.length, found + attr.size());
+        return;
+    }
+
+    private static void report( String name, boolean print, long memory,
+                                long add, long[] strings, long index,
+                                long lookup, long remove, int probes,
+                                int check)
+    {
+        if( print) {
+            System.out.println(pad( name, -13) +
+                pad( (memory >> 20) + " MB", 10) +
+                pad( String.valueOf( add / 1000000), 9) +
+                pad( String.valueOf( strings[0] / 1000000), 12) +
+                pad( String.valueOf( strings[1] / 1000000), 10) +
+                pad( String.valueOf( index / 1000000), 10) +
+                pad( String.valueOf( lookup / 1000 / probes), 12) +
+                pad( String.valueOf( remove / 1000 / probes), 12) +
+                "   (" + check + ")");
+        }
+        return;
+    }
+
+    private static void time( long[] times, int pass, long time)
+    {
+        if( pass == 0) {
+            times[0] = time;
+        } else {
+            times[1] = Math.min( times[1], time);
+        }
+        return;
+    }
+
+    /*
+     * Returns the heap in use after collecting garbage.
+     */
+    private static long retained()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String pad( String s, int width)
+    {
+        StringBuffer sb = new StringBuffer( s);
+        while( sb.length() < Math.abs( width)) {
+            if( width < 0) {
+                sb.append( ' ');
+            } else {
+                sb.insert( 0, ' ');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,159 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+/*
+ * Microbenchmark for LDAPFilterTemplate.
+ *
+ * Builds and encodes the search request of each filter shape below, once
+ * by formatting and parsing the string filter for every value, as
+ * LDAPConnection.search(String, ...) does, and once by binding the value
+ * to a template parsed beforehand.  Reports the average cost of both
+ * paths, and first checks that both encode the same octets, including
+ * for values with characters that must be escaped in a string filter.
+ *
+ * Usage:
+ *   java -cp .:ldap.jar com.novell.ldap.FilterTemplateBench [requests]
+ */
+package com.novell.ldap;
+
+import java.util.Arrays;
+
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.LBEREncoder;
+
+public class FilterTemplateBench
+{
+    private static final String[] TEMPLATES = {
+        "(uid=?)",
+        "(&(objectClass=user)(uid=?))",
+        "(&(objectClass=inetOrgPerson)(|(uid=?)(mail=?)(cn=?*))" +
+            "(!(loginDisabled=TRUE)))",
+    };
+
+    private static final String[] CHECKED = {
+        "jdoe", "a*b", "(x)", "back\\slash", "\u00e9t\u00e9", "?"
+    };
+
+    // Octets encoded by the timed loops, printed so the work is used
+    private static long encoded = 0;
+
+    public static void main( String[] args)
+        throws Exception
+    {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+        for( int t = 0; t < TEMPLATES.length; t++) {
+            check( new LDAPFilterTemplate( TEMPLATES[t]));
+        }
+        System.out.println("parameters   parse ns/op   template ns/op");
+        for( int t = 0; t < TEMPLATES.length; t++) {
+            LDAPFilterTemplate template = new LDAPFilterTemplate( TEMPLATES[t]);
+            // Warm up both paths before timing them
+            parse( template, requests);
+            bind( template, requests);
+
+            long p = parse( template, requests);
+            long b = bind( template, requests);
+            System.out.println(pad( String.valueOf(
+                    template.getParameterCount()), 10) +
+                pad( String.valueOf( p / requests), 14) +
+                pad( String.valueOf( b / requests), 17));
+        }
+        System.out.println( encoded + " octets encoded");
+        return;
+    }
+
+    /*
+     * Verifies that a bound template encodes like the equivalent string
+     * filter.
+     */
+    private static void check( LDAPFilterTemplate template)
+        throws LDAPException
+    {
+        for( int i = 0; i < CHECKED.length; i++) {
+            String[] values = values( template, CHECKED[i]);
+            if( ! Arrays.equals(
+                    encode( request( template.toString( values))),
+                    encode( request( template, values)))) {
+                throw new RuntimeException( "Encodings differ for " +
+                    template.toString( values));
+            }
+        }
+        return;
+    }
+
+    private static long parse( LDAPFilterTemplate template, int count)
+        throws LDAPException
+    {
+        int check = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < count; i++) {
+            String[] values = values( template, "user" + i);
+            check += encode( request( template.toString( values))).length;
+        }
+        long elapsed = System.nanoTime() - start;
+        encoded += check;
+        return elapsed;
+    }
+
+    private static long bind( LDAPFilterTemplate template, int count)
+    {
+        int check = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < count; i++) {
+            String[] values = values( template, "user" + i);
+            check += encode( request( template, values)).length;
+        }
+        long elapsed = System.nanoTime() - start;
+        encoded += check;
+        return elapsed;
+    }
+
+    private static String[] values( LDAPFilterTemplate template, String value)
+    {
+        String[] values = new String[template.getParameterCount()];
+        Arrays.fill( values, value);
+        return values;
+    }
+
+    private static LDAPSearchRequest request( String filter)
+        throws LDAPException
+    {
+        return new LDAPSearchRequest( "o=acme", LDAPConnection.SCOPE_SUB,
+            filter, null, LDAPSearchConstraints.DEREF_NEVER, 0, 0, false,
+            null);
+    }
+
+    private static LDAPSearchRequest request( LDAPFilterTemplate template,
+                                              String[] values)
+    {
+        return new LDAPSearchRequest( "o=acme", LDAPConnection.SCOPE_SUB,
+            template.bind( values), null, LDAPSearchConstraints.DEREF_NEVER,
+            0, 0, false, null);
+    }
+
+    private static byte[] encode( LDAPSearchRequest request)
+    {
+        return new LBEREncoder().encode(
+                (ASN1Object)request.getASN1Object().getRequest());
+    }
+
+    private static String pad( String s, int width)
+    {
+        StringBuffer sb = new StringBuffer( s);
+        while( sb.length() < width) {
+            sb.insert( 0, ' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+/*
+ * Microbenchmark for MessageVector.findMessageById.
+ *
+ * Fills a MessageVector with 10 to 100,000 outstanding Message objects and
+ * reports the average cost of looking up a random outstanding message by
+ * ID, alongside a linear scan of the same vector for comparison.  The
+ * indexed lookup should stay flat as the number of outstanding operations
+ * grows.
+ *
+ * Usage:
+ *   java -cp .:ldap.jar com.novell.ldap.MessageLookupBench [lookups]
+ */
+package com.novell.ldap;
+
+import java.util.Random;
+
+public class MessageLookupBench
+{
+    private static final int[] SIZES = { 10, 100, 1000, 10000, 100000 };
+
+    // Sum of the message IDs found, printed so the lookups are used
+    private static long found = 0;
+
+    public static void main( String[] args)
+        throws Exception
+    {
+        int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        System.out.println("outstanding   indexed ns/op   linear ns/op");
+        for( int s = 0; s < SIZES.length; s++) {
+            int size = SIZES[s];
+            MessageVector messages = new MessageVector( 5, 5);
+            int[] ids = new int[size];
+            for( int i = 0; i < size; i++) {
+                LDAPMessage request = new LDAPDeleteRequest( "cn=" + i, null);
+                ids[i] = request.getMessageID();
+                messages.addElement(
+                    new Message( request, 0, null, null, null, null, null));
+            }
+            // Warm up both paths before timing them
+            indexed( messages, ids, lookups);
+            linear( messages, ids, Math.max( 1000, lookups / size));
+
+            long t = indexed( messages, ids, lookups);
+            int linearLookups = Math.max( 1000, lookups / size);
+            long l = linear( messages, ids, linearLookups);
+            System.out.println(pad( String.valueOf(size), 11) +
+                pad( String.valueOf( (double)t / lookups), 16) +
+                pad( String.valueOf( (double)l / linearLookups), 15));
+        }
+        System.out.println( "checksum " + found);
+        return;
+    }
+
+    private static long indexed( MessageVector messages, int[] ids, int count)
+        throws NoSuchFieldException
+    {
+        Random random = new Random(1);
+        int check = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < count; i++) {
+            check += messages.findMessageById(
+                    ids[random.nextInt(ids.length)]).getMessageID();
+        }
+        long elapsed = System.nanoTime() - start;
+        found += check;
+        return elapsed;
+    }
+
+    /*
+     * The lookup as previously implemented, a scan under the vector monitor.
+     */
+    private static long linear( MessageVector messages, int[] ids, int count)
+    {
+        Random random = new Random(1);
+        int check = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < count; i++) {
+            int id = ids[random.nextInt(ids.length)];
+            synchronized( messages) {
+                for( int j = 0; j < messages.size(); j++) {
+                    Message msg = (Message)messages.elementAt(j);
+                    if( msg.getMessageID() == id) {
+                        check += id;
+                        break;
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        found += check;
+        return elapsed;
+    }
+
+    private static String pad( String s, int width)
+    {
+        StringBuffer sb = new StringBuffer( s);
+        while( sb.length() < width) {
+            sb.insert( 0, ' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,144 @@
+/* **************************************************************************
+ * $OpenLDAP$
+ *
+ * Copyright (C) 1999, 2000, 2001 Novell, Inc. All Rights Reserved.
+ *
+ * THIS WORK IS SUBJECT TO U.S. AND INTERNATIONAL COPYRIGHT LAWS AND
+ * TREATIES. USE, MODIFICATION, AND REDISTRIBUTION OF THIS WORK IS SUBJECT
+ * TO VERSION 2.0.1 OF THE OPENLDAP PUBLIC LICENSE, A COPY OF WHICH IS
+ * AVAILABLE AT HTTP://WWW.OPENLDAP.ORG/LICENSE.HTML OR IN THE FILE "LICENSE"
+ * IN THE TOP-LEVEL DIRECTORY OF THE DISTRIBUTION. ANY USE OR EXPLOITATION
+ * OF THIS WORK OTHER THAN AS AUTHORIZED IN VERSION 2.0.1 OF THE OPENLDAP
+ * PUBLIC LICENSE, OR OTHER PRIOR WRITTEN CONSENT FROM NOVELL, COULD SUBJECT
+ * THE PERPETRATOR TO CRIMINAL AND CIVIL LIABILITY.
+ ******************************************************************************/
+/*
+ * Microbenchmark for FilterEvaluator.
+ *
+ * Evaluates each filter below against a set of generated person entries,
+ * with the matching rules of a small schema, and reports the number of
+ * entries evaluated per second and the number that matched.
+ *
+ * Usage:
+ *   java -cp .:ldap.jar com.novell.ldap.util.FilterEvaluatorBench
+ *        [entries [passes]]
+ */
+package com.novell.ldap.util;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPSchema;
+
+public class FilterEvaluatorBench
+{
+    private static final String[] FILTERS = {
+        "(uid=user500)",
+        "(&(objectClass=inetOrgPerson)(employeeNumber>=5000))",
+        "(&(objectClass=person)(|(cn=*Smith 7*)(mail=user1*@acme.com))" +
+            "(!(description=disabled)))",
+        "(name=john smith 42)",
+    };
+
+    private static final String[] ATTRIBUTE_TYPES = {
+        "( 2.5.4.0 NAME 'objectClass' EQUALITY objectIdentifierMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.38 )",
+        "( 2.5.4.41 NAME 'name' EQUALITY caseIgnoreMatch " +
+            "SUBSTR caseIgnoreSubstringsMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15{32768} )",
+        "( 2.5.4.3 NAME ( 'cn' 'commonName' ) SUP name )",
+        "( 2.5.4.4 NAME ( 'sn' 'surname' ) SUP name )",
+        "( 2.5.4.42 NAME 'givenName' SUP name )",
+        "( 2.5.4.13 NAME 'description' EQUALITY caseIgnoreMatch " +
+            "SUBSTR caseIgnoreSubstringsMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15{1024} )",
+        "( 0.9.2342.19200300.100.1.1 NAME 'uid' EQUALITY caseIgnoreMatch " +
+            "SUBSTR caseIgnoreSubstringsMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15{256} )",
+        "( 0.9.2342.19200300.100.1.3 NAME 'mail' " +
+            "EQUALITY caseIgnoreIA5Match " +
+            "SUBSTR caseIgnoreIA5SubstringsMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.26{256} )",
+        "( 2.16.840.1.113730.3.1.3 NAME 'employeeNumber' " +
+            "EQUALITY integerMatch ORDERING integerOrderingMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.27 SINGLE-VALUE )",
+        "( 2.5.4.20 NAME 'telephoneNumber' EQUALITY telephoneNumberMatch " +
+            "SUBSTR telephoneNumberSubstringsMatch " +
+            "SYNTAX 1.3.6.1.4.1.1466.115.121.1.50{32} )",
+    };
+
+    public static void main( String[] args)
+        throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int passes = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        LDAPSchema schema = schema();
+        LDAPEntry[] entries = new LDAPEntry[count];
+        for( int i = 0; i < count; i++) {
+            entries[i] = entry( i);
+        }
+        System.out.println("entries/s    matched   filter");
+        for( int f = 0; f < FILTERS.length; f++) {
+            FilterEvaluator filter = new FilterEvaluator( FILTERS[f], schema);
+            // Warm up before timing
+            evaluate( filter, entries, passes);
+
+            long start = System.nanoTime();
+            int matched = evaluate( filter, entries, passes);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(pad( String.valueOf(
+                    (long)count * passes * 1000000000L / elapsed), 9) +
+                pad( String.valueOf( matched / passes), 11) + "   " +
+                FILTERS[f]);
+        }
+        return;
+    }
+
+    private static int evaluate( FilterEvaluator filter,
+                                 LDAPEntry[] entries, int passes)
+    {
+        int matched = 0;
+        for( int p = 0; p < passes; p++) {
+            for( int i = 0; i < entries.length; i++) {
+                if( filter.matches( entries[i])) {
+                    matched++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    private static LDAPSchema schema()
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( new LDAPAttribute( "attributeTypes", ATTRIBUTE_TYPES));
+        return new LDAPSchema( new LDAPEntry( "cn=schema", attrs));
+    }
+
+    private static LDAPEntry entry( int i)
+    {
+        LDAPAttributeSet attrs = new LDAPAttributeSet();
+        attrs.add( new LDAPAttribute( "objectClass", new String[] {
+            "top", "person", "organizationalPerson", "inetOrgPerson" }));
+        attrs.add( new LDAPAttribute( "uid", "user" + i));
+        attrs.add( new LDAPAttribute( "cn", "John  Smith " + i));
+        attrs.add( new LDAPAttribute( "sn", "Smith"));
+        attrs.add( new LDAPAttribute( "givenName", "John"));
+        attrs.add( new LDAPAttribute( "mail", "user" + i + "@acme.com"));
+        attrs.add( new LDAPAttribute( "employeeNumber", String.valueOf( i)));
+        attrs.add( new LDAPAttribute( "telephoneNumber",
+                                      "+1 555 " + (1000 + i % 9000)));
+        attrs.add( new LDAPAttribute( "description",
+                                      (i % 10 == 0) ? "disabled" : "active"));
+        return new LDAPEntry( "uid=user" + i + ",ou=People,o=Acme", attrs);
+    }
+
+    private static String pad( String s, int width)
+    {
+        StringBuffer sb = new StringBuffer( s);
+        while( sb.length() < width) {
+            sb.insert( 0, ' ');
+        }
+        return sb.toString();
+    }
+}